@@ -2,25 +2,46 @@ package com.manu156.driver.redash;
 
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import org.apache.http.Header;
 import org.apache.http.HttpEntity;
 import org.apache.http.HttpResponse;
 import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpDelete;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpPost;
 import org.apache.http.entity.StringEntity;
 import org.apache.http.impl.client.CloseableHttpClient;
-import org.apache.http.impl.client.HttpClientBuilder;
 import org.apache.http.util.EntityUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.http.HttpRequest;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Paths;
 import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Function;
+import java.util.regex.Pattern;
 
 /**
  * Client for interacting with the Redash API.
@@ -34,13 +55,75 @@ public class RedashApiClient {
     private final CloseableHttpClient httpClient;
     private final String host;
     private final int port;
+    private final boolean ssl;
+    private final RedashPollSchedule pollSchedule;
+    private final long resultCacheTtlMillis;
+    private final RedashMetadataCache metadataCache;
+    private final RedashJobPoller jobPoller;
+    private final boolean compression;
+    private final RedashRetryPolicy retryPolicy;
+    private final RedashCircuitBreaker circuitBreaker;
+    private final RedashQueryLimiter queryLimiter;
+    private volatile RedashAsyncHttpClient asyncClient;
+    private final boolean offHeapResults;
+    private final ExecutorService joinExecutor;
     
-    public RedashApiClient(String host, int port, String apiKey) {
+    private static final Pattern WHITESPACE = Pattern.compile("\\s+");
+    
+    // Applied to job polling when the statement has no query timeout
+    private static final int DEFAULT_QUERY_TIMEOUT_SECONDS = 300;
+    
+    // Threads reading the saved queries of joins, shared by the statements of a connection
+    private static final int JOIN_THREADS = 8;
+    
+    public RedashApiClient(String host, int port, String apiKey, RedashConnectionProperties properties)
+            throws SQLException {
         this.host = host;
         this.port = port;
-        this.baseUrl = "http://" + host + ":" + port + "/api";
+        this.ssl = properties.isSsl();
+        this.baseUrl = (ssl ? "https://" : "http://") + host + ":" + port + properties.getBasePath() + "/api";
         this.apiKey = apiKey;
-        this.httpClient = HttpClientBuilder.create().build();
+        if (properties.getResultCacheTtlSeconds() > 0 && properties.getResultCacheDirectory() != null) {
+            try {
+                RedashResultCache.getInstance().configureDirectory(Paths.get(properties.getResultCacheDirectory()));
+            } catch (IOException | InvalidPathException e) {
+                throw new SQLException("Cannot use result cache directory " + properties.getResultCacheDirectory(), e);
+            }
+        }
+        this.retryPolicy = new RedashRetryPolicy(properties);
+        this.compression = properties.isCompression();
+        this.pollSchedule = new RedashPollSchedule(properties.getPollInitialDelayMillis(),
+                properties.getPollMultiplier(), properties.getPollMaxDelayMillis());
+        this.resultCacheTtlMillis = TimeUnit.SECONDS.toMillis(properties.getResultCacheTtlSeconds());
+        if (resultCacheTtlMillis > 0 && properties.getResultCacheMaxBytes() != null) {
+            RedashResultCache.getInstance().configureMaxBytes(properties.getResultCacheMaxBytes());
+        }
+        this.offHeapResults = properties.isOffHeapResults();
+        if (properties.getOffHeapMaxBytes() != null) {
+            RedashOffHeapArena.configureMaxBytes(properties.getOffHeapMaxBytes());
+        }
+        long metadataCacheTtlMillis = TimeUnit.SECONDS.toMillis(properties.getMetadataCacheTtlSeconds());
+        this.joinExecutor = RedashThreads.newBlockingExecutor("redash-join-" + host, JOIN_THREADS,
+                properties.isVirtualThreads());
+        
+        // The shared resources are acquired last, and released again if acquiring the next one fails
+        this.httpClient = RedashHttpClientPool.acquire(host, port, properties);
+        RedashJobPoller poller = null;
+        try {
+            this.circuitBreaker = RedashHttpClientPool.getCircuitBreaker(host, port, ssl);
+            this.queryLimiter = RedashHttpClientPool.getQueryLimiter(host, port, ssl);
+            poller = RedashJobPoller.acquire(baseUrl, httpClient, properties.isVirtualThreads());
+            this.jobPoller = poller;
+            this.metadataCache = metadataCacheTtlMillis > 0
+                    ? RedashMetadataCache.acquire(baseUrl, apiKey, metadataCacheTtlMillis) : null;
+        } catch (RuntimeException | Error e) {
+            if (poller != null) {
+                poller.release();
+            }
+            RedashHttpClientPool.release(host, port, ssl);
+            joinExecutor.shutdown();
+            throw e;
+        }
     }
     
     /**
@@ -95,38 +178,154 @@ public class RedashApiClient {
      * @throws SQLException if there's an error executing the query
      */
     public RedashQueryResult executeQueryById(String queryId, Map<String, Object> parameters) throws SQLException {
+        return executeQueryById(queryId, parameters, new RedashQueryContext(0)).readAll();
+    }
+    
+    /**
+     * Execute a query by ID within the given execution context.
+     * 
+     * @param queryId The ID of the query to execute
+     * @param parameters Query parameters
+     * @param context The execution context carrying the query timeout
+     * @return Query results, streamed from the response if the context asks for it
+     * @throws SQLException if there's an error executing the query
+     */
+    RedashResultStream executeQueryById(String queryId, Map<String, Object> parameters,
+                                        RedashQueryContext context) throws SQLException {
+        String cacheKey = resultCacheKey("query:" + queryId, parameters);
+        RedashQueryResult cached = getCachedResult(cacheKey, context);
+        if (cached != null) {
+            logger.debug("Serving query {} from the result cache", queryId);
+            return RedashResultStream.of(cached);
+        }
+        
+        return putCachedResult(cacheKey, runQueryById(queryId, parameters, context), context);
+    }
+    
+    /**
+     * Save SQL as a new Redash query and execute it. The result is cached under the SQL
+     * rather than the new query's id, so a repeated statement is answered from the cache
+     * without saving another query.
+     * 
+     * @param name The name of the query
+     * @param description The description of the query
+     * @param dataSourceId The ID of the data source
+     * @param queryText The SQL query text
+     * @param parameters Query parameters
+     * @param context The execution context
+     * @return Query results
+     * @throws SQLException if there's an error creating or executing the query
+     */
+    RedashResultStream executeAsSavedQuery(String name, String description, String dataSourceId, String queryText,
+                                           Map<String, Object> parameters, RedashQueryContext context)
+            throws SQLException {
+        String cacheKey = resultCacheKey("sql:" + dataSourceId + ":" + normalizeSql(queryText), parameters);
+        RedashQueryResult cached = getCachedResult(cacheKey, context);
+        if (cached != null) {
+            logger.debug("Serving query from the result cache");
+            return RedashResultStream.of(cached);
+        }
+        
+        String queryId = createQuery(name, description, dataSourceId, queryText);
+        return putCachedResult(cacheKey, runQueryById(queryId, parameters, context), context);
+    }
+    
+    /**
+     * Look up a saved query's text and data source, then run it, bypassing the result cache.
+     */
+    private RedashResultStream runQueryById(String queryId, Map<String, Object> parameters,
+                                            RedashQueryContext context) throws SQLException {
         long startTime = System.currentTimeMillis();
-        try {
-            // First, get the query details
-            logger.debug("Fetching query details for ID: {}", queryId);
-            HttpGet queryRequest = new HttpGet(baseUrl + "/queries/" + queryId);
-            queryRequest.setHeader("Authorization", "Key " + apiKey);
-            
-            long requestStartTime = System.currentTimeMillis();
-            HttpResponse queryResponse = httpClient.execute(queryRequest);
-            String queryJson = EntityUtils.toString(queryResponse.getEntity());
-            long requestEndTime = System.currentTimeMillis();
-            logger.debug("Query details fetch took {} ms", requestEndTime - requestStartTime);
-            
-            if (queryResponse.getStatusLine().getStatusCode() != 200) {
-                throw new SQLException("Failed to get query details: " + queryJson);
+        Map<String, String> definition = getQueryDefinition(queryId);
+        String dataSourceId = definition.get("data_source_id");
+        String queryText = definition.get("query");
+        
+        logger.debug("Retrieved query text:\n{}", queryText);
+        logger.debug("Executing query: [length: {} chars] against data source: {}", 
+                   queryText.length(), dataSourceId);
+        
+        // Now execute the query
+        RedashResultStream result = runQuery(dataSourceId, queryText, parameters, context);
+        long totalTime = System.currentTimeMillis() - startTime;
+        logger.debug("Total executeQueryById operation took {} ms", totalTime);
+        return result;
+    }
+    
+    /**
+     * Get the text and data source of a saved query, from the metadata cache when enabled.
+     * 
+     * @param queryId The ID of the saved query
+     * @return A map with the {@code query} text and {@code data_source_id}
+     * @throws SQLException if there's an error getting the query
+     */
+    Map<String, String> getQueryDefinition(String queryId) throws SQLException {
+        if (metadataCache != null) {
+            return metadataCache.get("query:" + queryId,
+                    (etag, lastModified) -> fetchQueryDefinition(queryId, etag, lastModified));
+        }
+        return fetchQueryDefinition(queryId, null, null).getValue();
+    }
+    
+    private RedashMetadataCache.Fetched<Map<String, String>> fetchQueryDefinition(
+            String queryId, String etag, String lastModified) throws SQLException {
+        logger.debug("Fetching query details for ID: {}", queryId);
+        return fetchMetadata("/queries/" + queryId, etag, lastModified, "query details",
+                RedashApiClient::parseQueryDefinition);
+    }
+    
+    private static Map<String, String> parseQueryDefinition(JsonNode queryNode) {
+        Map<String, String> definition = new HashMap<>();
+        definition.put("data_source_id", queryNode.path("data_source_id").asText());
+        definition.put("query", queryNode.path("query").asText());
+        return Collections.unmodifiableMap(definition);
+    }
+    
+    /**
+     * GET a metadata resource, sending the cached validators so an unchanged resource
+     * costs a 304 instead of a full body.
+     * 
+     * @param path The API path
+     * @param etag The ETag of the cached copy, or null
+     * @param lastModified The Last-Modified value of the cached copy, or null
+     * @param description What is being fetched, for error messages
+     * @param parser Converts the response body
+     * @return The parsed resource, or a not-modified marker
+     * @throws SQLException if the request fails
+     */
+    private <T> RedashMetadataCache.Fetched<T> fetchMetadata(String path, String etag, String lastModified,
+                                                             String description, Function<JsonNode, T> parser)
+            throws SQLException {
+        HttpGet request = new HttpGet(baseUrl + path);
+        request.setHeader("Authorization", "Key " + apiKey);
+        if (etag != null) {
+            request.setHeader("If-None-Match", etag);
+        }
+        if (lastModified != null) {
+            request.setHeader("If-Modified-Since", lastModified);
+        }
+        
+        long requestStartTime = System.currentTimeMillis();
+        try (CloseableHttpResponse response = httpClient.execute(request)) {
+            int statusCode = response.getStatusLine().getStatusCode();
+            if (statusCode == 304) {
+                EntityUtils.consume(response.getEntity());
+                logger.debug("{} not modified", description);
+                return RedashMetadataCache.Fetched.notModified();
             }
             
-            JsonNode queryNode = objectMapper.readTree(queryJson);
-            String dataSourceId = queryNode.path("data_source_id").asText();
-            String queryText = queryNode.path("query").asText();
-            
-            logger.debug("Retrieved query text:\n{}", queryText);
-            logger.debug("Executing query: [length: {} chars] against data source: {}", 
-                       queryText.length(), dataSourceId);
+            String responseJson = EntityUtils.toString(response.getEntity());
+            logger.debug("Fetching {} took {} ms", description, System.currentTimeMillis() - requestStartTime);
+            if (statusCode != 200) {
+                throw new SQLException("Failed to get " + description + ": " + responseJson);
+            }
             
-            // Now execute the query
-            RedashQueryResult result = executeQuery(dataSourceId, queryText, parameters);
-            long totalTime = System.currentTimeMillis() - startTime;
-            logger.debug("Total executeQueryById operation took {} ms", totalTime);
-            return result;
+            Header etagHeader = response.getFirstHeader("ETag");
+            Header lastModifiedHeader = response.getFirstHeader("Last-Modified");
+            return RedashMetadataCache.Fetched.of(parser.apply(objectMapper.readTree(responseJson)),
+                    etagHeader != null ? etagHeader.getValue() : null,
+                    lastModifiedHeader != null ? lastModifiedHeader.getValue() : null);
         } catch (IOException e) {
-            throw new SQLException("Error executing query by ID", e);
+            throw new SQLException("Error getting " + description, e);
         }
     }
     
@@ -140,6 +339,36 @@ public class RedashApiClient {
      * @throws SQLException if there's an error executing the query
      */
     public RedashQueryResult executeQuery(String dataSourceId, String query, Map<String, Object> parameters) throws SQLException {
+        return executeQuery(dataSourceId, query, parameters, new RedashQueryContext(0)).readAll();
+    }
+    
+    /**
+     * Execute a raw SQL query against a specific data source within the given execution context.
+     * 
+     * @param dataSourceId The ID of the data source to query
+     * @param query The SQL query to execute
+     * @param parameters Query parameters
+     * @param context The execution context carrying the query timeout
+     * @return Query results, streamed from the response if the context asks for it
+     * @throws SQLException if there's an error executing the query
+     */
+    RedashResultStream executeQuery(String dataSourceId, String query, Map<String, Object> parameters,
+                                    RedashQueryContext context) throws SQLException {
+        String cacheKey = resultCacheKey("sql:" + dataSourceId + ":" + normalizeSql(query), parameters);
+        RedashQueryResult cached = getCachedResult(cacheKey, context);
+        if (cached != null) {
+            logger.debug("Serving query from the result cache");
+            return RedashResultStream.of(cached);
+        }
+        
+        return putCachedResult(cacheKey, runQuery(dataSourceId, query, parameters, context), context);
+    }
+    
+    /**
+     * Post a query to {@code /query_results} and wait for its result, bypassing the result cache.
+     */
+    private RedashResultStream runQuery(String dataSourceId, String query, Map<String, Object> parameters,
+                                        RedashQueryContext context) throws SQLException {
         long startTime = System.currentTimeMillis();
         try {
             if (parameters != null && !parameters.isEmpty()) {
@@ -154,6 +383,10 @@ public class RedashApiClient {
             if (parameters != null && !parameters.isEmpty()) {
                 queryData.put("parameters", parameters);
             }
+            if (context.getMaxAgeSeconds() != null) {
+                // Lets Redash answer synchronously with a cached result that is recent enough
+                queryData.put("max_age", context.getMaxAgeSeconds());
+            }
             
             HttpPost request = new HttpPost(baseUrl + "/query_results");
             request.setHeader("Authorization", "Key " + apiKey);
@@ -166,97 +399,100 @@ public class RedashApiClient {
             
             // Execute query
             long execStartTime = System.currentTimeMillis();
-            HttpResponse response = httpClient.execute(request);
-            HttpEntity entity = response.getEntity();
-            String responseJson = EntityUtils.toString(entity);
+            RedashResultDecoder.Response decoded = null;
+            context.track(request);
+            CloseableHttpResponse response = httpClient.execute(request);
+            try {
+                HttpEntity entity = response.getEntity();
+                if (response.getStatusLine().getStatusCode() != 200) {
+                    String responseJson = EntityUtils.toString(entity);
+                    logger.error("Query execution failed: {}", responseJson);
+                    logger.error("Url: {}", baseUrl + "/query_results");
+                    throw new SQLException("Query execution failed: " + responseJson);
+                }
+                
+                // A cached result is decoded straight from the response stream
+                decoded = decode(entity, response, context);
+            } finally {
+                releaseUnlessStreaming(response, decoded);
+            }
             long execEndTime = System.currentTimeMillis();
             logger.debug("Initial query request took {} ms", execEndTime - execStartTime);
             
-            if (response.getStatusLine().getStatusCode() != 200) {
-                logger.error("Query execution failed: {}", responseJson);
-                logger.error("Url: {}", baseUrl + "/query_results");
-                throw new SQLException("Query execution failed: " + responseJson);
-            }
-            
-            JsonNode rootNode = objectMapper.readTree(responseJson);
-            JsonNode jobNode = rootNode.path("job");
+            JsonNode jobNode = decoded.getJob();
             
             // Check if the query is still running
-            if (jobNode != null && !jobNode.isMissingNode()) {
+            if (jobNode != null) {
                 String jobId = jobNode.path("id").asText();
                 logger.info("Query executing asynchronously with job ID: {}", jobId);
-                RedashQueryResult result = waitForQueryResults(jobId);
+                RedashResultStream result = waitForQueryResults(jobId, context);
                 long totalTime = System.currentTimeMillis() - startTime;
                 logger.info("Total query execution (including async wait) took {} ms", totalTime);
                 return result;
             }
             
             // If we have results immediately
-            long parseStartTime = System.currentTimeMillis();
-            RedashQueryResult result = parseQueryResults(rootNode);
-            long parseEndTime = System.currentTimeMillis();
-            logger.debug("Result parsing took {} ms", parseEndTime - parseStartTime);
-            
             long totalTime = System.currentTimeMillis() - startTime;
             logger.debug("Total synchronous query execution took {} ms", totalTime);
-            return result;
+            return decoded.getStream();
         } catch (IOException e) {
+            // An aborted request surfaces as an I/O error
+            context.checkCancelled();
             throw new SQLException("Error executing query", e);
         }
     }
     
     /**
-     * Wait for query results to be available.
+     * Wait for query results to be available. The job is polled by the host's shared
+     * {@link RedashJobPoller} on an adaptive schedule; this thread only blocks until it
+     * finishes or the query timeout expires. If the wait ends because the execution was
+     * cancelled, timed out or interrupted, the job is cancelled in Redash so it stops
+     * occupying a worker.
      * 
      * @param jobId The ID of the query job
+     * @param context The execution context carrying the query timeout
      * @return Query results
      * @throws SQLException if there's an error getting the results
      */
-    private RedashQueryResult waitForQueryResults(String jobId) throws SQLException {
+    private RedashResultStream waitForQueryResults(String jobId, RedashQueryContext context) throws SQLException {
+        long waitStartTime = System.currentTimeMillis();
         try {
-            int maxAttempts = 60; // Wait up to 5 minutes (60 * 5 seconds)
-            int attempt = 0;
-            long waitStartTime = System.currentTimeMillis();
-            
-            while (attempt < maxAttempts) {
-                HttpGet request = new HttpGet(baseUrl + "/jobs/" + jobId);
-                request.setHeader("Authorization", "Key " + apiKey);
-                
-                long pollStartTime = System.currentTimeMillis();
-                HttpResponse response = httpClient.execute(request);
-                String responseJson = EntityUtils.toString(response.getEntity());
-                long pollEndTime = System.currentTimeMillis();
-                
-                if (response.getStatusLine().getStatusCode() != 200) {
-                    throw new SQLException("Failed to get job status: " + responseJson);
-                }
-                
-                JsonNode rootNode = objectMapper.readTree(responseJson);
-                JsonNode jobNode = rootNode.path("job");
-                String status = jobNode.path("status").asText();
-                
-                logger.info("Job {} status check #{}: {} (poll took {} ms)", 
-                           jobId, attempt + 1, status, pollEndTime - pollStartTime);
-                
-                if ("finished".equals(status)) {
-                    String queryResultId = jobNode.path("query_result_id").asText();
-                    long totalWaitTime = System.currentTimeMillis() - waitStartTime;
-                    logger.info("Query completed after {} attempts, total wait time: {} ms", 
-                              attempt + 1, totalWaitTime);
-                    return getQueryResultById(queryResultId);
-                } else if ("failed".equals(status)) {
-                    String error = jobNode.path("error").asText();
-                    throw new SQLException("Query execution failed: " + error);
-                }
-                
-                // Wait before checking again
-                Thread.sleep(5000); // 5 seconds
-                attempt++;
+            String queryResultId = context.await(jobPoller.register(jobId, apiKey, pollSchedule),
+                    DEFAULT_QUERY_TIMEOUT_SECONDS);
+            logger.info("Query completed, total wait time: {} ms", System.currentTimeMillis() - waitStartTime);
+            return getQueryResultById(queryResultId, context);
+        } catch (SQLException e) {
+            if (context.isCancelled()) {
+                cancelJob(jobId);
             }
-            
-            throw new SQLException("Query execution timed out after " + maxAttempts + " attempts");
-        } catch (IOException | InterruptedException e) {
-            throw new SQLException("Error waiting for query results", e);
+            throw e;
+        } catch (InterruptedException e) {
+            // Cancel before restoring the flag, which would make leasing a connection fail
+            cancelJob(jobId);
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for query results", e);
+        }
+    }
+    
+    /**
+     * Ask Redash to cancel a queued or running job. Failures are logged, not thrown,
+     * since the caller is already reporting why the job was abandoned.
+     * 
+     * @param jobId The ID of the query job
+     */
+    void cancelJob(String jobId) {
+        HttpDelete request = new HttpDelete(baseUrl + "/jobs/" + jobId);
+        request.setHeader("Authorization", "Key " + apiKey);
+        try (CloseableHttpResponse response = httpClient.execute(request)) {
+            int statusCode = response.getStatusLine().getStatusCode();
+            EntityUtils.consume(response.getEntity());
+            if (statusCode != 200 && statusCode != 204) {
+                logger.warn("Failed to cancel job {}: HTTP {}", jobId, statusCode);
+            } else {
+                logger.info("Cancelled job {}", jobId);
+            }
+        } catch (IOException e) {
+            logger.warn("Failed to cancel job {}", jobId, e);
         }
     }
     
@@ -264,133 +500,171 @@ public class RedashApiClient {
      * Get query results by ID.
      * 
      * @param queryResultId The ID of the query result
-     * @return Query results
+     * @param context The execution context
+     * @return Query results, streamed from the response if the context asks for it
      * @throws SQLException if there's an error getting the results
      */
-    private RedashQueryResult getQueryResultById(String queryResultId) throws SQLException {
+    private RedashResultStream getQueryResultById(String queryResultId, RedashQueryContext context)
+            throws SQLException {
         try {
             HttpGet request = new HttpGet(baseUrl + "/query_results/" + queryResultId);
             request.setHeader("Authorization", "Key " + apiKey);
             
-            HttpResponse response = httpClient.execute(request);
-            String responseJson = EntityUtils.toString(response.getEntity());
-            
-            if (response.getStatusLine().getStatusCode() != 200) {
-                throw new SQLException("Failed to get query results: " + responseJson);
+            RedashResultDecoder.Response decoded = null;
+            context.track(request);
+            CloseableHttpResponse response = httpClient.execute(request);
+            try {
+                if (response.getStatusLine().getStatusCode() != 200) {
+                    String responseJson = EntityUtils.toString(response.getEntity());
+                    throw new SQLException("Failed to get query results: " + responseJson);
+                }
+                
+                long parseStartTime = System.currentTimeMillis();
+                decoded = decode(response.getEntity(), response, context);
+                logger.debug("Result decoding took {} ms", System.currentTimeMillis() - parseStartTime);
+            } finally {
+                releaseUnlessStreaming(response, decoded);
             }
-            
-            JsonNode rootNode = objectMapper.readTree(responseJson);
-            return parseQueryResults(rootNode);
+            if (decoded.getStream() == null) {
+                throw new SQLException("No query results found in response");
+            }
+            return decoded.getStream();
         } catch (IOException e) {
+            context.checkCancelled();
             throw new SQLException("Error getting query results", e);
         }
     }
     
     /**
-     * Parse query results from JSON.
-     * 
-     * @param rootNode The root JSON node
-     * @return Query results
-     * @throws SQLException if there's an error parsing the results
+     * Decode a query results response, either completely or up to the context's row limit,
+     * or for a streaming context only up to the start of the rows.
+     */
+    private RedashResultDecoder.Response decode(HttpEntity entity, CloseableHttpResponse response,
+                                                RedashQueryContext context)
+            throws SQLException, IOException {
+        if (context.isStreaming()) {
+            return RedashResultDecoder.open(entity.getContent(), response, offHeapResults);
+        }
+        return RedashResultDecoder.decodeResponse(entity.getContent(), response, context.getMaxRows(),
+                offHeapResults);
+    }
+    
+    /**
+     * Close the response unless a result stream has taken it over.
      */
-    private RedashQueryResult parseQueryResults(JsonNode rootNode) throws SQLException {
+    private static void releaseUnlessStreaming(CloseableHttpResponse response, RedashResultDecoder.Response decoded)
+            throws IOException {
+        if (decoded == null || decoded.getStream() == null || !decoded.getStream().isStreaming()) {
+            response.close();
+        }
+    }
+    
+    /**
+     * Build the result cache key for a query. Keys are scoped to the server and API key,
+     * so users with different permissions never share cached results.
+     */
+    private String resultCacheKey(String query, Map<String, Object> parameters) throws SQLException {
+        if (resultCacheTtlMillis <= 0) {
+            return null;
+        }
         try {
-            JsonNode queryResultNode = rootNode.path("query_result");
-            if (queryResultNode.isMissingNode()) {
-                throw new SQLException("No query results found in response");
-            }
-            
-            JsonNode dataNode = queryResultNode.path("data");
-            if (dataNode.isMissingNode()) {
-                throw new SQLException("No data found in query results");
-            }
-            
-            JsonNode columnsNode = dataNode.path("columns");
-            JsonNode rowsNode = dataNode.path("rows");
-            
-            if (columnsNode.isMissingNode() || rowsNode.isMissingNode()) {
-                throw new SQLException("Invalid query results format");
-            }
-            
-            // Parse columns
-            List<RedashColumn> columns = new ArrayList<>();
-            for (JsonNode columnNode : columnsNode) {
-                String name = columnNode.path("name").asText();
-                String type = columnNode.path("type").asText();
-                columns.add(new RedashColumn(name, type));
-            }
-            
-            // Parse rows
-            List<Map<String, Object>> rows = new ArrayList<>();
-            for (JsonNode rowNode : rowsNode) {
-                Map<String, Object> row = new HashMap<>();
-                for (RedashColumn column : columns) {
-                    JsonNode valueNode = rowNode.path(column.getName());
-                    Object value = null;
-                    
-                    if (!valueNode.isMissingNode() && !valueNode.isNull()) {
-                        switch (column.getType()) {
-                            case "integer":
-                                value = valueNode.asInt();
-                                break;
-                            case "float":
-                                value = valueNode.asDouble();
-                                break;
-                            case "boolean":
-                                value = valueNode.asBoolean();
-                                break;
-                            case "string":
-                            case "datetime":
-                            case "date":
-                            default:
-                                value = valueNode.asText();
-                                break;
-                        }
-                    }
-                    
-                    row.put(column.getName(), value);
-                }
-                rows.add(row);
-            }
-            
-            return new RedashQueryResult(columns, rows);
-        } catch (Exception e) {
-            throw new SQLException("Error parsing query results", e);
+            String params = parameters == null || parameters.isEmpty()
+                    ? "" : objectMapper.writeValueAsString(new TreeMap<>(parameters));
+            return baseUrl + "\n" + apiKey + "\n" + query + "\n" + params;
+        } catch (IOException e) {
+            throw new SQLException("Error building result cache key", e);
+        }
+    }
+    
+    private String resultCacheKeyUnchecked(String query, Map<String, Object> parameters) {
+        try {
+            return resultCacheKey(query, parameters);
+        } catch (SQLException e) {
+            throw new CompletionException(e);
+        }
+    }
+    
+    private RedashQueryResult getCachedResult(String cacheKey, RedashQueryContext context) {
+        if (cacheKey == null) {
+            return null;
+        }
+        // Respect max_age locally as well: 0 always goes to the server
+        Integer maxAge = context.getMaxAgeSeconds();
+        if (maxAge != null && maxAge == 0) {
+            return null;
+        }
+        long maxAgeMillis = maxAge != null && maxAge > 0 ? TimeUnit.SECONDS.toMillis(maxAge) : -1;
+        return RedashResultCache.getInstance().get(cacheKey, maxAgeMillis);
+    }
+    
+    /**
+     * Cache a decoded result. Streamed results are never complete in memory and are not cached.
+     */
+    private RedashResultStream putCachedResult(String cacheKey, RedashResultStream result,
+                                               RedashQueryContext context) throws SQLException {
+        if (!result.isStreaming()) {
+            cacheResult(cacheKey, result.readAll(), context);
+        }
+        return result;
+    }
+    
+    private RedashQueryResult cacheResult(String cacheKey, RedashQueryResult result, RedashQueryContext context) {
+        // Results cut short by maxRows would be served truncated to other statements
+        if (cacheKey != null && context.getMaxRows() == 0) {
+            RedashResultCache.getInstance().put(cacheKey, result, resultCacheTtlMillis);
+        }
+        return result;
+    }
+    
+    /**
+     * Normalise SQL for cache lookups by collapsing whitespace and dropping trailing semicolons.
+     */
+    static String normalizeSql(String sql) {
+        String normalized = WHITESPACE.matcher(sql.trim()).replaceAll(" ");
+        while (normalized.endsWith(";")) {
+            normalized = normalized.substring(0, normalized.length() - 1).trim();
         }
+        return normalized;
     }
     
     /**
-     * Get a list of data sources.
+     * Get a list of data sources, from the metadata cache when enabled.
      * 
      * @return List of data sources
      * @throws SQLException if there's an error getting the data sources
      */
     public List<Map<String, String>> getDataSources() throws SQLException {
-        try {
-            HttpGet request = new HttpGet(baseUrl + "/data_sources");
-            request.setHeader("Authorization", "Key " + apiKey);
-            
-            HttpResponse response = httpClient.execute(request);
-            String responseJson = EntityUtils.toString(response.getEntity());
-            
-            if (response.getStatusLine().getStatusCode() != 200) {
-                throw new SQLException("Failed to get data sources: " + responseJson);
-            }
-            
-            JsonNode rootNode = objectMapper.readTree(responseJson);
-            List<Map<String, String>> dataSources = new ArrayList<>();
-            
-            for (JsonNode dataSourceNode : rootNode) {
-                Map<String, String> dataSource = new HashMap<>();
-                dataSource.put("id", dataSourceNode.path("id").asText());
-                dataSource.put("name", dataSourceNode.path("name").asText());
-                dataSource.put("type", dataSourceNode.path("type").asText());
-                dataSources.add(dataSource);
-            }
-            
-            return dataSources;
-        } catch (IOException e) {
-            throw new SQLException("Error getting data sources", e);
+        if (metadataCache != null) {
+            return metadataCache.get("data_sources", this::fetchDataSources);
+        }
+        return fetchDataSources(null, null).getValue();
+    }
+    
+    private RedashMetadataCache.Fetched<List<Map<String, String>>> fetchDataSources(
+            String etag, String lastModified) throws SQLException {
+        return fetchMetadata("/data_sources", etag, lastModified, "data sources", RedashApiClient::parseDataSources);
+    }
+    
+    private static List<Map<String, String>> parseDataSources(JsonNode rootNode) {
+        List<Map<String, String>> dataSources = new ArrayList<>();
+        
+        for (JsonNode dataSourceNode : rootNode) {
+            Map<String, String> dataSource = new HashMap<>();
+            dataSource.put("id", dataSourceNode.path("id").asText());
+            dataSource.put("name", dataSourceNode.path("name").asText());
+            dataSource.put("type", dataSourceNode.path("type").asText());
+            dataSources.add(Collections.unmodifiableMap(dataSource));
+        }
+        
+        return Collections.unmodifiableList(dataSources);
+    }
+    
+    /**
+     * Drop cached data sources and query definitions so the next statement fetches them again.
+     */
+    public void invalidateMetadataCache() {
+        if (metadataCache != null) {
+            metadataCache.invalidateAll();
         }
     }
     
@@ -472,17 +746,539 @@ public class RedashApiClient {
     }
     
     /**
-     * Close the HTTP client.
+     * Execute a saved query without blocking the calling thread. Every HTTP request is
+     * sent with the non-blocking JDK client and the job is awaited through the host's
+     * {@link RedashJobPoller}, so no thread is held while the query runs.
+     * 
+     * @param queryId The ID of the query to execute
+     * @param parameters Query parameters
+     * @param context The execution context carrying the timeout and max age
+     * @return A future for the results; it fails with an {@link SQLException}
      */
-    public void close() {
+    CompletableFuture<RedashQueryResult> executeQueryByIdAsync(String queryId, Map<String, Object> parameters,
+                                                               RedashQueryContext context) {
+        return runAsync(context, jobId -> {
+            String cacheKey = resultCacheKeyUnchecked("query:" + queryId, parameters);
+            RedashQueryResult cached = getCachedResult(cacheKey, context);
+            if (cached != null) {
+                logger.debug("Serving query {} from the result cache", queryId);
+                return CompletableFuture.completedFuture(cached);
+            }
+            return getQueryDefinitionAsync(queryId, context)
+                    .thenCompose(definition -> runQueryAsync(definition.get("data_source_id"),
+                            definition.get("query"), parameters, context, jobId))
+                    .thenApply(result -> cacheResult(cacheKey, result, context));
+        });
+    }
+    
+    /**
+     * Run the saved queries a statement evaluated by the driver reads concurrently, then
+     * evaluate the statement over their results. Each query runs as by {@link #executeQueryById}
+     * on a thread of its own, through the pooled HTTP client and with its own result cache entry;
+     * the first failure cancels the others.
+     * 
+     * @param local The statement
+     * @param parameters Query parameters, sent with every saved query
+     * @param markers Values of the statement's {@code ?} markers by 1-based index
+     * @param context The execution context carrying the timeout and max age
+     * @return The statement's result
+     * @throws SQLException if a query fails, the execution is cancelled or times out, or evaluation fails
+     */
+    RedashQueryResult executeQueriesById(RedashLocalQuery local, Map<String, Object> parameters,
+                                         Map<Integer, Object> markers, RedashQueryContext context)
+            throws SQLException {
+        List<RedashQueryContext> contexts = new ArrayList<>();
+        List<CompletableFuture<RedashQueryResult>> inputs = new ArrayList<>();
+        CompletableFuture<Void> done = new CompletableFuture<>();
         try {
-            if (httpClient != null) {
-                httpClient.close();
+            for (String queryId : local.getQueryIds()) {
+                // A context tracks one request, so every query gets its own with the same limits
+                RedashQueryContext queryContext = new RedashQueryContext(context.getTimeoutSeconds(),
+                        context.getMaxAgeSeconds());
+                contexts.add(queryContext);
+                CompletableFuture<RedashQueryResult> input = CompletableFuture.supplyAsync(
+                        () -> readJoinInput(queryId, parameters, queryContext), joinExecutor);
+                input.whenComplete((result, error) -> {
+                    if (error != null) {
+                        done.completeExceptionally(unwrap(error));
+                    }
+                });
+                inputs.add(input);
+            }
+            CompletableFuture.allOf(inputs.toArray(new CompletableFuture<?>[0])).thenRun(() -> done.complete(null));
+            context.await(done, DEFAULT_QUERY_TIMEOUT_SECONDS);
+        } catch (SQLException | RuntimeException e) {
+            cancelJoinInputs(contexts, inputs);
+            if (e instanceof RejectedExecutionException) {
+                throw new SQLException("Connection closed while running the query", e);
             }
+            throw e;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            cancelJoinInputs(contexts, inputs);
+            throw new SQLException("Interrupted while waiting for query results", e);
+        }
+        List<RedashQueryResult> results = new ArrayList<>(inputs.size());
+        for (CompletableFuture<RedashQueryResult> input : inputs) {
+            results.add(input.join());
+        }
+        return local.execute(results, markers);
+    }
+    
+    // Read one saved query of a join on a join thread, through the pooled client and the result cache
+    private RedashQueryResult readJoinInput(String queryId, Map<String, Object> parameters,
+                                            RedashQueryContext queryContext) {
+        queryContext.start();
+        try {
+            return executeQueryById(queryId, parameters, queryContext).readAll();
+        } catch (SQLException e) {
+            throw new CompletionException(e);
+        } finally {
+            queryContext.finish();
+        }
+    }
+    
+    // Stop the queries of a failed join and free the results of those that completed
+    private static void cancelJoinInputs(List<RedashQueryContext> contexts,
+                                         List<CompletableFuture<RedashQueryResult>> inputs) {
+        for (RedashQueryContext queryContext : contexts) {
+            queryContext.cancel();
+        }
+        for (CompletableFuture<RedashQueryResult> input : inputs) {
+            input.thenAccept(RedashQueryResult::close);
+        }
+    }
+    
+    /**
+     * Non-blocking form of {@link #executeQueriesById} for {@code executeAsync}, with every query
+     * run as by {@link #executeQueryByIdAsync}. Cancelling the returned future cancels every query.
+     */
+    CompletableFuture<RedashQueryResult> executeQueriesByIdAsync(RedashLocalQuery local,
+                                                                 Map<String, Object> parameters,
+                                                                 Map<Integer, Object> markers,
+                                                                 RedashQueryContext context) {
+        List<CompletableFuture<RedashQueryResult>> inputs = new ArrayList<>();
+        for (String queryId : local.getQueryIds()) {
+            // A context tracks one request, so every query gets its own with the same limits
+            RedashQueryContext queryContext = new RedashQueryContext(context.getTimeoutSeconds(),
+                    context.getMaxAgeSeconds());
+            inputs.add(executeQueryByIdAsync(queryId, parameters, queryContext));
+        }
+        CompletableFuture<RedashQueryResult> handle = new CompletableFuture<>();
+        CompletableFuture.allOf(inputs.toArray(new CompletableFuture<?>[0])).thenRun(() -> {
+            List<RedashQueryResult> results = new ArrayList<>(inputs.size());
+            for (CompletableFuture<RedashQueryResult> input : inputs) {
+                results.add(input.join());
+            }
+            try {
+                handle.complete(local.execute(results, markers));
+            } catch (SQLException | RuntimeException e) {
+                handle.completeExceptionally(e);
+            }
+        });
+        for (CompletableFuture<RedashQueryResult> input : inputs) {
+            input.whenComplete((result, error) -> {
+                if (error != null) {
+                    handle.completeExceptionally(unwrap(error));
+                }
+            });
+        }
+        handle.whenComplete((result, error) -> {
+            if (error != null) {
+                for (CompletableFuture<RedashQueryResult> input : inputs) {
+                    input.cancel(false);
+                    // Free the off-heap memory of the queries that did complete
+                    input.thenAccept(RedashQueryResult::close);
+                }
+            }
+        });
+        return handle;
+    }
+    
+    /**
+     * Run SQL against the first data source without blocking the calling thread,
+     * optionally saving it as a new Redash query first.
+     * 
+     * @param sql The SQL to run
+     * @param parameters Query parameters
+     * @param saveAs Name of the query to save the SQL as, or null to post it directly
+     * @param context The execution context carrying the timeout and max age
+     * @return A future for the results; it fails with an {@link SQLException}
+     */
+    CompletableFuture<RedashQueryResult> executeAdHocAsync(String sql, Map<String, Object> parameters,
+                                                           String saveAs, RedashQueryContext context) {
+        return runAsync(context, jobId -> getDataSourcesAsync(context).thenCompose(dataSources -> {
+            if (dataSources.isEmpty()) {
+                throw new CompletionException(new SQLException("No data sources available in Redash"));
+            }
+            String dataSourceId = dataSources.get(0).get("id");
+            String cacheKey = resultCacheKeyUnchecked("sql:" + dataSourceId + ":" + normalizeSql(sql), parameters);
+            RedashQueryResult cached = getCachedResult(cacheKey, context);
+            if (cached != null) {
+                logger.debug("Serving query from the result cache");
+                return CompletableFuture.completedFuture(cached);
+            }
+            CompletableFuture<?> saved = saveAs == null ? CompletableFuture.completedFuture(null)
+                    : createQueryAsync(saveAs, dataSourceId, sql, context);
+            return saved.thenCompose(id -> runQueryAsync(dataSourceId, sql, parameters, context, jobId))
+                    .thenApply(result -> cacheResult(cacheKey, result, context));
+        }));
+    }
+    
+    /**
+     * Wrap an asynchronous execution so that cancelling the returned future, or the
+     * query timeout expiring, cancels the Redash job, and so that it fails with the
+     * {@link SQLException} itself rather than a wrapper.
+     */
+    private CompletableFuture<RedashQueryResult> runAsync(
+            RedashQueryContext context,
+            Function<AtomicReference<String>, CompletableFuture<RedashQueryResult>> execution) {
+        AtomicReference<String> jobId = new AtomicReference<>();
+        CompletableFuture<RedashQueryResult> handle = new CompletableFuture<>();
+        CompletableFuture<RedashQueryResult> running;
+        try {
+            running = execution.apply(jobId);
+        } catch (CompletionException e) {
+            running = CompletableFuture.failedFuture(e);
+        }
+        running.orTimeout(Math.max(1, context.remainingMillis(DEFAULT_QUERY_TIMEOUT_SECONDS)), TimeUnit.MILLISECONDS)
+                .whenComplete((result, error) -> {
+                    if (error == null) {
+                        handle.complete(result);
+                        return;
+                    }
+                    Throwable cause = unwrap(error);
+                    if (cause instanceof TimeoutException) {
+                        context.expire();
+                        cancelJobAsync(jobId.get());
+                        cause = new SQLTimeoutException("Query execution timed out", cause);
+                    } else if (!(cause instanceof SQLException)) {
+                        cause = new SQLException("Error executing query: " + cause.getMessage(), cause);
+                    }
+                    handle.completeExceptionally(cause);
+                });
+        handle.whenComplete((result, error) -> {
+            if (handle.isCancelled()) {
+                context.cancel();
+                cancelJobAsync(jobId.get());
+            }
+        });
+        return handle;
+    }
+    
+    /**
+     * Post a query to {@code /query_results} and follow its job, without blocking.
+     */
+    private CompletableFuture<RedashQueryResult> runQueryAsync(String dataSourceId, String query,
+                                                               Map<String, Object> parameters,
+                                                               RedashQueryContext context,
+                                                               AtomicReference<String> jobId) {
+        Map<String, Object> queryData = new HashMap<>();
+        queryData.put("data_source_id", dataSourceId);
+        queryData.put("query", query);
+        if (parameters != null && !parameters.isEmpty()) {
+            queryData.put("parameters", parameters);
+        }
+        if (context.getMaxAgeSeconds() != null) {
+            queryData.put("max_age", context.getMaxAgeSeconds());
+        }
+        
+        return sendAsync(postJson("/query_results", queryData), "Query execution failed", context,
+                (response, body) -> RedashResultDecoder.decodeResponse(body, null, 0, offHeapResults))
+                .thenCompose(decoded -> {
+                    JsonNode jobNode = decoded.getJob();
+                    if (jobNode == null) {
+                        return CompletableFuture.completedFuture(resultOf(decoded));
+                    }
+                    String id = jobNode.path("id").asText();
+                    jobId.set(id);
+                    if (context.isCancelled()) {
+                        // Cancelled while the job was being created
+                        cancelJobAsync(id);
+                    }
+                    logger.info("Query executing asynchronously with job ID: {}", id);
+                    return context.track(jobPoller.register(id, apiKey, pollSchedule))
+                            .thenCompose(queryResultId -> getQueryResultAsync(queryResultId, context));
+                });
+    }
+    
+    private CompletableFuture<RedashQueryResult> getQueryResultAsync(String queryResultId,
+                                                                     RedashQueryContext context) {
+        return sendAsync(get("/query_results/" + queryResultId), "Failed to get query results", context,
+                (response, body) -> {
+                    RedashQueryResult result = RedashResultDecoder.decodeResponse(body, null, 0, offHeapResults)
+                            .getResult();
+                    if (result == null) {
+                        throw new SQLException("No query results found in response");
+                    }
+                    return result;
+                });
+    }
+    
+    private CompletableFuture<List<Map<String, String>>> getDataSourcesAsync(RedashQueryContext context) {
+        return getMetadataAsync("data_sources", "/data_sources", "data sources", context,
+                RedashApiClient::parseDataSources, this::fetchDataSources);
+    }
+    
+    private CompletableFuture<Map<String, String>> getQueryDefinitionAsync(String queryId,
+                                                                           RedashQueryContext context) {
+        return getMetadataAsync("query:" + queryId, "/queries/" + queryId, "query details", context,
+                RedashApiClient::parseQueryDefinition,
+                (etag, lastModified) -> fetchQueryDefinition(queryId, etag, lastModified));
+    }
+    
+    /**
+     * Get a metadata resource from the metadata cache or, without blocking, from Redash,
+     * storing it in the cache so the background refresh keeps it up to date.
+     */
+    private <T> CompletableFuture<T> getMetadataAsync(String name, String path, String description,
+                                                      RedashQueryContext context, Function<JsonNode, T> parser,
+                                                      RedashMetadataCache.Loader<T> loader) {
+        if (metadataCache != null) {
+            T cached = metadataCache.getIfValid(name);
+            if (cached != null) {
+                return CompletableFuture.completedFuture(cached);
+            }
+        }
+        return sendAsync(get(path), "Failed to get " + description, context, (response, body) -> {
+            T value = parser.apply(objectMapper.readTree(body));
+            if (metadataCache != null) {
+                metadataCache.put(name, loader, RedashMetadataCache.Fetched.of(value,
+                        response.headers().firstValue("ETag").orElse(null),
+                        response.headers().firstValue("Last-Modified").orElse(null)));
+            }
+            return value;
+        });
+    }
+    
+    private CompletableFuture<String> createQueryAsync(String name, String dataSourceId, String queryText,
+                                                       RedashQueryContext context) {
+        Map<String, Object> queryData = new HashMap<>();
+        queryData.put("name", name + " " + System.currentTimeMillis());
+        queryData.put("description", "Query created via JDBC driver executeAsync");
+        queryData.put("data_source_id", dataSourceId);
+        queryData.put("query", queryText);
+        return sendAsync(postJson("/queries", queryData), "Failed to create query", context,
+                (response, body) -> objectMapper.readTree(body).path("id").asText());
+    }
+    
+    /**
+     * Ask Redash to cancel a job without waiting for the answer.
+     */
+    private void cancelJobAsync(String jobId) {
+        if (jobId == null) {
+            return;
+        }
+        HttpRequest request = newRequest("/jobs/" + jobId).DELETE().build();
+        CompletableFuture<java.net.http.HttpResponse<InputStream>> sent;
+        try {
+            sent = asyncClient().send(request);
+        } catch (SQLException e) {
+            logger.warn("Failed to cancel job {}", jobId, e);
+            return;
+        }
+        sent.whenComplete((response, error) -> {
+            if (error != null) {
+                logger.warn("Failed to cancel job {}", jobId, error);
+                return;
+            }
+            RedashAsyncHttpClient.closeQuietly(response.body());
+            if (response.statusCode() != 200 && response.statusCode() != 204) {
+                logger.warn("Failed to cancel job {}: HTTP {}", jobId, response.statusCode());
+            } else {
+                logger.info("Cancelled job {}", jobId);
+            }
+        });
+    }
+    
+    /**
+     * Send a request with the host's non-blocking client and read the answer with the given
+     * reader on a thread of the job poller, since reading the body blocks until it arrives.
+     * The future fails with an {@link SQLException} unless Redash answers 200. The body is
+     * closed once read, or as soon as the execution is cancelled.
+     */
+    private <T> CompletableFuture<T> sendAsync(HttpRequest request, String failure, RedashQueryContext context,
+                                               BodyReader<T> reader) {
+        CompletableFuture<T> read = new CompletableFuture<>();
+        sendAttemptAsync(request, 1, context).whenComplete((response, error) -> {
+            if (error != null) {
+                read.completeExceptionally(error);
+                return;
+            }
+            context.track(read).whenComplete((value, readError) -> {
+                if (read.isCancelled()) {
+                    // Aborts a read in progress
+                    RedashAsyncHttpClient.closeQuietly(response.body());
+                }
+            });
+            try {
+                jobPoller.getPollExecutor().execute(() -> read(response, failure, reader, read));
+            } catch (RejectedExecutionException e) {
+                RedashAsyncHttpClient.closeQuietly(response.body());
+                read.completeExceptionally(new SQLException("Connection closed while running the query", e));
+            }
+        });
+        return read;
+    }
+    
+    private static <T> void read(java.net.http.HttpResponse<InputStream> response, String failure,
+                                 BodyReader<T> reader, CompletableFuture<T> read) {
+        InputStream raw = response.body();
+        try (raw; InputStream body = RedashHttpClientPool.decompress(raw,
+                response.headers().firstValue("Content-Encoding").orElse(null))) {
+            if (read.isDone()) {
+                // Cancelled or timed out meanwhile: the body is only closed
+                return;
+            }
+            if (response.statusCode() != 200) {
+                read.completeExceptionally(new SQLException(failure + ": "
+                        + new String(body.readAllBytes(), StandardCharsets.UTF_8)));
+                return;
+            }
+            T value = reader.read(response, body);
+            if (!read.complete(value) && value instanceof AutoCloseable) {
+                // Cancelled while it was read
+                ((AutoCloseable) value).close();
+            }
+        } catch (IOException e) {
+            read.completeExceptionally(new SQLException(failure, e));
+        } catch (Exception e) {
+            read.completeExceptionally(e);
+        }
+    }
+    
+    /**
+     * Reads the body of a non-blocking response that Redash answered with 200.
+     */
+    @FunctionalInterface
+    private interface BodyReader<T> {
+        T read(java.net.http.HttpResponse<InputStream> response, InputStream body) throws IOException, SQLException;
+    }
+    
+    // The non-blocking client of the host, created on the first executeAsync of any connection to it
+    private RedashAsyncHttpClient asyncClient() throws SQLException {
+        RedashAsyncHttpClient client = asyncClient;
+        if (client == null) {
+            client = RedashHttpClientPool.getAsyncClient(host, port, ssl);
+            if (client == null) {
+                throw new SQLException("Connection closed while running the query");
+            }
+            asyncClient = client;
+        }
+        return client;
+    }
+    
+    /**
+     * Send one attempt of a request through the host's circuit breaker, retrying idempotent
+     * GETs after a backoff the same way the blocking client does.
+     */
+    private CompletableFuture<java.net.http.HttpResponse<InputStream>> sendAttemptAsync(HttpRequest request,
+                                                                                        int attempt,
+                                                                                        RedashQueryContext context) {
+        if (context.isCancelled()) {
+            return CompletableFuture.failedFuture(new SQLException("Query execution was cancelled",
+                    RedashQueryContext.CANCELLED_SQL_STATE));
+        }
+        RedashAsyncHttpClient client;
+        try {
+            client = asyncClient();
+            circuitBreaker.acquirePermission();
+        } catch (IOException | SQLException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        return context.track(client.send(request))
+                .handle((response, error) -> {
+                    if (error != null) {
+                        Throwable cause = unwrap(error);
+                        if (context.isCancelled() || !(cause instanceof IOException)) {
+                            circuitBreaker.onAbandoned();
+                            return CompletableFuture.<java.net.http.HttpResponse<InputStream>>failedFuture(error);
+                        }
+                        circuitBreaker.onFailure();
+                        if (!RedashRetryPolicy.isRetryable((IOException) cause)
+                                || !retryPolicy.canRetry(request.method(), attempt)) {
+                            return CompletableFuture.<java.net.http.HttpResponse<InputStream>>failedFuture(error);
+                        }
+                        logger.debug("{} {} failed ({}), retrying", request.method(), request.uri(), cause.toString());
+                        return retryAsync(request, attempt, context);
+                    }
+                    if (RedashRetryPolicy.isUnavailable(response.statusCode())) {
+                        circuitBreaker.onFailure();
+                    } else {
+                        circuitBreaker.onSuccess();
+                    }
+                    if (!RedashRetryPolicy.isRetryable(response.statusCode())
+                            || !retryPolicy.canRetry(request.method(), attempt)) {
+                        return CompletableFuture.completedFuture(response);
+                    }
+                    logger.debug("{} {} answered HTTP {}, retrying", request.method(), request.uri(),
+                            response.statusCode());
+                    RedashAsyncHttpClient.closeQuietly(response.body());
+                    return retryAsync(request, attempt, context);
+                })
+                .thenCompose(Function.identity());
+    }
+    
+    private CompletableFuture<java.net.http.HttpResponse<InputStream>> retryAsync(HttpRequest request, int attempt,
+                                                                                  RedashQueryContext context) {
+        Executor delayed = CompletableFuture.delayedExecutor(retryPolicy.backoffMillis(attempt), TimeUnit.MILLISECONDS);
+        // Tracked so that cancelling during the backoff does not wait for it to end
+        return context.track(CompletableFuture.supplyAsync(() -> sendAttemptAsync(request, attempt + 1, context),
+                delayed)).thenCompose(Function.identity());
+    }
+    
+    private HttpRequest.Builder newRequest(String path) {
+        HttpRequest.Builder builder = HttpRequest.newBuilder(URI.create(baseUrl + path))
+                .header("Authorization", "Key " + apiKey);
+        if (compression) {
+            // Unlike HttpClient 4, the JDK client neither asks for nor inflates compressed bodies
+            builder.header("Accept-Encoding", "gzip, deflate");
+        }
+        return builder;
+    }
+    
+    private HttpRequest get(String path) {
+        return newRequest(path).GET().build();
+    }
+    
+    private HttpRequest postJson(String path, Map<String, Object> body) {
+        try {
+            return newRequest(path)
+                    .header("Content-Type", "application/json")
+                    .POST(HttpRequest.BodyPublishers.ofByteArray(objectMapper.writeValueAsBytes(body)))
+                    .build();
         } catch (IOException e) {
-            logger.error("Error closing HTTP client", e);
+            throw new CompletionException(new SQLException("Error encoding request", e));
         }
     }
+    
+    private static RedashQueryResult resultOf(RedashResultDecoder.Response decoded) {
+        try {
+            return decoded.getResult();
+        } catch (SQLException e) {
+            throw new CompletionException(e);
+        }
+    }
+    
+    private static Throwable unwrap(Throwable error) {
+        while ((error instanceof CompletionException || error instanceof ExecutionException)
+                && error.getCause() != null) {
+            error = error.getCause();
+        }
+        return error;
+    }
+    
+    /**
+     * Release this client's references to the shared HTTP connection pool, job poller and metadata cache.
+     */
+    public void close() {
+        if (metadataCache != null) {
+            metadataCache.release();
+        }
+        jobPoller.release();
+        RedashHttpClientPool.release(host, port, ssl);
+        joinExecutor.shutdown();
+    }
 
     public String getHost() {
         return host;
@@ -491,4 +1287,9 @@ public class RedashApiClient {
     public String getPort() {
         return Integer.toString(port);
     }
+
+    // Bound on the batched queries running on this client's host
+    RedashQueryLimiter getQueryLimiter() {
+        return queryLimiter;
+    }
 } 
\ No newline at end of file
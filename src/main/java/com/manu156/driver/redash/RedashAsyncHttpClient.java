@@ -0,0 +1,149 @@
+package com.manu156.driver.redash;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import javax.net.ssl.SSLContext;
+
+/**
+ * Non-blocking JDK HTTP client of one Redash host, used by {@code executeAsync}.
+ * It is owned by the host's entry in {@link RedashHttpClientPool} and shares the host's
+ * TLS context, so its connections resume the same TLS sessions. A request holds one of
+ * its connection permits from when it is sent until its body is closed, so it never has
+ * more requests in flight to the host than the pooled client has connections. A request
+ * that finds no permit free waits for one without holding a thread. The permits are not
+ * shared with the pooled client: bodies are read on the job poller's threads, whose
+ * polls would otherwise wait for permits held by the bodies queued behind them.
+ */
+final class RedashAsyncHttpClient {
+    // Granularity at which a request waiting for a permit checks again
+    private static final long PERMIT_CHECK_MILLIS = 50;
+    // The client's own tasks only move bytes; bodies are read by the caller
+    private static final int THREADS = 2;
+
+    private final HttpClient client;
+    private final ExecutorService executor;
+    private final Executor retryPermit;
+    private final Semaphore permits;
+
+    /**
+     * @param name Name of the host, for thread names
+     * @param sslContext The TLS context of the host, or null for plain HTTP
+     * @param maxConnections The number of requests that may be in flight to the host at once
+     */
+    RedashAsyncHttpClient(String name, SSLContext sslContext, int maxConnections) {
+        this.executor = RedashThreads.newBlockingExecutor("redash-async-http-" + name, THREADS, false);
+        this.retryPermit = CompletableFuture.delayedExecutor(PERMIT_CHECK_MILLIS, TimeUnit.MILLISECONDS, executor);
+        this.permits = new Semaphore(Math.max(1, maxConnections), true);
+        HttpClient.Builder builder = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_1_1)
+                .executor(executor);
+        if (sslContext != null) {
+            builder.sslContext(sslContext);
+        }
+        this.client = builder.build();
+    }
+
+    /**
+     * Send a request once a connection permit is free. The response completes once its
+     * headers have arrived; its body must be closed, which returns the permit. Cancelling
+     * the returned future abandons the request and closes a body that arrives regardless.
+     *
+     * @param request The request
+     * @return A future for the response with its body still to be read
+     */
+    CompletableFuture<HttpResponse<InputStream>> send(HttpRequest request) {
+        CompletableFuture<HttpResponse<InputStream>> result = new CompletableFuture<>();
+        sendWhenPermitted(request, result);
+        return result;
+    }
+
+    private void sendWhenPermitted(HttpRequest request, CompletableFuture<HttpResponse<InputStream>> result) {
+        if (result.isDone()) {
+            // Cancelled while waiting for a permit
+            return;
+        }
+        if (!permits.tryAcquire()) {
+            try {
+                retryPermit.execute(() -> sendWhenPermitted(request, result));
+            } catch (RejectedExecutionException e) {
+                result.completeExceptionally(new IOException("HTTP client closed", e));
+            }
+            return;
+        }
+        AtomicBoolean released = new AtomicBoolean();
+        Runnable release = () -> {
+            if (released.compareAndSet(false, true)) {
+                permits.release();
+            }
+        };
+        CompletableFuture<HttpResponse<InputStream>> sent;
+        try {
+            sent = client.sendAsync(request, info -> HttpResponse.BodySubscribers.mapping(
+                    HttpResponse.BodySubscribers.ofInputStream(), in -> new PermitInputStream(in, release)));
+        } catch (RuntimeException e) {
+            release.run();
+            result.completeExceptionally(e);
+            return;
+        }
+        sent.whenComplete((response, error) -> {
+            if (error != null) {
+                release.run();
+                result.completeExceptionally(error);
+            } else if (!result.complete(response)) {
+                closeQuietly(response.body());
+            }
+        });
+        result.whenComplete((response, error) -> {
+            if (result.isCancelled()) {
+                sent.cancel(true);
+            }
+        });
+    }
+
+    /**
+     * Stop the client's threads once the last connection to the host is closed.
+     */
+    void close() {
+        executor.shutdown();
+    }
+
+    static void closeQuietly(InputStream body) {
+        try {
+            body.close();
+        } catch (IOException e) {
+            // The connection is discarded either way
+        }
+    }
+
+    /**
+     * Response body that returns its request's connection permit when closed.
+     */
+    private static final class PermitInputStream extends FilterInputStream {
+        private final Runnable release;
+
+        PermitInputStream(InputStream in, Runnable release) {
+            super(in);
+            this.release = release;
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                super.close();
+            } finally {
+                release.run();
+            }
+        }
+    }
+}
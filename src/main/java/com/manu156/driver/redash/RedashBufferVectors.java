@@ -0,0 +1,692 @@
+package com.manu156.driver.redash;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Column vectors that read their cells from a {@link ByteBuffer} rather than from Java arrays:
+ * the memory-mapped files of the result cache's disk tier, and the off-heap memory of a
+ * {@link RedashOffHeapArena}. Apart from the distinct values of dictionary-encoded strings,
+ * such a vector holds nothing on the heap but its offsets into the buffer.
+ *
+ * <p>A column's buffer holds its sections at the given offsets, all little-endian:</p>
+ * <pre>
+ * INTEGER, FLOAT  null bitmap, 8-byte values
+ * BOOLEAN         null bitmap, value bitmap
+ * DICTIONARY      4-byte codes (-1 for null)
+ * PACKED          null bitmap, UTF-8 values, 4-byte offset of each value and the end offset
+ * </pre>
+ * Bit {@code row % 64} of the 8-byte word {@code row / 64} of a bitmap stands for a row.
+ */
+final class RedashBufferVectors {
+
+    private RedashBufferVectors() {
+    }
+
+    /**
+     * Create a builder that stores its column in arena memory. Only the column's distinct
+     * strings, while it is dictionary encoded, are kept on the heap.
+     *
+     * @param type One of the RedashColumnVector TYPE_ constants
+     * @param arena The arena holding the column
+     * @return A new builder
+     */
+    static RedashColumnVector.Builder offHeapBuilder(int type, RedashOffHeapArena arena) {
+        switch (type) {
+            case RedashColumnVector.TYPE_INTEGER:
+                return new OffHeapLongBuilder(arena);
+            case RedashColumnVector.TYPE_FLOAT:
+                return new OffHeapDoubleBuilder(arena);
+            case RedashColumnVector.TYPE_BOOLEAN:
+                return new OffHeapBooleanBuilder(arena);
+            default:
+                return new OffHeapStringBuilder(arena);
+        }
+    }
+
+    static boolean bit(ByteBuffer buffer, int bitmap, int row) {
+        return (buffer.getLong(bitmap + 8 * (row >>> 6)) & (1L << (row & 63))) != 0;
+    }
+
+    static String utf8(ByteBuffer buffer, int offset, int length) {
+        byte[] bytes = new byte[length];
+        ByteBuffer source = buffer.duplicate();
+        source.position(offset);
+        source.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    // Allocate the final buffer of a column
+    private static ByteBuffer allocate(RedashOffHeapArena arena, long bytes) {
+        if (bytes > Integer.MAX_VALUE) {
+            throw new RedashOffHeapArena.ExhaustedException("Column too large for off-heap storage");
+        }
+        return arena.allocate((int) bytes);
+    }
+
+    /**
+     * Integer column read from a buffer.
+     */
+    static final class BufferLongVector extends RedashColumnVector {
+        private final ByteBuffer buffer;
+        private final int nulls;
+        private final int values;
+        private final int size;
+
+        BufferLongVector(ByteBuffer buffer, int nulls, int values, int size) {
+            this.buffer = buffer;
+            this.nulls = nulls;
+            this.values = values;
+            this.size = size;
+        }
+
+        @Override
+        int size() {
+            return size;
+        }
+
+        @Override
+        int type() {
+            return TYPE_INTEGER;
+        }
+
+        @Override
+        boolean isNull(int row) {
+            return bit(buffer, nulls, row);
+        }
+
+        @Override
+        Object getObject(int row) {
+            if (isNull(row)) {
+                return null;
+            }
+            long value = getLong(row);
+            // As LongVector: Integer unless the value does not fit
+            if (value >= Integer.MIN_VALUE && value <= Integer.MAX_VALUE) {
+                return (int) value;
+            }
+            return value;
+        }
+
+        @Override
+        boolean isNumeric() {
+            return true;
+        }
+
+        @Override
+        int getInt(int row) {
+            return (int) getLong(row);
+        }
+
+        @Override
+        long getLong(int row) {
+            return buffer.getLong(values + 8 * row);
+        }
+
+        @Override
+        double getDouble(int row) {
+            return getLong(row);
+        }
+
+        @Override
+        String getString(int row) {
+            return isNull(row) ? null : Long.toString(getLong(row));
+        }
+
+        @Override
+        RedashColumnVector gather(int[] rows, int count) {
+            Builder builder = builder(TYPE_INTEGER);
+            for (int i = 0; i < count; i++) {
+                if (isNull(rows[i])) {
+                    builder.appendNull();
+                } else {
+                    builder.appendLong(getLong(rows[i]));
+                }
+            }
+            return builder.build();
+        }
+
+        @Override
+        long estimatedBytes() {
+            return 32;
+        }
+    }
+
+    /**
+     * Float column read from a buffer.
+     */
+    static final class BufferDoubleVector extends RedashColumnVector {
+        private final ByteBuffer buffer;
+        private final int nulls;
+        private final int values;
+        private final int size;
+
+        BufferDoubleVector(ByteBuffer buffer, int nulls, int values, int size) {
+            this.buffer = buffer;
+            this.nulls = nulls;
+            this.values = values;
+            this.size = size;
+        }
+
+        @Override
+        int size() {
+            return size;
+        }
+
+        @Override
+        int type() {
+            return TYPE_FLOAT;
+        }
+
+        @Override
+        boolean isNull(int row) {
+            return bit(buffer, nulls, row);
+        }
+
+        @Override
+        Object getObject(int row) {
+            return isNull(row) ? null : getDouble(row);
+        }
+
+        @Override
+        boolean isNumeric() {
+            return true;
+        }
+
+        @Override
+        int getInt(int row) {
+            return (int) getDouble(row);
+        }
+
+        @Override
+        long getLong(int row) {
+            return (long) getDouble(row);
+        }
+
+        @Override
+        double getDouble(int row) {
+            return buffer.getDouble(values + 8 * row);
+        }
+
+        @Override
+        String getString(int row) {
+            return isNull(row) ? null : Double.toString(getDouble(row));
+        }
+
+        @Override
+        RedashColumnVector gather(int[] rows, int count) {
+            Builder builder = builder(TYPE_FLOAT);
+            for (int i = 0; i < count; i++) {
+                if (isNull(rows[i])) {
+                    builder.appendNull();
+                } else {
+                    builder.appendDouble(getDouble(rows[i]));
+                }
+            }
+            return builder.build();
+        }
+
+        @Override
+        long estimatedBytes() {
+            return 32;
+        }
+    }
+
+    /**
+     * Boolean column read from a buffer.
+     */
+    static final class BufferBooleanVector extends RedashColumnVector {
+        private final ByteBuffer buffer;
+        private final int nulls;
+        private final int values;
+        private final int size;
+
+        BufferBooleanVector(ByteBuffer buffer, int nulls, int values, int size) {
+            this.buffer = buffer;
+            this.nulls = nulls;
+            this.values = values;
+            this.size = size;
+        }
+
+        @Override
+        int size() {
+            return size;
+        }
+
+        @Override
+        int type() {
+            return TYPE_BOOLEAN;
+        }
+
+        @Override
+        boolean isNull(int row) {
+            return bit(buffer, nulls, row);
+        }
+
+        @Override
+        Object getObject(int row) {
+            return isNull(row) ? null : getBoolean(row);
+        }
+
+        @Override
+        boolean getBoolean(int row) {
+            return bit(buffer, values, row);
+        }
+
+        @Override
+        long estimatedBytes() {
+            return 32;
+        }
+    }
+
+    /**
+     * Dictionary-encoded string column whose codes are read from a buffer.
+     */
+    static final class BufferDictionaryVector extends RedashColumnVector.DictionaryVector {
+        private final ByteBuffer buffer;
+        private final int codes;
+        private final String[] dictionary;
+        private final int size;
+
+        BufferDictionaryVector(ByteBuffer buffer, int codes, String[] dictionary, int size) {
+            this.buffer = buffer;
+            this.codes = codes;
+            this.dictionary = dictionary;
+            this.size = size;
+        }
+
+        @Override
+        int size() {
+            return size;
+        }
+
+        @Override
+        int getCode(int row) {
+            return buffer.getInt(codes + 4 * row);
+        }
+
+        @Override
+        String[] getDictionary() {
+            return dictionary;
+        }
+
+        @Override
+        RedashColumnVector gather(int[] rows, int count) {
+            int[] gathered = new int[count];
+            for (int i = 0; i < count; i++) {
+                gathered[i] = getCode(rows[i]);
+            }
+            return new DictionaryStringVector(gathered, dictionary, count);
+        }
+
+        @Override
+        long estimatedBytes() {
+            long bytes = 48 + 4L * dictionary.length;
+            for (String value : dictionary) {
+                bytes += 40 + value.length();
+            }
+            return bytes;
+        }
+    }
+
+    /**
+     * String column of UTF-8 values read from a buffer.
+     */
+    static final class BufferPackedVector extends RedashColumnVector {
+        private final ByteBuffer buffer;
+        private final int nulls;
+        private final int values;
+        private final int offsets;
+        private final int size;
+
+        BufferPackedVector(ByteBuffer buffer, int nulls, int values, int offsets, int size) {
+            this.buffer = buffer;
+            this.nulls = nulls;
+            this.values = values;
+            this.offsets = offsets;
+            this.size = size;
+        }
+
+        @Override
+        int size() {
+            return size;
+        }
+
+        @Override
+        int type() {
+            return TYPE_STRING;
+        }
+
+        @Override
+        boolean isNull(int row) {
+            return bit(buffer, nulls, row);
+        }
+
+        @Override
+        Object getObject(int row) {
+            return getString(row);
+        }
+
+        @Override
+        String getString(int row) {
+            if (isNull(row)) {
+                return null;
+            }
+            int start = buffer.getInt(offsets + 4 * row);
+            return utf8(buffer, values + start, buffer.getInt(offsets + 4 * row + 4) - start);
+        }
+
+        @Override
+        long estimatedBytes() {
+            return 40;
+        }
+    }
+
+    /**
+     * Arena memory written sequentially, moved to a larger buffer as it fills up.
+     */
+    private static final class Region {
+        private static final int INITIAL_CAPACITY = 1024;
+        private static final int MAX_CAPACITY = Integer.MAX_VALUE - 8;
+
+        private final RedashOffHeapArena arena;
+        private ByteBuffer buffer;
+
+        Region(RedashOffHeapArena arena) {
+            this.arena = arena;
+            this.buffer = arena.allocate(INITIAL_CAPACITY);
+        }
+
+        // The buffer to write the given number of bytes to, at its position
+        ByteBuffer ensure(int bytes) {
+            if (buffer.remaining() < bytes) {
+                long needed = (long) buffer.position() + bytes;
+                if (needed > MAX_CAPACITY) {
+                    throw new RedashOffHeapArena.ExhaustedException("Column too large for off-heap storage");
+                }
+                long capacity = Math.min(MAX_CAPACITY, Math.max(needed, buffer.capacity() * 3L / 2));
+                ByteBuffer grown = arena.allocate((int) capacity);
+                buffer.flip();
+                grown.put(buffer);
+                arena.free(buffer);
+                buffer = grown;
+            }
+            return buffer;
+        }
+
+        int size() {
+            return buffer.position();
+        }
+
+        ByteBuffer buffer() {
+            return buffer;
+        }
+
+        // Copy the bytes written to the target's position and free the region
+        void moveTo(ByteBuffer target) {
+            buffer.flip();
+            target.put(buffer);
+            arena.free(buffer);
+            buffer = null;
+        }
+    }
+
+    /**
+     * Bitmap of the rows appended so far, written a word at a time.
+     */
+    private static final class Bits {
+        private final Region words;
+        private long word;
+        private int count;
+
+        Bits(RedashOffHeapArena arena) {
+            this.words = new Region(arena);
+        }
+
+        void add(boolean set) {
+            if (set) {
+                word |= 1L << (count & 63);
+            }
+            if ((++count & 63) == 0) {
+                words.ensure(8).putLong(word);
+                word = 0;
+            }
+        }
+
+        int bytes() {
+            return 8 * ((count + 63) / 64);
+        }
+
+        void moveTo(ByteBuffer target) {
+            if ((count & 63) != 0) {
+                words.ensure(8).putLong(word);
+            }
+            words.moveTo(target);
+        }
+    }
+
+    private static final class OffHeapLongBuilder extends RedashColumnVector.LongValueBuilder {
+        private final RedashOffHeapArena arena;
+        private final Bits nulls;
+        private final Region values;
+
+        OffHeapLongBuilder(RedashOffHeapArena arena) {
+            this.arena = arena;
+            this.nulls = new Bits(arena);
+            this.values = new Region(arena);
+        }
+
+        @Override
+        void appendNull() {
+            nulls.add(true);
+            values.ensure(8).putLong(0);
+            size++;
+        }
+
+        @Override
+        void appendLong(long value) {
+            nulls.add(false);
+            values.ensure(8).putLong(value);
+            size++;
+        }
+
+        @Override
+        RedashColumnVector build() {
+            int nullBytes = nulls.bytes();
+            ByteBuffer buffer = allocate(arena, nullBytes + 8L * size);
+            nulls.moveTo(buffer);
+            values.moveTo(buffer);
+            return new BufferLongVector(buffer, 0, nullBytes, size);
+        }
+    }
+
+    private static final class OffHeapDoubleBuilder extends RedashColumnVector.DoubleValueBuilder {
+        private final RedashOffHeapArena arena;
+        private final Bits nulls;
+        private final Region values;
+
+        OffHeapDoubleBuilder(RedashOffHeapArena arena) {
+            this.arena = arena;
+            this.nulls = new Bits(arena);
+            this.values = new Region(arena);
+        }
+
+        @Override
+        void appendNull() {
+            nulls.add(true);
+            values.ensure(8).putDouble(0);
+            size++;
+        }
+
+        @Override
+        void appendDouble(double value) {
+            nulls.add(false);
+            values.ensure(8).putDouble(value);
+            size++;
+        }
+
+        @Override
+        RedashColumnVector build() {
+            int nullBytes = nulls.bytes();
+            ByteBuffer buffer = allocate(arena, nullBytes + 8L * size);
+            nulls.moveTo(buffer);
+            values.moveTo(buffer);
+            return new BufferDoubleVector(buffer, 0, nullBytes, size);
+        }
+    }
+
+    private static final class OffHeapBooleanBuilder extends RedashColumnVector.BooleanValueBuilder {
+        private final RedashOffHeapArena arena;
+        private final Bits nulls;
+        private final Bits values;
+
+        OffHeapBooleanBuilder(RedashOffHeapArena arena) {
+            this.arena = arena;
+            this.nulls = new Bits(arena);
+            this.values = new Bits(arena);
+        }
+
+        @Override
+        void appendNull() {
+            nulls.add(true);
+            values.add(false);
+            size++;
+        }
+
+        @Override
+        void appendBoolean(boolean value) {
+            nulls.add(false);
+            values.add(value);
+            size++;
+        }
+
+        @Override
+        RedashColumnVector build() {
+            int nullBytes = nulls.bytes();
+            ByteBuffer buffer = allocate(arena, 2L * nullBytes);
+            nulls.moveTo(buffer);
+            values.moveTo(buffer);
+            return new BufferBooleanVector(buffer, 0, nullBytes, size);
+        }
+    }
+
+    /**
+     * Dictionary-encodes strings like the heap builder, but also switches to packed UTF-8
+     * once the dictionary, which lives on the heap, reaches {@link #MAX_DICTIONARY_SIZE} values.
+     */
+    private static final class OffHeapStringBuilder extends RedashColumnVector.StringValueBuilder {
+        private static final int MAX_DICTIONARY_SIZE = 65536;
+
+        private final RedashOffHeapArena arena;
+        private Region codes;
+        private Map<String, Integer> dictionaryIndex = new HashMap<>();
+        private List<String> dictionary = new ArrayList<>();
+
+        private Bits nulls;
+        private Region data;
+        private Region offsets;
+
+        OffHeapStringBuilder(RedashOffHeapArena arena) {
+            this.arena = arena;
+            this.codes = new Region(arena);
+        }
+
+        @Override
+        void appendNull() {
+            if (data != null) {
+                nulls.add(true);
+                offsets.ensure(4).putInt(data.size());
+            } else {
+                codes.ensure(4).putInt(-1);
+            }
+            size++;
+        }
+
+        @Override
+        void appendString(String value) {
+            if (value == null) {
+                appendNull();
+                return;
+            }
+            if (data != null) {
+                appendPacked(value);
+                return;
+            }
+            Integer code = dictionaryIndex.get(value);
+            if (code == null) {
+                code = dictionary.size();
+                dictionary.add(value);
+                dictionaryIndex.put(value, code);
+            }
+            codes.ensure(4).putInt(code);
+            size++;
+            if (dictionary.size() > MAX_DICTIONARY_SIZE
+                    || size >= MIN_DICTIONARY_CHECK && dictionary.size() > size / 2) {
+                switchToPacked();
+            }
+        }
+
+        private void switchToPacked() {
+            nulls = new Bits(arena);
+            data = new Region(arena);
+            offsets = new Region(arena);
+            offsets.ensure(4).putInt(0);
+            int rows = size;
+            size = 0;
+            ByteBuffer written = codes.buffer();
+            for (int i = 0; i < rows; i++) {
+                int code = written.getInt(4 * i);
+                if (code < 0) {
+                    appendNull();
+                } else {
+                    appendPacked(dictionary.get(code));
+                }
+            }
+            arena.free(written);
+            codes = null;
+            dictionary = null;
+            dictionaryIndex = null;
+        }
+
+        private void appendPacked(String value) {
+            int length = value.length();
+            ByteBuffer buffer = data.ensure(length);
+            int start = buffer.position();
+            for (int i = 0; i < length; i++) {
+                char c = value.charAt(i);
+                if (c >= 0x80) {
+                    // Not ASCII: encode the whole value instead
+                    buffer.position(start);
+                    byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+                    data.ensure(bytes.length).put(bytes);
+                    break;
+                }
+                buffer.put((byte) c);
+            }
+            nulls.add(false);
+            offsets.ensure(4).putInt(data.size());
+            size++;
+        }
+
+        @Override
+        RedashColumnVector build() {
+            if (data == null) {
+                ByteBuffer buffer = allocate(arena, 4L * size);
+                codes.moveTo(buffer);
+                return new BufferDictionaryVector(buffer, 0, dictionary.toArray(new String[0]), size);
+            }
+            int nullBytes = nulls.bytes();
+            long offsetsStart = ((long) nullBytes + data.size() + 7) & ~7L;
+            ByteBuffer buffer = allocate(arena, offsetsStart + 4L * (size + 1));
+            nulls.moveTo(buffer);
+            data.moveTo(buffer);
+            buffer.position((int) offsetsStart);
+            offsets.moveTo(buffer);
+            return new BufferPackedVector(buffer, 0, nullBytes, (int) offsetsStart, size);
+        }
+    }
+}
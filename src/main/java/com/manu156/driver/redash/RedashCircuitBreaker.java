@@ -0,0 +1,102 @@
+package com.manu156.driver.redash;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Circuit breaker of one Redash host, shared by the blocking and the non-blocking client.
+ * After {@code threshold} consecutive failed requests the breaker opens and requests fail
+ * straight away instead of each waiting for its own connect or socket timeout. Once the
+ * open time has passed a single trial request is let through: its success closes the
+ * breaker, its failure keeps it open for another period.
+ */
+final class RedashCircuitBreaker {
+    private static final Logger logger = LoggerFactory.getLogger(RedashCircuitBreaker.class);
+
+    private final String host;
+    private final int threshold;
+    private final long openNanos;
+    private int failures;
+    private boolean open;
+    private boolean trialInFlight;
+    private long openedAtNanos;
+
+    /**
+     * @param host The host guarded, for messages
+     * @param threshold Consecutive failures that open the breaker, 0 to never open it
+     * @param openTimeMillis Milliseconds the breaker stays open before a trial request
+     */
+    RedashCircuitBreaker(String host, int threshold, long openTimeMillis) {
+        this.host = host;
+        this.threshold = threshold;
+        this.openNanos = TimeUnit.MILLISECONDS.toNanos(openTimeMillis);
+    }
+
+    /**
+     * Ask to send a request. Every permitted request must be followed by exactly one of
+     * {@link #onSuccess()}, {@link #onFailure()} or {@link #onAbandoned()}.
+     *
+     * @throws OpenException if the breaker is open
+     */
+    synchronized void acquirePermission() throws OpenException {
+        if (!open) {
+            return;
+        }
+        long remainingNanos = openedAtNanos + openNanos - System.nanoTime();
+        if (trialInFlight || remainingNanos > 0) {
+            throw new OpenException("Redash at " + host + " is unavailable: circuit breaker open after "
+                    + failures + " consecutive failures, next attempt in "
+                    + Math.max(0, TimeUnit.NANOSECONDS.toMillis(remainingNanos)) + " ms");
+        }
+        trialInFlight = true;
+    }
+
+    /**
+     * Record a request that reached Redash.
+     */
+    synchronized void onSuccess() {
+        if (open) {
+            logger.info("Circuit breaker for {} closed", host);
+        }
+        open = false;
+        trialInFlight = false;
+        failures = 0;
+    }
+
+    /**
+     * Record a request that failed with an I/O error or a status saying the host is unavailable.
+     */
+    synchronized void onFailure() {
+        failures++;
+        if (trialInFlight) {
+            trialInFlight = false;
+            openedAtNanos = System.nanoTime();
+            logger.debug("Trial request to {} failed, circuit breaker stays open", host);
+        } else if (!open && threshold > 0 && failures >= threshold) {
+            open = true;
+            openedAtNanos = System.nanoTime();
+            logger.warn("Circuit breaker for {} opened after {} consecutive failures", host, failures);
+        }
+    }
+
+    /**
+     * Record a request that ended without telling anything about the host, e.g. because it was cancelled.
+     */
+    synchronized void onAbandoned() {
+        trialInFlight = false;
+    }
+
+    /**
+     * Thrown instead of sending a request while the breaker is open.
+     */
+    static final class OpenException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        OpenException(String message) {
+            super(message);
+        }
+    }
+}
@@ -0,0 +1,1014 @@
+package com.manu156.driver.redash;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Immutable, column-oriented storage for the values of one result column.
+ * Integer, float and boolean columns are kept in primitive arrays with a null
+ * bitmap; string columns are dictionary encoded while their cardinality is low
+ * and packed into a single character buffer otherwise.
+ */
+abstract class RedashColumnVector {
+
+    static final int TYPE_STRING = 0;
+    static final int TYPE_INTEGER = 1;
+    static final int TYPE_FLOAT = 2;
+    static final int TYPE_BOOLEAN = 3;
+
+    /**
+     * Map a Redash column type to the storage type used for it.
+     *
+     * @param redashType The Redash column type, e.g. "integer"
+     * @return One of the TYPE_ constants
+     */
+    static int typeOf(String redashType) {
+        switch (redashType.toLowerCase()) {
+            case "integer":
+                return TYPE_INTEGER;
+            case "float":
+                return TYPE_FLOAT;
+            case "boolean":
+                return TYPE_BOOLEAN;
+            case "string":
+            case "datetime":
+            case "date":
+            default:
+                return TYPE_STRING;
+        }
+    }
+
+    /**
+     * Create a builder for the given storage type.
+     *
+     * @param type One of the TYPE_ constants
+     * @return A new builder
+     */
+    static Builder builder(int type) {
+        switch (type) {
+            case TYPE_INTEGER:
+                return new LongVectorBuilder();
+            case TYPE_FLOAT:
+                return new DoubleVectorBuilder();
+            case TYPE_BOOLEAN:
+                return new BooleanVectorBuilder();
+            default:
+                return new StringVectorBuilder();
+        }
+    }
+
+    abstract int size();
+
+    /**
+     * The storage type, one of the TYPE_ constants.
+     */
+    abstract int type();
+
+    abstract boolean isNull(int row);
+
+    /**
+     * Get the boxed value of a cell, or null.
+     */
+    abstract Object getObject(int row);
+
+    /**
+     * Approximate retained heap of this vector in bytes.
+     */
+    abstract long estimatedBytes();
+
+    /**
+     * Whether {@link #getInt}, {@link #getLong} and {@link #getDouble} can be used.
+     */
+    boolean isNumeric() {
+        return false;
+    }
+
+    int getInt(int row) {
+        throw unsupported("int");
+    }
+
+    long getLong(int row) {
+        throw unsupported("long");
+    }
+
+    double getDouble(int row) {
+        throw unsupported("double");
+    }
+
+    String getString(int row) {
+        Object value = getObject(row);
+        return value == null ? null : value.toString();
+    }
+
+    boolean getBoolean(int row) {
+        throw unsupported("boolean");
+    }
+
+    // The primitive accessors are only valid for the storage types that override them
+    private UnsupportedOperationException unsupported(String target) {
+        return new UnsupportedOperationException("Cannot read a " + typeName(type()) + " column as " + target);
+    }
+
+    /**
+     * The Redash name of a storage type, for messages.
+     *
+     * @param type One of the TYPE_ constants
+     * @return e.g. "integer"
+     */
+    static String typeName(int type) {
+        switch (type) {
+            case TYPE_INTEGER:
+                return "integer";
+            case TYPE_FLOAT:
+                return "float";
+            case TYPE_BOOLEAN:
+                return "boolean";
+            default:
+                return "string";
+        }
+    }
+
+    /**
+     * Copy the given rows into a new vector of the same type.
+     *
+     * @param rows The row indexes to copy, in output order
+     * @param count The number of rows to copy
+     * @return A vector of {@code count} values
+     */
+    RedashColumnVector gather(int[] rows, int count) {
+        Builder builder = builder(type());
+        for (int i = 0; i < count; i++) {
+            builder.appendObject(getObject(rows[i]));
+        }
+        return builder.build();
+    }
+
+    private static BitSet gatherBits(BitSet bits, int[] rows, int count) {
+        BitSet gathered = new BitSet(count);
+        for (int i = 0; i < count; i++) {
+            if (bits.get(rows[i])) {
+                gathered.set(i);
+            }
+        }
+        return gathered;
+    }
+
+    private static long bitmapBytes(BitSet bits) {
+        return 16 + bits.size() / 8;
+    }
+
+    /**
+     * Integer column backed by a long array.
+     */
+    static final class LongVector extends RedashColumnVector {
+        private final long[] values;
+        private final BitSet nulls;
+        private final int size;
+
+        LongVector(long[] values, BitSet nulls, int size) {
+            this.values = values;
+            this.nulls = nulls;
+            this.size = size;
+        }
+
+        @Override
+        int size() {
+            return size;
+        }
+
+        @Override
+        int type() {
+            return TYPE_INTEGER;
+        }
+
+        @Override
+        boolean isNull(int row) {
+            return nulls.get(row);
+        }
+
+        @Override
+        Object getObject(int row) {
+            if (nulls.get(row)) {
+                return null;
+            }
+            long value = values[row];
+            // Redash integer columns map to Integer; only widen when the value does not fit
+            if (value >= Integer.MIN_VALUE && value <= Integer.MAX_VALUE) {
+                return (int) value;
+            }
+            return value;
+        }
+
+        @Override
+        boolean isNumeric() {
+            return true;
+        }
+
+        @Override
+        int getInt(int row) {
+            return (int) values[row];
+        }
+
+        @Override
+        long getLong(int row) {
+            return values[row];
+        }
+
+        @Override
+        double getDouble(int row) {
+            return values[row];
+        }
+
+        @Override
+        String getString(int row) {
+            return nulls.get(row) ? null : Long.toString(values[row]);
+        }
+
+        @Override
+        RedashColumnVector gather(int[] rows, int count) {
+            long[] gathered = new long[count];
+            for (int i = 0; i < count; i++) {
+                gathered[i] = values[rows[i]];
+            }
+            return new LongVector(gathered, gatherBits(nulls, rows, count), count);
+        }
+
+        @Override
+        long estimatedBytes() {
+            return 16 + 8L * values.length + bitmapBytes(nulls);
+        }
+    }
+
+    /**
+     * Float column backed by a double array.
+     */
+    static final class DoubleVector extends RedashColumnVector {
+        private final double[] values;
+        private final BitSet nulls;
+        private final int size;
+
+        DoubleVector(double[] values, BitSet nulls, int size) {
+            this.values = values;
+            this.nulls = nulls;
+            this.size = size;
+        }
+
+        @Override
+        int size() {
+            return size;
+        }
+
+        @Override
+        int type() {
+            return TYPE_FLOAT;
+        }
+
+        @Override
+        boolean isNull(int row) {
+            return nulls.get(row);
+        }
+
+        @Override
+        Object getObject(int row) {
+            return nulls.get(row) ? null : values[row];
+        }
+
+        @Override
+        boolean isNumeric() {
+            return true;
+        }
+
+        @Override
+        int getInt(int row) {
+            return (int) values[row];
+        }
+
+        @Override
+        long getLong(int row) {
+            return (long) values[row];
+        }
+
+        @Override
+        double getDouble(int row) {
+            return values[row];
+        }
+
+        @Override
+        String getString(int row) {
+            return nulls.get(row) ? null : Double.toString(values[row]);
+        }
+
+        @Override
+        RedashColumnVector gather(int[] rows, int count) {
+            double[] gathered = new double[count];
+            for (int i = 0; i < count; i++) {
+                gathered[i] = values[rows[i]];
+            }
+            return new DoubleVector(gathered, gatherBits(nulls, rows, count), count);
+        }
+
+        @Override
+        long estimatedBytes() {
+            return 16 + 8L * values.length + bitmapBytes(nulls);
+        }
+    }
+
+    /**
+     * Boolean column backed by a value bitmap and a null bitmap.
+     */
+    static final class BooleanVector extends RedashColumnVector {
+        private final BitSet values;
+        private final BitSet nulls;
+        private final int size;
+
+        BooleanVector(BitSet values, BitSet nulls, int size) {
+            this.values = values;
+            this.nulls = nulls;
+            this.size = size;
+        }
+
+        @Override
+        int size() {
+            return size;
+        }
+
+        @Override
+        int type() {
+            return TYPE_BOOLEAN;
+        }
+
+        @Override
+        boolean isNull(int row) {
+            return nulls.get(row);
+        }
+
+        @Override
+        Object getObject(int row) {
+            return nulls.get(row) ? null : values.get(row);
+        }
+
+        @Override
+        boolean getBoolean(int row) {
+            return values.get(row);
+        }
+
+        @Override
+        RedashColumnVector gather(int[] rows, int count) {
+            return new BooleanVector(gatherBits(values, rows, count), gatherBits(nulls, rows, count), count);
+        }
+
+        @Override
+        long estimatedBytes() {
+            return bitmapBytes(values) + bitmapBytes(nulls);
+        }
+    }
+
+    /**
+     * String column stored as codes into the array of its distinct values; -1 marks a null
+     * cell. Filters and groupings work on the codes, deciding once per distinct value.
+     */
+    abstract static class DictionaryVector extends RedashColumnVector {
+
+        /**
+         * The dictionary code of a cell, -1 for null.
+         */
+        abstract int getCode(int row);
+
+        /**
+         * The distinct values, indexed by code. Not copied; must not be modified.
+         */
+        abstract String[] getDictionary();
+
+        @Override
+        int type() {
+            return TYPE_STRING;
+        }
+
+        @Override
+        boolean isNull(int row) {
+            return getCode(row) < 0;
+        }
+
+        @Override
+        Object getObject(int row) {
+            return getString(row);
+        }
+
+        @Override
+        String getString(int row) {
+            int code = getCode(row);
+            return code < 0 ? null : getDictionary()[code];
+        }
+    }
+
+    /**
+     * Dictionary-encoded string column with the codes in an int array.
+     */
+    static final class DictionaryStringVector extends DictionaryVector {
+        private final int[] codes;
+        private final String[] dictionary;
+        private final int size;
+
+        DictionaryStringVector(int[] codes, String[] dictionary, int size) {
+            this.codes = codes;
+            this.dictionary = dictionary;
+            this.size = size;
+        }
+
+        @Override
+        int size() {
+            return size;
+        }
+
+        @Override
+        String getString(int row) {
+            int code = codes[row];
+            return code < 0 ? null : dictionary[code];
+        }
+
+        @Override
+        int getCode(int row) {
+            return codes[row];
+        }
+
+        @Override
+        String[] getDictionary() {
+            return dictionary;
+        }
+
+        @Override
+        RedashColumnVector gather(int[] rows, int count) {
+            // The dictionary is immutable and shared; only the codes are copied
+            int[] gathered = new int[count];
+            for (int i = 0; i < count; i++) {
+                gathered[i] = codes[rows[i]];
+            }
+            return new DictionaryStringVector(gathered, dictionary, count);
+        }
+
+        @Override
+        long estimatedBytes() {
+            long bytes = 16 + 4L * codes.length + 16 + 4L * dictionary.length;
+            for (String value : dictionary) {
+                bytes += 40 + value.length();
+            }
+            return bytes;
+        }
+    }
+
+    /**
+     * String column packed into one character buffer addressed by offsets.
+     */
+    static final class PackedStringVector extends RedashColumnVector {
+        private final char[] data;
+        private final int[] offsets;
+        private final BitSet nulls;
+        private final int size;
+
+        PackedStringVector(char[] data, int[] offsets, BitSet nulls, int size) {
+            this.data = data;
+            this.offsets = offsets;
+            this.nulls = nulls;
+            this.size = size;
+        }
+
+        @Override
+        int size() {
+            return size;
+        }
+
+        @Override
+        int type() {
+            return TYPE_STRING;
+        }
+
+        @Override
+        boolean isNull(int row) {
+            return nulls.get(row);
+        }
+
+        @Override
+        Object getObject(int row) {
+            return getString(row);
+        }
+
+        @Override
+        String getString(int row) {
+            if (nulls.get(row)) {
+                return null;
+            }
+            int start = offsets[row];
+            return new String(data, start, offsets[row + 1] - start);
+        }
+
+        @Override
+        long estimatedBytes() {
+            return 16 + 2L * data.length + 16 + 4L * offsets.length + bitmapBytes(nulls);
+        }
+    }
+
+    /**
+     * View of rows of another vector by index, as produced by a join; a negative index
+     * stands for a null cell. The values are not copied, and views of views are flattened.
+     *
+     * @param base The vector holding the values
+     * @param rows The index into {@code base} of each row of the view
+     * @param count The number of rows of the view
+     * @return The view
+     */
+    static RedashColumnVector select(RedashColumnVector base, int[] rows, int count) {
+        if (base instanceof IndirectVector) {
+            IndirectVector indirect = (IndirectVector) base;
+            int[] composed = new int[count];
+            for (int i = 0; i < count; i++) {
+                composed[i] = rows[i] < 0 ? -1 : indirect.rows[rows[i]];
+            }
+            return new IndirectVector(indirect.base, composed, count);
+        }
+        return new IndirectVector(base, rows, count);
+    }
+
+    /**
+     * Rows of another vector selected by index; see {@link #select}.
+     */
+    static final class IndirectVector extends RedashColumnVector {
+        private final RedashColumnVector base;
+        private final int[] rows;
+        private final int size;
+
+        private IndirectVector(RedashColumnVector base, int[] rows, int size) {
+            this.base = base;
+            this.rows = rows;
+            this.size = size;
+        }
+
+        @Override
+        int size() {
+            return size;
+        }
+
+        @Override
+        int type() {
+            return base.type();
+        }
+
+        @Override
+        boolean isNull(int row) {
+            return rows[row] < 0 || base.isNull(rows[row]);
+        }
+
+        @Override
+        Object getObject(int row) {
+            return rows[row] < 0 ? null : base.getObject(rows[row]);
+        }
+
+        @Override
+        boolean isNumeric() {
+            return base.isNumeric();
+        }
+
+        @Override
+        int getInt(int row) {
+            return base.getInt(rows[row]);
+        }
+
+        @Override
+        long getLong(int row) {
+            return base.getLong(rows[row]);
+        }
+
+        @Override
+        double getDouble(int row) {
+            return base.getDouble(rows[row]);
+        }
+
+        @Override
+        String getString(int row) {
+            return rows[row] < 0 ? null : base.getString(rows[row]);
+        }
+
+        @Override
+        boolean getBoolean(int row) {
+            return base.getBoolean(rows[row]);
+        }
+
+        @Override
+        RedashColumnVector gather(int[] selected, int count) {
+            int[] composed = new int[count];
+            boolean nulls = false;
+            for (int i = 0; i < count; i++) {
+                composed[i] = rows[selected[i]];
+                nulls |= composed[i] < 0;
+            }
+            if (!nulls) {
+                return base.gather(composed, count);
+            }
+            Builder builder = builder(type());
+            for (int i = 0; i < count; i++) {
+                builder.appendObject(composed[i] < 0 ? null : base.getObject(composed[i]));
+            }
+            return builder.build();
+        }
+
+        @Override
+        long estimatedBytes() {
+            // The base vector is accounted for where it is held
+            return 16 + 4L * rows.length;
+        }
+    }
+
+    /**
+     * Append-only builder for a column vector.
+     */
+    abstract static class Builder {
+        // Some JVMs reserve header words in arrays, so larger ones may fail to allocate
+        static final int MAX_CAPACITY = Integer.MAX_VALUE - 8;
+
+        int size;
+
+        abstract void appendNull();
+
+        void appendLong(long value) {
+            appendObject(value);
+        }
+
+        void appendDouble(double value) {
+            appendObject(value);
+        }
+
+        void appendBoolean(boolean value) {
+            appendObject(value);
+        }
+
+        void appendString(String value) {
+            appendObject(value);
+        }
+
+        /**
+         * Append a boxed value, converting it to the builder's storage type.
+         */
+        abstract void appendObject(Object value);
+
+        abstract RedashColumnVector build();
+
+        int size() {
+            return size;
+        }
+
+        /**
+         * Grow a full array by half.
+         *
+         * @param capacity The current capacity
+         * @return The new capacity
+         * @throws OutOfMemoryError if the array is already as large as an array can be
+         */
+        static int grow(int capacity) {
+            return grow(capacity, capacity + 1L);
+        }
+
+        /**
+         * Grow an array by half and to at least the required capacity, up to the largest array size.
+         *
+         * @param capacity The current capacity
+         * @param required The capacity needed
+         * @return The new capacity
+         * @throws OutOfMemoryError if the required capacity exceeds the largest array size
+         */
+        static int grow(int capacity, long required) {
+            if (required > MAX_CAPACITY) {
+                throw new OutOfMemoryError("Column of " + required + " elements exceeds the maximum array size");
+            }
+            long grown = Math.max(16, (long) capacity + (capacity >> 1));
+            return (int) Math.min(MAX_CAPACITY, Math.max(grown, required));
+        }
+    }
+
+    /**
+     * Builder of an integer column, converting every appended value to a long.
+     */
+    abstract static class LongValueBuilder extends Builder {
+
+        @Override
+        abstract void appendLong(long value);
+
+        @Override
+        void appendDouble(double value) {
+            appendLong((long) value);
+        }
+
+        @Override
+        void appendBoolean(boolean value) {
+            appendLong(value ? 1 : 0);
+        }
+
+        @Override
+        void appendObject(Object value) {
+            if (value == null) {
+                appendNull();
+            } else if (value instanceof Number) {
+                appendLong(((Number) value).longValue());
+            } else if (value instanceof Boolean) {
+                appendBoolean((Boolean) value);
+            } else {
+                try {
+                    appendLong(Long.parseLong(value.toString().trim()));
+                } catch (NumberFormatException e) {
+                    appendLong(0);
+                }
+            }
+        }
+    }
+
+    private static final class LongVectorBuilder extends LongValueBuilder {
+        private long[] values = new long[16];
+        private final BitSet nulls = new BitSet();
+
+        @Override
+        void appendNull() {
+            ensureCapacity();
+            nulls.set(size++);
+        }
+
+        @Override
+        void appendLong(long value) {
+            ensureCapacity();
+            values[size++] = value;
+        }
+
+        private void ensureCapacity() {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, grow(values.length));
+            }
+        }
+
+        @Override
+        RedashColumnVector build() {
+            return new LongVector(Arrays.copyOf(values, size), nulls, size);
+        }
+    }
+
+    /**
+     * Builder of a float column, converting every appended value to a double.
+     */
+    abstract static class DoubleValueBuilder extends Builder {
+
+        @Override
+        abstract void appendDouble(double value);
+
+        @Override
+        void appendLong(long value) {
+            appendDouble(value);
+        }
+
+        @Override
+        void appendBoolean(boolean value) {
+            appendDouble(value ? 1.0d : 0.0d);
+        }
+
+        @Override
+        void appendObject(Object value) {
+            if (value == null) {
+                appendNull();
+            } else if (value instanceof Number) {
+                appendDouble(((Number) value).doubleValue());
+            } else if (value instanceof Boolean) {
+                appendBoolean((Boolean) value);
+            } else {
+                try {
+                    appendDouble(Double.parseDouble(value.toString().trim()));
+                } catch (NumberFormatException e) {
+                    appendDouble(0.0d);
+                }
+            }
+        }
+    }
+
+    private static final class DoubleVectorBuilder extends DoubleValueBuilder {
+        private double[] values = new double[16];
+        private final BitSet nulls = new BitSet();
+
+        @Override
+        void appendNull() {
+            ensureCapacity();
+            nulls.set(size++);
+        }
+
+        @Override
+        void appendDouble(double value) {
+            ensureCapacity();
+            values[size++] = value;
+        }
+
+        private void ensureCapacity() {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, grow(values.length));
+            }
+        }
+
+        @Override
+        RedashColumnVector build() {
+            return new DoubleVector(Arrays.copyOf(values, size), nulls, size);
+        }
+    }
+
+    /**
+     * Builder of a boolean column, converting every appended value to a boolean.
+     */
+    abstract static class BooleanValueBuilder extends Builder {
+
+        @Override
+        abstract void appendBoolean(boolean value);
+
+        @Override
+        void appendLong(long value) {
+            appendBoolean(value != 0);
+        }
+
+        @Override
+        void appendDouble(double value) {
+            appendBoolean(value != 0);
+        }
+
+        @Override
+        void appendObject(Object value) {
+            if (value == null) {
+                appendNull();
+            } else if (value instanceof Boolean) {
+                appendBoolean((Boolean) value);
+            } else if (value instanceof Number) {
+                appendBoolean(((Number) value).doubleValue() != 0);
+            } else {
+                appendBoolean("true".equals(value.toString().trim()));
+            }
+        }
+    }
+
+    private static final class BooleanVectorBuilder extends BooleanValueBuilder {
+        private final BitSet values = new BitSet();
+        private final BitSet nulls = new BitSet();
+
+        @Override
+        void appendNull() {
+            nulls.set(size++);
+        }
+
+        @Override
+        void appendBoolean(boolean value) {
+            values.set(size++, value);
+        }
+
+        @Override
+        RedashColumnVector build() {
+            return new BooleanVector(values, nulls, size);
+        }
+    }
+
+    /**
+     * Builder of a string column, converting every appended value to its text.
+     */
+    abstract static class StringValueBuilder extends Builder {
+        static final int MIN_DICTIONARY_CHECK = 1024;
+
+        @Override
+        void appendLong(long value) {
+            appendString(Long.toString(value));
+        }
+
+        @Override
+        void appendDouble(double value) {
+            appendString(Double.toString(value));
+        }
+
+        @Override
+        void appendBoolean(boolean value) {
+            appendString(Boolean.toString(value));
+        }
+
+        @Override
+        void appendObject(Object value) {
+            if (value == null) {
+                appendNull();
+            } else {
+                appendString(value.toString());
+            }
+        }
+
+        @Override
+        abstract void appendString(String value);
+    }
+
+    /**
+     * Dictionary-encodes strings until the dictionary grows past half the rows,
+     * then switches to a packed character buffer.
+     */
+    private static final class StringVectorBuilder extends StringValueBuilder {
+
+        private int[] codes = new int[16];
+        private Map<String, Integer> dictionaryIndex = new HashMap<>();
+        private String[] dictionary = new String[16];
+
+        private char[] data;
+        private int dataLength;
+        private int[] offsets;
+        private BitSet nulls;
+
+        @Override
+        void appendNull() {
+            if (data != null) {
+                ensurePackedCapacity(0);
+                nulls.set(size);
+                offsets[++size] = dataLength;
+                return;
+            }
+            ensureCodeCapacity();
+            codes[size++] = -1;
+        }
+
+        @Override
+        void appendString(String value) {
+            if (value == null) {
+                appendNull();
+                return;
+            }
+            if (data != null) {
+                appendPacked(value);
+                return;
+            }
+            Integer code = dictionaryIndex.get(value);
+            if (code == null) {
+                code = dictionaryIndex.size();
+                if (code == dictionary.length) {
+                    dictionary = Arrays.copyOf(dictionary, grow(dictionary.length));
+                }
+                dictionary[code] = value;
+                dictionaryIndex.put(value, code);
+            }
+            ensureCodeCapacity();
+            codes[size++] = code;
+            if (size >= MIN_DICTIONARY_CHECK && dictionaryIndex.size() > size / 2) {
+                switchToPacked();
+            }
+        }
+
+        private void ensureCodeCapacity() {
+            if (size == codes.length) {
+                codes = Arrays.copyOf(codes, grow(codes.length));
+            }
+        }
+
+        private void switchToPacked() {
+            long length = 0;
+            for (int i = 0; i < dictionaryIndex.size(); i++) {
+                length += dictionary[i].length();
+            }
+            data = new char[(int) Math.min(Builder.MAX_CAPACITY, Math.max(16, length * 2))];
+            offsets = new int[grow(size + 1)];
+            nulls = new BitSet();
+            int rows = size;
+            size = 0;
+            dataLength = 0;
+            for (int i = 0; i < rows; i++) {
+                int code = codes[i];
+                if (code < 0) {
+                    ensurePackedCapacity(0);
+                    nulls.set(size);
+                    offsets[++size] = dataLength;
+                } else {
+                    appendPacked(dictionary[code]);
+                }
+            }
+            codes = null;
+            dictionary = null;
+            dictionaryIndex = null;
+        }
+
+        private void appendPacked(String value) {
+            int length = value.length();
+            ensurePackedCapacity(length);
+            value.getChars(0, length, data, dataLength);
+            dataLength += length;
+            offsets[++size] = dataLength;
+        }
+
+        private void ensurePackedCapacity(int chars) {
+            if (size + 2 > offsets.length) {
+                offsets = Arrays.copyOf(offsets, grow(offsets.length));
+            }
+            if ((long) dataLength + chars > data.length) {
+                data = Arrays.copyOf(data, grow(data.length, (long) dataLength + chars));
+            }
+        }
+
+        @Override
+        RedashColumnVector build() {
+            if (data != null) {
+                return new PackedStringVector(Arrays.copyOf(data, dataLength),
+                        Arrays.copyOf(offsets, size + 1), nulls, size);
+            }
+            return new DictionaryStringVector(Arrays.copyOf(codes, size),
+                    Arrays.copyOf(dictionary, dictionaryIndex.size()), size);
+        }
+    }
+}
@@ -1,8 +1,13 @@
 package com.manu156.driver.redash;
 
 import java.sql.*;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.Executor;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -19,10 +24,11 @@ public class RedashConnection implements Connection {
     private boolean closed = false;
     private boolean autoCommit = true;
     private int transactionIsolation = Connection.TRANSACTION_NONE;
+    private final RedashConnectionProperties properties;
     private final RedashApiClient apiClient;
     
     private static final Pattern URL_PATTERN = Pattern.compile(
-            "jdbc:redash://([^:]+)(?::(\\d+))?(?:/)?(?:\\?(.*))?");
+            "jdbc:redash://([^:/?]+)(?::(\\d+))?(/[^?]*)?(?:\\?(.*))?");
     
     private static final Logger logger = Logger.getLogger(RedashConnection.class.getName());
     
@@ -33,29 +39,22 @@ public class RedashConnection implements Connection {
         }
         
         this.host = matcher.group(1);
-        String portStr = matcher.group(2);
-        this.port = (portStr != null) ? Integer.parseInt(portStr) : 80;
         
-        // Extract API key from URL parameters or properties
-        String urlParams = matcher.group(3);
-        String apiKeyFromUrl = null;
-        if (urlParams != null) {
-            String[] params = urlParams.split("&");
-            for (String param : params) {
-                String[] keyValue = param.split("=");
-                if (keyValue.length == 2 && "apiKey".equals(keyValue[0])) {
-                    apiKeyFromUrl = keyValue[1];
-                    break;
-                }
-            }
+        // URL parameters take precedence over the supplied properties, and a path in the URL over basePath
+        Properties merged = RedashConnectionProperties.merge(matcher.group(4), info);
+        String path = matcher.group(3);
+        if (path != null && !path.equals("/")) {
+            merged.setProperty(RedashConnectionProperties.BASE_PATH, path);
         }
-        
-        this.apiKey = apiKeyFromUrl != null ? apiKeyFromUrl : info.getProperty("apiKey");
+        this.properties = new RedashConnectionProperties(merged);
+        String portStr = matcher.group(2);
+        this.port = (portStr != null) ? Integer.parseInt(portStr) : (properties.isSsl() ? 443 : 80);
+        this.apiKey = properties.getApiKey();
         if (this.apiKey == null || this.apiKey.isEmpty()) {
             throw new SQLException("API key is required for Redash JDBC connection");
         }
         
-        this.apiClient = new RedashApiClient(host, port, apiKey);
+        this.apiClient = new RedashApiClient(host, port, apiKey, properties);
     }
     
     @Override
@@ -109,7 +108,7 @@ public class RedashConnection implements Connection {
     public void close() throws SQLException {
         if (!closed) {
             closed = true;
-            // Clean up resources if needed
+            apiClient.close();
         }
     }
     
@@ -184,11 +183,137 @@ public class RedashConnection implements Connection {
         }
     }
     
+    /**
+     * Drop the data sources and saved query definitions cached for this server and API key,
+     * e.g. after a saved query was edited. Has no effect unless {@code metadataCacheTtl} is set.
+     */
+    public void invalidateMetadataCache() {
+        apiClient.invalidateMetadataCache();
+    }
+    
+    /**
+     * Execute a query without blocking the calling thread, e.g. to fan out many independent
+     * reads and join them. Reach it through {@code connection.unwrap(RedashConnection.class)}.
+     * Saved queries ({@code FROM query_123}, also joined) run concurrently with their parameters, and
+     * the rest of the statement is evaluated on their results as by {@link java.sql.Statement#executeQuery};
+     * other SQL runs against the first data source according to {@code executionMode}. The connection's {@code maxAge},
+     * result and metadata caches apply. Cancelling the future cancels the Redash job; after
+     * 5 minutes the future fails with a {@link SQLTimeoutException}.
+     * 
+     * @param sql The SQL to execute
+     * @param parameters Query parameters, may be null
+     * @return A future for the fully decoded result; it fails with an {@link SQLException}
+     * @throws SQLException if the connection is closed or the statement over a saved query is malformed
+     */
+    public CompletableFuture<RedashQueryResult> executeAsync(String sql, Map<String, Object> parameters)
+            throws SQLException {
+        checkClosed();
+        return executeAsync(sql, parameters != null ? parameters : Collections.emptyMap(), Collections.emptyMap(),
+                new RedashQueryContext(0, properties.getMaxAgeSeconds()));
+    }
+    
+    /**
+     * Execute several queries at once without blocking the calling thread, e.g. the independent
+     * reads of a report. All queries are submitted straight away and their jobs are polled
+     * together, so the batch takes about as long as its slowest query rather than the sum of all.
+     * At most {@code maxConcurrentQueries} batched queries run on the Redash host at a time; the
+     * others wait in submission order. Each query runs as by {@link #executeAsync}.
+     * 
+     * @param sql The SQL statements to execute
+     * @return A future for the results in the order of the statements; it fails with the first
+     *         {@link SQLException} of any query, which cancels the others
+     * @throws SQLException if the connection is closed
+     */
+    public CompletableFuture<List<RedashQueryResult>> executeBatchAsync(List<String> sql) throws SQLException {
+        checkClosed();
+        List<CompletableFuture<RedashQueryResult>> queries = submitBatch(sql,
+                Collections.nCopies(sql.size(), Collections.emptyMap()), 0, properties.getMaxAgeSeconds());
+        CompletableFuture<List<RedashQueryResult>> handle = new CompletableFuture<>();
+        CompletableFuture.allOf(queries.toArray(new CompletableFuture<?>[0])).thenRun(() -> {
+            List<RedashQueryResult> results = new ArrayList<>(queries.size());
+            for (CompletableFuture<RedashQueryResult> query : queries) {
+                results.add(query.join());
+            }
+            handle.complete(results);
+        });
+        for (CompletableFuture<RedashQueryResult> query : queries) {
+            query.whenComplete((result, error) -> {
+                if (error != null) {
+                    handle.completeExceptionally(error);
+                }
+            });
+        }
+        handle.whenComplete((results, error) -> {
+            if (error != null) {
+                // Results that completed before the failure are released, as nobody will receive them
+                for (CompletableFuture<RedashQueryResult> query : queries) {
+                    query.cancel(false);
+                    query.thenAccept(RedashQueryResult::close);
+                }
+            }
+        });
+        return handle;
+    }
+    
+    /**
+     * Submit the queries of a batch through the host's {@link RedashQueryLimiter}.
+     * 
+     * @param sql The SQL statements
+     * @param markers Values of each statement's {@code ?} markers by 1-based index
+     * @param timeoutSeconds Query timeout of each statement, 0 for the default
+     * @param maxAgeSeconds Maximum age of cached Redash results, or null
+     * @return A future per statement, in the order of the statements
+     */
+    List<CompletableFuture<RedashQueryResult>> submitBatch(List<String> sql, List<Map<Integer, Object>> markers,
+                                                           int timeoutSeconds, Integer maxAgeSeconds) {
+        RedashQueryLimiter limiter = apiClient.getQueryLimiter();
+        List<CompletableFuture<RedashQueryResult>> queries = new ArrayList<>(sql.size());
+        for (int i = 0; i < sql.size(); i++) {
+            String statement = sql.get(i);
+            Map<Integer, Object> statementMarkers = markers.get(i);
+            queries.add(limiter.submit(() -> {
+                Map<String, Object> queryParams = new HashMap<>();
+                for (Map.Entry<Integer, Object> entry : statementMarkers.entrySet()) {
+                    queryParams.put("p" + entry.getKey(), entry.getValue());
+                }
+                try {
+                    return executeAsync(statement, queryParams, statementMarkers,
+                            new RedashQueryContext(timeoutSeconds, maxAgeSeconds));
+                } catch (SQLException e) {
+                    return CompletableFuture.failedFuture(e);
+                }
+            }));
+        }
+        return queries;
+    }
+    
+    // Start a statement, with the values of its ? markers for the part the driver evaluates
+    private CompletableFuture<RedashQueryResult> executeAsync(String sql, Map<String, Object> queryParams,
+                                                              Map<Integer, Object> markers,
+                                                              RedashQueryContext context) throws SQLException {
+        Matcher matcher = RedashStatement.QUERY_ID_PATTERN.matcher(sql);
+        if (matcher.find()) {
+            RedashLocalQuery local = RedashStatement.parseLocalQuery(sql, properties);
+            if (local != null) {
+                return apiClient.executeQueriesByIdAsync(local, queryParams, markers, context);
+            }
+            return apiClient.executeQueryByIdAsync(matcher.group(1), queryParams, context);
+        }
+        String saveAs = properties.getExecutionMode() == RedashConnectionProperties.ExecutionMode.DIRECT
+                ? null : "JDBC Async Query";
+        return apiClient.executeAdHocAsync(sql, queryParams, saveAs, context);
+    }
+    
     // Get the API client
     RedashApiClient getApiClient() {
         return apiClient;
     }
     
+    // Get the parsed driver options of this connection
+    RedashConnectionProperties getProperties() {
+        return properties;
+    }
+    
     // Unsupported methods
     
     @Override
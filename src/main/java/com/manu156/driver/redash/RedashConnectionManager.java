@@ -0,0 +1,128 @@
+package com.manu156.driver.redash;
+
+import org.apache.http.HttpClientConnection;
+import org.apache.http.conn.ConnectionPoolTimeoutException;
+import org.apache.http.conn.ConnectionRequest;
+import org.apache.http.conn.HttpClientConnectionManager;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.protocol.HttpContext;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Connection manager that admits requests to the pool through a semaphore.
+ * HttpClient 4's pool waits for a free connection while holding a monitor, which
+ * pins a virtual thread to its carrier; with more virtual threads than connections
+ * every carrier ends up pinned and the threads holding connections can no longer
+ * run to return them. Waiting on the semaphore instead leaves the pool with a free
+ * connection whenever a lease reaches it.
+ */
+final class RedashConnectionManager implements HttpClientConnectionManager {
+    // Granularity at which a request waiting for a permit notices that it was aborted
+    private static final long ABORT_CHECK_MILLIS = 50;
+
+    private final PoolingHttpClientConnectionManager pool;
+    private final Semaphore permits;
+
+    /**
+     * @param pool The pool to delegate to
+     * @param maxConnections The number of connections the pool can lease to the Redash host at once
+     */
+    RedashConnectionManager(PoolingHttpClientConnectionManager pool, int maxConnections) {
+        this.pool = pool;
+        this.permits = new Semaphore(Math.max(1, maxConnections), true);
+    }
+
+    @Override
+    public ConnectionRequest requestConnection(HttpRoute route, Object state) {
+        ConnectionRequest request = pool.requestConnection(route, state);
+        return new ConnectionRequest() {
+            private volatile boolean cancelled;
+
+            @Override
+            public HttpClientConnection get(long timeout, TimeUnit unit)
+                    throws InterruptedException, ExecutionException, ConnectionPoolTimeoutException {
+                acquire(timeout, unit);
+                try {
+                    return request.get(timeout, unit);
+                } catch (InterruptedException | ExecutionException | ConnectionPoolTimeoutException
+                         | RuntimeException e) {
+                    permits.release();
+                    throw e;
+                }
+            }
+
+            @Override
+            public boolean cancel() {
+                cancelled = true;
+                return request.cancel();
+            }
+
+            private void acquire(long timeout, TimeUnit unit)
+                    throws InterruptedException, ExecutionException, ConnectionPoolTimeoutException {
+                long deadline = timeout > 0 ? System.nanoTime() + unit.toNanos(timeout) : Long.MAX_VALUE;
+                while (true) {
+                    if (cancelled) {
+                        throw new ExecutionException(new InterruptedException("Connection request cancelled"));
+                    }
+                    long wait = TimeUnit.MILLISECONDS.toNanos(ABORT_CHECK_MILLIS);
+                    if (deadline != Long.MAX_VALUE) {
+                        wait = Math.min(wait, deadline - System.nanoTime());
+                        if (wait <= 0) {
+                            throw new ConnectionPoolTimeoutException("Timeout waiting for connection from pool");
+                        }
+                    }
+                    if (permits.tryAcquire(wait, TimeUnit.NANOSECONDS)) {
+                        return;
+                    }
+                }
+            }
+        };
+    }
+
+    @Override
+    public void releaseConnection(HttpClientConnection connection, Object newState, long validDuration,
+                                  TimeUnit timeUnit) {
+        try {
+            pool.releaseConnection(connection, newState, validDuration, timeUnit);
+        } finally {
+            permits.release();
+        }
+    }
+
+    @Override
+    public void connect(HttpClientConnection connection, HttpRoute route, int connectTimeout,
+                        HttpContext context) throws IOException {
+        pool.connect(connection, route, connectTimeout, context);
+    }
+
+    @Override
+    public void upgrade(HttpClientConnection connection, HttpRoute route, HttpContext context) throws IOException {
+        pool.upgrade(connection, route, context);
+    }
+
+    @Override
+    public void routeComplete(HttpClientConnection connection, HttpRoute route, HttpContext context)
+            throws IOException {
+        pool.routeComplete(connection, route, context);
+    }
+
+    @Override
+    public void closeIdleConnections(long idleTime, TimeUnit timeUnit) {
+        pool.closeIdleConnections(idleTime, timeUnit);
+    }
+
+    @Override
+    public void closeExpiredConnections() {
+        pool.closeExpiredConnections();
+    }
+
+    @Override
+    public void shutdown() {
+        pool.shutdown();
+    }
+}
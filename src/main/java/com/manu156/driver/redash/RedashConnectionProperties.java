@@ -0,0 +1,537 @@
+package com.manu156.driver.redash;
+
+import java.sql.DriverPropertyInfo;
+import java.sql.SQLException;
+import java.util.Locale;
+import java.util.Properties;
+
+/**
+ * Typed view over the driver options of a Redash JDBC connection.
+ * Options can be supplied either as URL parameters or through the
+ * {@link Properties} passed to {@link java.sql.DriverManager}; URL parameters win.
+ */
+public class RedashConnectionProperties {
+
+    public static final String API_KEY = "apiKey";
+    public static final String MAX_TOTAL_CONNECTIONS = "maxTotalConnections";
+    public static final String MAX_CONNECTIONS_PER_ROUTE = "maxConnectionsPerRoute";
+    public static final String IDLE_CONNECTION_TIMEOUT = "idleConnectionTimeout";
+    public static final String VALIDATE_AFTER_INACTIVITY = "validateAfterInactivity";
+    public static final String CASE_INSENSITIVE_COLUMN_NAMES = "caseInsensitiveColumnNames";
+    public static final String POLL_INITIAL_DELAY = "pollInitialDelay";
+    public static final String POLL_MULTIPLIER = "pollMultiplier";
+    public static final String POLL_MAX_DELAY = "pollMaxDelay";
+    public static final String EXECUTION_MODE = "executionMode";
+    public static final String MAX_AGE = "maxAge";
+    public static final String RESULT_CACHE_TTL = "resultCacheTtl";
+    public static final String RESULT_CACHE_MAX_BYTES = "resultCacheMaxBytes";
+    public static final String RESULT_CACHE_DIRECTORY = "resultCacheDirectory";
+    public static final String METADATA_CACHE_TTL = "metadataCacheTtl";
+    public static final String STREAM_RESULTS = "streamResults";
+    public static final String REWRITE_MAX_ROWS = "rewriteMaxRows";
+    public static final String VIRTUAL_THREADS = "virtualThreads";
+    public static final String COMPRESSION = "compression";
+    public static final String SSL = "ssl";
+    public static final String BASE_PATH = "basePath";
+    public static final String RETRY_ATTEMPTS = "retryAttempts";
+    public static final String RETRY_INITIAL_BACKOFF = "retryInitialBackoff";
+    public static final String RETRY_MAX_BACKOFF = "retryMaxBackoff";
+    public static final String RETRY_JITTER = "retryJitter";
+    public static final String CIRCUIT_BREAKER_THRESHOLD = "circuitBreakerThreshold";
+    public static final String CIRCUIT_BREAKER_OPEN_TIME = "circuitBreakerOpenTime";
+    public static final String LOCAL_EVALUATION = "localEvaluation";
+    public static final String JOIN_MEMORY_BUDGET_BYTES = "joinMemoryBudgetBytes";
+    public static final String MAX_CONCURRENT_QUERIES = "maxConcurrentQueries";
+    public static final String OFF_HEAP_RESULTS = "offHeapResults";
+    public static final String OFF_HEAP_MAX_BYTES = "offHeapMaxBytes";
+
+    /**
+     * How SQL that does not reference a saved {@code query_N} is executed.
+     */
+    public enum ExecutionMode {
+        /** Save the SQL as a new Redash query, then run that query (one saved query per statement). */
+        SAVED,
+        /** Post the SQL directly to {@code /query_results} without saving a query. */
+        DIRECT
+    }
+
+    // name, default value, description
+    private static final String[][] OPTIONS = {
+            {API_KEY, null, "Redash API Key"},
+            {MAX_TOTAL_CONNECTIONS, "50",
+                    "Maximum pooled HTTP connections shared by all connections to the same host"},
+            {MAX_CONNECTIONS_PER_ROUTE, "20", "Maximum pooled HTTP connections per route"},
+            {IDLE_CONNECTION_TIMEOUT, "60",
+                    "Seconds after which idle pooled HTTP connections are evicted (0 disables)"},
+            {VALIDATE_AFTER_INACTIVITY, "2000",
+                    "Milliseconds of inactivity before a pooled HTTP connection is re-validated (-1 disables)"},
+            {CASE_INSENSITIVE_COLUMN_NAMES, "false",
+                    "Whether ResultSet lookups by column label ignore case"},
+            {POLL_INITIAL_DELAY, "100", "Milliseconds before the first poll of a queued Redash job"},
+            {POLL_MULTIPLIER, "1.5", "Factor by which the job poll interval grows after each poll"},
+            {POLL_MAX_DELAY, "5000", "Maximum milliseconds between two polls of a Redash job"},
+            {EXECUTION_MODE, "saved",
+                    "How ad hoc SQL is run: 'saved' creates a Redash query per statement, "
+                            + "'direct' posts the SQL straight to /query_results"},
+            {MAX_AGE, null, "Maximum age in seconds of a cached Redash result to accept "
+                    + "(0 always re-runs, -1 accepts any; unset lets the server decide)"},
+            {RESULT_CACHE_TTL, "0", "Seconds a decoded result stays in the process-wide result cache (0 disables)"},
+            {RESULT_CACHE_MAX_BYTES, null,
+                    "Byte budget of the process-wide result cache (default 268435456, shared by all connections)"},
+            {RESULT_CACHE_DIRECTORY, null, "Directory where cached results are also kept as memory-mapped files, "
+                    + "so they survive restarts (used with resultCacheTtl)"},
+            {METADATA_CACHE_TTL, "0", "Seconds data sources and saved query definitions are cached, "
+                    + "shared by all connections to the same host and API key (0 disables)"},
+            {STREAM_RESULTS, "false", "Whether ResultSet rows are decoded lazily from the HTTP response "
+                    + "in chunks of the fetch size instead of being read completely before executeQuery returns"},
+            {REWRITE_MAX_ROWS, "false", "Whether Statement.setMaxRows also adds a LIMIT (or TOP/FETCH FIRST, "
+                    + "depending on the data source type) to ad hoc SELECTs"},
+            {VIRTUAL_THREADS, "false", "Whether the driver's job polling runs on virtual threads "
+                    + "(Java 21 or later, ignored on older runtimes)"},
+            {COMPRESSION, "true", "Whether responses are requested gzip/deflate compressed and inflated while "
+                    + "they are decoded"},
+            {SSL, "false", "Whether Redash is reached over HTTPS (the default port becomes 443)"},
+            {BASE_PATH, null, "Path under which Redash is served, e.g. /redash; the API is expected at "
+                    + "<basePath>/api"},
+            {RETRY_ATTEMPTS, "3", "Maximum attempts of an idempotent GET that fails with an I/O error or "
+                    + "HTTP 429, 502, 503 or 504 (1 disables retries)"},
+            {RETRY_INITIAL_BACKOFF, "200", "Milliseconds before the first retry of a failed GET"},
+            {RETRY_MAX_BACKOFF, "3000", "Maximum milliseconds between two attempts of a GET; "
+                    + "the backoff doubles after each attempt"},
+            {RETRY_JITTER, "0.5", "Fraction by which each retry backoff is randomly shortened or lengthened (0 to 1)"},
+            {CIRCUIT_BREAKER_THRESHOLD, "5", "Consecutive failed requests to a host after which requests fail "
+                    + "fast instead of being sent (0 disables)"},
+            {CIRCUIT_BREAKER_OPEN_TIME, "10000", "Milliseconds requests fail fast before a single trial request "
+                    + "is let through to check whether the host has recovered"},
+            {LOCAL_EVALUATION, "true", "Whether the WHERE, GROUP BY, ORDER BY, LIMIT and select list of a "
+                    + "statement over query_N are evaluated by the driver on the saved query's result"},
+            {JOIN_MEMORY_BUDGET_BYTES, "67108864", "Bytes the hash table of a join of query_N results may take "
+                    + "before the join is partitioned through temporary files"},
+            {MAX_CONCURRENT_QUERIES, "8", "Queries of statement batches that run at the same time on one "
+                    + "Redash host; further queries wait for a running one to complete"},
+            {OFF_HEAP_RESULTS, "false", "Whether decoded results are kept in memory outside the Java heap, "
+                    + "released when their ResultSet is closed"},
+            {OFF_HEAP_MAX_BYTES, null, "Byte budget of off-heap results (default 1073741824, shared by all "
+                    + "connections); a result that would exceed it fails"},
+    };
+
+    private final Properties properties;
+    private final int maxTotalConnections;
+    private final int maxConnectionsPerRoute;
+    private final int idleConnectionTimeoutSeconds;
+    private final int validateAfterInactivityMillis;
+    private final boolean caseInsensitiveColumnNames;
+    private final int pollInitialDelayMillis;
+    private final double pollMultiplier;
+    private final int pollMaxDelayMillis;
+    private final ExecutionMode executionMode;
+    private final Integer maxAgeSeconds;
+    private final int resultCacheTtlSeconds;
+    private final Long resultCacheMaxBytes;
+    private final String resultCacheDirectory;
+    private final int metadataCacheTtlSeconds;
+    private final boolean streamResults;
+    private final boolean rewriteMaxRows;
+    private final boolean virtualThreads;
+    private final boolean compression;
+    private final boolean ssl;
+    private final String basePath;
+    private final int retryAttempts;
+    private final int retryInitialBackoffMillis;
+    private final int retryMaxBackoffMillis;
+    private final double retryJitter;
+    private final int circuitBreakerThreshold;
+    private final int circuitBreakerOpenTimeMillis;
+    private final boolean localEvaluation;
+    private final long joinMemoryBudgetBytes;
+    private final int maxConcurrentQueries;
+    private final boolean offHeapResults;
+    private final Long offHeapMaxBytes;
+
+    public RedashConnectionProperties(Properties properties) throws SQLException {
+        this.properties = properties;
+        this.maxTotalConnections = getInt(MAX_TOTAL_CONNECTIONS, 1);
+        this.maxConnectionsPerRoute = getInt(MAX_CONNECTIONS_PER_ROUTE, 1);
+        this.idleConnectionTimeoutSeconds = getInt(IDLE_CONNECTION_TIMEOUT, 0);
+        this.validateAfterInactivityMillis = getInt(VALIDATE_AFTER_INACTIVITY, -1);
+        this.caseInsensitiveColumnNames = getBoolean(CASE_INSENSITIVE_COLUMN_NAMES);
+        this.pollInitialDelayMillis = getInt(POLL_INITIAL_DELAY, 1);
+        this.pollMultiplier = getDouble(POLL_MULTIPLIER, 1.0);
+        this.pollMaxDelayMillis = getInt(POLL_MAX_DELAY, 1);
+        this.executionMode = getEnum(EXECUTION_MODE, ExecutionMode.class);
+        this.maxAgeSeconds = getString(MAX_AGE) != null ? getInt(MAX_AGE, -1) : null;
+        this.resultCacheTtlSeconds = getInt(RESULT_CACHE_TTL, 0);
+        this.resultCacheMaxBytes = getString(RESULT_CACHE_MAX_BYTES) != null ? getLong(RESULT_CACHE_MAX_BYTES, 0) : null;
+        this.resultCacheDirectory = getString(RESULT_CACHE_DIRECTORY);
+        this.metadataCacheTtlSeconds = getInt(METADATA_CACHE_TTL, 0);
+        this.streamResults = getBoolean(STREAM_RESULTS);
+        this.rewriteMaxRows = getBoolean(REWRITE_MAX_ROWS);
+        this.virtualThreads = getBoolean(VIRTUAL_THREADS);
+        this.compression = getBoolean(COMPRESSION);
+        this.ssl = getBoolean(SSL);
+        this.basePath = normalizePath(getString(BASE_PATH));
+        this.retryAttempts = getInt(RETRY_ATTEMPTS, 1);
+        this.retryInitialBackoffMillis = getInt(RETRY_INITIAL_BACKOFF, 1);
+        this.retryMaxBackoffMillis = getInt(RETRY_MAX_BACKOFF, 1);
+        this.retryJitter = getDouble(RETRY_JITTER, 0.0);
+        if (retryJitter > 1.0) {
+            throw new SQLException("Invalid value for property " + RETRY_JITTER + ": " + retryJitter);
+        }
+        this.circuitBreakerThreshold = getInt(CIRCUIT_BREAKER_THRESHOLD, 0);
+        this.circuitBreakerOpenTimeMillis = getInt(CIRCUIT_BREAKER_OPEN_TIME, 1);
+        this.localEvaluation = getBoolean(LOCAL_EVALUATION);
+        this.joinMemoryBudgetBytes = getLong(JOIN_MEMORY_BUDGET_BYTES, 0);
+        this.maxConcurrentQueries = getInt(MAX_CONCURRENT_QUERIES, 1);
+        this.offHeapResults = getBoolean(OFF_HEAP_RESULTS);
+        this.offHeapMaxBytes = getString(OFF_HEAP_MAX_BYTES) != null ? getLong(OFF_HEAP_MAX_BYTES, 0) : null;
+    }
+
+    /**
+     * Describe the supported driver options for {@link java.sql.Driver#getPropertyInfo}.
+     *
+     * @param properties The properties supplied so far
+     * @return One entry per supported option
+     */
+    public static DriverPropertyInfo[] getPropertyInfo(Properties properties) {
+        DriverPropertyInfo[] infos = new DriverPropertyInfo[OPTIONS.length];
+        for (int i = 0; i < OPTIONS.length; i++) {
+            String[] option = OPTIONS[i];
+            DriverPropertyInfo info = new DriverPropertyInfo(option[0], properties.getProperty(option[0], option[1]));
+            info.description = option[2];
+            info.required = API_KEY.equals(option[0]);
+            infos[i] = info;
+        }
+        return infos;
+    }
+
+    /**
+     * Merge URL parameters (e.g. {@code apiKey=abc&maxTotalConnections=40}) over the given properties.
+     *
+     * @param urlParams The raw query string of the JDBC URL, may be null
+     * @param info The properties passed to the driver, may be null
+     * @return The merged properties
+     */
+    public static Properties merge(String urlParams, Properties info) {
+        Properties merged = new Properties();
+        if (info != null) {
+            merged.putAll(info);
+        }
+        if (urlParams != null) {
+            String[] params = urlParams.split("&");
+            for (String param : params) {
+                String[] keyValue = param.split("=", 2);
+                if (keyValue.length == 2 && !keyValue[0].isEmpty()) {
+                    merged.setProperty(keyValue[0], keyValue[1]);
+                }
+            }
+        }
+        return merged;
+    }
+
+    public String getApiKey() {
+        return properties.getProperty(API_KEY);
+    }
+
+    /**
+     * Maximum number of pooled HTTP connections shared by all JDBC connections to the same host.
+     */
+    public int getMaxTotalConnections() {
+        return maxTotalConnections;
+    }
+
+    /**
+     * Maximum number of pooled HTTP connections per route.
+     */
+    public int getMaxConnectionsPerRoute() {
+        return maxConnectionsPerRoute;
+    }
+
+    /**
+     * Seconds after which idle pooled connections are evicted, 0 disables eviction.
+     */
+    public int getIdleConnectionTimeoutSeconds() {
+        return idleConnectionTimeoutSeconds;
+    }
+
+    /**
+     * Milliseconds of inactivity after which a pooled connection is re-validated before reuse,
+     * a negative value disables validation.
+     */
+    public int getValidateAfterInactivityMillis() {
+        return validateAfterInactivityMillis;
+    }
+
+    /**
+     * Whether column labels passed to ResultSet getters are matched ignoring case.
+     */
+    public boolean isCaseInsensitiveColumnNames() {
+        return caseInsensitiveColumnNames;
+    }
+
+    /**
+     * Milliseconds before the first poll of a queued Redash job.
+     */
+    public int getPollInitialDelayMillis() {
+        return pollInitialDelayMillis;
+    }
+
+    /**
+     * Factor by which the job poll interval grows after each poll.
+     */
+    public double getPollMultiplier() {
+        return pollMultiplier;
+    }
+
+    /**
+     * Upper bound for the job poll interval in milliseconds.
+     */
+    public int getPollMaxDelayMillis() {
+        return pollMaxDelayMillis;
+    }
+
+    /**
+     * How SQL that does not reference a saved query is executed.
+     */
+    public ExecutionMode getExecutionMode() {
+        return executionMode;
+    }
+
+    /**
+     * Default maximum age in seconds of a cached Redash result, or null to omit {@code max_age}.
+     */
+    public Integer getMaxAgeSeconds() {
+        return maxAgeSeconds;
+    }
+
+    /**
+     * Seconds a decoded result stays in the result cache, 0 disables caching.
+     */
+    public int getResultCacheTtlSeconds() {
+        return resultCacheTtlSeconds;
+    }
+
+    /**
+     * Byte budget for the process-wide result cache, or null to keep the current budget.
+     */
+    public Long getResultCacheMaxBytes() {
+        return resultCacheMaxBytes;
+    }
+
+    /**
+     * Directory of the result cache's disk tier, or null to keep cached results in memory only.
+     */
+    public String getResultCacheDirectory() {
+        return resultCacheDirectory;
+    }
+
+    /**
+     * Seconds data sources and saved query definitions are cached, 0 disables the metadata cache.
+     */
+    public int getMetadataCacheTtlSeconds() {
+        return metadataCacheTtlSeconds;
+    }
+
+    /**
+     * Whether result rows are decoded lazily from the HTTP response as the ResultSet advances.
+     */
+    public boolean isStreamResults() {
+        return streamResults;
+    }
+
+    /**
+     * Whether the statement's row limit is added to ad hoc SQL in the data source's dialect.
+     */
+    public boolean isRewriteMaxRows() {
+        return rewriteMaxRows;
+    }
+
+    /**
+     * Whether blocking background work runs on virtual threads when the runtime supports them.
+     */
+    public boolean isVirtualThreads() {
+        return virtualThreads;
+    }
+
+    /**
+     * Whether responses are requested compressed with {@code Accept-Encoding: gzip, deflate}.
+     */
+    public boolean isCompression() {
+        return compression;
+    }
+
+    /**
+     * Whether Redash is reached over HTTPS.
+     */
+    public boolean isSsl() {
+        return ssl;
+    }
+
+    /**
+     * The path under which Redash is served, with a leading and without a trailing slash,
+     * or an empty string when it is served from the root.
+     */
+    public String getBasePath() {
+        return basePath;
+    }
+
+    /**
+     * Maximum number of attempts of an idempotent GET, including the first one.
+     */
+    public int getRetryAttempts() {
+        return retryAttempts;
+    }
+
+    /**
+     * Milliseconds before the first retry of a failed GET.
+     */
+    public int getRetryInitialBackoffMillis() {
+        return retryInitialBackoffMillis;
+    }
+
+    /**
+     * Maximum milliseconds between two attempts of a GET.
+     */
+    public int getRetryMaxBackoffMillis() {
+        return retryMaxBackoffMillis;
+    }
+
+    /**
+     * Fraction by which each retry backoff is randomly varied.
+     */
+    public double getRetryJitter() {
+        return retryJitter;
+    }
+
+    /**
+     * Consecutive failed requests to a host that open its circuit breaker, 0 if disabled.
+     */
+    public int getCircuitBreakerThreshold() {
+        return circuitBreakerThreshold;
+    }
+
+    /**
+     * Milliseconds an open circuit breaker fails requests before letting a trial request through.
+     */
+    public int getCircuitBreakerOpenTimeMillis() {
+        return circuitBreakerOpenTimeMillis;
+    }
+
+    /**
+     * Whether statements over a saved query are evaluated by the driver rather than returning the whole result.
+     */
+    public boolean isLocalEvaluation() {
+        return localEvaluation;
+    }
+
+    /**
+     * Bytes the hash table of a join evaluated by the driver may take before the join spills to disk.
+     */
+    public long getJoinMemoryBudgetBytes() {
+        return joinMemoryBudgetBytes;
+    }
+
+    /**
+     * Batched queries that may run at the same time on one Redash host.
+     */
+    public int getMaxConcurrentQueries() {
+        return maxConcurrentQueries;
+    }
+
+    /**
+     * Whether decoded results are kept in off-heap memory.
+     */
+    public boolean isOffHeapResults() {
+        return offHeapResults;
+    }
+
+    /**
+     * Byte budget for the off-heap memory of all results, or null to keep the current budget.
+     */
+    public Long getOffHeapMaxBytes() {
+        return offHeapMaxBytes;
+    }
+
+    private static String normalizePath(String path) {
+        if (path == null) {
+            return "";
+        }
+        String trimmed = path.replaceAll("^/+|/+$", "");
+        return trimmed.isEmpty() ? "" : "/" + trimmed;
+    }
+
+    private static String defaultValue(String name) {
+        for (String[] option : OPTIONS) {
+            if (option[0].equals(name)) {
+                return option[1];
+            }
+        }
+        return null;
+    }
+
+    private String getString(String name) {
+        String value = properties.getProperty(name);
+        if (value == null || value.trim().isEmpty()) {
+            return defaultValue(name);
+        }
+        return value.trim();
+    }
+
+    private int getInt(String name, int minValue) throws SQLException {
+        String value = getString(name);
+        try {
+            int parsed = Integer.parseInt(value);
+            if (parsed < minValue) {
+                throw new SQLException("Invalid value for property " + name + ": " + value);
+            }
+            return parsed;
+        } catch (NumberFormatException e) {
+            throw new SQLException("Invalid value for property " + name + ": " + value, e);
+        }
+    }
+
+    private long getLong(String name, long minValue) throws SQLException {
+        String value = getString(name);
+        try {
+            long parsed = Long.parseLong(value);
+            if (parsed < minValue) {
+                throw new SQLException("Invalid value for property " + name + ": " + value);
+            }
+            return parsed;
+        } catch (NumberFormatException e) {
+            throw new SQLException("Invalid value for property " + name + ": " + value, e);
+        }
+    }
+
+    private double getDouble(String name, double minValue) throws SQLException {
+        String value = getString(name);
+        try {
+            double parsed = Double.parseDouble(value);
+            if (Double.isNaN(parsed) || parsed < minValue) {
+                throw new SQLException("Invalid value for property " + name + ": " + value);
+            }
+            return parsed;
+        } catch (NumberFormatException e) {
+            throw new SQLException("Invalid value for property " + name + ": " + value, e);
+        }
+    }
+
+    private <E extends Enum<E>> E getEnum(String name, Class<E> type) throws SQLException {
+        String value = getString(name);
+        try {
+            return Enum.valueOf(type, value.toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            throw new SQLException("Invalid value for property " + name + ": " + value, e);
+        }
+    }
+
+    private boolean getBoolean(String name) throws SQLException {
+        String value = getString(name);
+        if ("true".equalsIgnoreCase(value)) {
+            return true;
+        }
+        if ("false".equalsIgnoreCase(value)) {
+            return false;
+        }
+        throw new SQLException("Invalid value for property " + name + ": " + value);
+    }
+}
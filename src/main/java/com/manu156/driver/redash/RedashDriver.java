@@ -38,13 +38,10 @@ public class RedashDriver implements Driver {
     
     @Override
     public DriverPropertyInfo[] getPropertyInfo(String url, Properties info) throws SQLException {
-        DriverPropertyInfo[] driverProps = new DriverPropertyInfo[1];
-        
-        DriverPropertyInfo apiKey = new DriverPropertyInfo("apiKey", info.getProperty("apiKey"));
-        apiKey.description = "Redash API Key";
-        apiKey.required = true;
-        
-        driverProps[0] = apiKey;
+        int queryStart = url != null ? url.indexOf('?') : -1;
+        String urlParams = queryStart >= 0 ? url.substring(queryStart + 1) : null;
+        DriverPropertyInfo[] driverProps = RedashConnectionProperties.getPropertyInfo(
+                RedashConnectionProperties.merge(urlParams, info));
         
         return driverProps;
     }
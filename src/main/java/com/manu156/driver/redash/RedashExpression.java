@@ -0,0 +1,1123 @@
+package com.manu156.driver.redash;
+
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.sql.SQLSyntaxErrorException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.regex.Pattern;
+
+import static com.manu156.driver.redash.RedashColumnVector.TYPE_BOOLEAN;
+import static com.manu156.driver.redash.RedashColumnVector.TYPE_FLOAT;
+import static com.manu156.driver.redash.RedashColumnVector.TYPE_INTEGER;
+import static com.manu156.driver.redash.RedashColumnVector.TYPE_STRING;
+
+/**
+ * Expression of a statement that the driver evaluates itself over a query result.
+ * Parsed expressions are unbound; {@link #bind} resolves their column references
+ * against a result's columns and fixes the type of every node. Bound expressions
+ * are evaluated a column at a time: {@link #evaluate} computes the values of a
+ * whole selection of rows into a new vector, and {@link #filter} narrows a
+ * selection to the rows a predicate holds for. Comparisons of a column with a
+ * constant filter directly on the column's primitive or dictionary storage.
+ *
+ * <p>A selection is an array of row indexes into the input; a null selection
+ * stands for all rows {@code 0..count-1}.</p>
+ */
+abstract class RedashExpression {
+
+    /**
+     * Resolves the names an expression refers to while it is bound.
+     */
+    interface Scope {
+        /**
+         * Bind a column reference.
+         *
+         * @throws SQLException if the column does not exist or cannot be used here
+         */
+        RedashExpression column(ColumnRef ref) throws SQLException;
+
+        /**
+         * Bind an aggregate call.
+         *
+         * @throws SQLException if aggregates cannot be used here
+         */
+        RedashExpression aggregate(Aggregate call) throws SQLException;
+
+        /**
+         * Get the value bound to a {@code ?} marker.
+         *
+         * @param index The 1-based index of the marker
+         * @throws SQLException if no value was bound
+         */
+        Object parameter(int index) throws SQLException;
+
+        /**
+         * Bind a whole expression as one, e.g. one equal to a GROUP BY key.
+         *
+         * @return The bound expression, or null to bind the expression node by node
+         * @throws SQLException if the expression cannot be used here
+         */
+        RedashExpression match(RedashExpression expression) throws SQLException;
+    }
+
+    private int type = TYPE_STRING;
+
+    /**
+     * Resolve this expression against a scope.
+     *
+     * @param scope The names visible to the expression
+     * @return The bound expression
+     * @throws SQLException if a name cannot be resolved or the operand types do not fit
+     */
+    final RedashExpression bind(Scope scope) throws SQLException {
+        RedashExpression matched = scope.match(this);
+        return matched != null ? matched : bindNode(scope);
+    }
+
+    abstract RedashExpression bindNode(Scope scope) throws SQLException;
+
+    /**
+     * The storage type of the values, one of the {@link RedashColumnVector} TYPE_ constants. Bound expressions only.
+     */
+    final int type() {
+        return type;
+    }
+
+    final RedashExpression withType(int type) {
+        this.type = type;
+        return this;
+    }
+
+    /**
+     * The Redash column type of the values, e.g. {@code integer}.
+     */
+    String columnType() {
+        switch (type) {
+            case TYPE_INTEGER:
+                return "integer";
+            case TYPE_FLOAT:
+                return "float";
+            case TYPE_BOOLEAN:
+                return "boolean";
+            default:
+                return "string";
+        }
+    }
+
+    /**
+     * Evaluate the expression for a selection of rows.
+     *
+     * @param input The rows to evaluate over
+     * @param rows The selected row indexes, or null for the first {@code count} rows
+     * @param count The number of selected rows
+     * @return A vector of {@code count} values, in selection order
+     * @throws SQLException if evaluation fails, e.g. on a division by zero
+     */
+    abstract RedashColumnVector evaluate(RedashQueryResult input, int[] rows, int count) throws SQLException;
+
+    /**
+     * Narrow a selection to the rows for which this boolean expression is true.
+     *
+     * @param input The rows to evaluate over
+     * @param rows The selected row indexes, or null for the first {@code count} rows
+     * @param count The number of selected rows
+     * @param out Receives the indexes of the rows kept, in order; may be the same array as {@code rows}
+     * @return The number of rows kept
+     * @throws SQLException if evaluation fails
+     */
+    int filter(RedashQueryResult input, int[] rows, int count, int[] out) throws SQLException {
+        RedashColumnVector result = evaluate(input, rows, count);
+        int kept = 0;
+        for (int i = 0; i < count; i++) {
+            if (!result.isNull(i) && result.getBoolean(i)) {
+                out[kept++] = rows == null ? i : rows[i];
+            }
+        }
+        return kept;
+    }
+
+    /**
+     * Add the aggregate calls in this expression to the list, outermost first.
+     */
+    void collectAggregates(List<Aggregate> aggregates) {
+    }
+
+    final boolean containsAggregate() {
+        List<Aggregate> aggregates = new ArrayList<>();
+        collectAggregates(aggregates);
+        return !aggregates.isEmpty();
+    }
+
+    /**
+     * Canonical text of the expression; equal for expressions that compute the same values.
+     */
+    @Override
+    public abstract String toString();
+
+    static int row(int[] rows, int i) {
+        return rows == null ? i : rows[i];
+    }
+
+    static boolean isNumeric(int type) {
+        return type == TYPE_INTEGER || type == TYPE_FLOAT;
+    }
+
+    private static RedashColumnVector booleans(BitSet values, BitSet nulls, int count) {
+        return new RedashColumnVector.BooleanVector(values, nulls, count);
+    }
+
+    /**
+     * Column reference as written, e.g. {@code q.amount} or {@code "Amount"}.
+     */
+    static final class ColumnRef extends RedashExpression {
+        private final String qualifier;
+        private final String name;
+        private final boolean quoted;
+
+        ColumnRef(String qualifier, String name, boolean quoted) {
+            this.qualifier = qualifier;
+            this.name = name;
+            this.quoted = quoted;
+        }
+
+        String getQualifier() {
+            return qualifier;
+        }
+
+        String getName() {
+            return name;
+        }
+
+        boolean isQuoted() {
+            return quoted;
+        }
+
+        @Override
+        RedashExpression bindNode(Scope scope) throws SQLException {
+            return scope.column(this);
+        }
+
+        @Override
+        RedashColumnVector evaluate(RedashQueryResult input, int[] rows, int count) throws SQLException {
+            throw new IllegalStateException("Unbound column " + this);
+        }
+
+        @Override
+        public String toString() {
+            // Unquoted identifiers are case-insensitive
+            String key = quoted ? name : name.toLowerCase(Locale.ROOT);
+            return qualifier == null ? key : qualifier.toLowerCase(Locale.ROOT) + "." + key;
+        }
+    }
+
+    /**
+     * Column of the input, by position.
+     */
+    static final class BoundColumn extends RedashExpression {
+        private final int index;
+        private final RedashColumn column;
+
+        BoundColumn(int index, RedashColumn column) {
+            this.index = index;
+            this.column = column;
+            withType(RedashColumnVector.typeOf(column.getType()));
+        }
+
+        int getIndex() {
+            return index;
+        }
+
+        @Override
+        String columnType() {
+            return column.getType();
+        }
+
+        @Override
+        RedashExpression bindNode(Scope scope) {
+            return this;
+        }
+
+        @Override
+        RedashColumnVector evaluate(RedashQueryResult input, int[] rows, int count) {
+            RedashColumnVector vector = input.getVector(index);
+            if (rows == null && count == vector.size()) {
+                return vector;
+            }
+            return vector.gather(rows != null ? rows : identity(count), count);
+        }
+
+        @Override
+        public String toString() {
+            return "$" + index;
+        }
+    }
+
+    /**
+     * Constant: a number, string, boolean or NULL.
+     */
+    static final class Literal extends RedashExpression {
+        private final Object value;
+
+        Literal(Object value) {
+            this.value = value;
+            if (value instanceof Long) {
+                withType(TYPE_INTEGER);
+            } else if (value instanceof Double) {
+                withType(TYPE_FLOAT);
+            } else if (value instanceof Boolean) {
+                withType(TYPE_BOOLEAN);
+            } else {
+                withType(TYPE_STRING);
+            }
+        }
+
+        Object getValue() {
+            return value;
+        }
+
+        @Override
+        RedashExpression bindNode(Scope scope) {
+            return this;
+        }
+
+        @Override
+        RedashColumnVector evaluate(RedashQueryResult input, int[] rows, int count) {
+            RedashColumnVector.Builder builder = RedashColumnVector.builder(type());
+            for (int i = 0; i < count; i++) {
+                builder.appendObject(value);
+            }
+            return builder.build();
+        }
+
+        @Override
+        public String toString() {
+            if (value instanceof String) {
+                return "'" + ((String) value).replace("'", "''") + "'";
+            }
+            return String.valueOf(value).toUpperCase(Locale.ROOT);
+        }
+    }
+
+    /**
+     * {@code ?} marker of a prepared statement; binding replaces it with its value.
+     */
+    static final class Parameter extends RedashExpression {
+        private final int index;
+
+        Parameter(int index) {
+            this.index = index;
+        }
+
+        @Override
+        RedashExpression bindNode(Scope scope) throws SQLException {
+            return new Literal(scope.parameter(index));
+        }
+
+        @Override
+        RedashColumnVector evaluate(RedashQueryResult input, int[] rows, int count) {
+            throw new IllegalStateException("Unbound parameter " + this);
+        }
+
+        @Override
+        public String toString() {
+            return "?" + index;
+        }
+    }
+
+    /**
+     * Arithmetic negation or logical NOT.
+     */
+    static final class Unary extends RedashExpression {
+        private final String operator;
+        private final RedashExpression operand;
+
+        Unary(String operator, RedashExpression operand) {
+            this.operator = operator;
+            this.operand = operand;
+        }
+
+        @Override
+        RedashExpression bindNode(Scope scope) throws SQLException {
+            RedashExpression bound = operand.bind(scope);
+            if ("NOT".equals(operator)) {
+                requireBoolean(bound, "NOT");
+                return new Unary(operator, bound).withType(TYPE_BOOLEAN);
+            }
+            if (!isNumeric(bound.type())) {
+                throw new SQLSyntaxErrorException("Operator - needs a numeric operand: " + operand);
+            }
+            return new Unary(operator, bound).withType(bound.type());
+        }
+
+        @Override
+        RedashColumnVector evaluate(RedashQueryResult input, int[] rows, int count) throws SQLException {
+            RedashColumnVector value = operand.evaluate(input, rows, count);
+            if ("NOT".equals(operator)) {
+                BitSet values = new BitSet(count);
+                BitSet nulls = new BitSet(count);
+                for (int i = 0; i < count; i++) {
+                    if (value.isNull(i)) {
+                        nulls.set(i);
+                    } else if (!value.getBoolean(i)) {
+                        values.set(i);
+                    }
+                }
+                return booleans(values, nulls, count);
+            }
+            RedashColumnVector.Builder builder = RedashColumnVector.builder(type());
+            for (int i = 0; i < count; i++) {
+                if (value.isNull(i)) {
+                    builder.appendNull();
+                } else if (type() == TYPE_INTEGER) {
+                    builder.appendLong(-value.getLong(i));
+                } else {
+                    builder.appendDouble(-value.getDouble(i));
+                }
+            }
+            return builder.build();
+        }
+
+        @Override
+        void collectAggregates(List<Aggregate> aggregates) {
+            operand.collectAggregates(aggregates);
+        }
+
+        @Override
+        public String toString() {
+            return "(" + operator + " " + operand + ")";
+        }
+    }
+
+    /**
+     * Arithmetic ({@code + - * / %}) or string concatenation ({@code ||}).
+     * Division always yields a float.
+     */
+    static final class Arithmetic extends RedashExpression {
+        private final String operator;
+        private final RedashExpression left;
+        private final RedashExpression right;
+
+        Arithmetic(String operator, RedashExpression left, RedashExpression right) {
+            this.operator = operator;
+            this.left = left;
+            this.right = right;
+        }
+
+        @Override
+        RedashExpression bindNode(Scope scope) throws SQLException {
+            RedashExpression boundLeft = left.bind(scope);
+            RedashExpression boundRight = right.bind(scope);
+            Arithmetic bound = new Arithmetic(operator, boundLeft, boundRight);
+            if ("||".equals(operator)) {
+                return bound.withType(TYPE_STRING);
+            }
+            int leftType = isNullLiteral(boundLeft) ? boundRight.type() : boundLeft.type();
+            int rightType = isNullLiteral(boundRight) ? leftType : boundRight.type();
+            if (!isNumeric(leftType) || !isNumeric(rightType)) {
+                throw new SQLSyntaxErrorException("Operator " + operator + " needs numeric operands: " + this);
+            }
+            boolean integer = leftType == TYPE_INTEGER && rightType == TYPE_INTEGER && !"/".equals(operator);
+            return bound.withType(integer ? TYPE_INTEGER : TYPE_FLOAT);
+        }
+
+        @Override
+        RedashColumnVector evaluate(RedashQueryResult input, int[] rows, int count) throws SQLException {
+            RedashColumnVector a = left.evaluate(input, rows, count);
+            RedashColumnVector b = right.evaluate(input, rows, count);
+            RedashColumnVector.Builder builder = RedashColumnVector.builder(type());
+            if ("||".equals(operator)) {
+                for (int i = 0; i < count; i++) {
+                    builder.appendString(a.isNull(i) || b.isNull(i) ? null : a.getString(i) + b.getString(i));
+                }
+                return builder.build();
+            }
+            char op = operator.charAt(0);
+            for (int i = 0; i < count; i++) {
+                if (a.isNull(i) || b.isNull(i)) {
+                    builder.appendNull();
+                } else if (type() == TYPE_INTEGER) {
+                    builder.appendLong(apply(op, a.getLong(i), b.getLong(i)));
+                } else {
+                    builder.appendDouble(apply(op, a.getDouble(i), b.getDouble(i)));
+                }
+            }
+            return builder.build();
+        }
+
+        private static long apply(char op, long a, long b) throws SQLException {
+            switch (op) {
+                case '+':
+                    return a + b;
+                case '-':
+                    return a - b;
+                case '*':
+                    return a * b;
+                default:
+                    if (b == 0) {
+                        throw new SQLException("Division by zero", "22012");
+                    }
+                    return a % b;
+            }
+        }
+
+        private static double apply(char op, double a, double b) throws SQLException {
+            switch (op) {
+                case '+':
+                    return a + b;
+                case '-':
+                    return a - b;
+                case '*':
+                    return a * b;
+                case '/':
+                    if (b == 0) {
+                        throw new SQLException("Division by zero", "22012");
+                    }
+                    return a / b;
+                default:
+                    if (b == 0) {
+                        throw new SQLException("Division by zero", "22012");
+                    }
+                    return a % b;
+            }
+        }
+
+        @Override
+        void collectAggregates(List<Aggregate> aggregates) {
+            left.collectAggregates(aggregates);
+            right.collectAggregates(aggregates);
+        }
+
+        @Override
+        public String toString() {
+            return "(" + left + " " + operator + " " + right + ")";
+        }
+    }
+
+    /**
+     * Comparison ({@code = <> < <= > >=}). Numbers compare numerically, a string compared
+     * with a number is read as a number, anything else compares as text.
+     */
+    static final class Comparison extends RedashExpression {
+        private static final int MODE_LONG = 0;
+        private static final int MODE_DOUBLE = 1;
+        private static final int MODE_TEXT = 2;
+        private static final int MODE_PARSE_LEFT = 3;
+        private static final int MODE_PARSE_RIGHT = 4;
+        private static final int MODE_BOOLEAN = 5;
+
+        private final String operator;
+        private final RedashExpression left;
+        private final RedashExpression right;
+        private int mode;
+
+        Comparison(String operator, RedashExpression left, RedashExpression right) {
+            this.operator = operator;
+            this.left = left;
+            this.right = right;
+        }
+
+        String getOperator() {
+            return operator;
+        }
+
+        RedashExpression getLeft() {
+            return left;
+        }
+
+        RedashExpression getRight() {
+            return right;
+        }
+
+        @Override
+        RedashExpression bindNode(Scope scope) throws SQLException {
+            Comparison bound = new Comparison(operator, left.bind(scope), right.bind(scope));
+            bound.mode = mode(bound.left.type(), bound.right.type());
+            return bound.withType(TYPE_BOOLEAN);
+        }
+
+        private static int mode(int leftType, int rightType) {
+            if (leftType == TYPE_INTEGER && rightType == TYPE_INTEGER) {
+                return MODE_LONG;
+            }
+            if (isNumeric(leftType) && isNumeric(rightType)) {
+                return MODE_DOUBLE;
+            }
+            if (leftType == TYPE_STRING && isNumeric(rightType)) {
+                return MODE_PARSE_LEFT;
+            }
+            if (isNumeric(leftType) && rightType == TYPE_STRING) {
+                return MODE_PARSE_RIGHT;
+            }
+            if (leftType == TYPE_BOOLEAN && rightType == TYPE_BOOLEAN) {
+                return MODE_BOOLEAN;
+            }
+            return MODE_TEXT;
+        }
+
+        @Override
+        RedashColumnVector evaluate(RedashQueryResult input, int[] rows, int count) throws SQLException {
+            RedashColumnVector a = left.evaluate(input, rows, count);
+            RedashColumnVector b = right.evaluate(input, rows, count);
+            BitSet values = new BitSet(count);
+            BitSet nulls = new BitSet(count);
+            for (int i = 0; i < count; i++) {
+                int cmp = compare(a, i, b, i);
+                if (cmp == NULL_COMPARISON) {
+                    nulls.set(i);
+                } else if (holds(operator, cmp)) {
+                    values.set(i);
+                }
+            }
+            return booleans(values, nulls, count);
+        }
+
+        private static final int NULL_COMPARISON = Integer.MIN_VALUE;
+
+        private int compare(RedashColumnVector a, int i, RedashColumnVector b, int j) {
+            if (a.isNull(i) || b.isNull(j)) {
+                return NULL_COMPARISON;
+            }
+            switch (mode) {
+                case MODE_LONG:
+                    return Long.compare(a.getLong(i), b.getLong(j));
+                case MODE_DOUBLE:
+                    return Double.compare(a.getDouble(i), b.getDouble(j));
+                case MODE_PARSE_LEFT: {
+                    Double parsed = parseNumber(a.getString(i));
+                    return parsed == null ? NULL_COMPARISON : Double.compare(parsed, b.getDouble(j));
+                }
+                case MODE_PARSE_RIGHT: {
+                    Double parsed = parseNumber(b.getString(j));
+                    return parsed == null ? NULL_COMPARISON : Double.compare(a.getDouble(i), parsed);
+                }
+                case MODE_BOOLEAN:
+                    return Boolean.compare(a.getBoolean(i), b.getBoolean(j));
+                default:
+                    return a.getString(i).compareTo(b.getString(j));
+            }
+        }
+
+        @Override
+        int filter(RedashQueryResult input, int[] rows, int count, int[] out) throws SQLException {
+            if (left instanceof BoundColumn && right instanceof Literal) {
+                return filterColumn(input, (BoundColumn) left, operator, ((Literal) right).getValue(),
+                        rows, count, out);
+            }
+            if (left instanceof Literal && right instanceof BoundColumn) {
+                return filterColumn(input, (BoundColumn) right, flip(operator), ((Literal) left).getValue(),
+                        rows, count, out);
+            }
+            return super.filter(input, rows, count, out);
+        }
+
+        // Compare a column with a constant directly on its storage
+        private int filterColumn(RedashQueryResult input, BoundColumn column, String op, Object constant,
+                                 int[] rows, int count, int[] out) throws SQLException {
+            if (constant == null) {
+                return 0;
+            }
+            RedashColumnVector vector = input.getVector(column.getIndex());
+            int kept = 0;
+            if (vector.type() == RedashColumnVector.TYPE_INTEGER && constant instanceof Long) {
+                long value = (Long) constant;
+                for (int i = 0; i < count; i++) {
+                    int row = row(rows, i);
+                    if (!vector.isNull(row) && holds(op, Long.compare(vector.getLong(row), value))) {
+                        out[kept++] = row;
+                    }
+                }
+                return kept;
+            }
+            if (vector.isNumeric() && constant instanceof Number) {
+                double value = ((Number) constant).doubleValue();
+                for (int i = 0; i < count; i++) {
+                    int row = row(rows, i);
+                    if (!vector.isNull(row) && holds(op, Double.compare(vector.getDouble(row), value))) {
+                        out[kept++] = row;
+                    }
+                }
+                return kept;
+            }
+            if (vector instanceof RedashColumnVector.DictionaryVector && constant instanceof String) {
+                // Compare every distinct value once, then select rows by code
+                RedashColumnVector.DictionaryVector strings = (RedashColumnVector.DictionaryVector) vector;
+                String[] dictionary = strings.getDictionary();
+                boolean[] matches = new boolean[dictionary.length];
+                for (int code = 0; code < dictionary.length; code++) {
+                    matches[code] = holds(op, dictionary[code].compareTo((String) constant));
+                }
+                for (int i = 0; i < count; i++) {
+                    int row = row(rows, i);
+                    int code = strings.getCode(row);
+                    if (code >= 0 && matches[code]) {
+                        out[kept++] = row;
+                    }
+                }
+                return kept;
+            }
+            return super.filter(input, rows, count, out);
+        }
+
+        private static String flip(String op) {
+            switch (op) {
+                case "<":
+                    return ">";
+                case "<=":
+                    return ">=";
+                case ">":
+                    return "<";
+                case ">=":
+                    return "<=";
+                default:
+                    return op;
+            }
+        }
+
+        static boolean holds(String op, int cmp) {
+            switch (op) {
+                case "=":
+                    return cmp == 0;
+                case "<>":
+                    return cmp != 0;
+                case "<":
+                    return cmp < 0;
+                case "<=":
+                    return cmp <= 0;
+                case ">":
+                    return cmp > 0;
+                default:
+                    return cmp >= 0;
+            }
+        }
+
+        private static Double parseNumber(String value) {
+            try {
+                return Double.valueOf(value.trim());
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+
+        @Override
+        void collectAggregates(List<Aggregate> aggregates) {
+            left.collectAggregates(aggregates);
+            right.collectAggregates(aggregates);
+        }
+
+        @Override
+        public String toString() {
+            return "(" + left + " " + operator + " " + right + ")";
+        }
+    }
+
+    /**
+     * AND or OR with SQL's three-valued logic. AND filters with the left operand first
+     * and evaluates the right one only for the rows that are left.
+     */
+    static final class Logical extends RedashExpression {
+        private final boolean and;
+        private final RedashExpression left;
+        private final RedashExpression right;
+
+        Logical(boolean and, RedashExpression left, RedashExpression right) {
+            this.and = and;
+            this.left = left;
+            this.right = right;
+        }
+
+        @Override
+        RedashExpression bindNode(Scope scope) throws SQLException {
+            RedashExpression boundLeft = left.bind(scope);
+            RedashExpression boundRight = right.bind(scope);
+            requireBoolean(boundLeft, and ? "AND" : "OR");
+            requireBoolean(boundRight, and ? "AND" : "OR");
+            return new Logical(and, boundLeft, boundRight).withType(TYPE_BOOLEAN);
+        }
+
+        @Override
+        RedashColumnVector evaluate(RedashQueryResult input, int[] rows, int count) throws SQLException {
+            RedashColumnVector a = left.evaluate(input, rows, count);
+            RedashColumnVector b = right.evaluate(input, rows, count);
+            BitSet values = new BitSet(count);
+            BitSet nulls = new BitSet(count);
+            for (int i = 0; i < count; i++) {
+                boolean aNull = a.isNull(i);
+                boolean bNull = b.isNull(i);
+                boolean aValue = !aNull && a.getBoolean(i);
+                boolean bValue = !bNull && b.getBoolean(i);
+                if (and) {
+                    if ((!aNull && !aValue) || (!bNull && !bValue)) {
+                        continue;
+                    }
+                    if (aNull || bNull) {
+                        nulls.set(i);
+                    } else {
+                        values.set(i);
+                    }
+                } else {
+                    if (aValue || bValue) {
+                        values.set(i);
+                    } else if (aNull || bNull) {
+                        nulls.set(i);
+                    }
+                }
+            }
+            return booleans(values, nulls, count);
+        }
+
+        @Override
+        int filter(RedashQueryResult input, int[] rows, int count, int[] out) throws SQLException {
+            if (!and) {
+                return super.filter(input, rows, count, out);
+            }
+            int kept = left.filter(input, rows, count, out);
+            return right.filter(input, out, kept, out);
+        }
+
+        @Override
+        void collectAggregates(List<Aggregate> aggregates) {
+            left.collectAggregates(aggregates);
+            right.collectAggregates(aggregates);
+        }
+
+        @Override
+        public String toString() {
+            return "(" + left + (and ? " AND " : " OR ") + right + ")";
+        }
+    }
+
+    /**
+     * {@code IS [NOT] NULL}.
+     */
+    static final class IsNull extends RedashExpression {
+        private final RedashExpression operand;
+        private final boolean negated;
+
+        IsNull(RedashExpression operand, boolean negated) {
+            this.operand = operand;
+            this.negated = negated;
+        }
+
+        @Override
+        RedashExpression bindNode(Scope scope) throws SQLException {
+            return new IsNull(operand.bind(scope), negated).withType(TYPE_BOOLEAN);
+        }
+
+        @Override
+        RedashColumnVector evaluate(RedashQueryResult input, int[] rows, int count) throws SQLException {
+            RedashColumnVector value = operand.evaluate(input, rows, count);
+            BitSet values = new BitSet(count);
+            for (int i = 0; i < count; i++) {
+                if (value.isNull(i) != negated) {
+                    values.set(i);
+                }
+            }
+            return booleans(values, new BitSet(), count);
+        }
+
+        @Override
+        int filter(RedashQueryResult input, int[] rows, int count, int[] out) throws SQLException {
+            if (!(operand instanceof BoundColumn)) {
+                return super.filter(input, rows, count, out);
+            }
+            RedashColumnVector vector = input.getVector(((BoundColumn) operand).getIndex());
+            int kept = 0;
+            for (int i = 0; i < count; i++) {
+                int row = row(rows, i);
+                if (vector.isNull(row) != negated) {
+                    out[kept++] = row;
+                }
+            }
+            return kept;
+        }
+
+        @Override
+        void collectAggregates(List<Aggregate> aggregates) {
+            operand.collectAggregates(aggregates);
+        }
+
+        @Override
+        public String toString() {
+            return "(" + operand + (negated ? " IS NOT NULL)" : " IS NULL)");
+        }
+    }
+
+    /**
+     * {@code [NOT] IN (...)}, evaluated as a chain of equality comparisons.
+     */
+    static final class InList extends RedashExpression {
+        private final RedashExpression operand;
+        private final List<RedashExpression> values;
+        private final boolean negated;
+        private RedashExpression comparisons;
+
+        InList(RedashExpression operand, List<RedashExpression> values, boolean negated) {
+            this.operand = operand;
+            this.values = values;
+            this.negated = negated;
+        }
+
+        @Override
+        RedashExpression bindNode(Scope scope) throws SQLException {
+            RedashExpression boundOperand = operand.bind(scope);
+            RedashExpression any = null;
+            for (RedashExpression value : values) {
+                RedashExpression equals = new Comparison("=", boundOperand, value).bind(scope);
+                any = any == null ? equals : new Logical(false, any, equals).withType(TYPE_BOOLEAN);
+            }
+            InList bound = new InList(boundOperand, values, negated);
+            bound.comparisons = negated ? new Unary("NOT", any).withType(TYPE_BOOLEAN) : any;
+            return bound.withType(TYPE_BOOLEAN);
+        }
+
+        @Override
+        RedashColumnVector evaluate(RedashQueryResult input, int[] rows, int count) throws SQLException {
+            return comparisons.evaluate(input, rows, count);
+        }
+
+        @Override
+        int filter(RedashQueryResult input, int[] rows, int count, int[] out) throws SQLException {
+            if (negated || !(operand instanceof BoundColumn)
+                    || !(input.getVector(((BoundColumn) operand).getIndex())
+                    instanceof RedashColumnVector.DictionaryVector)) {
+                return super.filter(input, rows, count, out);
+            }
+            // Match every distinct value against the list once, then select rows by code
+            RedashColumnVector.DictionaryVector strings = (RedashColumnVector.DictionaryVector)
+                    input.getVector(((BoundColumn) operand).getIndex());
+            String[] dictionary = strings.getDictionary();
+            boolean[] matches = new boolean[dictionary.length];
+            for (RedashExpression value : values) {
+                if (!(value instanceof Literal)) {
+                    return super.filter(input, rows, count, out);
+                }
+                Object constant = ((Literal) value).getValue();
+                for (int code = 0; code < dictionary.length; code++) {
+                    matches[code] |= constant != null && dictionary[code].equals(constant.toString());
+                }
+            }
+            int kept = 0;
+            for (int i = 0; i < count; i++) {
+                int row = row(rows, i);
+                int code = strings.getCode(row);
+                if (code >= 0 && matches[code]) {
+                    out[kept++] = row;
+                }
+            }
+            return kept;
+        }
+
+        @Override
+        void collectAggregates(List<Aggregate> aggregates) {
+            operand.collectAggregates(aggregates);
+            for (RedashExpression value : values) {
+                value.collectAggregates(aggregates);
+            }
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder text = new StringBuilder("(").append(operand).append(negated ? " NOT IN (" : " IN (");
+            for (int i = 0; i < values.size(); i++) {
+                text.append(i > 0 ? ", " : "").append(values.get(i));
+            }
+            return text.append("))").toString();
+        }
+    }
+
+    /**
+     * {@code [NOT] LIKE} or {@code ILIKE} with a constant pattern; {@code %} and {@code _} are the wildcards.
+     */
+    static final class Like extends RedashExpression {
+        private final RedashExpression operand;
+        private final String pattern;
+        private final boolean caseInsensitive;
+        private final boolean negated;
+        private Pattern regex;
+
+        Like(RedashExpression operand, String pattern, boolean caseInsensitive, boolean negated) {
+            this.operand = operand;
+            this.pattern = pattern;
+            this.caseInsensitive = caseInsensitive;
+            this.negated = negated;
+        }
+
+        @Override
+        RedashExpression bindNode(Scope scope) throws SQLException {
+            Like bound = new Like(operand.bind(scope), pattern, caseInsensitive, negated);
+            StringBuilder regex = new StringBuilder();
+            StringBuilder literal = new StringBuilder();
+            for (char c : pattern.toCharArray()) {
+                if (c == '%' || c == '_') {
+                    regex.append(Pattern.quote(literal.toString())).append(c == '%' ? ".*" : ".");
+                    literal.setLength(0);
+                } else {
+                    literal.append(c);
+                }
+            }
+            regex.append(Pattern.quote(literal.toString()));
+            bound.regex = Pattern.compile(regex.toString(),
+                    Pattern.DOTALL | (caseInsensitive ? Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE : 0));
+            return bound.withType(TYPE_BOOLEAN);
+        }
+
+        private boolean matches(String value) {
+            return regex.matcher(value).matches() != negated;
+        }
+
+        @Override
+        RedashColumnVector evaluate(RedashQueryResult input, int[] rows, int count) throws SQLException {
+            RedashColumnVector value = operand.evaluate(input, rows, count);
+            BitSet values = new BitSet(count);
+            BitSet nulls = new BitSet(count);
+            for (int i = 0; i < count; i++) {
+                if (value.isNull(i)) {
+                    nulls.set(i);
+                } else if (matches(value.getString(i))) {
+                    values.set(i);
+                }
+            }
+            return booleans(values, nulls, count);
+        }
+
+        @Override
+        int filter(RedashQueryResult input, int[] rows, int count, int[] out) throws SQLException {
+            if (!(operand instanceof BoundColumn) || !(input.getVector(((BoundColumn) operand).getIndex())
+                    instanceof RedashColumnVector.DictionaryVector)) {
+                return super.filter(input, rows, count, out);
+            }
+            // Match every distinct value once, then select rows by code
+            RedashColumnVector.DictionaryVector strings = (RedashColumnVector.DictionaryVector)
+                    input.getVector(((BoundColumn) operand).getIndex());
+            String[] dictionary = strings.getDictionary();
+            boolean[] matches = new boolean[dictionary.length];
+            for (int code = 0; code < dictionary.length; code++) {
+                matches[code] = matches(dictionary[code]);
+            }
+            int kept = 0;
+            for (int i = 0; i < count; i++) {
+                int row = row(rows, i);
+                int code = strings.getCode(row);
+                if (code >= 0 && matches[code]) {
+                    out[kept++] = row;
+                }
+            }
+            return kept;
+        }
+
+        @Override
+        void collectAggregates(List<Aggregate> aggregates) {
+            operand.collectAggregates(aggregates);
+        }
+
+        @Override
+        public String toString() {
+            return "(" + operand + (negated ? " NOT" : "") + (caseInsensitive ? " ILIKE " : " LIKE ")
+                    + new Literal(pattern) + ")";
+        }
+    }
+
+    /**
+     * Call of COUNT, SUM, AVG, MIN or MAX; a null argument stands for {@code COUNT(*)}.
+     * Aggregates are computed by {@link RedashLocalQuery} and referenced as columns of the grouped rows.
+     */
+    static final class Aggregate extends RedashExpression {
+        private final String function;
+        private final RedashExpression argument;
+
+        Aggregate(String function, RedashExpression argument) {
+            this.function = function;
+            this.argument = argument;
+        }
+
+        String getFunction() {
+            return function;
+        }
+
+        RedashExpression getArgument() {
+            return argument;
+        }
+
+        /**
+         * Bind the argument against the input rows and fix the result type.
+         */
+        Aggregate bindArgument(Scope scope) throws SQLException {
+            if (argument == null) {
+                return (Aggregate) new Aggregate(function, null).withType(TYPE_INTEGER);
+            }
+            RedashExpression bound = argument.bind(scope);
+            Aggregate call = new Aggregate(function, bound);
+            switch (function) {
+                case "COUNT":
+                    return (Aggregate) call.withType(TYPE_INTEGER);
+                case "SUM":
+                case "AVG":
+                    if (!isNumeric(bound.type())) {
+                        throw new SQLSyntaxErrorException(function + " needs a numeric argument: " + this);
+                    }
+                    return (Aggregate) call.withType("AVG".equals(function) ? TYPE_FLOAT : bound.type());
+                default:
+                    return (Aggregate) call.withType(bound.type());
+            }
+        }
+
+        @Override
+        RedashExpression bindNode(Scope scope) throws SQLException {
+            return scope.aggregate(this);
+        }
+
+        @Override
+        RedashColumnVector evaluate(RedashQueryResult input, int[] rows, int count) {
+            throw new IllegalStateException("Unbound aggregate " + this);
+        }
+
+        @Override
+        void collectAggregates(List<Aggregate> aggregates) {
+            aggregates.add(this);
+        }
+
+        @Override
+        public String toString() {
+            return function + "(" + (argument == null ? "*" : argument.toString()) + ")";
+        }
+    }
+
+    /**
+     * Split an expression into the operands of its top-level ANDs.
+     */
+    static List<RedashExpression> conjuncts(RedashExpression expression) {
+        List<RedashExpression> conjuncts = new ArrayList<>();
+        if (expression instanceof Logical && ((Logical) expression).and) {
+            conjuncts.addAll(conjuncts(((Logical) expression).left));
+            conjuncts.addAll(conjuncts(((Logical) expression).right));
+        } else {
+            conjuncts.add(expression);
+        }
+        return conjuncts;
+    }
+
+    static void requireBoolean(RedashExpression expression, String context) throws SQLException {
+        if (expression.type() != TYPE_BOOLEAN && !isNullLiteral(expression)) {
+            throw new SQLSyntaxErrorException(context + " needs a boolean expression: " + expression);
+        }
+    }
+
+    private static boolean isNullLiteral(RedashExpression expression) {
+        return expression instanceof Literal && ((Literal) expression).getValue() == null;
+    }
+
+    static int[] identity(int count) {
+        int[] rows = new int[count];
+        for (int i = 0; i < count; i++) {
+            rows[i] = i;
+        }
+        return rows;
+    }
+
+    static SQLException unsupported(String what) {
+        return new SQLFeatureNotSupportedException(what + " is not supported in statements over saved queries");
+    }
+}
@@ -0,0 +1,419 @@
+package com.manu156.driver.redash;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.stream.Stream;
+
+import static com.manu156.driver.redash.RedashColumnVector.TYPE_BOOLEAN;
+import static com.manu156.driver.redash.RedashColumnVector.TYPE_INTEGER;
+
+/**
+ * Equi-join of two sets of rows given by their key columns. The build side is loaded into
+ * a hash table on a 64-bit key per row: the value itself for a single integer, float or
+ * boolean key, a hash checked against the key values otherwise. When the table would
+ * exceed the memory budget the 64-bit keys and row numbers of both sides are first
+ * partitioned to temporary files, and the partitions are joined one at a time (a Grace
+ * hash join), so only the table of one partition is held at once. The budget bounds the
+ * hash table only: the key columns stay where their results keep them, and the matching
+ * pairs of row numbers, the join's output, are held in memory. Either way, pairs come out
+ * in probe row order, the matches of a probe row in build row order. Rows with a null key
+ * never match.
+ */
+final class RedashHashJoin {
+    private static final Logger logger = LoggerFactory.getLogger(RedashHashJoin.class);
+
+    // Hash, row and chain link of every build row, plus key and head slots at a load factor of at most 1/2
+    static final long BYTES_PER_BUILD_ROW = 8 + 4 + 4 + 2 * (8 + 4);
+    // Hash and row of a spilled row
+    private static final int SPILLED_ROW_BYTES = 8 + 4;
+
+    private static final int MAX_PARTITIONS = 256;
+    private static final int SPILL_BUFFER_SIZE = 8 * 1024;
+
+    private static final int MODE_LONG = 0;
+    private static final int MODE_DOUBLE = 1;
+    private static final int MODE_BOOLEAN = 2;
+    private static final int MODE_TEXT = 3;
+
+    private final Keys probe;
+    private final Keys build;
+    private final boolean outer;
+    private final long memoryBudgetBytes;
+    private int[] probeRows = new int[16];
+    private int[] buildRows = new int[16];
+    private int count;
+    private int partitions = 1;
+
+    private RedashHashJoin(Keys probe, Keys build, boolean outer, long memoryBudgetBytes) {
+        this.probe = probe;
+        this.build = build;
+        this.outer = outer;
+        this.memoryBudgetBytes = memoryBudgetBytes;
+    }
+
+    /**
+     * Join two sets of rows.
+     *
+     * @param probeKeys The key columns of the probe side, one value per probe row
+     * @param buildKeys The key columns of the build side, in the same order
+     * @param outer Whether probe rows without a match are kept, paired with no build row
+     * @param memoryBudgetBytes Bytes the build side's hash table may take before partitions are spilled to disk
+     * @return The matching pairs of rows, in probe row order
+     * @throws SQLException if spilling to disk fails
+     */
+    static RedashHashJoin join(RedashColumnVector[] probeKeys, RedashColumnVector[] buildKeys, boolean outer,
+                               long memoryBudgetBytes) throws SQLException {
+        int[] modes = new int[probeKeys.length];
+        for (int k = 0; k < modes.length; k++) {
+            modes[k] = mode(probeKeys[k].type(), buildKeys[k].type());
+        }
+        RedashHashJoin join = new RedashHashJoin(new Keys(probeKeys, modes), new Keys(buildKeys, modes), outer,
+                memoryBudgetBytes);
+        long tableBytes = BYTES_PER_BUILD_ROW * join.build.size;
+        if (tableBytes <= memoryBudgetBytes) {
+            join.joinInMemory();
+        } else {
+            join.joinPartitioned(tableBytes);
+        }
+        return join;
+    }
+
+    private static int mode(int probeType, int buildType) {
+        if (probeType == TYPE_INTEGER && buildType == TYPE_INTEGER) {
+            return MODE_LONG;
+        }
+        if (RedashExpression.isNumeric(probeType) && RedashExpression.isNumeric(buildType)) {
+            return MODE_DOUBLE;
+        }
+        if (probeType == TYPE_BOOLEAN && buildType == TYPE_BOOLEAN) {
+            return MODE_BOOLEAN;
+        }
+        return MODE_TEXT;
+    }
+
+    /**
+     * Get the number of matching pairs.
+     */
+    int size() {
+        return count;
+    }
+
+    /**
+     * Get the probe row of each pair. Not copied; at least {@link #size()} long.
+     */
+    int[] getProbeRows() {
+        return probeRows;
+    }
+
+    /**
+     * Get the build row of each pair, -1 for a probe row without a match. Not copied; at least {@link #size()} long.
+     */
+    int[] getBuildRows() {
+        return buildRows;
+    }
+
+    /**
+     * Get the number of partitions the join was split into; 1 if it ran in memory.
+     */
+    int getPartitions() {
+        return partitions;
+    }
+
+    private void joinInMemory() {
+        long[] hashes = new long[build.size];
+        int[] rows = new int[build.size];
+        int entries = 0;
+        for (int row = 0; row < build.size; row++) {
+            if (!build.isNull(row)) {
+                hashes[entries] = build.hash(row);
+                rows[entries++] = row;
+            }
+        }
+        Table table = new Table(hashes, rows, entries);
+        for (int row = 0; row < probe.size; row++) {
+            probeRow(table, row, probe.isNull(row) ? 0 : probe.hash(row));
+        }
+    }
+
+    private void probeRow(Table table, int row, long hash) {
+        boolean matched = false;
+        if (!probe.isNull(row)) {
+            for (int entry = table.first(hash); entry >= 0; entry = table.next(entry)) {
+                int buildRow = table.row(entry);
+                if (build.exact || probe.matches(row, build, buildRow)) {
+                    emit(row, buildRow);
+                    matched = true;
+                }
+            }
+        }
+        if (!matched && outer) {
+            emit(row, -1);
+        }
+    }
+
+    private void emit(int probeRow, int buildRow) {
+        if (count == probeRows.length) {
+            int capacity = RedashColumnVector.Builder.grow(count);
+            probeRows = Arrays.copyOf(probeRows, capacity);
+            buildRows = Arrays.copyOf(buildRows, capacity);
+        }
+        probeRows[count] = probeRow;
+        buildRows[count++] = buildRow;
+    }
+
+    /**
+     * Write the hash and row of every non-null key of both sides to one file per partition,
+     * then join partition by partition and put the pairs back in probe row order.
+     */
+    private void joinPartitioned(long tableBytes) throws SQLException {
+        int bits = 1;
+        while ((1 << bits) < MAX_PARTITIONS && (tableBytes >> bits) > memoryBudgetBytes) {
+            bits++;
+        }
+        partitions = 1 << bits;
+        logger.debug("Hash table of {} build rows needs ~{} bytes, over the join budget of {}; "
+                + "spilling to {} partitions", build.size, tableBytes, memoryBudgetBytes, partitions);
+
+        Path directory = null;
+        try {
+            directory = Files.createTempDirectory("redash-join");
+            Path[] buildFiles = spill(directory, "build", build, bits, false);
+            Path[] probeFiles = spill(directory, "probe", probe, bits, true);
+            for (int p = 0; p < partitions; p++) {
+                joinPartition(buildFiles[p], probeFiles[p]);
+            }
+            sortByProbeRow();
+        } catch (IOException e) {
+            throw new SQLException("Error spilling join partitions to " + directory, e);
+        } finally {
+            deleteRecursively(directory);
+        }
+    }
+
+    private Path[] spill(Path directory, String side, Keys keys, int bits, boolean probeSide) throws IOException {
+        Path[] files = new Path[partitions];
+        DataOutputStream[] outputs = new DataOutputStream[partitions];
+        try {
+            for (int p = 0; p < partitions; p++) {
+                files[p] = directory.resolve(side + "-" + p);
+                OutputStream out = Files.newOutputStream(files[p]);
+                outputs[p] = new DataOutputStream(new BufferedOutputStream(out, SPILL_BUFFER_SIZE));
+            }
+            for (int row = 0; row < keys.size; row++) {
+                if (keys.isNull(row)) {
+                    if (probeSide && outer) {
+                        emit(row, -1);
+                    }
+                    continue;
+                }
+                long hash = keys.hash(row);
+                DataOutputStream out = outputs[(int) (mix(hash) >>> (64 - bits))];
+                out.writeLong(hash);
+                out.writeInt(row);
+            }
+        } finally {
+            for (DataOutputStream out : outputs) {
+                if (out != null) {
+                    out.close();
+                }
+            }
+        }
+        return files;
+    }
+
+    private void joinPartition(Path buildFile, Path probeFile) throws IOException {
+        int entries = (int) (Files.size(buildFile) / SPILLED_ROW_BYTES);
+        long[] hashes = new long[entries];
+        int[] rows = new int[entries];
+        try (DataInputStream in = open(buildFile)) {
+            for (int i = 0; i < entries; i++) {
+                hashes[i] = in.readLong();
+                rows[i] = in.readInt();
+            }
+        }
+        Table table = new Table(hashes, rows, entries);
+        int probes = (int) (Files.size(probeFile) / SPILLED_ROW_BYTES);
+        try (DataInputStream in = open(probeFile)) {
+            for (int i = 0; i < probes; i++) {
+                long hash = in.readLong();
+                probeRow(table, in.readInt(), hash);
+            }
+        }
+        Files.delete(buildFile);
+        Files.delete(probeFile);
+    }
+
+    // All pairs of a probe row come from one partition in build row order, so a stable sort by probe row suffices
+    private void sortByProbeRow() {
+        int[] starts = new int[probe.size + 1];
+        for (int i = 0; i < count; i++) {
+            starts[probeRows[i] + 1]++;
+        }
+        for (int row = 0; row < probe.size; row++) {
+            starts[row + 1] += starts[row];
+        }
+        int[] sortedProbeRows = new int[Math.max(16, count)];
+        int[] sortedBuildRows = new int[sortedProbeRows.length];
+        for (int i = 0; i < count; i++) {
+            int at = starts[probeRows[i]]++;
+            sortedProbeRows[at] = probeRows[i];
+            sortedBuildRows[at] = buildRows[i];
+        }
+        probeRows = sortedProbeRows;
+        buildRows = sortedBuildRows;
+    }
+
+    private static DataInputStream open(Path file) throws IOException {
+        InputStream in = Files.newInputStream(file);
+        return new DataInputStream(new BufferedInputStream(in, SPILL_BUFFER_SIZE));
+    }
+
+    private static void deleteRecursively(Path directory) {
+        if (directory == null) {
+            return;
+        }
+        try (Stream<Path> files = Files.list(directory)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                Files.deleteIfExists(file);
+            }
+            Files.deleteIfExists(directory);
+        } catch (IOException e) {
+            logger.warn("Could not delete join spill directory {}", directory, e);
+        }
+    }
+
+    // Spread key bits over the whole word; slots use the low bits, partitions the high ones
+    private static long mix(long hash) {
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        return hash ^ (hash >>> 33);
+    }
+
+    /**
+     * Key columns of one side of the join.
+     */
+    private static final class Keys {
+        private final RedashColumnVector[] values;
+        private final int[] modes;
+        private final int size;
+        // Whether equal 64-bit keys mean equal key values
+        private final boolean exact;
+
+        Keys(RedashColumnVector[] values, int[] modes) {
+            this.values = values;
+            this.modes = modes;
+            this.size = values[0].size();
+            this.exact = values.length == 1 && modes[0] != MODE_TEXT;
+        }
+
+        boolean isNull(int row) {
+            for (RedashColumnVector value : values) {
+                if (value.isNull(row)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        long hash(int row) {
+            long hash = 0;
+            for (int k = 0; k < values.length; k++) {
+                hash = hash * 0x9e3779b97f4a7c15L + key(k, row);
+            }
+            return hash;
+        }
+
+        private long key(int k, int row) {
+            RedashColumnVector value = values[k];
+            switch (modes[k]) {
+                case MODE_LONG:
+                    return value.getLong(row);
+                case MODE_DOUBLE:
+                    // -0.0 equals 0.0
+                    return Double.doubleToLongBits(value.getDouble(row) + 0.0d);
+                case MODE_BOOLEAN:
+                    return value.getBoolean(row) ? 1 : 0;
+                default:
+                    return value.getString(row).hashCode();
+            }
+        }
+
+        boolean matches(int row, Keys other, int otherRow) {
+            for (int k = 0; k < values.length; k++) {
+                if (modes[k] == MODE_TEXT) {
+                    if (!values[k].getString(row).equals(other.values[k].getString(otherRow))) {
+                        return false;
+                    }
+                } else if (key(k, row) != other.key(k, otherRow)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Open-addressing table from 64-bit key to the chain of build rows with that key.
+     * Chains list rows in ascending order, so matches come out in build order.
+     */
+    private static final class Table {
+        private final long[] keys;
+        private final int[] heads;
+        private final int[] next;
+        private final int[] rows;
+        private final int mask;
+
+        Table(long[] hashes, int[] rows, int entries) {
+            int capacity = 16;
+            while (capacity < 2L * entries) {
+                capacity <<= 1;
+            }
+            this.keys = new long[capacity];
+            this.heads = new int[capacity];
+            this.next = new int[entries];
+            this.rows = rows;
+            this.mask = capacity - 1;
+            for (int entry = entries - 1; entry >= 0; entry--) {
+                int slot = slot(hashes[entry]);
+                keys[slot] = hashes[entry];
+                next[entry] = heads[slot] - 1;
+                heads[slot] = entry + 1;
+            }
+        }
+
+        // The slot holding a key, or the empty slot where it belongs
+        private int slot(long hash) {
+            int slot = (int) mix(hash) & mask;
+            while (heads[slot] != 0 && keys[slot] != hash) {
+                slot = (slot + 1) & mask;
+            }
+            return slot;
+        }
+
+        int first(long hash) {
+            return heads[slot(hash)] - 1;
+        }
+
+        int next(int entry) {
+            return next[entry];
+        }
+
+        int row(int entry) {
+            return rows[entry];
+        }
+    }
+}
@@ -0,0 +1,303 @@
+package com.manu156.driver.redash;
+
+import org.apache.http.client.entity.DeflateInputStream;
+import org.apache.http.client.entity.InputStreamFactory;
+import org.apache.http.config.Registry;
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.conn.socket.PlainConnectionSocketFactory;
+import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.impl.execchain.ClientExecChain;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.GeneralSecurityException;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.GZIPInputStream;
+import javax.net.ssl.SSLContext;
+
+/**
+ * Process-wide registry of pooled HTTP clients, one per Redash scheme, host and port.
+ * All JDBC connections to the same Redash server share a single keep-alive
+ * connection pool; the pool is closed when the last connection releases it.
+ * HTTPS pools get a TLS context of their host that outlives the pool, so new
+ * connections resume a cached TLS session instead of making a full handshake.
+ * Each client sends its requests through the circuit breaker of its host and
+ * retries idempotent GETs. The non-blocking client of a host is created on first
+ * use, with the host's TLS context and a connection limit of its own as large as the
+ * pooled client's.
+ */
+final class RedashHttpClientPool {
+    private static final Logger logger = LoggerFactory.getLogger(RedashHttpClientPool.class);
+
+    private static final Map<String, SharedClient> clients = new HashMap<>();
+    // Kept for the life of the process: the client session cache lives in the context
+    private static final Map<String, SSLContext> sslContexts = new HashMap<>();
+    // Not synchronized: closing a pool does socket I/O, which would pin a virtual thread holding a monitor
+    private static final ReentrantLock lock = new ReentrantLock();
+    
+    // The JDK inflater reads 512 bytes at a time by default; result bodies run to megabytes
+    private static final int INFLATE_BUFFER_SIZE = 16 * 1024;
+
+    private RedashHttpClientPool() {
+    }
+
+    /**
+     * Acquire the shared HTTP client for a host, creating it on first use.
+     * Pool settings are taken from the connection that creates the pool.
+     *
+     * @param host The Redash host
+     * @param port The Redash port
+     * @param properties The connection properties
+     * @return The shared HTTP client
+     * @throws SQLException if the TLS context cannot be created
+     */
+    static CloseableHttpClient acquire(String host, int port, RedashConnectionProperties properties)
+            throws SQLException {
+        String key = key(host, port, properties.isSsl());
+        lock.lock();
+        try {
+            SharedClient shared = clients.get(key);
+            if (shared == null) {
+                SSLContext sslContext = properties.isSsl() ? sslContext(host, port) : null;
+                RedashCircuitBreaker circuitBreaker = new RedashCircuitBreaker(key,
+                        properties.getCircuitBreakerThreshold(), properties.getCircuitBreakerOpenTimeMillis());
+                shared = new SharedClient(createClient(properties, sslContext, circuitBreaker), circuitBreaker,
+                        new RedashQueryLimiter(properties.getMaxConcurrentQueries()), sslContext,
+                        maxConnections(properties));
+                clients.put(key, shared);
+                logger.debug("Created HTTP connection pool for {}", key);
+            }
+            shared.references++;
+            return shared.client;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Get the circuit breaker of a host whose HTTP client is currently acquired,
+     * for requests sent by other means than the shared client.
+     *
+     * @param host The Redash host
+     * @param port The Redash port
+     * @param ssl Whether the client was acquired for HTTPS
+     * @return The circuit breaker, or null if the client is not acquired
+     */
+    static RedashCircuitBreaker getCircuitBreaker(String host, int port, boolean ssl) {
+        lock.lock();
+        try {
+            SharedClient shared = clients.get(key(host, port, ssl));
+            return shared != null ? shared.circuitBreaker : null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Get the bound on concurrently running batched queries of a host whose HTTP client is
+     * currently acquired. The bound is taken from the connection that created the client.
+     *
+     * @param host The Redash host
+     * @param port The Redash port
+     * @param ssl Whether the client was acquired for HTTPS
+     * @return The query limiter, or null if the client is not acquired
+     */
+    static RedashQueryLimiter getQueryLimiter(String host, int port, boolean ssl) {
+        lock.lock();
+        try {
+            SharedClient shared = clients.get(key(host, port, ssl));
+            return shared != null ? shared.queryLimiter : null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Get the non-blocking client of a host whose HTTP client is currently acquired,
+     * creating it on first use. It is closed with the pooled client.
+     *
+     * @param host The Redash host
+     * @param port The Redash port
+     * @param ssl Whether the client was acquired for HTTPS
+     * @return The non-blocking client, or null if the client is not acquired
+     */
+    static RedashAsyncHttpClient getAsyncClient(String host, int port, boolean ssl) {
+        lock.lock();
+        try {
+            SharedClient shared = clients.get(key(host, port, ssl));
+            if (shared == null) {
+                return null;
+            }
+            if (shared.asyncClient == null) {
+                shared.asyncClient = new RedashAsyncHttpClient(host + ":" + port, shared.sslContext,
+                        shared.maxConnections);
+            }
+            return shared.asyncClient;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Release a reference to the shared HTTP client of a host, closing it when unused.
+     *
+     * @param host The Redash host
+     * @param port The Redash port
+     * @param ssl Whether the client was acquired for HTTPS
+     */
+    static void release(String host, int port, boolean ssl) {
+        String key = key(host, port, ssl);
+        lock.lock();
+        try {
+            SharedClient shared = clients.get(key);
+            if (shared == null) {
+                return;
+            }
+            shared.references--;
+            if (shared.references <= 0) {
+                clients.remove(key);
+                if (shared.asyncClient != null) {
+                    shared.asyncClient.close();
+                }
+                try {
+                    shared.client.close();
+                    logger.debug("Closed HTTP connection pool for {}", key);
+                } catch (IOException e) {
+                    logger.error("Error closing HTTP client", e);
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * The TLS context of a host, created on first use with the default key and trust managers,
+     * so {@code javax.net.ssl.trustStore} and related system properties apply.
+     * Must be called with the lock held.
+     */
+    private static SSLContext sslContext(String host, int port) throws SQLException {
+        String key = key(host, port, true);
+        SSLContext sslContext = sslContexts.get(key);
+        if (sslContext == null) {
+            try {
+                sslContext = SSLContext.getInstance("TLS");
+                sslContext.init(null, null, null);
+            } catch (GeneralSecurityException e) {
+                throw new SQLException("Failed to initialize TLS for " + key, e);
+            }
+            sslContexts.put(key, sslContext);
+        }
+        return sslContext;
+    }
+
+    // Each pool serves a single host, so one route is all that can be leased at once
+    private static int maxConnections(RedashConnectionProperties properties) {
+        return Math.min(properties.getMaxTotalConnections(), properties.getMaxConnectionsPerRoute());
+    }
+
+    private static CloseableHttpClient createClient(RedashConnectionProperties properties, SSLContext sslContext,
+                                                    RedashCircuitBreaker circuitBreaker) {
+        RegistryBuilder<ConnectionSocketFactory> sockets = RegistryBuilder.<ConnectionSocketFactory>create()
+                .register("http", PlainConnectionSocketFactory.getSocketFactory());
+        if (sslContext != null) {
+            sockets.register("https", new SSLConnectionSocketFactory(sslContext,
+                    SSLConnectionSocketFactory.getDefaultHostnameVerifier()));
+        }
+        Registry<ConnectionSocketFactory> registry = sockets.build();
+        PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager(registry);
+        connectionManager.setMaxTotal(properties.getMaxTotalConnections());
+        connectionManager.setDefaultMaxPerRoute(properties.getMaxConnectionsPerRoute());
+        connectionManager.setValidateAfterInactivity(properties.getValidateAfterInactivityMillis());
+
+        int maxConnections = maxConnections(properties);
+        RedashRetryPolicy retryPolicy = new RedashRetryPolicy(properties);
+        HttpClientBuilder builder = new HttpClientBuilder() {
+            @Override
+            protected ClientExecChain decorateProtocolExec(ClientExecChain protocolExec) {
+                return new RedashRetryExec(protocolExec, retryPolicy, circuitBreaker);
+            }
+        };
+        builder.setConnectionManager(new RedashConnectionManager(connectionManager, maxConnections))
+                // Retries are made by RedashRetryExec, with backoff
+                .disableAutomaticRetries();
+        if (properties.isCompression()) {
+            // Also sets Accept-Encoding to the registered encodings
+            builder.setContentDecoderRegistry(contentDecoders());
+        } else {
+            builder.disableContentCompression();
+        }
+        if (properties.getIdleConnectionTimeoutSeconds() > 0) {
+            builder.evictExpiredConnections()
+                    .evictIdleConnections(properties.getIdleConnectionTimeoutSeconds(), TimeUnit.SECONDS);
+        }
+        return builder.build();
+    }
+
+    private static Map<String, InputStreamFactory> contentDecoders() {
+        Map<String, InputStreamFactory> decoders = new LinkedHashMap<>();
+        decoders.put("gzip", in -> decompress(in, "gzip"));
+        decoders.put("x-gzip", in -> decompress(in, "gzip"));
+        decoders.put("deflate", in -> decompress(in, "deflate"));
+        return decoders;
+    }
+    
+    /**
+     * Wrap a response body in a streaming inflater for its {@code Content-Encoding}.
+     *
+     * @param in The raw body
+     * @param contentEncoding The content encoding, or null
+     * @return The decompressed body; the body itself for identity or unknown encodings
+     * @throws IOException if the gzip header cannot be read
+     */
+    static InputStream decompress(InputStream in, String contentEncoding) throws IOException {
+        if (contentEncoding == null) {
+            return in;
+        }
+        switch (contentEncoding.trim().toLowerCase(Locale.ROOT)) {
+            case "gzip":
+            case "x-gzip":
+                return new GZIPInputStream(in, INFLATE_BUFFER_SIZE);
+            case "deflate":
+                // Accepts both zlib-wrapped and raw deflate, which servers send interchangeably
+                return new DeflateInputStream(in);
+            default:
+                return in;
+        }
+    }
+    
+    private static String key(String host, int port, boolean ssl) {
+        return (ssl ? "https://" : "http://") + host + ":" + port;
+    }
+
+    private static final class SharedClient {
+        private final CloseableHttpClient client;
+        private final RedashCircuitBreaker circuitBreaker;
+        private final RedashQueryLimiter queryLimiter;
+        private final SSLContext sslContext;
+        private final int maxConnections;
+        private RedashAsyncHttpClient asyncClient;
+        private int references;
+
+        private SharedClient(CloseableHttpClient client, RedashCircuitBreaker circuitBreaker,
+                             RedashQueryLimiter queryLimiter, SSLContext sslContext, int maxConnections) {
+            this.client = client;
+            this.circuitBreaker = circuitBreaker;
+            this.queryLimiter = queryLimiter;
+            this.sslContext = sslContext;
+            this.maxConnections = maxConnections;
+        }
+    }
+}
@@ -0,0 +1,247 @@
+package com.manu156.driver.redash;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.util.EntityUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.URI;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Process-wide registry of job pollers, one per Redash API base URL.
+ * Statements register the jobs they are waiting for and get a future for the query
+ * result id, so the number of polling threads does not grow with the number of
+ * queries in flight. Each job keeps its own backoff schedule; jobs that come due
+ * close together are polled in the same wakeup. One platform thread keeps the
+ * schedule; the polls themselves run on a few platform threads or, with
+ * {@code virtualThreads} on Java 21, on a virtual thread each.
+ */
+final class RedashJobPoller {
+    private static final Logger logger = LoggerFactory.getLogger(RedashJobPoller.class);
+    private static final ObjectMapper objectMapper = new ObjectMapper();
+
+    private static final Map<String, RedashJobPoller> pollers = new HashMap<>();
+
+    // Jobs due within this window of a wakeup are polled with it
+    private static final long COALESCE_NANOS = TimeUnit.MILLISECONDS.toNanos(50);
+    private static final int POLL_THREADS = 4;
+
+    private final String baseUrl;
+    private final CloseableHttpClient httpClient;
+    private final ScheduledThreadPoolExecutor scheduler;
+    private final ExecutorService pollExecutor;
+    private final List<Job> jobs = new ArrayList<>();
+    private ScheduledFuture<?> wakeup;
+    private long wakeupNanos;
+    private int references;
+
+    private RedashJobPoller(String baseUrl, CloseableHttpClient httpClient, boolean virtualThreads) {
+        this.baseUrl = baseUrl;
+        this.httpClient = httpClient;
+        String host = URI.create(baseUrl).getAuthority();
+        this.scheduler = new ScheduledThreadPoolExecutor(1,
+                RedashThreads.daemonThreadFactory("redash-job-scheduler-" + host));
+        scheduler.setRemoveOnCancelPolicy(true);
+        this.pollExecutor = RedashThreads.newBlockingExecutor("redash-job-poller-" + host, POLL_THREADS,
+                virtualThreads);
+    }
+
+    /**
+     * Acquire the poller for a Redash server, creating it on first use.
+     * The thread type is taken from the connection that creates the poller.
+     *
+     * @param baseUrl The API base URL of the server
+     * @param httpClient The shared HTTP client of the host
+     * @param virtualThreads Whether to poll on virtual threads where supported
+     * @return The shared poller
+     */
+    static synchronized RedashJobPoller acquire(String baseUrl, CloseableHttpClient httpClient,
+                                                boolean virtualThreads) {
+        RedashJobPoller poller = pollers.get(baseUrl);
+        if (poller == null) {
+            poller = new RedashJobPoller(baseUrl, httpClient, virtualThreads);
+            pollers.put(baseUrl, poller);
+            logger.debug("Created job poller for {}", baseUrl);
+        }
+        poller.references++;
+        return poller;
+    }
+
+    /**
+     * @return The executor the polls run on, also used for other blocking work of the host,
+     *         such as reading the body of a non-blocking response
+     */
+    ExecutorService getPollExecutor() {
+        return pollExecutor;
+    }
+
+    /**
+     * Release a reference to this poller, stopping it when unused.
+     * Jobs still registered then fail.
+     */
+    void release() {
+        synchronized (RedashJobPoller.class) {
+            references--;
+            if (references > 0) {
+                return;
+            }
+            pollers.remove(baseUrl);
+        }
+        scheduler.shutdownNow();
+        pollExecutor.shutdownNow();
+        List<Job> pending;
+        synchronized (this) {
+            pending = new ArrayList<>(jobs);
+            jobs.clear();
+        }
+        for (Job job : pending) {
+            job.future.completeExceptionally(new SQLException("Connection closed while waiting for query results"));
+        }
+        logger.debug("Stopped job poller for {}", baseUrl);
+    }
+
+    /**
+     * Start polling a job. The first poll is made straight away, later ones follow the schedule.
+     * Cancelling the returned future stops polling the job; it does not cancel it in Redash.
+     *
+     * @param jobId The ID of the query job
+     * @param apiKey The API key to poll with
+     * @param schedule The backoff schedule of the registering connection
+     * @return A future completed with the query result id once the job finishes,
+     *         or exceptionally with an {@link SQLException} if it fails or is cancelled
+     */
+    CompletableFuture<String> register(String jobId, String apiKey, RedashPollSchedule schedule) {
+        Job job = new Job(jobId, apiKey, schedule);
+        enqueue(job, System.nanoTime());
+        return job.future;
+    }
+
+    private synchronized void enqueue(Job job, long dueNanos) {
+        job.dueNanos = dueNanos;
+        jobs.add(job);
+        scheduleWakeup(dueNanos);
+    }
+
+    // Make sure a wakeup happens no later than the given time, allowing for the coalescing window
+    private void scheduleWakeup(long dueNanos) {
+        if (wakeup != null && wakeupNanos <= dueNanos + COALESCE_NANOS) {
+            return;
+        }
+        if (wakeup != null) {
+            wakeup.cancel(false);
+        }
+        wakeupNanos = dueNanos;
+        try {
+            wakeup = scheduler.schedule(this::sweep, dueNanos - System.nanoTime(), TimeUnit.NANOSECONDS);
+        } catch (RejectedExecutionException e) {
+            // Released; release() fails the remaining jobs
+            wakeup = null;
+        }
+    }
+
+    // Poll every job that is due, or nearly due, and schedule the next wakeup
+    private void sweep() {
+        List<Job> due = new ArrayList<>();
+        synchronized (this) {
+            wakeup = null;
+            long horizon = System.nanoTime() + COALESCE_NANOS;
+            long next = Long.MAX_VALUE;
+            for (Iterator<Job> it = jobs.iterator(); it.hasNext(); ) {
+                Job job = it.next();
+                if (job.future.isDone()) {
+                    it.remove();
+                } else if (job.dueNanos - horizon <= 0) {
+                    it.remove();
+                    due.add(job);
+                } else if (job.dueNanos < next) {
+                    next = job.dueNanos;
+                }
+            }
+            if (next != Long.MAX_VALUE) {
+                scheduleWakeup(next);
+            }
+        }
+        for (Job job : due) {
+            try {
+                pollExecutor.execute(() -> poll(job));
+            } catch (RejectedExecutionException e) {
+                job.future.completeExceptionally(new SQLException("Connection closed while waiting for query results"));
+            }
+        }
+    }
+
+    private void poll(Job job) {
+        if (job.future.isDone()) {
+            return;
+        }
+        HttpGet request = new HttpGet(baseUrl + "/jobs/" + job.id);
+        request.setHeader("Authorization", "Key " + job.apiKey);
+        try {
+            long pollStartTime = System.currentTimeMillis();
+            String responseJson;
+            int statusCode;
+            try (CloseableHttpResponse response = httpClient.execute(request)) {
+                statusCode = response.getStatusLine().getStatusCode();
+                responseJson = EntityUtils.toString(response.getEntity());
+            }
+            if (statusCode != 200) {
+                job.future.completeExceptionally(new SQLException("Failed to get job status: " + responseJson));
+                return;
+            }
+
+            JsonNode jobNode = objectMapper.readTree(responseJson).path("job");
+            String status = jobNode.path("status").asText();
+            logger.debug("Job {} status check #{}: {} (poll took {} ms)",
+                    job.id, job.attempt + 1, status, System.currentTimeMillis() - pollStartTime);
+
+            // Redash reports job status either as a name or as a number (3 = finished, 4 = failed, 5 = cancelled)
+            if ("finished".equals(status) || "3".equals(status)) {
+                job.future.complete(jobNode.path("query_result_id").asText());
+            } else if ("failed".equals(status) || "4".equals(status)) {
+                job.future.completeExceptionally(
+                        new SQLException("Query execution failed: " + jobNode.path("error").asText()));
+            } else if ("cancelled".equals(status) || "5".equals(status)) {
+                job.future.completeExceptionally(new SQLException("Query execution was cancelled in Redash",
+                        RedashQueryContext.CANCELLED_SQL_STATE));
+            } else {
+                long delay = job.schedule.nextDelayMillis(job.attempt++);
+                enqueue(job, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delay));
+            }
+        } catch (IOException | RuntimeException e) {
+            // A job whose poll fails unexpectedly is failed rather than left waiting forever
+            job.future.completeExceptionally(new SQLException("Error waiting for query results", e));
+        }
+    }
+
+    private static final class Job {
+        private final String id;
+        private final String apiKey;
+        private final RedashPollSchedule schedule;
+        private final CompletableFuture<String> future = new CompletableFuture<>();
+        private int attempt;
+        private long dueNanos;
+
+        private Job(String id, String apiKey, RedashPollSchedule schedule) {
+            this.id = id;
+            this.apiKey = apiKey;
+            this.schedule = schedule;
+        }
+    }
+}
@@ -0,0 +1,1011 @@
+package com.manu156.driver.redash;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.sql.SQLException;
+import java.sql.SQLSyntaxErrorException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+import static com.manu156.driver.redash.RedashColumnVector.TYPE_BOOLEAN;
+import static com.manu156.driver.redash.RedashColumnVector.TYPE_FLOAT;
+import static com.manu156.driver.redash.RedashColumnVector.TYPE_INTEGER;
+
+/**
+ * Statement over a saved query's result, e.g. {@code SELECT name, SUM(total) FROM query_42
+ * WHERE region = 'EU' GROUP BY name ORDER BY 2 DESC LIMIT 10}. Redash only runs the saved
+ * query; the driver applies the rest of the statement to the columnar result: WHERE,
+ * GROUP BY with COUNT, SUM, AVG, MIN and MAX, HAVING, DISTINCT, ORDER BY, OFFSET and LIMIT,
+ * and finally the projection. Rows are tracked as a selection of row indexes and values are
+ * only copied once, for the columns of the final rows.
+ *
+ * <p>Several saved queries can be joined ({@code FROM query_1 a JOIN query_2 b ON a.id = b.id},
+ * also {@code LEFT JOIN}); the joins are evaluated left to right with {@link RedashHashJoin}
+ * and the joined rows are views of the saved queries' columns by row index.</p>
+ */
+final class RedashLocalQuery {
+
+    /**
+     * Item of the select list: an expression, or {@code *} / {@code alias.*}.
+     */
+    static final class SelectItem {
+        final RedashExpression expression;
+        final String alias;
+        final String label;
+        final boolean star;
+        final String qualifier;
+
+        private SelectItem(RedashExpression expression, String alias, String label, boolean star, String qualifier) {
+            this.expression = expression;
+            this.alias = alias;
+            this.label = label;
+            this.star = star;
+            this.qualifier = qualifier;
+        }
+
+        static SelectItem star(String qualifier) {
+            return new SelectItem(null, null, null, true, qualifier);
+        }
+
+        static SelectItem of(RedashExpression expression, String alias, String label) {
+            return new SelectItem(expression, alias, label, false, null);
+        }
+
+        // Column name in the result: the alias, a referenced column's own name or the expression as written
+        String name() {
+            if (alias != null) {
+                return alias;
+            }
+            if (expression instanceof RedashExpression.ColumnRef) {
+                return ((RedashExpression.ColumnRef) expression).getName();
+            }
+            return label;
+        }
+    }
+
+    /**
+     * Saved query of the FROM clause, with the join that adds it to the tables before it.
+     */
+    static final class TableRef {
+        final String queryId;
+        final String name;
+        final String alias;
+        final boolean leftJoin;
+        final RedashExpression on;
+
+        TableRef(String queryId, String name, String alias, boolean leftJoin, RedashExpression on) {
+            this.queryId = queryId;
+            this.name = name;
+            this.alias = alias;
+            this.leftJoin = leftJoin;
+            this.on = on;
+        }
+
+        // The name the table's columns are qualified with
+        String qualifier() {
+            return alias != null ? alias : name;
+        }
+    }
+
+    /**
+     * Item of the ORDER BY list.
+     */
+    static final class OrderItem {
+        final RedashExpression expression;
+        final boolean descending;
+        final boolean nullsFirst;
+
+        OrderItem(RedashExpression expression, boolean descending, boolean nullsFirst) {
+            this.expression = expression;
+            this.descending = descending;
+            this.nullsFirst = nullsFirst;
+        }
+    }
+
+    final List<SelectItem> items = new ArrayList<>();
+    final List<TableRef> tables = new ArrayList<>();
+    final List<RedashExpression> groupBy = new ArrayList<>();
+    final List<OrderItem> orderBy = new ArrayList<>();
+    boolean distinct;
+    RedashExpression where;
+    RedashExpression having;
+    long limit = -1;
+    long offset;
+    long joinMemoryBudgetBytes = Long.MAX_VALUE;
+
+    /**
+     * Parse a statement over a saved query.
+     *
+     * @param sql The statement
+     * @return The parsed statement
+     * @throws SQLException if the statement is malformed or uses SQL the driver cannot evaluate
+     */
+    static RedashLocalQuery parse(String sql) throws SQLException {
+        return RedashLocalQueryParser.parse(sql);
+    }
+
+    /**
+     * Get the id of the first saved query the statement reads.
+     */
+    String getQueryId() {
+        return tables.get(0).queryId;
+    }
+
+    /**
+     * Get the ids of the saved queries the statement reads, without repetitions, in order of first use.
+     */
+    List<String> getQueryIds() {
+        List<String> ids = new ArrayList<>();
+        for (TableRef table : tables) {
+            if (!ids.contains(table.queryId)) {
+                ids.add(table.queryId);
+            }
+        }
+        return ids;
+    }
+
+    /**
+     * Whether the statement joins several saved queries.
+     */
+    boolean isJoin() {
+        return tables.size() > 1;
+    }
+
+    /**
+     * Set the bytes the hash table of a join may take before the join is partitioned to disk.
+     */
+    void setJoinMemoryBudgetBytes(long bytes) {
+        this.joinMemoryBudgetBytes = bytes;
+    }
+
+    /**
+     * Whether the statement returns the saved query's result unchanged, as {@code SELECT * FROM query_1} does.
+     */
+    boolean isPassThrough() {
+        return isSelectAll() && where == null && limit < 0 && offset == 0;
+    }
+
+    /**
+     * Get the number of leading rows of the saved query's result the statement needs,
+     * e.g. 10 for {@code SELECT * FROM query_1 LIMIT 10}.
+     *
+     * @return The number of rows, or 0 if the statement may need every row
+     */
+    int getRowsNeeded() {
+        if (!isSelectAll() || where != null || limit < 0) {
+            return 0;
+        }
+        long needed = offset + limit;
+        return needed > 0 && needed < Integer.MAX_VALUE ? (int) needed : 0;
+    }
+
+    private boolean isSelectAll() {
+        if (isJoin() || distinct || !groupBy.isEmpty() || having != null || !orderBy.isEmpty()) {
+            return false;
+        }
+        for (SelectItem item : items) {
+            if (!item.star) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Evaluate the statement over results of its saved queries. The statement's result may
+     * read the inputs' columns without copying them, so it takes over their off-heap memory;
+     * if evaluation fails, that memory is freed.
+     *
+     * @param inputs The saved queries' results, in the order of {@link #getQueryIds()}
+     * @param parameters Values of the statement's {@code ?} markers by 1-based index
+     * @return The statement's result
+     * @throws SQLException if a name cannot be resolved, the types do not fit or evaluation fails
+     */
+    RedashQueryResult execute(List<RedashQueryResult> inputs, Map<Integer, Object> parameters) throws SQLException {
+        RedashQueryResult result;
+        try {
+            result = evaluate(inputs, parameters);
+        } catch (SQLException | RuntimeException e) {
+            for (RedashQueryResult input : inputs) {
+                input.close();
+            }
+            throw e;
+        }
+        for (RedashQueryResult input : inputs) {
+            result.adopt(input);
+        }
+        return result;
+    }
+
+    private RedashQueryResult evaluate(List<RedashQueryResult> inputs, Map<Integer, Object> parameters)
+            throws SQLException {
+        List<String> queryIds = getQueryIds();
+        RedashQueryResult[] tableInputs = new RedashQueryResult[tables.size()];
+        for (int t = 0; t < tableInputs.length; t++) {
+            tableInputs[t] = inputs.get(queryIds.indexOf(tables.get(t).queryId));
+        }
+        Relation relation = new Relation(tableInputs);
+        InputScope inputScope = new InputScope(relation, tables.size(), parameters);
+        List<SelectItem> selected = expandStars(relation);
+
+        // Conditions of inner joins other than the key equalities are applied like WHERE
+        RedashExpression condition = where;
+        RedashQueryResult input = relation.inputs[0];
+        if (isJoin()) {
+            List<RedashExpression> joinConditions = new ArrayList<>();
+            input = join(relation, parameters, joinConditions);
+            for (RedashExpression joinCondition : joinConditions) {
+                condition = condition == null ? joinCondition
+                        : new RedashExpression.Logical(true, joinCondition, condition);
+            }
+        }
+
+        // WHERE narrows the selection without copying any values
+        int[] rows = null;
+        int count = input.getRowCount();
+        if (condition != null) {
+            RedashExpression predicate = condition.bind(inputScope.in("WHERE"));
+            RedashExpression.requireBoolean(predicate, "WHERE");
+            rows = new int[count];
+            count = predicate.filter(input, null, count, rows);
+        }
+
+        RedashQueryResult source = input;
+        RedashExpression.Scope scope = inputScope.in("the select list");
+        boolean grouped = !groupBy.isEmpty() || having != null;
+        for (SelectItem item : selected) {
+            grouped |= item.expression.containsAggregate();
+        }
+        if (grouped) {
+            GroupedScope groupedScope = new GroupedScope(inputScope, parameters);
+            source = aggregate(input, rows, count, selected, groupedScope);
+            rows = null;
+            count = source.getRowCount();
+            scope = groupedScope;
+            if (having != null) {
+                RedashExpression predicate = having.bind(groupedScope);
+                RedashExpression.requireBoolean(predicate, "HAVING");
+                rows = new int[count];
+                count = predicate.filter(source, null, count, rows);
+            }
+        }
+
+        List<RedashExpression> projections = new ArrayList<>(selected.size());
+        for (SelectItem item : selected) {
+            projections.add(item.expression.bind(scope));
+        }
+
+        if (distinct) {
+            int[] kept = new int[count];
+            count = distinctRows(source, rows, count, projections, kept);
+            rows = kept;
+        }
+        if (!orderBy.isEmpty()) {
+            rows = sort(source, rows, count, orderScope(scope, selected, projections));
+        }
+
+        // OFFSET and LIMIT only move the bounds of the selection
+        int from = (int) Math.min(offset, count);
+        int to = limit < 0 ? count : (int) Math.min(count, from + limit);
+        if (from > 0 || to < count) {
+            int[] window = new int[to - from];
+            for (int i = from; i < to; i++) {
+                window[i - from] = RedashExpression.row(rows, i);
+            }
+            rows = window;
+            count = window.length;
+        }
+
+        List<RedashColumn> columns = new ArrayList<>(selected.size());
+        RedashColumnVector[] vectors = new RedashColumnVector[selected.size()];
+        for (int i = 0; i < selected.size(); i++) {
+            RedashExpression projection = projections.get(i);
+            columns.add(new RedashColumn(selected.get(i).name(), projection.columnType()));
+            vectors[i] = projection.evaluate(source, rows, count);
+        }
+        return new RedashQueryResult(columns, vectors, count);
+    }
+
+    // Replace * and alias.* with a reference to every column of the tables
+    private List<SelectItem> expandStars(Relation relation) throws SQLException {
+        List<SelectItem> expanded = new ArrayList<>();
+        for (SelectItem item : items) {
+            if (!item.star) {
+                expanded.add(item);
+                continue;
+            }
+            boolean found = false;
+            for (int t = 0; t < tables.size(); t++) {
+                if (item.qualifier != null && !tables.get(t).qualifier().equalsIgnoreCase(item.qualifier)) {
+                    continue;
+                }
+                found = true;
+                for (int i = 0; i < relation.inputs[t].getColumnCount(); i++) {
+                    int index = relation.offsets[t] + i;
+                    RedashColumn column = relation.columns.get(index);
+                    expanded.add(SelectItem.of(new RedashExpression.BoundColumn(index, column), column.getName(),
+                            column.getName()));
+                }
+            }
+            if (!found) {
+                throw new SQLSyntaxErrorException("Unknown table " + item.qualifier + " in " + item.qualifier + ".*");
+            }
+        }
+        return expanded;
+    }
+
+    /**
+     * Join the tables left to right. Every join hashes the smaller side, except that a LEFT JOIN
+     * always hashes its right side. The joined rows are kept as one array of row indexes per
+     * table, -1 where a LEFT JOIN found no match.
+     *
+     * @param conditions Receives the conditions of inner joins that are not key equalities
+     * @return The joined rows, with the columns of all tables
+     */
+    private RedashQueryResult join(Relation relation, Map<Integer, Object> parameters,
+                                   List<RedashExpression> conditions) throws SQLException {
+        int[][] rows = new int[tables.size()][];
+        int count = relation.inputs[0].getRowCount();
+        rows[0] = RedashExpression.identity(count);
+        for (int k = 1; k < tables.size(); k++) {
+            TableRef table = tables.get(k);
+            InputScope joined = new InputScope(relation, k + 1, parameters);
+            InputScope before = new InputScope(relation, 0, k, parameters);
+            InputScope added = new InputScope(relation, k, k + 1, parameters);
+            List<RedashExpression> leftKeys = new ArrayList<>();
+            List<RedashExpression> rightKeys = new ArrayList<>();
+            for (RedashExpression condition : RedashExpression.conjuncts(table.on)) {
+                RedashExpression.requireBoolean(condition.bind(joined.in("ON")), "ON");
+                RedashExpression[] keys = joinKeys(condition, before, added);
+                if (keys != null) {
+                    leftKeys.add(keys[0]);
+                    rightKeys.add(keys[1]);
+                } else if (table.leftJoin) {
+                    throw RedashExpression.unsupported("A LEFT JOIN condition other than an equality of its two sides");
+                } else {
+                    conditions.add(condition);
+                }
+            }
+            if (leftKeys.isEmpty()) {
+                throw RedashExpression.unsupported("A join without an equality of its two sides");
+            }
+
+            RedashQueryResult left = relation.view(rows, k, count);
+            RedashQueryResult right = relation.view(k);
+            RedashColumnVector[] leftValues = evaluate(leftKeys, left);
+            RedashColumnVector[] rightValues = evaluate(rightKeys, right);
+            boolean swap = !table.leftJoin && count < right.getRowCount();
+            RedashHashJoin join = swap
+                    ? RedashHashJoin.join(rightValues, leftValues, false, joinMemoryBudgetBytes)
+                    : RedashHashJoin.join(leftValues, rightValues, table.leftJoin, joinMemoryBudgetBytes);
+            int[] leftRows = swap ? join.getBuildRows() : join.getProbeRows();
+            int[] rightRows = swap ? join.getProbeRows() : join.getBuildRows();
+            count = join.size();
+            for (int t = 0; t < k; t++) {
+                int[] joinedRows = new int[count];
+                for (int i = 0; i < count; i++) {
+                    joinedRows[i] = rows[t][leftRows[i]];
+                }
+                rows[t] = joinedRows;
+            }
+            rows[k] = Arrays.copyOf(rightRows, count);
+        }
+        return relation.view(rows, tables.size(), count);
+    }
+
+    /**
+     * The two sides of a key equality of a join: an expression over the tables before the
+     * join and one over the table it adds, or null if the condition is something else.
+     */
+    private static RedashExpression[] joinKeys(RedashExpression condition, InputScope before, InputScope added) {
+        if (!(condition instanceof RedashExpression.Comparison)
+                || !"=".equals(((RedashExpression.Comparison) condition).getOperator())) {
+            return null;
+        }
+        RedashExpression first = ((RedashExpression.Comparison) condition).getLeft();
+        RedashExpression second = ((RedashExpression.Comparison) condition).getRight();
+        RedashExpression left = before.bindColumns(first);
+        RedashExpression right = added.bindColumns(second);
+        if (left != null && right != null) {
+            return new RedashExpression[]{left, right};
+        }
+        left = before.bindColumns(second);
+        right = added.bindColumns(first);
+        if (left != null && right != null) {
+            return new RedashExpression[]{left, right};
+        }
+        return null;
+    }
+
+    private static RedashColumnVector[] evaluate(List<RedashExpression> expressions, RedashQueryResult input)
+            throws SQLException {
+        RedashColumnVector[] values = new RedashColumnVector[expressions.size()];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = expressions.get(i).evaluate(input, null, input.getRowCount());
+        }
+        return values;
+    }
+
+    /**
+     * The results of the tables, with their columns numbered one table after another.
+     */
+    private static final class Relation {
+        private final RedashQueryResult[] inputs;
+        private final int[] offsets;
+        private final List<RedashColumn> columns = new ArrayList<>();
+
+        Relation(RedashQueryResult[] inputs) {
+            this.inputs = inputs;
+            this.offsets = new int[inputs.length];
+            for (int t = 0; t < inputs.length; t++) {
+                offsets[t] = columns.size();
+                columns.addAll(inputs[t].getColumns());
+            }
+        }
+
+        // The given rows of the first tables; columns of the other tables are absent
+        RedashQueryResult view(int[][] rows, int tableCount, int count) {
+            RedashColumnVector[] vectors = new RedashColumnVector[columns.size()];
+            for (int t = 0; t < tableCount; t++) {
+                for (int i = 0; i < inputs[t].getColumnCount(); i++) {
+                    vectors[offsets[t] + i] = RedashColumnVector.select(inputs[t].getVector(i), rows[t], count);
+                }
+            }
+            return new RedashQueryResult(columns, vectors, count);
+        }
+
+        // All rows of one table; columns of the other tables are absent
+        RedashQueryResult view(int table) {
+            RedashColumnVector[] vectors = new RedashColumnVector[columns.size()];
+            for (int i = 0; i < inputs[table].getColumnCount(); i++) {
+                vectors[offsets[table] + i] = inputs[table].getVector(i);
+            }
+            return new RedashQueryResult(columns, vectors, inputs[table].getRowCount());
+        }
+    }
+
+    /**
+     * Group the selected rows and compute every aggregate call of the statement. The grouped
+     * rows hold the GROUP BY keys followed by the aggregates; the scope is told where each is.
+     */
+    private RedashQueryResult aggregate(RedashQueryResult input, int[] rows, int count, List<SelectItem> selected,
+                                        GroupedScope scope) throws SQLException {
+        RedashExpression.Scope argumentScope = scope.input.in("an aggregate");
+        List<RedashExpression> keys = new ArrayList<>();
+        for (RedashExpression key : groupBy) {
+            RedashExpression bound = key.bind(scope.input.in("GROUP BY"));
+            if (bound.containsAggregate()) {
+                throw new SQLSyntaxErrorException("Aggregate calls are not allowed in GROUP BY: " + key);
+            }
+            keys.add(bound);
+        }
+
+        List<RedashExpression.Aggregate> calls = new ArrayList<>();
+        for (SelectItem item : selected) {
+            item.expression.collectAggregates(calls);
+        }
+        if (having != null) {
+            having.collectAggregates(calls);
+        }
+        for (OrderItem item : orderBy) {
+            item.expression.collectAggregates(calls);
+        }
+
+        // Group ids in order of first appearance
+        int[] groupOf = new int[count];
+        int groupCount;
+        List<Integer> firstRows = new ArrayList<>();
+        RedashColumnVector[] keyValues = new RedashColumnVector[keys.size()];
+        for (int k = 0; k < keys.size(); k++) {
+            keyValues[k] = keys.get(k).evaluate(input, rows, count);
+        }
+        if (keys.isEmpty()) {
+            // Aggregates without GROUP BY make a single group, even over no rows
+            groupCount = 1;
+        } else if (keys.size() == 1 && keyValues[0] instanceof RedashColumnVector.DictionaryVector) {
+            // Group on dictionary codes, without hashing the strings
+            RedashColumnVector.DictionaryVector strings = (RedashColumnVector.DictionaryVector) keyValues[0];
+            int[] groupOfCode = new int[strings.getDictionary().length + 1];
+            Arrays.fill(groupOfCode, -1);
+            for (int i = 0; i < count; i++) {
+                int slot = strings.getCode(i) + 1;
+                if (groupOfCode[slot] < 0) {
+                    groupOfCode[slot] = firstRows.size();
+                    firstRows.add(i);
+                }
+                groupOf[i] = groupOfCode[slot];
+            }
+            groupCount = firstRows.size();
+        } else {
+            Map<Object, Integer> groups = new HashMap<>();
+            for (int i = 0; i < count; i++) {
+                Object key = groupKey(keyValues, i);
+                Integer group = groups.get(key);
+                if (group == null) {
+                    group = firstRows.size();
+                    groups.put(key, group);
+                    firstRows.add(i);
+                }
+                groupOf[i] = group;
+            }
+            groupCount = firstRows.size();
+        }
+
+        List<RedashColumn> columns = new ArrayList<>();
+        List<RedashColumnVector> vectors = new ArrayList<>();
+        int[] first = new int[firstRows.size()];
+        for (int g = 0; g < first.length; g++) {
+            first[g] = firstRows.get(g);
+        }
+        for (int k = 0; k < keys.size(); k++) {
+            scope.keys.put(keys.get(k).toString(), columns.size());
+            columns.add(new RedashColumn(groupBy.get(k).toString(), keys.get(k).columnType()));
+            vectors.add(keyValues[k].gather(first, groupCount));
+        }
+        for (RedashExpression.Aggregate call : calls) {
+            String text = call.toString();
+            if (scope.aggregates.containsKey(text)) {
+                continue;
+            }
+            RedashExpression.Aggregate bound = call.bindArgument(argumentScope);
+            scope.aggregates.put(text, columns.size());
+            columns.add(new RedashColumn(text, bound.columnType()));
+            vectors.add(accumulate(bound, input, rows, count, groupOf, groupCount));
+        }
+        // Resolve references to the grouped rows with the types of the keys and aggregates
+        scope.columns = columns;
+        return new RedashQueryResult(columns, vectors.toArray(new RedashColumnVector[0]), groupCount);
+    }
+
+    private static Object groupKey(RedashColumnVector[] keyValues, int position) {
+        if (keyValues.length == 1) {
+            return keyValues[0].getObject(position);
+        }
+        List<Object> key = new ArrayList<>(keyValues.length);
+        for (RedashColumnVector values : keyValues) {
+            key.add(values.getObject(position));
+        }
+        return key;
+    }
+
+    private static RedashColumnVector accumulate(RedashExpression.Aggregate call, RedashQueryResult input,
+                                                 int[] rows, int count, int[] groupOf, int groupCount)
+            throws SQLException {
+        RedashColumnVector.Builder builder = RedashColumnVector.builder(call.type());
+        long[] counts = new long[groupCount];
+        if (call.getArgument() == null) {
+            for (int i = 0; i < count; i++) {
+                counts[groupOf[i]]++;
+            }
+            for (long n : counts) {
+                builder.appendLong(n);
+            }
+            return builder.build();
+        }
+
+        RedashColumnVector values = call.getArgument().evaluate(input, rows, count);
+        String function = call.getFunction();
+        if (function.equals("COUNT")) {
+            for (int i = 0; i < count; i++) {
+                if (!values.isNull(i)) {
+                    counts[groupOf[i]]++;
+                }
+            }
+            for (long n : counts) {
+                builder.appendLong(n);
+            }
+            return builder.build();
+        }
+
+        boolean integer = values.type() == TYPE_INTEGER;
+        if (function.equals("SUM") || function.equals("AVG")) {
+            long[] longSums = new long[groupCount];
+            double[] sums = new double[groupCount];
+            for (int i = 0; i < count; i++) {
+                if (values.isNull(i)) {
+                    continue;
+                }
+                int group = groupOf[i];
+                counts[group]++;
+                if (integer) {
+                    longSums[group] += values.getLong(i);
+                } else {
+                    sums[group] += values.getDouble(i);
+                }
+            }
+            for (int g = 0; g < groupCount; g++) {
+                double sum = integer ? longSums[g] : sums[g];
+                if (counts[g] == 0) {
+                    builder.appendNull();
+                } else if (function.equals("AVG")) {
+                    builder.appendDouble(sum / counts[g]);
+                } else if (integer) {
+                    builder.appendLong(longSums[g]);
+                } else {
+                    builder.appendDouble(sum);
+                }
+            }
+            return builder.build();
+        }
+
+        // MIN and MAX keep the position of the best value of every group
+        boolean max = function.equals("MAX");
+        int[] best = new int[groupCount];
+        Arrays.fill(best, -1);
+        Comparator<Integer> order = valueOrder(values);
+        for (int i = 0; i < count; i++) {
+            if (values.isNull(i)) {
+                continue;
+            }
+            int group = groupOf[i];
+            if (best[group] < 0) {
+                best[group] = i;
+            } else {
+                int cmp = order.compare(i, best[group]);
+                if (max ? cmp > 0 : cmp < 0) {
+                    best[group] = i;
+                }
+            }
+        }
+        for (int g = 0; g < groupCount; g++) {
+            if (best[g] < 0) {
+                builder.appendNull();
+            } else {
+                builder.appendObject(values.getObject(best[g]));
+            }
+        }
+        return builder.build();
+    }
+
+    // Order of two non-null positions of a vector by value
+    private static Comparator<Integer> valueOrder(RedashColumnVector values) {
+        switch (values.type()) {
+            case TYPE_INTEGER:
+                return (a, b) -> Long.compare(values.getLong(a), values.getLong(b));
+            case TYPE_FLOAT:
+                return (a, b) -> Double.compare(values.getDouble(a), values.getDouble(b));
+            case TYPE_BOOLEAN:
+                return (a, b) -> Boolean.compare(values.getBoolean(a), values.getBoolean(b));
+            default:
+                return (a, b) -> values.getString(a).compareTo(values.getString(b));
+        }
+    }
+
+    // Keep the first of every set of selected rows with equal projected values
+    private static int distinctRows(RedashQueryResult source, int[] rows, int count,
+                                    List<RedashExpression> projections, int[] out) throws SQLException {
+        RedashColumnVector[] values = new RedashColumnVector[projections.size()];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = projections.get(i).evaluate(source, rows, count);
+        }
+        Map<Object, Boolean> seen = new HashMap<>();
+        int kept = 0;
+        for (int i = 0; i < count; i++) {
+            List<Object> key = new ArrayList<>(values.length);
+            for (RedashColumnVector vector : values) {
+                key.add(vector.getObject(i));
+            }
+            if (seen.put(key, Boolean.TRUE) == null) {
+                out[kept++] = RedashExpression.row(rows, i);
+            }
+        }
+        return kept;
+    }
+
+    /**
+     * Sort the selected rows. With a LIMIT only the first {@code offset + limit} rows are
+     * ordered, through a bounded heap, instead of sorting the whole selection.
+     */
+    private int[] sort(RedashQueryResult source, int[] rows, int count, RedashExpression.Scope scope)
+            throws SQLException {
+        RedashColumnVector[] keys = new RedashColumnVector[orderBy.size()];
+        for (int k = 0; k < keys.length; k++) {
+            keys[k] = orderBy.get(k).expression.bind(scope).evaluate(source, rows, count);
+        }
+        Comparator<Integer> order = null;
+        for (int k = 0; k < keys.length; k++) {
+            Comparator<Integer> key = keyOrder(keys[k], orderBy.get(k));
+            order = order == null ? key : order.thenComparing(key);
+        }
+        // Equal rows keep their input order
+        order = order.thenComparing(Comparator.naturalOrder());
+
+        List<Integer> positions;
+        long needed = limit < 0 ? Long.MAX_VALUE : offset + limit;
+        if (needed < count / 4) {
+            PriorityQueue<Integer> heap = new PriorityQueue<>((int) needed + 1, order.reversed());
+            for (int i = 0; i < count; i++) {
+                heap.add(i);
+                if (heap.size() > needed) {
+                    heap.poll();
+                }
+            }
+            positions = new ArrayList<>(heap);
+        } else {
+            positions = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                positions.add(i);
+            }
+        }
+        positions.sort(order);
+
+        int[] sorted = new int[positions.size()];
+        for (int i = 0; i < sorted.length; i++) {
+            sorted[i] = RedashExpression.row(rows, positions.get(i));
+        }
+        return sorted;
+    }
+
+    private static Comparator<Integer> keyOrder(RedashColumnVector values, OrderItem item) {
+        Comparator<Integer> byValue = valueOrder(values);
+        Comparator<Integer> directed = item.descending ? byValue.reversed() : byValue;
+        int nullOrder = item.nullsFirst ? -1 : 1;
+        return (a, b) -> {
+            boolean aNull = values.isNull(a);
+            boolean bNull = values.isNull(b);
+            if (aNull || bNull) {
+                return aNull == bNull ? 0 : aNull ? nullOrder : -nullOrder;
+            }
+            return directed.compare(a, b);
+        };
+    }
+
+    /**
+     * Scope of ORDER BY: a position or an output column name refers to a select item,
+     * anything else is resolved like the select list.
+     */
+    private static RedashExpression.Scope orderScope(RedashExpression.Scope scope, List<SelectItem> selected,
+                                                     List<RedashExpression> projections) {
+        return new RedashExpression.Scope() {
+            @Override
+            public RedashExpression column(RedashExpression.ColumnRef ref) throws SQLException {
+                if (ref.getQualifier() == null) {
+                    for (int i = 0; i < selected.size(); i++) {
+                        String name = selected.get(i).alias;
+                        if (name != null && (ref.isQuoted() ? name.equals(ref.getName())
+                                : name.equalsIgnoreCase(ref.getName()))) {
+                            return projections.get(i);
+                        }
+                    }
+                }
+                return scope.column(ref);
+            }
+
+            @Override
+            public RedashExpression aggregate(RedashExpression.Aggregate call) throws SQLException {
+                return scope.aggregate(call);
+            }
+
+            @Override
+            public Object parameter(int index) throws SQLException {
+                return scope.parameter(index);
+            }
+
+            @Override
+            public RedashExpression match(RedashExpression expression) throws SQLException {
+                if (expression instanceof RedashExpression.Literal
+                        && ((RedashExpression.Literal) expression).getValue() instanceof Long) {
+                    long position = (Long) ((RedashExpression.Literal) expression).getValue();
+                    if (position >= 1 && position <= projections.size()) {
+                        return projections.get((int) position - 1);
+                    }
+                }
+                return scope.match(expression);
+            }
+        };
+    }
+
+    /**
+     * Names of the tables' columns, optionally qualified with a table's name or alias.
+     * A scope may see only some of the tables, as the conditions of a join do.
+     */
+    private final class InputScope {
+        private final Relation relation;
+        private final int fromTable;
+        private final int toTable;
+        private final Map<Integer, Object> parameters;
+
+        InputScope(Relation relation, int tableCount, Map<Integer, Object> parameters) {
+            this(relation, 0, tableCount, parameters);
+        }
+
+        InputScope(Relation relation, int fromTable, int toTable, Map<Integer, Object> parameters) {
+            this.relation = relation;
+            this.fromTable = fromTable;
+            this.toTable = toTable;
+            this.parameters = parameters;
+        }
+
+        RedashExpression column(RedashExpression.ColumnRef ref) throws SQLException {
+            String qualifier = ref.getQualifier();
+            boolean tableFound = qualifier == null;
+            int found = -1;
+            for (int t = fromTable; t < toTable; t++) {
+                if (qualifier != null) {
+                    if (!tables.get(t).qualifier().equalsIgnoreCase(qualifier)) {
+                        continue;
+                    }
+                    tableFound = true;
+                }
+                RedashQueryResult input = relation.inputs[t];
+                int index = ref.isQuoted() ? input.getColumnIndex(ref.getName())
+                        : input.getColumnIndex(ref.getName(), true);
+                if (index < 0) {
+                    continue;
+                }
+                if (found >= 0) {
+                    throw new SQLSyntaxErrorException("Column reference " + ref.getName() + " is ambiguous");
+                }
+                found = relation.offsets[t] + index;
+            }
+            if (!tableFound) {
+                throw new SQLSyntaxErrorException("Unknown table " + qualifier + " in " + qualifier + "."
+                        + ref.getName());
+            }
+            if (found < 0) {
+                throw new SQLSyntaxErrorException("Column " + ref.getName() + " not found in "
+                        + (qualifier != null ? qualifier : tables.get(fromTable).name));
+            }
+            return new RedashExpression.BoundColumn(found, relation.columns.get(found));
+        }
+
+        /**
+         * Bind an expression that refers to at least one column, all of them visible in this scope.
+         *
+         * @return The bound expression, or null if it does not fit
+         */
+        RedashExpression bindColumns(RedashExpression expression) {
+            RedashExpression.Scope scope = in("ON");
+            boolean[] referencesColumn = new boolean[1];
+            try {
+                RedashExpression bound = expression.bind(new RedashExpression.Scope() {
+                    @Override
+                    public RedashExpression column(RedashExpression.ColumnRef ref) throws SQLException {
+                        referencesColumn[0] = true;
+                        return scope.column(ref);
+                    }
+
+                    @Override
+                    public RedashExpression aggregate(RedashExpression.Aggregate call) throws SQLException {
+                        return scope.aggregate(call);
+                    }
+
+                    @Override
+                    public Object parameter(int index) throws SQLException {
+                        return scope.parameter(index);
+                    }
+
+                    @Override
+                    public RedashExpression match(RedashExpression expression) {
+                        return null;
+                    }
+                });
+                return referencesColumn[0] ? bound : null;
+            } catch (SQLException e) {
+                return null;
+            }
+        }
+
+        Object parameter(int index) throws SQLException {
+            return RedashLocalQuery.parameter(parameters, index);
+        }
+
+        // The input's names as seen from one clause, where aggregate calls are not allowed
+        RedashExpression.Scope in(String clause) {
+            return new RedashExpression.Scope() {
+                @Override
+                public RedashExpression column(RedashExpression.ColumnRef ref) throws SQLException {
+                    return InputScope.this.column(ref);
+                }
+
+                @Override
+                public RedashExpression aggregate(RedashExpression.Aggregate call) throws SQLException {
+                    throw new SQLSyntaxErrorException("Aggregate calls are not allowed in " + clause + ": " + call);
+                }
+
+                @Override
+                public Object parameter(int index) throws SQLException {
+                    return InputScope.this.parameter(index);
+                }
+
+                @Override
+                public RedashExpression match(RedashExpression expression) throws SQLException {
+                    return null;
+                }
+            };
+        }
+    }
+
+    /**
+     * Names of the grouped rows: GROUP BY keys and aggregate calls, matched by their canonical text.
+     */
+    private static final class GroupedScope implements RedashExpression.Scope {
+        private final InputScope input;
+        private final Map<Integer, Object> parameters;
+        private final Map<String, Integer> keys = new HashMap<>();
+        private final Map<String, Integer> aggregates = new HashMap<>();
+        private List<RedashColumn> columns = Collections.emptyList();
+
+        GroupedScope(InputScope input, Map<Integer, Object> parameters) {
+            this.input = input;
+            this.parameters = parameters;
+        }
+
+        @Override
+        public RedashExpression column(RedashExpression.ColumnRef ref) throws SQLException {
+            throw new SQLSyntaxErrorException("Column " + ref.getName()
+                    + " must appear in the GROUP BY clause or be used in an aggregate function");
+        }
+
+        @Override
+        public RedashExpression aggregate(RedashExpression.Aggregate call) throws SQLException {
+            Integer index = aggregates.get(call.toString());
+            if (index == null) {
+                throw new SQLSyntaxErrorException("Aggregate " + call + " cannot be used here");
+            }
+            return new RedashExpression.BoundColumn(index, columns.get(index));
+        }
+
+        @Override
+        public Object parameter(int index) throws SQLException {
+            return RedashLocalQuery.parameter(parameters, index);
+        }
+
+        @Override
+        public RedashExpression match(RedashExpression expression) throws SQLException {
+            // Compare bound forms, so that q.name matches a GROUP BY on name
+            RedashExpression bound;
+            try {
+                bound = expression.bind(input.in("GROUP BY"));
+            } catch (SQLException e) {
+                return null;
+            }
+            Integer index = keys.get(bound.toString());
+            if (index != null) {
+                return new RedashExpression.BoundColumn(index, columns.get(index));
+            }
+            if (expression instanceof RedashExpression.BoundColumn) {
+                // A column of SELECT *
+                throw new SQLSyntaxErrorException("Column " + input.relation.columns.get(
+                        ((RedashExpression.BoundColumn) expression).getIndex()).getName()
+                        + " must appear in the GROUP BY clause or be used in an aggregate function");
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Value of a {@code ?} marker, as a Long, Double, Boolean or String literal value.
+     */
+    static Object parameter(Map<Integer, Object> parameters, int index) throws SQLException {
+        if (!parameters.containsKey(index)) {
+            throw new SQLException("No value specified for parameter " + index, "07001");
+        }
+        Object value = parameters.get(index);
+        if (value == null || value instanceof Long || value instanceof Double || value instanceof Boolean
+                || value instanceof String) {
+            return value;
+        }
+        if (value instanceof Integer || value instanceof Short || value instanceof Byte
+                || value instanceof BigInteger) {
+            return ((Number) value).longValue();
+        }
+        if (value instanceof BigDecimal) {
+            try {
+                return ((BigDecimal) value).longValueExact();
+            } catch (ArithmeticException e) {
+                return ((BigDecimal) value).doubleValue();
+            }
+        }
+        if (value instanceof Number) {
+            return ((Number) value).doubleValue();
+        }
+        return value.toString();
+    }
+}
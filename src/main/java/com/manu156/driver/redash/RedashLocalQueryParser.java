@@ -0,0 +1,649 @@
+package com.manu156.driver.redash;
+
+import java.sql.SQLException;
+import java.sql.SQLSyntaxErrorException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Recursive-descent parser for the statements the driver evaluates over a saved
+ * query's result, e.g. {@code SELECT name, SUM(total) FROM query_42 WHERE ... GROUP BY name},
+ * or over several saved queries joined with {@code [INNER] JOIN} or {@code LEFT [OUTER] JOIN ... ON}.
+ * Identifiers may be quoted with double quotes, backticks or brackets; keywords are
+ * case-insensitive.
+ */
+final class RedashLocalQueryParser {
+    private static final Pattern QUERY_TABLE_PATTERN = Pattern.compile("(?i)query_(\\d+)");
+
+    private static final Set<String> RESERVED = new HashSet<>(Arrays.asList(
+            "SELECT", "DISTINCT", "ALL", "TOP", "FROM", "WHERE", "GROUP", "BY", "HAVING", "ORDER", "ASC", "DESC",
+            "NULLS", "LIMIT", "OFFSET", "FETCH", "AS", "AND", "OR", "NOT", "IS", "IN", "BETWEEN", "LIKE", "ILIKE",
+            "NULL", "TRUE", "FALSE", "JOIN", "INNER", "LEFT", "OUTER", "RIGHT", "FULL", "CROSS", "NATURAL", "ON",
+            "USING", "UNION", "INTERSECT", "EXCEPT", "CASE", "WHEN", "THEN", "ELSE", "END", "WINDOW"));
+
+    private static final Set<String> AGGREGATES = new HashSet<>(Arrays.asList("COUNT", "SUM", "AVG", "MIN", "MAX"));
+
+    private enum Kind { WORD, QUOTED, STRING, NUMBER, SYMBOL, END }
+
+    private static final class Token {
+        final Kind kind;
+        final String text;
+        final int start;
+        final int end;
+
+        Token(Kind kind, String text, int start, int end) {
+            this.kind = kind;
+            this.text = text;
+            this.start = start;
+            this.end = end;
+        }
+
+        boolean is(String keyword) {
+            return kind == Kind.WORD && text.equalsIgnoreCase(keyword);
+        }
+
+        boolean isSymbol(String symbol) {
+            return kind == Kind.SYMBOL && text.equals(symbol);
+        }
+    }
+
+    private final String sql;
+    private final List<Token> tokens;
+    private int position;
+    private int parameterCount;
+
+    private RedashLocalQueryParser(String sql) throws SQLException {
+        this.sql = sql;
+        this.tokens = tokenize(sql);
+    }
+
+    /**
+     * Parse a statement.
+     *
+     * @param sql The statement
+     * @return The parsed statement
+     * @throws SQLSyntaxErrorException if the statement is malformed
+     * @throws java.sql.SQLFeatureNotSupportedException if the statement uses SQL the driver cannot evaluate
+     */
+    static RedashLocalQuery parse(String sql) throws SQLException {
+        return new RedashLocalQueryParser(sql).query();
+    }
+
+    private RedashLocalQuery query() throws SQLException {
+        RedashLocalQuery query = new RedashLocalQuery();
+        expectKeyword("SELECT");
+        if (accept("DISTINCT")) {
+            query.distinct = true;
+        } else {
+            accept("ALL");
+        }
+        if (accept("TOP")) {
+            query.limit = integer();
+        }
+        do {
+            query.items.add(selectItem());
+        } while (acceptSymbol(","));
+
+        expectKeyword("FROM");
+        tableRef(query, false, false);
+        while (true) {
+            if (accept("JOIN")) {
+                tableRef(query, true, false);
+            } else if (accept("INNER")) {
+                expectKeyword("JOIN");
+                tableRef(query, true, false);
+            } else if (accept("LEFT")) {
+                accept("OUTER");
+                expectKeyword("JOIN");
+                tableRef(query, true, true);
+            } else if (peek().isSymbol(",") || peek().is("RIGHT") || peek().is("FULL") || peek().is("CROSS")
+                    || peek().is("NATURAL")) {
+                throw RedashExpression.unsupported(peek().isSymbol(",") ? "A join in the FROM list"
+                        : peek().text.toUpperCase(Locale.ROOT) + " JOIN");
+            } else {
+                break;
+            }
+        }
+
+        if (accept("WHERE")) {
+            query.where = expression();
+        }
+        if (accept("GROUP")) {
+            expectKeyword("BY");
+            do {
+                query.groupBy.add(expression());
+            } while (acceptSymbol(","));
+        }
+        if (accept("HAVING")) {
+            query.having = expression();
+        }
+        if (accept("ORDER")) {
+            expectKeyword("BY");
+            do {
+                query.orderBy.add(orderItem());
+            } while (acceptSymbol(","));
+        }
+        limitClause(query);
+        acceptSymbol(";");
+        Token end = peek();
+        if (end.kind != Kind.END) {
+            if (end.is("UNION") || end.is("INTERSECT") || end.is("EXCEPT")) {
+                throw RedashExpression.unsupported(end.text.toUpperCase(Locale.ROOT));
+            }
+            throw error("Unexpected " + describe(end), end);
+        }
+        return query;
+    }
+
+    private RedashLocalQuery.SelectItem selectItem() throws SQLException {
+        if (acceptSymbol("*")) {
+            return RedashLocalQuery.SelectItem.star(null);
+        }
+        if ((peek().kind == Kind.WORD || peek().kind == Kind.QUOTED) && peek(1).isSymbol(".")
+                && peek(2).isSymbol("*")) {
+            String qualifier = identifier();
+            position += 2;
+            return RedashLocalQuery.SelectItem.star(qualifier);
+        }
+        int start = peek().start;
+        RedashExpression expression = expression();
+        String label = sql.substring(start, tokens.get(position - 1).end);
+        String alias = null;
+        if (accept("AS")) {
+            alias = identifier();
+        } else if (isAliasNext()) {
+            alias = identifier();
+        }
+        return RedashLocalQuery.SelectItem.of(expression, alias, label);
+    }
+
+    private RedashLocalQuery.OrderItem orderItem() throws SQLException {
+        RedashExpression expression = expression();
+        boolean descending = false;
+        if (accept("DESC")) {
+            descending = true;
+        } else {
+            accept("ASC");
+        }
+        // Nulls sort as the largest values unless told otherwise
+        boolean nullsFirst = descending;
+        if (accept("NULLS")) {
+            if (accept("FIRST")) {
+                nullsFirst = true;
+            } else {
+                expectKeyword("LAST");
+                nullsFirst = false;
+            }
+        }
+        return new RedashLocalQuery.OrderItem(expression, descending, nullsFirst);
+    }
+
+    private void limitClause(RedashLocalQuery query) throws SQLException {
+        if (accept("LIMIT")) {
+            if (accept("ALL")) {
+                query.limit = -1;
+            } else {
+                long first = integer();
+                if (acceptSymbol(",")) {
+                    query.offset = first;
+                    query.limit = integer();
+                } else {
+                    query.limit = first;
+                }
+            }
+            if (accept("OFFSET")) {
+                query.offset = integer();
+                acceptRows();
+            }
+            return;
+        }
+        if (accept("OFFSET")) {
+            query.offset = integer();
+            acceptRows();
+        }
+        if (accept("FETCH")) {
+            if (!accept("FIRST")) {
+                expectKeyword("NEXT");
+            }
+            query.limit = peek().kind == Kind.NUMBER ? integer() : 1;
+            acceptRows();
+            expectKeyword("ONLY");
+        }
+    }
+
+    // query_<id> [[AS] alias], followed by ON <condition> when it is joined
+    private void tableRef(RedashLocalQuery query, boolean joined, boolean leftJoin) throws SQLException {
+        Token table = next();
+        Matcher matcher = QUERY_TABLE_PATTERN.matcher(table.text);
+        if ((table.kind != Kind.WORD && table.kind != Kind.QUOTED) || !matcher.matches()) {
+            if (table.isSymbol("(")) {
+                throw RedashExpression.unsupported("A subquery");
+            }
+            throw error("Expected query_<id>", table);
+        }
+        String alias = null;
+        if (accept("AS")) {
+            alias = identifier();
+        } else if (isAliasNext()) {
+            alias = identifier();
+        }
+        RedashExpression on = null;
+        if (joined) {
+            if (peek().is("USING")) {
+                throw RedashExpression.unsupported("JOIN ... USING");
+            }
+            expectKeyword("ON");
+            on = expression();
+        }
+        RedashLocalQuery.TableRef ref = new RedashLocalQuery.TableRef(matcher.group(1), table.text, alias, leftJoin, on);
+        for (RedashLocalQuery.TableRef other : query.tables) {
+            if (other.qualifier().equalsIgnoreCase(ref.qualifier())) {
+                throw error("Table " + ref.qualifier() + " specified more than once", table);
+            }
+        }
+        query.tables.add(ref);
+    }
+
+    private void acceptRows() {
+        if (!accept("ROWS")) {
+            accept("ROW");
+        }
+    }
+
+    private RedashExpression expression() throws SQLException {
+        RedashExpression left = conjunction();
+        while (accept("OR")) {
+            left = new RedashExpression.Logical(false, left, conjunction());
+        }
+        return left;
+    }
+
+    private RedashExpression conjunction() throws SQLException {
+        RedashExpression left = negation();
+        while (accept("AND")) {
+            left = new RedashExpression.Logical(true, left, negation());
+        }
+        return left;
+    }
+
+    private RedashExpression negation() throws SQLException {
+        if (accept("NOT")) {
+            return new RedashExpression.Unary("NOT", negation());
+        }
+        return predicate();
+    }
+
+    private RedashExpression predicate() throws SQLException {
+        RedashExpression left = additive();
+        Token token = peek();
+        if (token.kind == Kind.SYMBOL) {
+            String operator = comparisonOperator(token.text);
+            if (operator != null) {
+                position++;
+                return new RedashExpression.Comparison(operator, left, additive());
+            }
+            return left;
+        }
+        if (accept("IS")) {
+            boolean negated = accept("NOT");
+            expectKeyword("NULL");
+            return new RedashExpression.IsNull(left, negated);
+        }
+        boolean negated = false;
+        if (peek().is("NOT") && (peek(1).is("IN") || peek(1).is("BETWEEN") || peek(1).is("LIKE")
+                || peek(1).is("ILIKE"))) {
+            position++;
+            negated = true;
+        }
+        if (accept("IN")) {
+            expectSymbol("(");
+            if (peek().is("SELECT")) {
+                throw RedashExpression.unsupported("A subquery");
+            }
+            List<RedashExpression> values = new ArrayList<>();
+            do {
+                values.add(additive());
+            } while (acceptSymbol(","));
+            expectSymbol(")");
+            return new RedashExpression.InList(left, values, negated);
+        }
+        if (accept("BETWEEN")) {
+            RedashExpression low = additive();
+            expectKeyword("AND");
+            RedashExpression high = additive();
+            RedashExpression between = new RedashExpression.Logical(true,
+                    new RedashExpression.Comparison(">=", left, low),
+                    new RedashExpression.Comparison("<=", left, high));
+            return negated ? new RedashExpression.Unary("NOT", between) : between;
+        }
+        boolean like = peek().is("LIKE");
+        if (like || peek().is("ILIKE")) {
+            position++;
+            Token pattern = next();
+            if (pattern.kind != Kind.STRING) {
+                throw RedashExpression.unsupported("A LIKE pattern that is not a string literal");
+            }
+            return new RedashExpression.Like(left, pattern.text, !like, negated);
+        }
+        if (negated) {
+            throw error("Expected IN, BETWEEN or LIKE after NOT", peek());
+        }
+        return left;
+    }
+
+    private static String comparisonOperator(String symbol) {
+        switch (symbol) {
+            case "=":
+            case "<":
+            case "<=":
+            case ">":
+            case ">=":
+                return symbol;
+            case "<>":
+            case "!=":
+                return "<>";
+            default:
+                return null;
+        }
+    }
+
+    private RedashExpression additive() throws SQLException {
+        RedashExpression left = multiplicative();
+        while (true) {
+            Token token = peek();
+            if (token.isSymbol("+") || token.isSymbol("-") || token.isSymbol("||")) {
+                position++;
+                left = new RedashExpression.Arithmetic(token.text, left, multiplicative());
+            } else {
+                return left;
+            }
+        }
+    }
+
+    private RedashExpression multiplicative() throws SQLException {
+        RedashExpression left = unary();
+        while (true) {
+            Token token = peek();
+            if (token.isSymbol("*") || token.isSymbol("/") || token.isSymbol("%")) {
+                position++;
+                left = new RedashExpression.Arithmetic(token.text, left, unary());
+            } else {
+                return left;
+            }
+        }
+    }
+
+    private RedashExpression unary() throws SQLException {
+        if (acceptSymbol("-")) {
+            Token token = peek();
+            if (token.kind == Kind.NUMBER) {
+                position++;
+                return new RedashExpression.Literal(number("-" + token.text, token));
+            }
+            return new RedashExpression.Unary("-", unary());
+        }
+        if (acceptSymbol("+")) {
+            return unary();
+        }
+        return primary();
+    }
+
+    private RedashExpression primary() throws SQLException {
+        Token token = next();
+        switch (token.kind) {
+            case NUMBER:
+                return new RedashExpression.Literal(number(token.text, token));
+            case STRING:
+                return new RedashExpression.Literal(token.text);
+            case QUOTED:
+                return columnRef(token.text, true);
+            case SYMBOL:
+                if (token.text.equals("?")) {
+                    return new RedashExpression.Parameter(++parameterCount);
+                }
+                if (token.text.equals("(")) {
+                    if (peek().is("SELECT")) {
+                        throw RedashExpression.unsupported("A subquery");
+                    }
+                    RedashExpression inner = expression();
+                    expectSymbol(")");
+                    return inner;
+                }
+                throw error("Unexpected " + describe(token), token);
+            case WORD:
+                break;
+            default:
+                throw error("Unexpected end of statement", token);
+        }
+
+        String word = token.text.toUpperCase(Locale.ROOT);
+        if (word.equals("NULL")) {
+            return new RedashExpression.Literal(null);
+        }
+        if (word.equals("TRUE") || word.equals("FALSE")) {
+            return new RedashExpression.Literal(Boolean.valueOf(word.equals("TRUE")));
+        }
+        if (word.equals("CASE")) {
+            throw RedashExpression.unsupported("CASE");
+        }
+        if (peek().isSymbol("(")) {
+            position++;
+            if (!AGGREGATES.contains(word)) {
+                throw RedashExpression.unsupported("Function " + word);
+            }
+            if (accept("DISTINCT")) {
+                throw RedashExpression.unsupported(word + "(DISTINCT ...)");
+            }
+            RedashExpression argument = null;
+            if (word.equals("COUNT") && acceptSymbol("*")) {
+                argument = null;
+            } else {
+                argument = expression();
+            }
+            expectSymbol(")");
+            if (peek().is("OVER")) {
+                throw RedashExpression.unsupported("A window function");
+            }
+            return new RedashExpression.Aggregate(word, argument);
+        }
+        if (RESERVED.contains(word)) {
+            throw error("Unexpected " + describe(token), token);
+        }
+        return columnRef(token.text, false);
+    }
+
+    private RedashExpression columnRef(String first, boolean quoted) throws SQLException {
+        if (acceptSymbol(".")) {
+            Token name = next();
+            if (name.kind != Kind.WORD && name.kind != Kind.QUOTED) {
+                throw error("Expected a column name after " + first + ".", name);
+            }
+            return new RedashExpression.ColumnRef(first, name.text, name.kind == Kind.QUOTED);
+        }
+        return new RedashExpression.ColumnRef(null, first, quoted);
+    }
+
+    private Object number(String text, Token token) throws SQLException {
+        try {
+            if (text.indexOf('.') < 0 && text.indexOf('e') < 0 && text.indexOf('E') < 0) {
+                return Long.valueOf(text);
+            }
+            return Double.valueOf(text);
+        } catch (NumberFormatException e) {
+            throw error("Invalid number " + text, token);
+        }
+    }
+
+    private long integer() throws SQLException {
+        Token token = next();
+        if (token.kind != Kind.NUMBER || token.text.indexOf('.') >= 0) {
+            throw error("Expected a row count", token);
+        }
+        try {
+            return Long.parseLong(token.text);
+        } catch (NumberFormatException e) {
+            throw error("Invalid row count " + token.text, token);
+        }
+    }
+
+    private String identifier() throws SQLException {
+        Token token = next();
+        if (token.kind == Kind.QUOTED || (token.kind == Kind.WORD
+                && !RESERVED.contains(token.text.toUpperCase(Locale.ROOT)))) {
+            return token.text;
+        }
+        throw error("Expected an identifier", token);
+    }
+
+    private boolean isAliasNext() {
+        Token token = peek();
+        return token.kind == Kind.QUOTED
+                || (token.kind == Kind.WORD && !RESERVED.contains(token.text.toUpperCase(Locale.ROOT)));
+    }
+
+    private Token peek() {
+        return peek(0);
+    }
+
+    private Token peek(int ahead) {
+        return tokens.get(Math.min(position + ahead, tokens.size() - 1));
+    }
+
+    private Token next() {
+        Token token = peek();
+        if (token.kind != Kind.END) {
+            position++;
+        }
+        return token;
+    }
+
+    private boolean accept(String keyword) {
+        if (peek().is(keyword)) {
+            position++;
+            return true;
+        }
+        return false;
+    }
+
+    private boolean acceptSymbol(String symbol) {
+        if (peek().isSymbol(symbol)) {
+            position++;
+            return true;
+        }
+        return false;
+    }
+
+    private void expectKeyword(String keyword) throws SQLException {
+        if (!accept(keyword)) {
+            throw error("Expected " + keyword, peek());
+        }
+    }
+
+    private void expectSymbol(String symbol) throws SQLException {
+        if (!acceptSymbol(symbol)) {
+            throw error("Expected '" + symbol + "'", peek());
+        }
+    }
+
+    private static String describe(Token token) {
+        return token.kind == Kind.END ? "end of statement" : "'" + token.text + "'";
+    }
+
+    private SQLSyntaxErrorException error(String message, Token token) {
+        return new SQLSyntaxErrorException(message + " at position " + (token.start + 1) + ": " + sql);
+    }
+
+    private static List<Token> tokenize(String sql) throws SQLException {
+        List<Token> tokens = new ArrayList<>();
+        int i = 0;
+        int length = sql.length();
+        while (i < length) {
+            char c = sql.charAt(i);
+            if (Character.isWhitespace(c)) {
+                i++;
+            } else if (c == '-' && i + 1 < length && sql.charAt(i + 1) == '-') {
+                while (i < length && sql.charAt(i) != '\n') {
+                    i++;
+                }
+            } else if (c == '/' && i + 1 < length && sql.charAt(i + 1) == '*') {
+                int close = sql.indexOf("*/", i + 2);
+                i = close < 0 ? length : close + 2;
+            } else if (c == '\'') {
+                int end = quoted(sql, i, '\'');
+                tokens.add(new Token(Kind.STRING, sql.substring(i + 1, end - 1).replace("''", "'"), i, end));
+                i = end;
+            } else if (c == '"' || c == '`' || c == '[') {
+                char close = c == '[' ? ']' : c;
+                int end = quoted(sql, i, close);
+                String doubled = String.valueOf(close) + close;
+                tokens.add(new Token(Kind.QUOTED, sql.substring(i + 1, end - 1).replace(doubled, String.valueOf(close)),
+                        i, end));
+                i = end;
+            } else if (Character.isDigit(c) || (c == '.' && i + 1 < length && Character.isDigit(sql.charAt(i + 1)))) {
+                int end = i;
+                while (end < length && (Character.isDigit(sql.charAt(end)) || sql.charAt(end) == '.')) {
+                    end++;
+                }
+                if (end < length && (sql.charAt(end) == 'e' || sql.charAt(end) == 'E')) {
+                    int exponent = end + 1;
+                    if (exponent < length && (sql.charAt(exponent) == '+' || sql.charAt(exponent) == '-')) {
+                        exponent++;
+                    }
+                    if (exponent < length && Character.isDigit(sql.charAt(exponent))) {
+                        end = exponent;
+                        while (end < length && Character.isDigit(sql.charAt(end))) {
+                            end++;
+                        }
+                    }
+                }
+                tokens.add(new Token(Kind.NUMBER, sql.substring(i, end), i, end));
+                i = end;
+            } else if (Character.isLetter(c) || c == '_') {
+                int end = i;
+                while (end < length && (Character.isLetterOrDigit(sql.charAt(end)) || sql.charAt(end) == '_'
+                        || sql.charAt(end) == '$')) {
+                    end++;
+                }
+                tokens.add(new Token(Kind.WORD, sql.substring(i, end), i, end));
+                i = end;
+            } else {
+                String two = i + 1 < length ? sql.substring(i, i + 2) : "";
+                if (two.equals("<=") || two.equals(">=") || two.equals("<>") || two.equals("!=")
+                        || two.equals("||")) {
+                    tokens.add(new Token(Kind.SYMBOL, two, i, i + 2));
+                    i += 2;
+                } else if ("(),.*+-/%=<>;?".indexOf(c) >= 0) {
+                    tokens.add(new Token(Kind.SYMBOL, String.valueOf(c), i, i + 1));
+                    i++;
+                } else {
+                    throw new SQLSyntaxErrorException("Unexpected character '" + c + "' at position " + (i + 1)
+                            + ": " + sql);
+                }
+            }
+        }
+        tokens.add(new Token(Kind.END, "", length, length));
+        return tokens;
+    }
+
+    // Index just past the closing quote; a doubled quote inside stands for itself
+    private static int quoted(String sql, int start, char close) throws SQLException {
+        int i = start + 1;
+        while (i < sql.length()) {
+            if (sql.charAt(i) == close) {
+                if (i + 1 < sql.length() && sql.charAt(i + 1) == close) {
+                    i += 2;
+                    continue;
+                }
+                return i + 1;
+            }
+            i++;
+        }
+        throw new SQLSyntaxErrorException("Unterminated quote at position " + (start + 1) + ": " + sql);
+    }
+}
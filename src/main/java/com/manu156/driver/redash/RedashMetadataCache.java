@@ -0,0 +1,246 @@
+package com.manu156.driver.redash;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cache of Redash metadata (data sources and saved query definitions), shared by all
+ * connections to the same server with the same API key.
+ * Entries that were read since the last refresh are re-validated in the background
+ * before they expire, using conditional requests when the server supplies an
+ * ETag or Last-Modified header, so statements rarely wait on a metadata round trip.
+ */
+final class RedashMetadataCache {
+    private static final Logger logger = LoggerFactory.getLogger(RedashMetadataCache.class);
+
+    private static final Map<String, RedashMetadataCache> caches = new HashMap<>();
+    private static ScheduledExecutorService refresher;
+
+    private final String key;
+    private final long ttlMillis;
+    private final Map<String, Entry<?>> entries = new ConcurrentHashMap<>();
+    private ScheduledFuture<?> refreshTask;
+    private int references;
+
+    /**
+     * Loads a metadata value, optionally as a conditional request.
+     */
+    interface Loader<T> {
+        /**
+         * @param etag The ETag of the cached value, or null
+         * @param lastModified The Last-Modified value of the cached value, or null
+         * @return The fetched value, or a not-modified marker
+         */
+        Fetched<T> load(String etag, String lastModified) throws SQLException;
+    }
+
+    /**
+     * Outcome of a metadata request.
+     */
+    static final class Fetched<T> {
+        private final T value;
+        private final boolean notModified;
+        private final String etag;
+        private final String lastModified;
+
+        private Fetched(T value, boolean notModified, String etag, String lastModified) {
+            this.value = value;
+            this.notModified = notModified;
+            this.etag = etag;
+            this.lastModified = lastModified;
+        }
+
+        static <T> Fetched<T> of(T value, String etag, String lastModified) {
+            return new Fetched<>(value, false, etag, lastModified);
+        }
+
+        static <T> Fetched<T> notModified() {
+            return new Fetched<>(null, true, null, null);
+        }
+
+        T getValue() {
+            return value;
+        }
+    }
+
+    private static final class Entry<T> {
+        private final Loader<T> loader;
+        private volatile T value;
+        private volatile String etag;
+        private volatile String lastModified;
+        private volatile long expiresAtNanos;
+        private volatile boolean accessed;
+
+        private Entry(Loader<T> loader) {
+            this.loader = loader;
+        }
+    }
+
+    private RedashMetadataCache(String key, long ttlMillis) {
+        this.key = key;
+        this.ttlMillis = ttlMillis;
+    }
+
+    /**
+     * Acquire the metadata cache for a server and API key, creating it on first use.
+     * The expiry is taken from the connection that creates the cache.
+     *
+     * @param baseUrl The API base URL
+     * @param apiKey The API key
+     * @param ttlMillis How long metadata stays valid
+     * @return The shared cache
+     */
+    static synchronized RedashMetadataCache acquire(String baseUrl, String apiKey, long ttlMillis) {
+        String key = baseUrl + "\n" + apiKey;
+        RedashMetadataCache cache = caches.get(key);
+        if (cache == null) {
+            cache = new RedashMetadataCache(key, ttlMillis);
+            cache.startRefresh();
+            caches.put(key, cache);
+        }
+        cache.references++;
+        return cache;
+    }
+
+    /**
+     * Release a reference to this cache, stopping its background refresh when unused.
+     */
+    void release() {
+        synchronized (RedashMetadataCache.class) {
+            references--;
+            if (references <= 0) {
+                caches.remove(key);
+                refreshTask.cancel(false);
+                entries.clear();
+            }
+        }
+    }
+
+    /**
+     * Get a metadata value, loading or re-validating it if it has expired.
+     *
+     * @param name The entry name, e.g. "data_sources" or "query:12"
+     * @param loader Loads the value from Redash
+     * @return The value
+     * @throws SQLException if the value cannot be loaded
+     */
+    @SuppressWarnings("unchecked")
+    <T> T get(String name, Loader<T> loader) throws SQLException {
+        Entry<T> entry = (Entry<T>) entries.computeIfAbsent(name, n -> new Entry<>(loader));
+        entry.accessed = true;
+        if (entry.value != null && entry.expiresAtNanos - System.nanoTime() > 0) {
+            return entry.value;
+        }
+        refresh(entry);
+        return entry.value;
+    }
+
+    /**
+     * Get a metadata value only if it is cached and still valid, without loading it.
+     *
+     * @param name The entry name
+     * @return The value, or null
+     */
+    @SuppressWarnings("unchecked")
+    <T> T getIfValid(String name) {
+        Entry<T> entry = (Entry<T>) entries.get(name);
+        if (entry == null) {
+            return null;
+        }
+        entry.accessed = true;
+        return entry.value != null && entry.expiresAtNanos - System.nanoTime() > 0 ? entry.value : null;
+    }
+
+    /**
+     * Store a metadata value that was fetched outside the cache, e.g. asynchronously.
+     *
+     * @param name The entry name
+     * @param loader Loads the value from Redash when it is refreshed
+     * @param fetched The fetched value and its validators
+     */
+    <T> void put(String name, Loader<T> loader, Fetched<T> fetched) {
+        Entry<T> entry = new Entry<>(loader);
+        entry.value = fetched.value;
+        entry.etag = fetched.etag;
+        entry.lastModified = fetched.lastModified;
+        entry.expiresAtNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(ttlMillis);
+        entry.accessed = true;
+        entries.put(name, entry);
+    }
+
+    /**
+     * Drop all cached metadata.
+     */
+    void invalidateAll() {
+        entries.clear();
+    }
+
+    /**
+     * Drop one cached entry.
+     *
+     * @param name The entry name
+     */
+    void invalidate(String name) {
+        entries.remove(name);
+    }
+
+    private <T> void refresh(Entry<T> entry) throws SQLException {
+        T cached = entry.value;
+        Fetched<T> fetched = cached != null
+                ? entry.loader.load(entry.etag, entry.lastModified)
+                : entry.loader.load(null, null);
+        if (!fetched.notModified || cached == null) {
+            if (fetched.notModified) {
+                fetched = entry.loader.load(null, null);
+            }
+            entry.value = fetched.value;
+            entry.etag = fetched.etag;
+            entry.lastModified = fetched.lastModified;
+        }
+        entry.expiresAtNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(ttlMillis);
+    }
+
+    private void startRefresh() {
+        // Re-validate entries in use a little before they expire
+        long period = Math.max(1, ttlMillis * 3 / 4);
+        refreshTask = refresher().scheduleWithFixedDelay(this::refreshAccessed, period, period,
+                TimeUnit.MILLISECONDS);
+    }
+
+    private void refreshAccessed() {
+        for (Map.Entry<String, Entry<?>> mapEntry : entries.entrySet()) {
+            Entry<?> entry = mapEntry.getValue();
+            if (!entry.accessed) {
+                // Not read for a whole period: let it expire instead of keeping it warm
+                entries.remove(mapEntry.getKey(), entry);
+                continue;
+            }
+            entry.accessed = false;
+            try {
+                refresh(entry);
+            } catch (SQLException | RuntimeException e) {
+                logger.debug("Background refresh of {} failed", mapEntry.getKey(), e);
+            }
+        }
+    }
+
+    private static synchronized ScheduledExecutorService refresher() {
+        if (refresher == null) {
+            refresher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "redash-metadata-refresh");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return refresher;
+    }
+}
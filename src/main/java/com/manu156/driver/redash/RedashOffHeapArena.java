@@ -0,0 +1,195 @@
+package com.manu156.driver.redash;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.ref.Cleaner;
+import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Direct memory holding the column data of one off-heap result, outside the Java heap.
+ * Every allocation is reserved against a driver-wide byte budget, so a large result costs the
+ * garbage collector nothing while it is read. Closing the arena returns its bytes to the budget
+ * at once, but leaves its buffers to be freed by the JVM when they are garbage collected: a
+ * result set may be closed by another thread, such as a pool closing its connection, while a
+ * reader is still inside a vector, and freeing the memory under that reader would crash the
+ * process rather than fail the read. An arena that is dropped without being closed returns its
+ * reservation once it is garbage collected.
+ */
+final class RedashOffHeapArena implements Closeable {
+    private static final Logger logger = LoggerFactory.getLogger(RedashOffHeapArena.class);
+
+    static final long DEFAULT_MAX_BYTES = 1024L * 1024 * 1024;
+
+    private static final AtomicLong reservedBytes = new AtomicLong();
+    private static volatile long maxBytes = DEFAULT_MAX_BYTES;
+    private static boolean maxBytesConfigured;
+    private static final Cleaner cleaner =
+            Cleaner.create(RedashThreads.daemonThreadFactory("redash-off-heap-cleaner"));
+    private static final MethodHandle FREE = freeHandle();
+
+    private final List<ByteBuffer> buffers = new ArrayList<>();
+    private final Reservation reservation = new Reservation();
+    private final Cleaner.Cleanable cleanable;
+    private volatile boolean closed;
+
+    RedashOffHeapArena() {
+        this.cleanable = cleaner.register(this, reservation);
+    }
+
+    /**
+     * Thrown when an allocation would exceed the budget or the JVM's direct memory limit.
+     */
+    static final class ExhaustedException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        ExhaustedException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * Set the byte budget shared by all arenas. Arenas over a lowered budget keep their memory,
+     * but nothing more is allocated until enough of it has been freed.
+     *
+     * @param bytes The budget in bytes
+     */
+    static synchronized void setMaxBytes(long bytes) {
+        maxBytes = bytes;
+        maxBytesConfigured = true;
+    }
+
+    /**
+     * Apply the {@code offHeapMaxBytes} of a connection. The budget is shared by the whole process,
+     * so it is taken from the first connection that sets it; a later connection asking for a
+     * different budget is logged and leaves the budget as it is.
+     *
+     * @param bytes The budget requested by the connection
+     */
+    static synchronized void configureMaxBytes(long bytes) {
+        if (!maxBytesConfigured) {
+            setMaxBytes(bytes);
+        } else if (bytes != maxBytes) {
+            logger.warn("Ignoring offHeapMaxBytes={}: the off-heap budget of this process is already {} bytes",
+                    bytes, maxBytes);
+        }
+    }
+
+    /**
+     * @return Bytes currently held by all arenas
+     */
+    static long getReservedBytes() {
+        return reservedBytes.get();
+    }
+
+    /**
+     * Allocate a zeroed little-endian buffer.
+     *
+     * @param bytes The capacity
+     * @return The buffer, owned by this arena
+     * @throws ExhaustedException if the budget or the direct memory limit would be exceeded
+     */
+    synchronized ByteBuffer allocate(int bytes) {
+        if (closed) {
+            throw new IllegalStateException("Off-heap result memory has been released");
+        }
+        long reserved = reservedBytes.addAndGet(bytes);
+        if (reserved > maxBytes) {
+            reservedBytes.addAndGet(-bytes);
+            throw new ExhaustedException("Off-heap result memory budget of " + maxBytes + " bytes exhausted");
+        }
+        ByteBuffer buffer;
+        try {
+            buffer = ByteBuffer.allocateDirect(bytes).order(ByteOrder.LITTLE_ENDIAN);
+        } catch (OutOfMemoryError e) {
+            reservedBytes.addAndGet(-bytes);
+            throw new ExhaustedException("Direct memory exhausted (see -XX:MaxDirectMemorySize): " + e.getMessage());
+        }
+        reservation.bytes += bytes;
+        buffers.add(buffer);
+        return buffer;
+    }
+
+    /**
+     * Free a buffer of this arena at once, e.g. one outgrown by a builder. Only buffers that
+     * no vector has been built over may be freed this way.
+     *
+     * @param buffer A buffer returned by {@link #allocate}
+     */
+    synchronized void free(ByteBuffer buffer) {
+        for (int i = buffers.size() - 1; i >= 0; i--) {
+            if (buffers.get(i) == buffer) {
+                buffers.remove(i);
+                reservation.release(buffer.capacity());
+                release(buffer);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Return the bytes of all buffers to the budget. The buffers stay readable until they
+     * are garbage collected.
+     */
+    @Override
+    public synchronized void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        buffers.clear();
+        cleanable.clean();
+    }
+
+    private static void release(ByteBuffer buffer) {
+        if (FREE != null) {
+            try {
+                FREE.invokeExact(buffer);
+            } catch (Throwable e) {
+                // Left to the garbage collector
+            }
+        }
+    }
+
+    // Unsafe.invokeCleaner frees a direct buffer immediately; without it buffers are freed when collected
+    private static MethodHandle freeHandle() {
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Field field = unsafeClass.getDeclaredField("theUnsafe");
+            field.setAccessible(true);
+            return MethodHandles.lookup()
+                    .findVirtual(unsafeClass, "invokeCleaner", MethodType.methodType(void.class, ByteBuffer.class))
+                    .bindTo(field.get(null));
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            logger.debug("Off-heap memory will be freed by the garbage collector: {}", e.toString());
+            return null;
+        }
+    }
+
+    /**
+     * Bytes an arena holds against the budget, returned when the arena is closed or collected.
+     */
+    private static final class Reservation implements Runnable {
+        private long bytes;
+
+        void release(long released) {
+            bytes -= released;
+            reservedBytes.addAndGet(-released);
+        }
+
+        @Override
+        public void run() {
+            reservedBytes.addAndGet(-bytes);
+            bytes = 0;
+        }
+    }
+}
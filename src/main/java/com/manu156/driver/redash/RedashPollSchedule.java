@@ -0,0 +1,48 @@
+package com.manu156.driver.redash;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Exponential backoff schedule with jitter for polling Redash jobs.
+ * Polls start fast so short queries return quickly, then back off towards
+ * the configured cap so long-running queries do not hammer the server.
+ * The same schedule spaces out retries of failed requests.
+ */
+class RedashPollSchedule {
+    private static final double DEFAULT_JITTER = 0.2;
+
+    private final long initialDelayMillis;
+    private final double multiplier;
+    private final long maxDelayMillis;
+    private final double jitter;
+
+    RedashPollSchedule(long initialDelayMillis, double multiplier, long maxDelayMillis) {
+        this(initialDelayMillis, multiplier, maxDelayMillis, DEFAULT_JITTER);
+    }
+
+    /**
+     * @param jitter Fraction by which each delay is randomly shortened or lengthened, between 0 and 1
+     */
+    RedashPollSchedule(long initialDelayMillis, double multiplier, long maxDelayMillis, double jitter) {
+        this.initialDelayMillis = initialDelayMillis;
+        this.multiplier = multiplier;
+        this.maxDelayMillis = Math.max(initialDelayMillis, maxDelayMillis);
+        this.jitter = jitter;
+    }
+
+    /**
+     * Get the delay before the next poll.
+     *
+     * @param attempt The number of polls made so far (0-based)
+     * @return The delay in milliseconds, never above the cap
+     */
+    long nextDelayMillis(int attempt) {
+        double delay = initialDelayMillis * Math.pow(multiplier, attempt);
+        if (delay > maxDelayMillis) {
+            delay = maxDelayMillis;
+        }
+        // Spread polls of concurrent statements, by +/- 20% unless configured otherwise
+        double factor = 1.0 + jitter * (2 * ThreadLocalRandom.current().nextDouble() - 1);
+        return Math.max(1, Math.min(maxDelayMillis, Math.round(delay * factor)));
+    }
+}
@@ -5,7 +5,9 @@ import java.io.Reader;
 import java.math.BigDecimal;
 import java.net.URL;
 import java.sql.*;
+import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -19,6 +21,7 @@ public class RedashPreparedStatement extends RedashStatement implements Prepared
     
     private final String sql;
     private final Map<Integer, Object> parameters = new HashMap<>();
+    private final List<Map<Integer, Object>> batchParameters = new ArrayList<>();
     
     // Pattern to match "FROM query_123" or "FROM query_123 WHERE ..."
     private static final Pattern QUERY_ID_PATTERN = Pattern.compile(
@@ -32,40 +35,28 @@ public class RedashPreparedStatement extends RedashStatement implements Prepared
     @Override
     public ResultSet executeQuery() throws SQLException {
         checkClosed();
+        closeCurrentResultSet();
         
+        RedashLocalQuery local = parseLocalQuery(sql, ((RedashConnection) getConnection()).getProperties());
+        RedashQueryContext context = newQueryContext(local);
         try {
             // Extract query ID if present
             Matcher matcher = QUERY_ID_PATTERN.matcher(sql);
             if (matcher.find()) {
-                String queryId = matcher.group(1);
-                
                 // Convert parameters to a map for the API client
                 Map<String, Object> queryParams = new HashMap<>();
                 for (Map.Entry<Integer, Object> entry : parameters.entrySet()) {
                     queryParams.put("p" + entry.getKey(), entry.getValue());
                 }
                 
-                RedashQueryResult result = ((RedashConnection) getConnection()).getApiClient()
-                        .executeQueryById(queryId, queryParams);
-                
-                RedashResultSet resultSet = new RedashResultSet(this, result);
-                return resultSet;
-            } else {
-                // Get the first data source
-                List<Map<String, String>> dataSources = ((RedashConnection) getConnection()).getApiClient().getDataSources();
-                if (dataSources.isEmpty()) {
-                    throw new SQLException("No data sources available in Redash");
+                if (local != null) {
+                    return openResultSet(executeLocally(local, queryParams, parameters, context));
                 }
-                String dataSourceId = dataSources.get(0).get("id");
-                
-                // Create a new query with parameters
-                String queryId = ((RedashConnection) getConnection()).getApiClient().createQuery(
-                    "JDBC Prepared Query " + System.currentTimeMillis(), // Unique name
-                    "Prepared query created via JDBC driver",
-                    dataSourceId,
-                    sql
-                );
+                RedashResultStream result = ((RedashConnection) getConnection()).getApiClient()
+                        .executeQueryById(matcher.group(1), queryParams, context);
                 
+                return openResultSet(result);
+            } else {
                 // Convert parameters to a map for the API client
                 Map<String, Object> queryParams = new HashMap<>();
                 for (Map.Entry<Integer, Object> entry : parameters.entrySet()) {
@@ -73,14 +64,15 @@ public class RedashPreparedStatement extends RedashStatement implements Prepared
                 }
                 
                 // Execute the query with parameters
-                RedashQueryResult result = ((RedashConnection) getConnection()).getApiClient()
-                        .executeQueryById(queryId, queryParams);
+                RedashResultStream result = executeAdHoc(sql, queryParams,
+                        "JDBC Prepared Query", "Prepared query created via JDBC driver", context);
                 
-                RedashResultSet resultSet = new RedashResultSet(this, result);
-                return resultSet;
+                return openResultSet(result);
             }
         } catch (Exception e) {
-            throw new SQLException("Error executing prepared query: " + e.getMessage(), e);
+            throw executionError("Error executing prepared query", e);
+        } finally {
+            finishQueryContext(context);
         }
     }
     
@@ -214,7 +206,33 @@ public class RedashPreparedStatement extends RedashStatement implements Prepared
     
     @Override
     public void addBatch() throws SQLException {
-        throw new SQLFeatureNotSupportedException("Batch operations are not supported");
+        checkClosed();
+        checkBatchable(sql);
+        batchParameters.add(new HashMap<>(parameters));
+    }
+    
+    @Override
+    public void addBatch(String sql) throws SQLException {
+        throw new SQLException("addBatch(String) cannot be called on a PreparedStatement");
+    }
+    
+    @Override
+    public void clearBatch() throws SQLException {
+        checkClosed();
+        batchParameters.clear();
+    }
+    
+    /**
+     * Execute the query once for every parameter set added with {@link #addBatch()}, all
+     * runs concurrently. Read their results with {@link #getResultSet()} and
+     * {@link #getMoreResults()}, in the order the parameter sets were added.
+     */
+    @Override
+    public int[] executeBatch() throws SQLException {
+        checkClosed();
+        List<Map<Integer, Object>> markers = new ArrayList<>(batchParameters);
+        batchParameters.clear();
+        return executeBatch(Collections.nCopies(markers.size(), sql), markers);
     }
     
     @Override
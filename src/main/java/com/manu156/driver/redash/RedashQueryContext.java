@@ -0,0 +1,233 @@
+package com.manu156.driver.redash;
+
+import org.apache.http.client.methods.HttpRequestBase;
+
+import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * State of a single statement execution, passed from the statement to the API client.
+ * The context is also the handle for cancelling the execution from another thread or
+ * when the query timeout expires: the in-flight HTTP request is aborted and the wait
+ * for the job is cut short so the executing thread can cancel the Redash job.
+ */
+class RedashQueryContext {
+    // SQLState of "operation canceled"
+    static final String CANCELLED_SQL_STATE = "HY008";
+
+    private static final ScheduledThreadPoolExecutor timeoutScheduler = createTimeoutScheduler();
+
+    private final int timeoutSeconds;
+    private final Integer maxAgeSeconds;
+    private final boolean streaming;
+    private final int maxRows;
+    private final long startNanos;
+    private volatile boolean cancelled;
+    private volatile boolean timedOut;
+    private volatile HttpRequestBase request;
+    private volatile CompletableFuture<?> pending;
+    private ScheduledFuture<?> timeoutTask;
+
+    /**
+     * @param timeoutSeconds The query timeout set on the statement, 0 for none
+     */
+    RedashQueryContext(int timeoutSeconds) {
+        this(timeoutSeconds, null);
+    }
+
+    /**
+     * @param timeoutSeconds The query timeout set on the statement, 0 for none
+     * @param maxAgeSeconds The maximum acceptable result age sent as {@code max_age}, null to omit it
+     */
+    RedashQueryContext(int timeoutSeconds, Integer maxAgeSeconds) {
+        this(timeoutSeconds, maxAgeSeconds, false, 0);
+    }
+
+    /**
+     * @param timeoutSeconds The query timeout set on the statement, 0 for none
+     * @param maxAgeSeconds The maximum acceptable result age sent as {@code max_age}, null to omit it
+     * @param streaming Whether result rows are decoded lazily from the open response
+     * @param maxRows The maximum number of rows to decode, 0 for no limit
+     */
+    RedashQueryContext(int timeoutSeconds, Integer maxAgeSeconds, boolean streaming, int maxRows) {
+        this.timeoutSeconds = timeoutSeconds;
+        this.maxAgeSeconds = maxAgeSeconds;
+        this.streaming = streaming;
+        this.maxRows = maxRows;
+        this.startNanos = System.nanoTime();
+    }
+
+    int getTimeoutSeconds() {
+        return timeoutSeconds;
+    }
+
+    /**
+     * Get the maximum acceptable age of a cached result: 0 forces a fresh execution,
+     * -1 accepts any cached result, null leaves the choice to the Redash server.
+     */
+    Integer getMaxAgeSeconds() {
+        return maxAgeSeconds;
+    }
+
+    boolean isStreaming() {
+        return streaming;
+    }
+
+    /**
+     * Get the row limit set with {@code Statement.setMaxRows}; rows beyond it are never decoded.
+     */
+    int getMaxRows() {
+        return maxRows;
+    }
+
+    /**
+     * Get the time left before the query timeout expires.
+     *
+     * @param defaultTimeoutSeconds Timeout to apply when the statement has none
+     * @return Remaining milliseconds, at most 0 once expired
+     */
+    long remainingMillis(int defaultTimeoutSeconds) {
+        int timeout = timeoutSeconds > 0 ? timeoutSeconds : defaultTimeoutSeconds;
+        long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+        return TimeUnit.SECONDS.toMillis(timeout) - elapsed;
+    }
+
+    /**
+     * Start the query timeout clock, if the statement has a timeout.
+     */
+    void start() {
+        if (timeoutSeconds > 0) {
+            timeoutTask = timeoutScheduler.schedule(this::expire, timeoutSeconds, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * Stop the query timeout clock once the execution has returned.
+     */
+    void finish() {
+        if (timeoutTask != null) {
+            timeoutTask.cancel(false);
+        }
+    }
+
+    /**
+     * Cancel the execution: abort the in-flight request and stop waiting for the job.
+     * May be called from any thread.
+     */
+    void cancel() {
+        cancelled = true;
+        HttpRequestBase current = request;
+        if (current != null) {
+            current.abort();
+        }
+        CompletableFuture<?> waiting = pending;
+        if (waiting != null) {
+            waiting.cancel(false);
+        }
+    }
+
+    /**
+     * Cancel the execution because the query timeout expired.
+     */
+    void expire() {
+        timedOut = true;
+        cancel();
+    }
+
+    boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * Throw if the execution has been cancelled or has timed out.
+     *
+     * @throws SQLTimeoutException if the query timeout expired
+     * @throws SQLException with SQLState {@value #CANCELLED_SQL_STATE} if the execution was cancelled
+     */
+    void checkCancelled() throws SQLException {
+        if (!isCancelled()) {
+            return;
+        }
+        if (timedOut) {
+            throw new SQLTimeoutException("Query execution timed out after "
+                    + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos) + " ms");
+        }
+        throw new SQLException("Query execution was cancelled", CANCELLED_SQL_STATE);
+    }
+
+    /**
+     * Wait for a job to complete within the query timeout. Cancelling the execution
+     * cancels the future and ends the wait.
+     *
+     * @param future The job's future
+     * @param defaultTimeoutSeconds Timeout to apply when the statement has none
+     * @return The value the future completed with
+     * @throws SQLTimeoutException if the query timeout expires first
+     * @throws SQLException if the execution is cancelled or the job fails
+     * @throws InterruptedException if the calling thread is interrupted
+     */
+    <T> T await(CompletableFuture<T> future, int defaultTimeoutSeconds) throws SQLException, InterruptedException {
+        track(future);
+        try {
+            return future.get(Math.max(0, remainingMillis(defaultTimeoutSeconds)), TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            expire();
+            checkCancelled();
+            throw new SQLTimeoutException("Query execution timed out", e);
+        } catch (CancellationException e) {
+            checkCancelled();
+            throw new SQLException("Query execution was cancelled", CANCELLED_SQL_STATE, e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof SQLException) {
+                throw (SQLException) e.getCause();
+            }
+            throw new SQLException("Error waiting for query results", e.getCause());
+        } finally {
+            pending = null;
+            future.cancel(false);
+        }
+    }
+
+    /**
+     * Register the request about to be executed so that cancelling aborts it.
+     * A request registered after cancellation is aborted straight away.
+     */
+    void track(HttpRequestBase request) {
+        this.request = request;
+        if (isCancelled()) {
+            request.abort();
+        }
+    }
+
+    /**
+     * Register a future this execution is waiting on so that cancelling cancels it.
+     * A future registered after cancellation is cancelled straight away.
+     *
+     * @return The future
+     */
+    <T> CompletableFuture<T> track(CompletableFuture<T> future) {
+        pending = future;
+        if (cancelled) {
+            future.cancel(false);
+        }
+        return future;
+    }
+
+    private static ScheduledThreadPoolExecutor createTimeoutScheduler() {
+        ScheduledThreadPoolExecutor scheduler = new ScheduledThreadPoolExecutor(1, runnable -> {
+            Thread thread = new Thread(runnable, "redash-query-timeout");
+            thread.setDaemon(true);
+            return thread;
+        });
+        // Most executions finish well before their timeout, so do not keep their tasks queued
+        scheduler.setRemoveOnCancelPolicy(true);
+        return scheduler;
+    }
+}
@@ -0,0 +1,100 @@
+package com.manu156.driver.redash;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Supplier;
+
+/**
+ * Bound on the batched queries that run at the same time on one Redash host, shared by
+ * every connection to the host. A query over the bound waits in submission order until a
+ * running one completes; waiting holds no thread, so a batch of any size can be submitted
+ * from one thread without blocking it.
+ */
+final class RedashQueryLimiter {
+    private final int maxRunning;
+    private final ArrayDeque<Runnable> waiting = new ArrayDeque<>();
+    private final ThreadLocal<Boolean> draining = ThreadLocal.withInitial(() -> false);
+    private int running;
+
+    /**
+     * @param maxRunning Queries that may run at the same time
+     */
+    RedashQueryLimiter(int maxRunning) {
+        this.maxRunning = Math.max(1, maxRunning);
+    }
+
+    /**
+     * Start an asynchronous query now if the host has a free slot, otherwise once one is freed.
+     * Cancelling the returned future before the query starts drops it from the queue; cancelling
+     * it later cancels the query's own future.
+     *
+     * @param query Starts the query
+     * @return A future completed as the query's future is
+     */
+    <T> CompletableFuture<T> submit(Supplier<CompletableFuture<T>> query) {
+        CompletableFuture<T> handle = new CompletableFuture<>();
+        Runnable start = () -> {
+            if (handle.isDone()) {
+                release();
+                return;
+            }
+            CompletableFuture<T> started;
+            try {
+                started = query.get();
+            } catch (RuntimeException e) {
+                started = CompletableFuture.failedFuture(e);
+            }
+            CompletableFuture<T> execution = started;
+            handle.whenComplete((result, error) -> {
+                if (handle.isCancelled()) {
+                    execution.cancel(true);
+                }
+            });
+            execution.whenComplete((result, error) -> {
+                release();
+                if (error != null) {
+                    handle.completeExceptionally(error);
+                } else {
+                    handle.complete(result);
+                }
+            });
+        };
+        synchronized (this) {
+            waiting.add(start);
+        }
+        startWaiting();
+        return handle;
+    }
+
+    private void release() {
+        synchronized (this) {
+            running--;
+        }
+        startWaiting();
+    }
+
+    // Start waiting queries while slots are free. Queries that complete as they start (e.g. from
+    // the result cache) release their slot inside this loop, which picks the next one up rather
+    // than recursing into it.
+    private void startWaiting() {
+        if (draining.get()) {
+            return;
+        }
+        draining.set(true);
+        try {
+            while (true) {
+                Runnable next;
+                synchronized (this) {
+                    if (running >= maxRunning || waiting.isEmpty()) {
+                        return;
+                    }
+                    running++;
+                    next = waiting.poll();
+                }
+                next.run();
+            }
+        } finally {
+            draining.set(false);
+        }
+    }
+}
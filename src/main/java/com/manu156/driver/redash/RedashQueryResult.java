@@ -1,18 +1,117 @@
 package com.manu156.driver.redash;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 
 /**
  * Represents the results of a Redash query.
+ * Values are held column by column in immutable {@link RedashColumnVector}s,
+ * so a result can be shared safely between result sets. With the {@code offHeapResults}
+ * option the values live in memory outside the Java heap, which {@link #close()} frees.
  */
-public class RedashQueryResult {
+public class RedashQueryResult implements AutoCloseable {
     private final List<RedashColumn> columns;
-    private final List<Map<String, Object>> rows;
+    private final RedashColumnVector[] vectors;
+    private final int rowCount;
+    private volatile Map<String, Integer> indexByName;
+    private volatile Map<String, Integer> lowerCaseIndexByName;
+    // Off-heap memory read by the vectors, empty for a result on the heap
+    private List<RedashOffHeapArena> arenas = Collections.emptyList();
+    private volatile boolean closed;
     
     public RedashQueryResult(List<RedashColumn> columns, List<Map<String, Object>> rows) {
         this.columns = columns;
-        this.rows = rows;
+        this.rowCount = rows.size();
+        this.vectors = new RedashColumnVector[columns.size()];
+        for (int i = 0; i < vectors.length; i++) {
+            RedashColumn column = columns.get(i);
+            RedashColumnVector.Builder builder = RedashColumnVector.builder(
+                    RedashColumnVector.typeOf(column.getType()));
+            for (Map<String, Object> row : rows) {
+                builder.appendObject(row.get(column.getName()));
+            }
+            vectors[i] = builder.build();
+        }
+    }
+    
+    RedashQueryResult(List<RedashColumn> columns, RedashColumnVector[] vectors) {
+        this(columns, vectors, vectors.length > 0 ? vectors[0].size() : 0);
+    }
+    
+    RedashQueryResult(List<RedashColumn> columns, RedashColumnVector[] vectors, int rowCount) {
+        this.columns = columns;
+        this.vectors = vectors;
+        this.rowCount = rowCount;
+    }
+    
+    RedashQueryResult(List<RedashColumn> columns, RedashColumnVector[] vectors, int rowCount,
+                      RedashOffHeapArena arena) {
+        this(columns, vectors, rowCount);
+        if (arena != null) {
+            this.arenas = new ArrayList<>(Collections.singletonList(arena));
+        }
+    }
+    
+    /**
+     * Take over the off-heap memory of another result whose vectors this one reads,
+     * such as an input of a statement evaluated by the driver.
+     * 
+     * @param other The other result, which must not be closed separately
+     */
+    synchronized void adopt(RedashQueryResult other) {
+        if (other == this) {
+            return;
+        }
+        List<RedashOffHeapArena> adopted = other.releaseArenas();
+        if (!adopted.isEmpty()) {
+            if (arenas.isEmpty()) {
+                arenas = new ArrayList<>();
+            }
+            arenas.addAll(adopted);
+        }
+    }
+    
+    private synchronized List<RedashOffHeapArena> releaseArenas() {
+        List<RedashOffHeapArena> released = arenas;
+        arenas = Collections.emptyList();
+        return released;
+    }
+    
+    /**
+     * @return Whether the values are held in off-heap memory
+     */
+    synchronized boolean isOffHeap() {
+        return !arenas.isEmpty();
+    }
+    
+    /**
+     * Return the off-heap memory of the result to the budget now rather than when it is garbage
+     * collected. An off-heap result cannot be read once closed; for a result on the heap this does nothing.
+     * Result sets close their result when they are closed.
+     */
+    @Override
+    public void close() {
+        List<RedashOffHeapArena> released;
+        synchronized (this) {
+            if (arenas.isEmpty()) {
+                return;
+            }
+            closed = true;
+            released = releaseArenas();
+        }
+        for (RedashOffHeapArena arena : released) {
+            arena.close();
+        }
+    }
+    
+    private void checkOpen() {
+        if (closed) {
+            throw new IllegalStateException("Query result is closed");
+        }
     }
     
     /**
@@ -26,20 +125,67 @@ public class RedashQueryResult {
     
     /**
      * Get the rows in the result.
+     * The rows are materialised from the column storage on every call; prefer
+     * {@link #getValue(int, int)} for cell access.
      * 
      * @return List of rows, where each row is a map of column name to value
      */
     public List<Map<String, Object>> getRows() {
+        checkOpen();
+        List<Map<String, Object>> rows = new ArrayList<>(rowCount);
+        for (int row = 0; row < rowCount; row++) {
+            Map<String, Object> values = new HashMap<>();
+            for (int i = 0; i < vectors.length; i++) {
+                values.put(columns.get(i).getName(), vectors[i].getObject(row));
+            }
+            rows.add(values);
+        }
         return rows;
     }
     
+    /**
+     * Get the value of a cell.
+     * 
+     * @param row The row index (0-based)
+     * @param column The column index (0-based)
+     * @return The cell value, or null
+     */
+    public Object getValue(int row, int column) {
+        checkOpen();
+        return vectors[column].getObject(row);
+    }
+    
+    /**
+     * Get the storage of a column.
+     * 
+     * @param index The column index (0-based)
+     * @return The column vector
+     */
+    RedashColumnVector getVector(int index) {
+        checkOpen();
+        return vectors[index];
+    }
+    
+    /**
+     * Get the approximate retained heap of the result in bytes.
+     * 
+     * @return Estimated size in bytes
+     */
+    public long getEstimatedBytes() {
+        long bytes = 0;
+        for (RedashColumnVector vector : vectors) {
+            bytes += vector.estimatedBytes();
+        }
+        return bytes;
+    }
+    
     /**
      * Get the number of rows in the result.
      * 
      * @return Number of rows
      */
     public int getRowCount() {
-        return rows.size();
+        return rowCount;
     }
     
     /**
@@ -68,12 +214,8 @@ public class RedashQueryResult {
      * @return The column, or null if not found
      */
     public RedashColumn getColumn(String name) {
-        for (RedashColumn column : columns) {
-            if (column.getName().equals(name)) {
-                return column;
-            }
-        }
-        return null;
+        int index = getColumnIndex(name);
+        return index < 0 ? null : columns.get(index);
     }
     
     /**
@@ -83,11 +225,42 @@ public class RedashQueryResult {
      * @return The column index (0-based), or -1 if not found
      */
     public int getColumnIndex(String name) {
-        for (int i = 0; i < columns.size(); i++) {
-            if (columns.get(i).getName().equals(name)) {
-                return i;
+        return getColumnIndex(name, false);
+    }
+    
+    /**
+     * Get the index of a column by name, optionally ignoring case.
+     * When several columns share a name the first one wins.
+     * 
+     * @param name The column name
+     * @param caseInsensitive Whether to ignore case when matching
+     * @return The column index (0-based), or -1 if not found
+     */
+    public int getColumnIndex(String name, boolean caseInsensitive) {
+        Integer index;
+        if (caseInsensitive) {
+            index = indexByName(true).get(name.toLowerCase(Locale.ROOT));
+        } else {
+            index = indexByName(false).get(name);
+        }
+        return index != null ? index : -1;
+    }
+    
+    private Map<String, Integer> indexByName(boolean caseInsensitive) {
+        Map<String, Integer> index = caseInsensitive ? lowerCaseIndexByName : indexByName;
+        if (index == null) {
+            // Results may be shared between threads; a racing rebuild yields an identical map
+            index = new HashMap<>();
+            for (int i = 0; i < columns.size(); i++) {
+                String name = columns.get(i).getName();
+                index.putIfAbsent(caseInsensitive ? name.toLowerCase(Locale.ROOT) : name, i);
+            }
+            if (caseInsensitive) {
+                lowerCaseIndexByName = index;
+            } else {
+                indexByName = index;
             }
         }
-        return -1;
+        return index;
     }
-} 
\ No newline at end of file
+}
@@ -0,0 +1,443 @@
+package com.manu156.driver.redash;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Process-wide cache of decoded query results.
+ * Entries expire after the TTL of the connection that stored them, and the
+ * least recently used entries are evicted once the estimated size of all
+ * cached results exceeds the byte budget. Cached {@link RedashQueryResult}s
+ * are immutable, so every hit is served as a fresh result set over the same storage.
+ *
+ * <p>With a directory set, every stored result is also written there as a
+ * {@link RedashResultFile} named by a hash of its key, so results survive a restart of
+ * the process. A lookup that misses in memory maps the file, if it has not expired, and
+ * keeps the mapped result in memory; its cells are read from the mapping.</p>
+ */
+public final class RedashResultCache {
+    private static final Logger logger = LoggerFactory.getLogger(RedashResultCache.class);
+
+    private static final long DEFAULT_MAX_BYTES = 256L * 1024 * 1024;
+    // Temporary files older than this are left over from an interrupted write
+    private static final long STALE_TEMPORARY_FILE_MILLIS = TimeUnit.MINUTES.toMillis(10);
+    // Results arriving while this many files wait for the writer are not written to disk
+    private static final int MAX_PENDING_WRITES = 16;
+
+    private static final RedashResultCache INSTANCE = new RedashResultCache(DEFAULT_MAX_BYTES);
+
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long maxBytes;
+    private boolean maxBytesConfigured;
+    private long sizeBytes;
+    private volatile Path directory;
+    // Guards the first assignment of the directory; never held across file system calls
+    private final ReentrantLock directoryLock = new ReentrantLock();
+    // Writes result files behind the queries that stored them, one at a time
+    private final ThreadPoolExecutor writer;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong expirations = new AtomicLong();
+    private final AtomicLong diskHits = new AtomicLong();
+
+    RedashResultCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+        this.writer = new ThreadPoolExecutor(1, 1, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(MAX_PENDING_WRITES),
+                RedashThreads.daemonThreadFactory("redash-result-cache-writer"),
+                (write, executor) -> logger.debug("Skipping a result file write: {} writes already pending",
+                        MAX_PENDING_WRITES));
+        writer.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Get the cache shared by all connections of this class loader.
+     *
+     * @return The shared cache
+     */
+    public static RedashResultCache getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Look up a cached result.
+     *
+     * @param key The cache key
+     * @return The cached result, or null if absent or expired
+     */
+    RedashQueryResult get(String key) {
+        return get(key, -1);
+    }
+
+    /**
+     * Look up a cached result that is no older than the given age.
+     *
+     * @param key The cache key
+     * @param maxAgeMillis The maximum acceptable age, negative for any age
+     * @return The cached result, or null if absent, expired or too old
+     */
+    RedashQueryResult get(String key, long maxAgeMillis) {
+        long now = System.nanoTime();
+        synchronized (this) {
+            Entry entry = entries.get(key);
+            if (entry != null && entry.expiresAtNanos - now <= 0) {
+                remove(key, entry);
+                expirations.incrementAndGet();
+                entry = null;
+            }
+            if (entry != null && maxAgeMillis >= 0
+                    && now - entry.storedAtNanos > TimeUnit.MILLISECONDS.toNanos(maxAgeMillis)) {
+                entry = null;
+            }
+            if (entry != null) {
+                hits.incrementAndGet();
+                return entry.result;
+            }
+        }
+        RedashQueryResult result = directory != null ? load(key, maxAgeMillis) : null;
+        if (result == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        diskHits.incrementAndGet();
+        return result;
+    }
+
+    /**
+     * Store a result, evicting least recently used entries to stay within the byte budget.
+     * Results larger than the whole budget are not cached. With a directory set, the result
+     * file is written in the background, so the query returns without waiting for the disk;
+     * until the file is in place a lookup from another process misses.
+     *
+     * @param key The cache key
+     * @param result The decoded result
+     * @param ttlMillis How long the entry stays valid
+     */
+    void put(String key, RedashQueryResult result, long ttlMillis) {
+        long now = System.nanoTime();
+        putInMemory(key, result, now, now + TimeUnit.MILLISECONDS.toNanos(ttlMillis));
+        Path directory = this.directory;
+        if (directory != null) {
+            long nowMillis = System.currentTimeMillis();
+            // The writer reads its own view of the columns, so closing the result meanwhile does not stop it
+            RedashQueryResult columns = detach(result);
+            writer.execute(() -> store(directory, key, columns, nowMillis, nowMillis + ttlMillis));
+        }
+    }
+
+    private static RedashQueryResult detach(RedashQueryResult result) {
+        RedashColumnVector[] vectors = new RedashColumnVector[result.getColumnCount()];
+        for (int i = 0; i < vectors.length; i++) {
+            vectors[i] = result.getVector(i);
+        }
+        return new RedashQueryResult(result.getColumns(), vectors, result.getRowCount());
+    }
+
+    // Results larger than the whole budget stay out of memory, but do go to disk. So do off-heap
+    // results, whose memory is freed when the result set reading them is closed.
+    private synchronized void putInMemory(String key, RedashQueryResult result, long storedAtNanos,
+                                          long expiresAtNanos) {
+        long bytes = result.getEstimatedBytes() + 2L * key.length();
+        Entry previous = entries.get(key);
+        if (previous != null) {
+            remove(key, previous);
+        }
+        if (bytes > maxBytes || result.isOffHeap()) {
+            return;
+        }
+        entries.put(key, new Entry(result, bytes, storedAtNanos, expiresAtNanos));
+        sizeBytes += bytes;
+        evictToFit();
+    }
+
+    /**
+     * Keep results on disk as well, in a directory that may be shared by several processes.
+     * The directory is created if needed, readable only by its owner where the file system
+     * supports it, and result files that have expired are deleted.
+     *
+     * @param directory The directory of the result files, or null to keep results in memory only
+     * @throws IOException if the directory cannot be created
+     */
+    public void setDirectory(Path directory) throws IOException {
+        if (directory != null && !directory.equals(this.directory)) {
+            prepareDirectory(directory);
+        }
+        this.directory = directory;
+    }
+
+    /**
+     * Apply the {@code resultCacheDirectory} of a connection. The directory is shared by the whole
+     * process, so it is taken from the first connection that sets it; a later connection asking
+     * for a different directory is logged and keeps using the directory in force.
+     *
+     * @param directory The directory requested by the connection
+     * @throws IOException if the directory cannot be created
+     */
+    void configureDirectory(Path directory) throws IOException {
+        Path current = this.directory;
+        if (current == null) {
+            // Connections racing here all prepare the directory, but outside the lock: the
+            // sweep of a large directory must not hold up connects that find it already set
+            prepareDirectory(directory);
+            directoryLock.lock();
+            try {
+                current = this.directory;
+                if (current == null) {
+                    this.directory = directory;
+                    return;
+                }
+            } finally {
+                directoryLock.unlock();
+            }
+        }
+        if (!current.equals(directory)) {
+            logger.warn("Ignoring resultCacheDirectory={}: the result cache of this process already uses {}",
+                    directory, current);
+        }
+    }
+
+    private static void prepareDirectory(Path directory) throws IOException {
+        if (!Files.isDirectory(directory)) {
+            if (FileSystems.getDefault().supportedFileAttributeViews().contains("posix")) {
+                Files.createDirectories(directory,
+                        PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rwx------")));
+            } else {
+                Files.createDirectories(directory);
+            }
+        }
+        deleteExpired(directory);
+    }
+
+    public Path getDirectory() {
+        return directory;
+    }
+
+    // Map the file of a key, keeping the result in memory for the rest of its TTL
+    private RedashQueryResult load(String key, long maxAgeMillis) {
+        Path path = directory.resolve(fileName(key));
+        RedashResultFile file;
+        try {
+            file = RedashResultFile.read(path);
+        } catch (NoSuchFileException e) {
+            return null;
+        } catch (IOException e) {
+            logger.debug("Ignoring unreadable result file {}: {}", path, e.getMessage());
+            delete(path);
+            return null;
+        }
+        long nowMillis = System.currentTimeMillis();
+        if (file.getExpiresAtMillis() <= nowMillis) {
+            expirations.incrementAndGet();
+            delete(path);
+            return null;
+        }
+        long ageMillis = Math.max(0, nowMillis - file.getStoredAtMillis());
+        if (maxAgeMillis >= 0 && ageMillis > maxAgeMillis) {
+            return null;
+        }
+        long now = System.nanoTime();
+        putInMemory(key, file.getResult(), now - TimeUnit.MILLISECONDS.toNanos(ageMillis),
+                now + TimeUnit.MILLISECONDS.toNanos(file.getExpiresAtMillis() - nowMillis));
+        return file.getResult();
+    }
+
+    // Write to a temporary file first so that readers never map a partial file
+    private static void store(Path directory, String key, RedashQueryResult result, long storedAtMillis,
+                              long expiresAtMillis) {
+        Path path = directory.resolve(fileName(key));
+        Path temporary = directory.resolve(fileName(key) + "." + UUID.randomUUID() + ".tmp");
+        try {
+            RedashResultFile.write(temporary, result, storedAtMillis, expiresAtMillis);
+            Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            logger.debug("Could not write result file {}: {}", path, e.getMessage());
+            delete(temporary);
+        }
+    }
+
+    private static void deleteExpired(Path directory) throws IOException {
+        long nowMillis = System.currentTimeMillis();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+            for (Path path : files) {
+                String name = path.getFileName().toString();
+                try {
+                    if (name.endsWith(RedashResultFile.SUFFIX)) {
+                        if (RedashResultFile.readExpiresAtMillis(path) <= nowMillis) {
+                            delete(path);
+                        }
+                    } else if (name.endsWith(".tmp") && Files.getLastModifiedTime(path).toMillis()
+                            < nowMillis - STALE_TEMPORARY_FILE_MILLIS) {
+                        delete(path);
+                    }
+                } catch (IOException e) {
+                    delete(path);
+                }
+            }
+        }
+    }
+
+    private static void delete(Path path) {
+        try {
+            Files.deleteIfExists(path);
+        } catch (IOException e) {
+            // A file still mapped cannot be deleted on some platforms; it is retried on the next sweep
+            logger.debug("Could not delete result file {}: {}", path, e.getMessage());
+        }
+    }
+
+    // Keys contain the API key, so files are named by a digest of the key rather than the key
+    private static String fileName(String key) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(key.getBytes(StandardCharsets.UTF_8));
+            StringBuilder name = new StringBuilder(digest.length * 2 + RedashResultFile.SUFFIX.length());
+            for (byte b : digest) {
+                name.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+            }
+            return name.append(RedashResultFile.SUFFIX).toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+
+    /**
+     * Change the byte budget, evicting entries if the cache is now over budget.
+     *
+     * @param maxBytes The maximum estimated size of all cached results
+     */
+    public synchronized void setMaxBytes(long maxBytes) {
+        this.maxBytes = maxBytes;
+        this.maxBytesConfigured = true;
+        evictToFit();
+    }
+
+    /**
+     * Apply the {@code resultCacheMaxBytes} of a connection. The budget is shared by the whole
+     * process, so it is taken from the first connection that sets it; a later connection asking
+     * for a different budget is logged and leaves the budget as it is.
+     *
+     * @param maxBytes The budget requested by the connection
+     */
+    synchronized void configureMaxBytes(long maxBytes) {
+        if (!maxBytesConfigured) {
+            setMaxBytes(maxBytes);
+        } else if (maxBytes != this.maxBytes) {
+            logger.warn("Ignoring resultCacheMaxBytes={}: the result cache budget of this process is already {} bytes",
+                    maxBytes, this.maxBytes);
+        }
+    }
+
+    public synchronized long getMaxBytes() {
+        return maxBytes;
+    }
+
+    /**
+     * Remove all entries, including the result files of the directory.
+     */
+    public void clear() {
+        writer.getQueue().clear();
+        synchronized (this) {
+            entries.clear();
+            sizeBytes = 0;
+        }
+        Path directory = this.directory;
+        if (directory != null) {
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*" + RedashResultFile.SUFFIX)) {
+                for (Path path : files) {
+                    delete(path);
+                }
+            } catch (IOException e) {
+                logger.debug("Could not list result files in {}: {}", directory, e.getMessage());
+            }
+        }
+    }
+
+    public synchronized long getSizeBytes() {
+        return sizeBytes;
+    }
+
+    public synchronized int getEntryCount() {
+        return entries.size();
+    }
+
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    /**
+     * Number of hits served by mapping a result file, included in {@link #getHitCount()}.
+     */
+    public long getDiskHitCount() {
+        return diskHits.get();
+    }
+
+    /**
+     * Number of entries removed to stay within the byte budget.
+     */
+    public long getEvictionCount() {
+        return evictions.get();
+    }
+
+    /**
+     * Number of entries dropped because their TTL had passed.
+     */
+    public long getExpirationCount() {
+        return expirations.get();
+    }
+
+    private void evictToFit() {
+        Iterator<Map.Entry<String, Entry>> iterator = entries.entrySet().iterator();
+        while (sizeBytes > maxBytes && iterator.hasNext()) {
+            Entry eldest = iterator.next().getValue();
+            iterator.remove();
+            sizeBytes -= eldest.bytes;
+            evictions.incrementAndGet();
+        }
+    }
+
+    private void remove(String key, Entry entry) {
+        entries.remove(key);
+        sizeBytes -= entry.bytes;
+    }
+
+    private static final class Entry {
+        private final RedashQueryResult result;
+        private final long bytes;
+        private final long storedAtNanos;
+        private final long expiresAtNanos;
+
+        private Entry(RedashQueryResult result, long bytes, long storedAtNanos, long expiresAtNanos) {
+            this.result = result;
+            this.bytes = bytes;
+            this.storedAtNanos = storedAtNanos;
+            this.expiresAtNanos = expiresAtNanos;
+        }
+    }
+}
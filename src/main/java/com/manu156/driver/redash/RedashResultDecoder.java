@@ -0,0 +1,397 @@
+package com.manu156.driver.redash;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.core.io.NumberInput;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Streaming decoder for Redash {@code /query_results} responses.
+ * Rows are read token by token straight from the response stream into the
+ * final row storage, without materialising the body as a String or a JSON tree,
+ * either all at once or in chunks through a {@link RedashResultStream}.
+ */
+final class RedashResultDecoder {
+    private static final ObjectMapper objectMapper = new ObjectMapper();
+
+    private RedashResultDecoder() {
+    }
+
+    /**
+     * Decoded top-level response: either a pending job or a finished query result.
+     */
+    static final class Response {
+        private final JsonNode job;
+        private final RedashResultStream stream;
+
+        private Response(JsonNode job, RedashResultStream stream) {
+            this.job = job;
+            this.stream = stream;
+        }
+
+        /**
+         * @return The job node if the query is still executing, null otherwise
+         */
+        JsonNode getJob() {
+            return job;
+        }
+
+        /**
+         * @return The query result, or null if the response only contained a job
+         */
+        RedashQueryResult getResult() throws SQLException {
+            return stream != null ? stream.readAll() : null;
+        }
+
+        /**
+         * @return The query result as a stream, or null if the response only contained a job
+         */
+        RedashResultStream getStream() {
+            return stream;
+        }
+    }
+
+    /**
+     * Decode a response that carries either a {@code job} or a {@code query_result}.
+     *
+     * @param in The response body
+     * @return The decoded response
+     * @throws SQLException if the response is malformed
+     * @throws IOException if reading the stream fails
+     */
+    static Response decodeResponse(InputStream in) throws SQLException, IOException {
+        return decodeResponse(in, null, 0, false);
+    }
+
+    /**
+     * Decode a response that carries either a {@code job} or a {@code query_result},
+     * stopping after the given number of rows.
+     *
+     * @param in The response body
+     * @param resource Closed to abort the body if rows are left unread; may be null
+     * @param maxRows The maximum number of rows to decode, 0 for all
+     * @param offHeap Whether the rows are stored in off-heap memory
+     * @return The decoded response
+     * @throws SQLException if the response is malformed
+     * @throws IOException if reading the stream fails
+     */
+    static Response decodeResponse(InputStream in, Closeable resource, int maxRows, boolean offHeap)
+            throws SQLException, IOException {
+        Response response = open(in, resource, offHeap);
+        if (response.stream == null) {
+            return response;
+        }
+        // Decode now so the caller can release the HTTP response
+        try (RedashResultStream stream = response.stream) {
+            return new Response(null, RedashResultStream.of(stream.read(maxRows > 0 ? maxRows : Integer.MAX_VALUE)));
+        }
+    }
+
+    /**
+     * Decode a {@code /query_results/{id}} response.
+     *
+     * @param in The response body
+     * @return The query result
+     * @throws SQLException if the response contains no query result
+     * @throws IOException if reading the stream fails
+     */
+    static RedashQueryResult decode(InputStream in) throws SQLException, IOException {
+        Response response = decodeResponse(in);
+        if (response.getResult() == null) {
+            throw new SQLException("No query results found in response");
+        }
+        return response.getResult();
+    }
+
+    /**
+     * Start decoding a response, stopping as soon as the column list has been read and the
+     * rows begin. The rows are then pulled on demand through the returned stream, which
+     * owns the response from then on.
+     *
+     * @param in The response body
+     * @param resource Released when the stream is closed, e.g. the HTTP response; may be null
+     * @param offHeap Whether the rows are stored in off-heap memory, one arena per chunk
+     * @return The response holding either a job or a row stream
+     * @throws SQLException if the response is malformed
+     * @throws IOException if reading the stream fails
+     */
+    static Response open(InputStream in, Closeable resource, boolean offHeap) throws SQLException, IOException {
+        JsonParser parser = objectMapper.getFactory().createParser(in);
+        // The stream decides whether to drain or abort the body, closing the parser must not do either
+        parser.disable(JsonParser.Feature.AUTO_CLOSE_SOURCE);
+        boolean handedOver = false;
+        try {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new SQLException("Invalid query results format");
+            }
+            JsonNode job = null;
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.getCurrentName();
+                JsonToken token = parser.nextToken();
+                if ("job".equals(field) && token == JsonToken.START_OBJECT) {
+                    job = parser.readValueAsTree();
+                } else if ("query_result".equals(field) && token == JsonToken.START_OBJECT) {
+                    RedashResultStream stream = openQueryResult(parser, in, resource, offHeap);
+                    handedOver = stream.isStreaming();
+                    return new Response(null, stream);
+                } else {
+                    parser.skipChildren();
+                }
+            }
+            if (job == null) {
+                throw new SQLException("No query results found in response");
+            }
+            return new Response(job, null);
+        } finally {
+            if (!handedOver) {
+                parser.close();
+            }
+        }
+    }
+
+    private static RedashResultStream openQueryResult(JsonParser parser, InputStream in, Closeable resource,
+                                                      boolean offHeap) throws SQLException, IOException {
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.getCurrentName();
+            JsonToken token = parser.nextToken();
+            if ("data".equals(field) && token == JsonToken.START_OBJECT) {
+                return openData(parser, in, resource, offHeap);
+            } else {
+                parser.skipChildren();
+            }
+        }
+        throw new SQLException("No data found in query results");
+    }
+
+    private static RedashResultStream openData(JsonParser parser, InputStream in, Closeable resource,
+                                               boolean offHeap) throws SQLException, IOException {
+        List<RedashColumn> columns = null;
+        JsonNode bufferedRows = null;
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.getCurrentName();
+            JsonToken token = parser.nextToken();
+            if ("columns".equals(field) && token == JsonToken.START_ARRAY) {
+                columns = readColumns(parser);
+            } else if ("rows".equals(field) && token == JsonToken.START_ARRAY) {
+                if (columns != null) {
+                    // Positioned on the rows array: hand the parser over
+                    return new RedashResultStream(columns, new RowReader(columns, offHeap), parser, in, resource);
+                }
+                // Rows arrived before the column list; fall back to buffering them
+                bufferedRows = parser.readValueAsTree();
+            } else {
+                parser.skipChildren();
+            }
+        }
+        if (columns == null || bufferedRows == null) {
+            throw new SQLException("Invalid query results format");
+        }
+        JsonParser rows = bufferedRows.traverse(objectMapper);
+        rows.nextToken();
+        return RedashResultStream.of(new RowReader(columns, offHeap).read(rows, Integer.MAX_VALUE));
+    }
+
+    private static List<RedashColumn> readColumns(JsonParser parser) throws IOException {
+        List<RedashColumn> columns = new ArrayList<>();
+        while (parser.nextToken() == JsonToken.START_OBJECT) {
+            JsonNode columnNode = parser.readValueAsTree();
+            columns.add(new RedashColumn(columnNode.path("name").asText(), columnNode.path("type").asText()));
+        }
+        return columns;
+    }
+
+    /**
+     * Decodes row objects into column vectors, a bounded number of rows at a time.
+     * Off-heap, each call stores its rows in a new arena owned by the returned result.
+     */
+    static final class RowReader {
+        private final List<RedashColumn> columns;
+        private final String[] names;
+        private final int[] types;
+        private final Map<String, Integer> indexByName = new HashMap<>();
+        private final boolean offHeap;
+
+        RowReader(List<RedashColumn> columns, boolean offHeap) {
+            this.columns = columns;
+            this.offHeap = offHeap;
+            int columnCount = columns.size();
+            this.names = new String[columnCount];
+            this.types = new int[columnCount];
+            for (int i = 0; i < columnCount; i++) {
+                RedashColumn column = columns.get(i);
+                names[i] = column.getName();
+                types[i] = RedashColumnVector.typeOf(column.getType());
+                indexByName.put(names[i], i);
+            }
+        }
+
+        /**
+         * Read up to {@code maxRows} rows from a parser positioned inside the rows array.
+         * When the end of the array is reached the parser is left on its END_ARRAY token.
+         *
+         * @param parser The parser, on START_ARRAY or after the last row read
+         * @param maxRows The maximum number of rows to read
+         * @return The rows read, possibly none
+         */
+        RedashQueryResult read(JsonParser parser, int maxRows) throws IOException {
+            if (!offHeap) {
+                return read(parser, maxRows, null);
+            }
+            RedashOffHeapArena arena = new RedashOffHeapArena();
+            try {
+                return read(parser, maxRows, arena);
+            } catch (RedashOffHeapArena.ExhaustedException e) {
+                arena.close();
+                throw new IOException(e.getMessage(), e);
+            } catch (IOException | RuntimeException e) {
+                arena.close();
+                throw e;
+            }
+        }
+
+        private RedashQueryResult read(JsonParser parser, int maxRows, RedashOffHeapArena arena) throws IOException {
+            int columnCount = names.length;
+            RedashColumnVector.Builder[] builders = new RedashColumnVector.Builder[columnCount];
+            for (int i = 0; i < columnCount; i++) {
+                builders[i] = arena != null ? RedashBufferVectors.offHeapBuilder(types[i], arena)
+                        : RedashColumnVector.builder(types[i]);
+            }
+
+            int rowCount = 0;
+            while (rowCount < maxRows && parser.nextToken() == JsonToken.START_OBJECT) {
+                int expected = 0;
+                while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                    String field = parser.getCurrentName();
+                    JsonToken token = parser.nextToken();
+                    // Rows normally list their fields in column order, so try the next position first
+                    int index;
+                    if (expected < columnCount && names[expected].equals(field)) {
+                        index = expected;
+                    } else {
+                        Integer found = indexByName.get(field);
+                        index = found != null ? found : -1;
+                    }
+                    if (index < 0 || builders[index].size() > rowCount) {
+                        parser.skipChildren();
+                        continue;
+                    }
+                    readValue(parser, token, types[index], builders[index]);
+                    expected = index + 1;
+                }
+                rowCount++;
+                // Columns missing from this row are null
+                for (RedashColumnVector.Builder builder : builders) {
+                    if (builder.size() < rowCount) {
+                        builder.appendNull();
+                    }
+                }
+            }
+
+            RedashColumnVector[] vectors = new RedashColumnVector[columnCount];
+            for (int i = 0; i < columnCount; i++) {
+                vectors[i] = builders[i].build();
+            }
+            return new RedashQueryResult(columns, vectors, rowCount, arena);
+        }
+    }
+
+    /**
+     * Append the current value token, coercing it the same way {@link JsonNode#asInt()},
+     * {@link JsonNode#asDouble()}, {@link JsonNode#asBoolean()} and {@link JsonNode#asText()} would.
+     */
+    private static void readValue(JsonParser parser, JsonToken token, int type,
+                                  RedashColumnVector.Builder builder) throws IOException {
+        if (token == JsonToken.VALUE_NULL) {
+            builder.appendNull();
+            return;
+        }
+        if (token == JsonToken.START_OBJECT || token == JsonToken.START_ARRAY) {
+            parser.skipChildren();
+            switch (type) {
+                case RedashColumnVector.TYPE_INTEGER:
+                    builder.appendLong(0);
+                    break;
+                case RedashColumnVector.TYPE_FLOAT:
+                    builder.appendDouble(0.0d);
+                    break;
+                case RedashColumnVector.TYPE_BOOLEAN:
+                    builder.appendBoolean(false);
+                    break;
+                default:
+                    builder.appendString("");
+                    break;
+            }
+            return;
+        }
+        switch (type) {
+            case RedashColumnVector.TYPE_INTEGER:
+                switch (token) {
+                    case VALUE_NUMBER_INT:
+                        builder.appendLong(parser.getNumberValue().longValue());
+                        break;
+                    case VALUE_NUMBER_FLOAT:
+                        builder.appendLong((long) parser.getDoubleValue());
+                        break;
+                    case VALUE_TRUE:
+                        builder.appendLong(1);
+                        break;
+                    case VALUE_FALSE:
+                        builder.appendLong(0);
+                        break;
+                    default:
+                        builder.appendLong(NumberInput.parseAsLong(parser.getText(), 0L));
+                        break;
+                }
+                break;
+            case RedashColumnVector.TYPE_FLOAT:
+                switch (token) {
+                    case VALUE_NUMBER_INT:
+                    case VALUE_NUMBER_FLOAT:
+                        builder.appendDouble(parser.getDoubleValue());
+                        break;
+                    case VALUE_TRUE:
+                        builder.appendDouble(1.0d);
+                        break;
+                    case VALUE_FALSE:
+                        builder.appendDouble(0.0d);
+                        break;
+                    default:
+                        builder.appendDouble(NumberInput.parseAsDouble(parser.getText(), 0.0d));
+                        break;
+                }
+                break;
+            case RedashColumnVector.TYPE_BOOLEAN:
+                switch (token) {
+                    case VALUE_TRUE:
+                        builder.appendBoolean(true);
+                        break;
+                    case VALUE_FALSE:
+                        builder.appendBoolean(false);
+                        break;
+                    case VALUE_NUMBER_INT:
+                        builder.appendBoolean(parser.getLongValue() != 0);
+                        break;
+                    case VALUE_NUMBER_FLOAT:
+                        builder.appendBoolean(false);
+                        break;
+                    default:
+                        builder.appendBoolean("true".equals(parser.getText().trim()));
+                        break;
+                }
+                break;
+            default:
+                builder.appendString(parser.getText());
+                break;
+        }
+    }
+}
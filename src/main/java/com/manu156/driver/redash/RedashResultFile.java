@@ -0,0 +1,416 @@
+package com.manu156.driver.redash;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Columnar binary file holding one result of the disk tier of {@link RedashResultCache}.
+ * A file is memory-mapped when read, and the vectors of the loaded result read their
+ * cells straight from the mapped region: loading costs no JSON parsing and almost no
+ * heap, as only the distinct values of dictionary-encoded string columns are decoded
+ * up front.
+ *
+ * <p>All numbers are little-endian and every section starts at a multiple of 8 bytes:</p>
+ * <pre>
+ * header   magic, version, stored-at and expires-at (epoch millis), row count,
+ *          column count, offset of the column table
+ * data     INTEGER, FLOAT: null bitmap, 8-byte values
+ *          BOOLEAN:        null bitmap, value bitmap
+ *          DICTIONARY:     4-byte codes (-1 for null), UTF-8 distinct values, their offsets
+ *          PACKED:         null bitmap, UTF-8 values, their offsets
+ * table    per column: name, Redash type, encoding, distinct value count, data offsets
+ * </pre>
+ */
+final class RedashResultFile {
+    static final String SUFFIX = ".rdc";
+
+    private static final int MAGIC = 0x43524452;
+    private static final int VERSION = 1;
+    private static final int HEADER_BYTES = 40;
+
+    private static final int ENCODING_LONG = 1;
+    private static final int ENCODING_DOUBLE = 2;
+    private static final int ENCODING_BOOLEAN = 3;
+    private static final int ENCODING_DICTIONARY = 4;
+    private static final int ENCODING_PACKED = 5;
+
+    private final long storedAtMillis;
+    private final long expiresAtMillis;
+    private final RedashQueryResult result;
+
+    private RedashResultFile(long storedAtMillis, long expiresAtMillis, RedashQueryResult result) {
+        this.storedAtMillis = storedAtMillis;
+        this.expiresAtMillis = expiresAtMillis;
+        this.result = result;
+    }
+
+    long getStoredAtMillis() {
+        return storedAtMillis;
+    }
+
+    long getExpiresAtMillis() {
+        return expiresAtMillis;
+    }
+
+    /**
+     * The result, reading from the mapped file. The mapping stays valid after the file is
+     * deleted or replaced and is released when the result is garbage collected.
+     */
+    RedashQueryResult getResult() {
+        return result;
+    }
+
+    /**
+     * Write a result to a file, replacing it.
+     *
+     * @param path The file
+     * @param result The result
+     * @param storedAtMillis When the result was fetched, epoch milliseconds
+     * @param expiresAtMillis When the result stops being valid, epoch milliseconds
+     * @throws IOException if the file cannot be written or would exceed 2 GB, the most one mapping can hold
+     */
+    static void write(Path path, RedashQueryResult result, long storedAtMillis, long expiresAtMillis)
+            throws IOException {
+        int rows = result.getRowCount();
+        try (Output out = new Output(FileChannel.open(path, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE))) {
+            out.skip(HEADER_BYTES);
+            int columnCount = result.getColumnCount();
+            int[] encodings = new int[columnCount];
+            int[] counts = new int[columnCount];
+            long[][] offsets = new long[columnCount][];
+            for (int i = 0; i < columnCount; i++) {
+                RedashColumnVector vector = result.getVector(i);
+                switch (vector.type()) {
+                    case RedashColumnVector.TYPE_INTEGER:
+                        encodings[i] = ENCODING_LONG;
+                        offsets[i] = new long[]{writeNulls(out, vector, rows), out.position()};
+                        for (int row = 0; row < rows; row++) {
+                            out.putLong(vector.isNull(row) ? 0 : vector.getLong(row));
+                        }
+                        break;
+                    case RedashColumnVector.TYPE_FLOAT:
+                        encodings[i] = ENCODING_DOUBLE;
+                        offsets[i] = new long[]{writeNulls(out, vector, rows), out.position()};
+                        for (int row = 0; row < rows; row++) {
+                            out.putDouble(vector.isNull(row) ? 0 : vector.getDouble(row));
+                        }
+                        break;
+                    case RedashColumnVector.TYPE_BOOLEAN:
+                        encodings[i] = ENCODING_BOOLEAN;
+                        offsets[i] = new long[]{writeNulls(out, vector, rows), out.position()};
+                        long word = 0;
+                        for (int row = 0; row < rows; row++) {
+                            if (!vector.isNull(row) && vector.getBoolean(row)) {
+                                word |= 1L << (row & 63);
+                            }
+                            if ((row & 63) == 63 || row == rows - 1) {
+                                out.putLong(word);
+                                word = 0;
+                            }
+                        }
+                        break;
+                    default:
+                        if (vector instanceof RedashColumnVector.DictionaryVector) {
+                            RedashColumnVector.DictionaryVector strings = (RedashColumnVector.DictionaryVector) vector;
+                            String[] dictionary = strings.getDictionary();
+                            encodings[i] = ENCODING_DICTIONARY;
+                            counts[i] = dictionary.length;
+                            long codes = out.position();
+                            for (int row = 0; row < rows; row++) {
+                                out.putInt(strings.getCode(row));
+                            }
+                            out.align();
+                            long[] values = writeStrings(out, dictionary.length, dictionary, null);
+                            offsets[i] = new long[]{codes, values[0], values[1]};
+                        } else {
+                            encodings[i] = ENCODING_PACKED;
+                            long nulls = writeNulls(out, vector, rows);
+                            long[] values = writeStrings(out, rows, null, vector);
+                            offsets[i] = new long[]{nulls, values[0], values[1]};
+                        }
+                }
+                out.align();
+            }
+
+            long table = out.position();
+            for (int i = 0; i < columnCount; i++) {
+                RedashColumn column = result.getColumn(i);
+                out.putString(column.getName());
+                out.putString(column.getType());
+                out.putInt(encodings[i]);
+                out.putInt(counts[i]);
+                out.align();
+                for (int k = 0; k < 3; k++) {
+                    out.putLong(k < offsets[i].length ? offsets[i][k] : 0);
+                }
+            }
+            out.flush();
+
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            header.putInt(MAGIC).putInt(VERSION).putLong(storedAtMillis).putLong(expiresAtMillis)
+                    .putInt(rows).putInt(columnCount).putLong(table).flip();
+            out.channel.write(header, 0);
+        }
+    }
+
+    /**
+     * Read the expiry time from the header of a file without mapping it.
+     *
+     * @return The expiry time, epoch milliseconds
+     * @throws IOException if the file cannot be read or is not a result file
+     */
+    static long readExpiresAtMillis(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            while (header.hasRemaining() && channel.read(header) >= 0) {
+                // Read the whole header
+            }
+            header.flip();
+            checkHeader(header, channel.size());
+            return header.getLong(16);
+        }
+    }
+
+    /**
+     * Map a file and open the result it holds.
+     *
+     * @param path The file
+     * @return The file's result and its times
+     * @throws IOException if the file cannot be read or is not a valid result file
+     */
+    static RedashResultFile read(Path path) throws IOException {
+        ByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("Invalid result file " + path);
+            }
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size).order(ByteOrder.LITTLE_ENDIAN);
+        }
+        checkHeader(buffer, buffer.capacity());
+        long storedAtMillis = buffer.getLong(8);
+        long expiresAtMillis = buffer.getLong(16);
+        int rows = buffer.getInt(24);
+        int columnCount = buffer.getInt(28);
+        int position = checkRange(buffer, buffer.getLong(32), 0);
+
+        List<RedashColumn> columns = new ArrayList<>(columnCount);
+        RedashColumnVector[] vectors = new RedashColumnVector[columnCount];
+        int bitmapBytes = 8 * ((rows + 63) / 64);
+        try {
+            for (int i = 0; i < columnCount; i++) {
+                int nameLength = buffer.getInt(position);
+                String name = string(buffer, position + 4L, nameLength);
+                position = position + 4 + nameLength;
+                int typeLength = buffer.getInt(position);
+                String type = string(buffer, position + 4L, typeLength);
+                position = position + 4 + typeLength;
+                int encoding = buffer.getInt(position);
+                int count = buffer.getInt(position + 4);
+                position = align(position + 8);
+                long first = buffer.getLong(position);
+                long second = buffer.getLong(position + 8);
+                long third = buffer.getLong(position + 16);
+                position += 24;
+                columns.add(new RedashColumn(name, type));
+                switch (encoding) {
+                    case ENCODING_LONG:
+                        vectors[i] = new RedashBufferVectors.BufferLongVector(buffer,
+                                checkRange(buffer, first, bitmapBytes), checkRange(buffer, second, 8L * rows), rows);
+                        break;
+                    case ENCODING_DOUBLE:
+                        vectors[i] = new RedashBufferVectors.BufferDoubleVector(buffer,
+                                checkRange(buffer, first, bitmapBytes), checkRange(buffer, second, 8L * rows), rows);
+                        break;
+                    case ENCODING_BOOLEAN:
+                        vectors[i] = new RedashBufferVectors.BufferBooleanVector(buffer,
+                                checkRange(buffer, first, bitmapBytes), checkRange(buffer, second, bitmapBytes), rows);
+                        break;
+                    case ENCODING_DICTIONARY:
+                        int valueOffsets = checkRange(buffer, third, 4L * (count + 1));
+                        int values = checkRange(buffer, second, buffer.getInt(valueOffsets + 4 * count));
+                        String[] dictionary = new String[count];
+                        for (int code = 0; code < count; code++) {
+                            int start = buffer.getInt(valueOffsets + 4 * code);
+                            dictionary[code] = string(buffer, (long) values + start,
+                                    buffer.getInt(valueOffsets + 4 * code + 4) - start);
+                        }
+                        vectors[i] = new RedashBufferVectors.BufferDictionaryVector(buffer,
+                                checkRange(buffer, first, 4L * rows), dictionary, rows);
+                        break;
+                    case ENCODING_PACKED:
+                        int rowOffsets = checkRange(buffer, third, 4L * (rows + 1));
+                        vectors[i] = new RedashBufferVectors.BufferPackedVector(buffer,
+                                checkRange(buffer, first, bitmapBytes),
+                                checkRange(buffer, second, buffer.getInt(rowOffsets + 4 * rows)), rowOffsets, rows);
+                        break;
+                    default:
+                        throw new IOException("Invalid result file " + path + ": unknown column encoding " + encoding);
+                }
+            }
+        } catch (IndexOutOfBoundsException e) {
+            throw new IOException("Invalid result file " + path, e);
+        }
+        return new RedashResultFile(storedAtMillis, expiresAtMillis,
+                new RedashQueryResult(columns, vectors, rows));
+    }
+
+    private static void checkHeader(ByteBuffer header, long size) throws IOException {
+        if (size < HEADER_BYTES || header.limit() < HEADER_BYTES || header.getInt(0) != MAGIC
+                || header.getInt(4) != VERSION) {
+            throw new IOException("Not a result file of this driver version");
+        }
+    }
+
+    // Check that a section lies within the file, returning its offset
+    private static int checkRange(ByteBuffer buffer, long offset, long length) throws IOException {
+        if (offset < HEADER_BYTES || length < 0 || offset > buffer.capacity() - length) {
+            throw new IOException("Invalid result file: section out of bounds");
+        }
+        return (int) offset;
+    }
+
+    // Decode a string of the column table or a dictionary, which must lie within the file
+    private static String string(ByteBuffer buffer, long offset, int length) throws IOException {
+        return utf8(buffer, checkRange(buffer, offset, length), length);
+    }
+
+    private static long writeNulls(Output out, RedashColumnVector vector, int rows) throws IOException {
+        long offset = out.position();
+        long word = 0;
+        for (int row = 0; row < rows; row++) {
+            if (vector.isNull(row)) {
+                word |= 1L << (row & 63);
+            }
+            if ((row & 63) == 63 || row == rows - 1) {
+                out.putLong(word);
+                word = 0;
+            }
+        }
+        return offset;
+    }
+
+    // UTF-8 values, from the array or else the vector, followed by the offset of each value and
+    // the end offset; null values are empty
+    private static long[] writeStrings(Output out, int count, String[] values, RedashColumnVector vector)
+            throws IOException {
+        long start = out.position();
+        int[] offsets = new int[count + 1];
+        for (int i = 0; i < count; i++) {
+            String value = values != null ? values[i] : vector.getString(i);
+            if (value != null) {
+                out.putBytes(value.getBytes(StandardCharsets.UTF_8));
+            }
+            offsets[i + 1] = (int) (out.position() - start);
+        }
+        out.align();
+        long offsetsStart = out.position();
+        for (int offset : offsets) {
+            out.putInt(offset);
+        }
+        return new long[]{start, offsetsStart};
+    }
+
+    private static int align(int position) {
+        return (position + 7) & ~7;
+    }
+
+    private static String utf8(ByteBuffer buffer, int offset, int length) {
+        return RedashBufferVectors.utf8(buffer, offset, length);
+    }
+
+    /**
+     * Buffered little-endian writer that tracks the file position.
+     */
+    private static final class Output implements Closeable {
+        private final FileChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocate(64 * 1024).order(ByteOrder.LITTLE_ENDIAN);
+        private long position;
+
+        Output(FileChannel channel) {
+            this.channel = channel;
+        }
+
+        long position() {
+            return position;
+        }
+
+        void skip(int bytes) throws IOException {
+            for (int i = 0; i < bytes; i++) {
+                ensure(1);
+                buffer.put((byte) 0);
+            }
+            position += bytes;
+        }
+
+        void align() throws IOException {
+            skip((int) (-position & 7));
+        }
+
+        void putInt(int value) throws IOException {
+            ensure(4);
+            buffer.putInt(value);
+            position += 4;
+        }
+
+        void putLong(long value) throws IOException {
+            ensure(8);
+            buffer.putLong(value);
+            position += 8;
+        }
+
+        void putDouble(double value) throws IOException {
+            ensure(8);
+            buffer.putDouble(value);
+            position += 8;
+        }
+
+        void putBytes(byte[] bytes) throws IOException {
+            int written = 0;
+            while (written < bytes.length) {
+                ensure(1);
+                int chunk = Math.min(buffer.remaining(), bytes.length - written);
+                buffer.put(bytes, written, chunk);
+                written += chunk;
+            }
+            position += bytes.length;
+        }
+
+        void putString(String value) throws IOException {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            putInt(bytes.length);
+            putBytes(bytes);
+        }
+
+        private void ensure(int bytes) throws IOException {
+            if (position + bytes > Integer.MAX_VALUE) {
+                throw new IOException("Result too large for a result file");
+            }
+            if (buffer.remaining() < bytes) {
+                flush();
+            }
+        }
+
+        void flush() throws IOException {
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            buffer.clear();
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+}
@@ -10,35 +10,110 @@ import java.util.*;
 
 /**
  * Implementation of java.sql.ResultSet for Redash API.
- * This is a forward-only, read-only result set.
+ * This is a forward-only, read-only result set. It either holds a fully decoded
+ * result or reads one from a {@link RedashResultStream} in chunks of the fetch size.
  */
 public class RedashResultSet implements ResultSet {
     
+    // Rows decoded per chunk when streaming and no fetch size is set
+    static final int DEFAULT_FETCH_SIZE = 1000;
+    
     private final RedashStatement statement;
-    private final RedashQueryResult queryResult;
+    private final RedashResultStream stream;
     private final List<RedashColumn> columns;
-    private final List<Map<String, Object>> rows;
+    private final boolean caseInsensitiveColumnNames;
+    // The current chunk; the whole result unless streaming
+    private RedashQueryResult queryResult;
+    private int rowCount;
+    private int rowOffset;
+    private int fetchSize;
+    private final int maxRows;
     private int currentRowIndex = -1;
     private boolean closed = false;
     private boolean wasNull = false;
     
     public RedashResultSet(RedashStatement statement, RedashQueryResult queryResult) {
         this.statement = statement;
+        this.stream = null;
         this.queryResult = queryResult;
         this.columns = queryResult.getColumns();
-        this.rows = queryResult.getRows();
+        this.rowCount = queryResult.getRowCount();
+        this.maxRows = 0;
+        this.caseInsensitiveColumnNames = isCaseInsensitive(statement);
+    }
+    
+    /**
+     * Create a result set over a result stream. Rows are pulled from the stream as
+     * {@link #next()} reaches the end of the current chunk.
+     * 
+     * @param statement The statement that produced the result
+     * @param stream The result rows
+     * @param fetchSize Rows decoded per chunk, 0 for the default
+     * @param maxRows The maximum number of rows returned, 0 for no limit
+     */
+    RedashResultSet(RedashStatement statement, RedashResultStream stream, int fetchSize, int maxRows) {
+        this.statement = statement;
+        this.stream = stream;
+        this.columns = stream.getColumns();
+        // Column lookups work before the first chunk is read
+        this.queryResult = new RedashQueryResult(columns, new RedashColumnVector[columns.size()], 0);
+        this.rowCount = 0;
+        this.fetchSize = fetchSize;
+        this.maxRows = maxRows;
+        this.caseInsensitiveColumnNames = isCaseInsensitive(statement);
+    }
+    
+    private static boolean isCaseInsensitive(RedashStatement statement) {
+        return statement != null
+                && statement.getRedashConnection().getProperties().isCaseInsensitiveColumnNames();
     }
     
     @Override
     public boolean next() throws SQLException {
         checkClosed();
+        if (maxRows > 0 && rowOffset + currentRowIndex + 1 >= maxRows) {
+            // Limit reached: stop without reading further from a streamed response
+            if (stream != null) {
+                stream.close();
+            }
+            currentRowIndex = rowCount;
+            return false;
+        }
         currentRowIndex++;
-        return currentRowIndex < rows.size();
+        if (currentRowIndex < rowCount) {
+            return true;
+        }
+        return stream != null && nextChunk();
+    }
+    
+    /**
+     * Replace the current chunk with the next one from the stream.
+     */
+    private boolean nextChunk() throws SQLException {
+        int chunkSize = fetchSize > 0 ? fetchSize : DEFAULT_FETCH_SIZE;
+        if (maxRows > 0) {
+            chunkSize = Math.min(chunkSize, maxRows - rowOffset - rowCount);
+        }
+        RedashQueryResult chunk = stream.next(chunkSize);
+        if (chunk == null || chunk.getRowCount() == 0) {
+            currentRowIndex = rowCount;
+            return false;
+        }
+        rowOffset += rowCount;
+        queryResult.close();
+        queryResult = chunk;
+        rowCount = chunk.getRowCount();
+        currentRowIndex = 0;
+        return true;
     }
     
     @Override
     public void close() throws SQLException {
         closed = true;
+        if (stream != null) {
+            stream.close();
+        }
+        queryResult.close();
     }
     
     @Override
@@ -49,17 +124,24 @@ public class RedashResultSet implements ResultSet {
     
     @Override
     public String getString(int columnIndex) throws SQLException {
-        Object value = getColumnValue(columnIndex);
+        String value = getVector(columnIndex).getString(currentRowIndex);
         wasNull = value == null;
-        return value == null ? null : value.toString();
+        return value;
     }
     
     @Override
     public boolean getBoolean(int columnIndex) throws SQLException {
-        Object value = getColumnValue(columnIndex);
-        wasNull = value == null;
+        RedashColumnVector vector = getVector(columnIndex);
+        wasNull = vector.isNull(currentRowIndex);
         if (wasNull) return false;
+        if (vector.type() == RedashColumnVector.TYPE_BOOLEAN) {
+            return vector.getBoolean(currentRowIndex);
+        }
+        if (vector.isNumeric()) {
+            return vector.getInt(currentRowIndex) != 0;
+        }
         
+        Object value = vector.getObject(currentRowIndex);
         if (value instanceof Boolean) {
             return (Boolean) value;
         } else if (value instanceof Number) {
@@ -73,10 +155,14 @@ public class RedashResultSet implements ResultSet {
     
     @Override
     public byte getByte(int columnIndex) throws SQLException {
-        Object value = getColumnValue(columnIndex);
-        wasNull = value == null;
+        RedashColumnVector vector = getVector(columnIndex);
+        wasNull = vector.isNull(currentRowIndex);
         if (wasNull) return 0;
+        if (vector.isNumeric()) {
+            return (byte) vector.getInt(currentRowIndex);
+        }
         
+        Object value = vector.getObject(currentRowIndex);
         if (value instanceof Number) {
             return ((Number) value).byteValue();
         }
@@ -85,10 +171,14 @@ public class RedashResultSet implements ResultSet {
     
     @Override
     public short getShort(int columnIndex) throws SQLException {
-        Object value = getColumnValue(columnIndex);
-        wasNull = value == null;
+        RedashColumnVector vector = getVector(columnIndex);
+        wasNull = vector.isNull(currentRowIndex);
         if (wasNull) return 0;
+        if (vector.isNumeric()) {
+            return (short) vector.getInt(currentRowIndex);
+        }
         
+        Object value = vector.getObject(currentRowIndex);
         if (value instanceof Number) {
             return ((Number) value).shortValue();
         }
@@ -97,10 +187,14 @@ public class RedashResultSet implements ResultSet {
     
     @Override
     public int getInt(int columnIndex) throws SQLException {
-        Object value = getColumnValue(columnIndex);
-        wasNull = value == null;
+        RedashColumnVector vector = getVector(columnIndex);
+        wasNull = vector.isNull(currentRowIndex);
         if (wasNull) return 0;
+        if (vector.isNumeric()) {
+            return vector.getInt(currentRowIndex);
+        }
         
+        Object value = vector.getObject(currentRowIndex);
         if (value instanceof Number) {
             return ((Number) value).intValue();
         }
@@ -109,10 +203,14 @@ public class RedashResultSet implements ResultSet {
     
     @Override
     public long getLong(int columnIndex) throws SQLException {
-        Object value = getColumnValue(columnIndex);
-        wasNull = value == null;
+        RedashColumnVector vector = getVector(columnIndex);
+        wasNull = vector.isNull(currentRowIndex);
         if (wasNull) return 0;
+        if (vector.isNumeric()) {
+            return vector.getLong(currentRowIndex);
+        }
         
+        Object value = vector.getObject(currentRowIndex);
         if (value instanceof Number) {
             return ((Number) value).longValue();
         }
@@ -121,10 +219,14 @@ public class RedashResultSet implements ResultSet {
     
     @Override
     public float getFloat(int columnIndex) throws SQLException {
-        Object value = getColumnValue(columnIndex);
-        wasNull = value == null;
+        RedashColumnVector vector = getVector(columnIndex);
+        wasNull = vector.isNull(currentRowIndex);
         if (wasNull) return 0;
+        if (vector.isNumeric()) {
+            return (float) vector.getDouble(currentRowIndex);
+        }
         
+        Object value = vector.getObject(currentRowIndex);
         if (value instanceof Number) {
             return ((Number) value).floatValue();
         }
@@ -133,10 +235,14 @@ public class RedashResultSet implements ResultSet {
     
     @Override
     public double getDouble(int columnIndex) throws SQLException {
-        Object value = getColumnValue(columnIndex);
-        wasNull = value == null;
+        RedashColumnVector vector = getVector(columnIndex);
+        wasNull = vector.isNull(currentRowIndex);
         if (wasNull) return 0;
+        if (vector.isNumeric()) {
+            return vector.getDouble(currentRowIndex);
+        }
         
+        Object value = vector.getObject(currentRowIndex);
         if (value instanceof Number) {
             return ((Number) value).doubleValue();
         }
@@ -290,12 +396,11 @@ public class RedashResultSet implements ResultSet {
     @Override
     public int findColumn(String columnLabel) throws SQLException {
         checkClosed();
-        for (int i = 0; i < columns.size(); i++) {
-            if (columns.get(i).getName().equals(columnLabel)) {
-                return i + 1; // JDBC columns are 1-based
-            }
+        int index = queryResult.getColumnIndex(columnLabel, caseInsensitiveColumnNames);
+        if (index < 0) {
+            throw new SQLException("Column not found: " + columnLabel);
         }
-        throw new SQLException("Column not found: " + columnLabel);
+        return index + 1; // JDBC columns are 1-based
     }
     
     @Override
@@ -588,20 +693,27 @@ public class RedashResultSet implements ResultSet {
     // Helper methods
     
     private Object getColumnValue(int columnIndex) throws SQLException {
+        return getVector(columnIndex).getObject(currentRowIndex);
+    }
+    
+    private RedashColumnVector getVector(int columnIndex) throws SQLException {
         checkClosed();
         if (currentRowIndex < 0) {
             throw new SQLException("No current row. Call next() first.");
         }
-        if (currentRowIndex >= rows.size()) {
+        if (currentRowIndex >= rowCount) {
             throw new SQLException("No more rows available");
         }
         if (columnIndex < 1 || columnIndex > columns.size()) {
             throw new SQLException("Invalid column index: " + columnIndex);
         }
         
-        Map<String, Object> currentRow = rows.get(currentRowIndex);
-        String columnName = columns.get(columnIndex - 1).getName();
-        return currentRow.get(columnName);
+        try {
+            return queryResult.getVector(columnIndex - 1);
+        } catch (IllegalStateException e) {
+            // Closed by another thread, e.g. with its statement, since the check above
+            throw new SQLException("ResultSet is closed", e);
+        }
     }
     
     private void checkClosed() throws SQLException {
@@ -655,7 +767,7 @@ public class RedashResultSet implements ResultSet {
     @Override
     public int getRow() throws SQLException {
         checkClosed();
-        return currentRowIndex + 1;
+        return rowOffset + currentRowIndex + 1;
     }
     
     @Override
@@ -687,12 +799,16 @@ public class RedashResultSet implements ResultSet {
     
     @Override
     public void setFetchSize(int rows) throws SQLException {
-        // No-op
+        checkClosed();
+        if (rows < 0) {
+            throw new SQLException("Fetch size cannot be negative");
+        }
+        this.fetchSize = rows;
     }
     
     @Override
     public int getFetchSize() throws SQLException {
-        return 0;
+        return fetchSize;
     }
     
     @Override
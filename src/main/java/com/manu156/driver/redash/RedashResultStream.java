@@ -0,0 +1,183 @@
+package com.manu156.driver.redash;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.sql.SQLException;
+import java.util.List;
+
+/**
+ * Source of query result rows, read in chunks.
+ * A live stream decodes rows lazily from an open HTTP response: nothing beyond the
+ * current chunk is read from the socket, so a slow consumer holds the server back
+ * through TCP flow control instead of buffering the result in memory. A materialised
+ * stream wraps a result that has already been decoded.
+ */
+final class RedashResultStream implements Closeable {
+    private final List<RedashColumn> columns;
+    private final boolean streaming;
+    private RedashQueryResult materialized;
+    private final RedashResultDecoder.RowReader reader;
+    private final JsonParser parser;
+    private final InputStream in;
+    private final Closeable resource;
+    private boolean exhausted;
+    private boolean closed;
+
+    RedashResultStream(List<RedashColumn> columns, RedashResultDecoder.RowReader reader, JsonParser parser,
+                       InputStream in, Closeable resource) {
+        this.columns = columns;
+        this.streaming = true;
+        this.reader = reader;
+        this.parser = parser;
+        this.in = in;
+        this.resource = resource;
+    }
+
+    private RedashResultStream(RedashQueryResult result) {
+        this.columns = result.getColumns();
+        this.streaming = false;
+        this.materialized = result;
+        this.reader = null;
+        this.parser = null;
+        this.in = null;
+        this.resource = null;
+    }
+
+    /**
+     * Wrap an already decoded result.
+     *
+     * @param result The result
+     * @return A stream returning the whole result as its only chunk
+     */
+    static RedashResultStream of(RedashQueryResult result) {
+        return new RedashResultStream(result);
+    }
+
+    List<RedashColumn> getColumns() {
+        return columns;
+    }
+
+    /**
+     * @return Whether rows are decoded lazily from an open response
+     */
+    boolean isStreaming() {
+        return streaming;
+    }
+
+    /**
+     * Read the next chunk of rows. A materialised stream returns its whole result at once.
+     *
+     * @param maxRows The maximum number of rows to decode
+     * @return The next rows, or null once all rows have been returned
+     * @throws SQLException if reading the response fails; the stream is closed
+     */
+    RedashQueryResult next(int maxRows) throws SQLException {
+        if (exhausted) {
+            return null;
+        }
+        if (closed) {
+            throw new SQLException("Result stream is closed");
+        }
+        if (!streaming) {
+            RedashQueryResult result = materialized;
+            materialized = null;
+            exhausted = true;
+            return result;
+        }
+        try {
+            RedashQueryResult chunk = reader.read(parser, maxRows);
+            if (parser.currentToken() != JsonToken.END_OBJECT) {
+                // Stopped on the end of the rows array rather than after a full chunk
+                exhausted = true;
+                close();
+            }
+            if (chunk.getRowCount() == 0 && exhausted) {
+                chunk.close();
+                return null;
+            }
+            return chunk;
+        } catch (IOException e) {
+            close();
+            if (e.getCause() instanceof RedashOffHeapArena.ExhaustedException) {
+                throw new SQLException(e.getMessage(), e.getCause());
+            }
+            throw new SQLException("Error reading query results", e);
+        }
+    }
+
+    /**
+     * Decode all remaining rows into one result.
+     *
+     * @return The remaining rows
+     * @throws SQLException if reading the response fails
+     */
+    RedashQueryResult readAll() throws SQLException {
+        if (!streaming) {
+            return materialized;
+        }
+        return read(Integer.MAX_VALUE);
+    }
+
+    /**
+     * Decode up to the given number of rows into one result. A materialised stream
+     * returns its whole result.
+     *
+     * @param maxRows The maximum number of rows to decode
+     * @return The rows read, possibly none
+     * @throws SQLException if reading the response fails
+     */
+    RedashQueryResult read(int maxRows) throws SQLException {
+        if (!streaming) {
+            return materialized;
+        }
+        RedashQueryResult result = next(maxRows);
+        return result != null ? result : new RedashQueryResult(columns, emptyVectors(), 0);
+    }
+
+    /**
+     * Release the response. A fully read body is drained so its connection can be reused;
+     * otherwise the connection is aborted rather than downloading the remaining rows.
+     * A materialised result that {@link #next} has not returned yet is closed.
+     */
+    @Override
+    public void close() {
+        if (closed || !streaming) {
+            closed = true;
+            if (materialized != null) {
+                materialized.close();
+                materialized = null;
+            }
+            return;
+        }
+        closed = true;
+        try {
+            if (exhausted) {
+                // Only the tail of the document is left
+                in.transferTo(OutputStream.nullOutputStream());
+            }
+        } catch (IOException e) {
+            // Fall through to closing the connection
+        }
+        try {
+            if (resource != null) {
+                resource.close();
+            }
+            parser.close();
+        } catch (IOException e) {
+            // Nothing left to release
+        }
+    }
+
+    private RedashColumnVector[] emptyVectors() {
+        RedashColumnVector[] vectors = new RedashColumnVector[columns.size()];
+        for (int i = 0; i < vectors.length; i++) {
+            vectors[i] = RedashColumnVector.builder(RedashColumnVector.typeOf(columns.get(i).getType())).build();
+        }
+        return vectors;
+    }
+}
@@ -0,0 +1,107 @@
+package com.manu156.driver.redash;
+
+import org.apache.http.Header;
+import org.apache.http.HttpException;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpExecutionAware;
+import org.apache.http.client.methods.HttpRequestWrapper;
+import org.apache.http.client.protocol.HttpClientContext;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.impl.execchain.ClientExecChain;
+import org.apache.http.impl.execchain.RequestAbortedException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Element of the HTTP client's execution chain that passes every request through the
+ * host's circuit breaker and retries idempotent GETs with backoff. It replaces
+ * HttpClient's own retry handler, which retries immediately and knows nothing of
+ * gateway errors. Backoff waits end early when the request is aborted, so
+ * {@code Statement.cancel()} and query timeouts are not held up by a retry.
+ */
+final class RedashRetryExec implements ClientExecChain {
+    private static final Logger logger = LoggerFactory.getLogger(RedashRetryExec.class);
+
+    // Granularity at which a backoff wait notices that the request was aborted
+    private static final long ABORT_CHECK_MILLIS = 50;
+
+    private final ClientExecChain requestExecutor;
+    private final RedashRetryPolicy retryPolicy;
+    private final RedashCircuitBreaker circuitBreaker;
+
+    RedashRetryExec(ClientExecChain requestExecutor, RedashRetryPolicy retryPolicy,
+                    RedashCircuitBreaker circuitBreaker) {
+        this.requestExecutor = requestExecutor;
+        this.retryPolicy = retryPolicy;
+        this.circuitBreaker = circuitBreaker;
+    }
+
+    @Override
+    public CloseableHttpResponse execute(HttpRoute route, HttpRequestWrapper request, HttpClientContext context,
+                                         HttpExecutionAware execAware) throws IOException, HttpException {
+        String method = request.getRequestLine().getMethod();
+        // Later elements of the chain add headers; every attempt starts from the original ones
+        Header[] headers = request.getAllHeaders();
+        for (int attempt = 1; ; attempt++) {
+            circuitBreaker.acquirePermission();
+            CloseableHttpResponse response;
+            try {
+                response = requestExecutor.execute(route, request, context, execAware);
+            } catch (IOException | HttpException | RuntimeException e) {
+                if (isAborted(execAware) || !(e instanceof IOException)) {
+                    circuitBreaker.onAbandoned();
+                    throw e;
+                }
+                circuitBreaker.onFailure();
+                if (!RedashRetryPolicy.isRetryable((IOException) e) || !retryPolicy.canRetry(method, attempt)) {
+                    throw e;
+                }
+                logger.debug("{} {} failed ({}), retrying", method, request.getURI(), e.toString());
+                backoff(attempt, execAware);
+                request.setHeaders(headers);
+                continue;
+            }
+
+            int statusCode = response.getStatusLine().getStatusCode();
+            if (RedashRetryPolicy.isUnavailable(statusCode)) {
+                circuitBreaker.onFailure();
+            } else {
+                circuitBreaker.onSuccess();
+            }
+            if (!RedashRetryPolicy.isRetryable(statusCode) || !retryPolicy.canRetry(method, attempt)) {
+                return response;
+            }
+            logger.debug("{} {} answered HTTP {}, retrying", method, request.getURI(), statusCode);
+            response.close();
+            backoff(attempt, execAware);
+            request.setHeaders(headers);
+        }
+    }
+
+    private void backoff(int attempt, HttpExecutionAware execAware) throws IOException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(retryPolicy.backoffMillis(attempt));
+        try {
+            while (true) {
+                if (isAborted(execAware)) {
+                    throw new RequestAbortedException("Request aborted");
+                }
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    return;
+                }
+                TimeUnit.NANOSECONDS.sleep(Math.min(remaining, TimeUnit.MILLISECONDS.toNanos(ABORT_CHECK_MILLIS)));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting to retry");
+        }
+    }
+
+    private static boolean isAborted(HttpExecutionAware execAware) {
+        return execAware != null && execAware.isAborted();
+    }
+}
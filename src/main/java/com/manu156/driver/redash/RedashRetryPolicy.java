@@ -0,0 +1,72 @@
+package com.manu156.driver.redash;
+
+import org.apache.http.conn.ConnectTimeoutException;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.UnknownHostException;
+import java.net.http.HttpConnectTimeoutException;
+import java.net.http.HttpTimeoutException;
+import javax.net.ssl.SSLException;
+
+/**
+ * Decides whether and after how long a failed request to Redash is retried.
+ * Only idempotent GETs are retried, on I/O errors and on the statuses a proxy or
+ * a restarting Redash web pod answers with; POSTs that create queries or jobs are
+ * never sent twice.
+ */
+final class RedashRetryPolicy {
+    private final int maxAttempts;
+    private final RedashPollSchedule backoff;
+
+    RedashRetryPolicy(RedashConnectionProperties properties) {
+        this.maxAttempts = properties.getRetryAttempts();
+        this.backoff = new RedashPollSchedule(properties.getRetryInitialBackoffMillis(), 2.0,
+                properties.getRetryMaxBackoffMillis(), properties.getRetryJitter());
+    }
+
+    /**
+     * @param method The HTTP method of the request
+     * @param attempt The number of attempts made so far, including the failed one (1-based)
+     * @return Whether another attempt may be made
+     */
+    boolean canRetry(String method, int attempt) {
+        return "GET".equals(method) && attempt < maxAttempts;
+    }
+
+    /**
+     * @param attempt The number of attempts made so far (1-based)
+     * @return Milliseconds to wait before the next attempt
+     */
+    long backoffMillis(int attempt) {
+        return backoff.nextDelayMillis(attempt - 1);
+    }
+
+    /**
+     * Whether a response status is worth retrying: rate limiting or a gateway that
+     * could not reach, or timed out waiting for, a Redash web process.
+     */
+    static boolean isRetryable(int statusCode) {
+        return statusCode == 429 || isUnavailable(statusCode);
+    }
+
+    /**
+     * Whether a response status means the host is not serving requests, as counted by the circuit breaker.
+     */
+    static boolean isUnavailable(int statusCode) {
+        return statusCode == 502 || statusCode == 503 || statusCode == 504;
+    }
+
+    /**
+     * Whether an I/O error is worth retrying. Read timeouts are not, since the request was
+     * probably being processed, nor are errors a second attempt would only repeat.
+     */
+    static boolean isRetryable(IOException e) {
+        if (e instanceof ConnectTimeoutException || e instanceof HttpConnectTimeoutException) {
+            return true;
+        }
+        return !(e instanceof InterruptedIOException || e instanceof HttpTimeoutException
+                || e instanceof UnknownHostException || e instanceof SSLException
+                || e instanceof RedashCircuitBreaker.OpenException);
+    }
+}
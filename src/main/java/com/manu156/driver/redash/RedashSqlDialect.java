@@ -0,0 +1,69 @@
+package com.manu156.driver.redash;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * SQL rewrites that depend on the query runner type of a Redash data source.
+ */
+final class RedashSqlDialect {
+    // Query runner types that understand "SELECT * FROM (...) t LIMIT n"
+    private static final Set<String> LIMIT_TYPES = new HashSet<>(Arrays.asList(
+            "pg", "redshift", "cockroach", "mysql", "rds_mysql", "memsql", "bigquery", "snowflake",
+            "presto", "trino", "athena", "clickhouse", "sqlite", "databricks", "hive", "hive_http",
+            "impala", "vertica", "duckdb", "rockset", "dremio"));
+    private static final Set<String> TOP_TYPES = new HashSet<>(Arrays.asList("mssql", "mssql_odbc"));
+    private static final Set<String> FETCH_FIRST_TYPES = new HashSet<>(Arrays.asList("db2", "oracle"));
+
+    private static final Pattern SELECT_PREFIX = Pattern.compile(
+            "^\\s*SELECT(\\s+(?:DISTINCT|ALL))?\\s+", Pattern.CASE_INSENSITIVE);
+    private static final Pattern HAS_TOP = Pattern.compile(
+            "^\\s*SELECT(\\s+(?:DISTINCT|ALL))?\\s+TOP\\b", Pattern.CASE_INSENSITIVE);
+    private static final Pattern QUERY_START = Pattern.compile("^\\s*(SELECT|WITH)\\b", Pattern.CASE_INSENSITIVE);
+
+    private RedashSqlDialect() {
+    }
+
+    /**
+     * Limit a query to the given number of rows using the syntax of the data source.
+     *
+     * @param sql The query
+     * @param dataSourceType The Redash query runner type, e.g. {@code pg} or {@code mssql}
+     * @param maxRows The row limit
+     * @return The limited query, or null if the query or data source type is not supported
+     */
+    static String limit(String sql, String dataSourceType, int maxRows) {
+        if (dataSourceType == null || !QUERY_START.matcher(sql).find()) {
+            return null;
+        }
+        String query = stripTrailingSemicolons(sql);
+        String type = dataSourceType.toLowerCase(Locale.ROOT);
+        if (LIMIT_TYPES.contains(type)) {
+            return "SELECT * FROM (" + query + "\n) redash_jdbc_limit LIMIT " + maxRows;
+        }
+        if (FETCH_FIRST_TYPES.contains(type)) {
+            return "SELECT * FROM (" + query + "\n) redash_jdbc_limit FETCH FIRST " + maxRows + " ROWS ONLY";
+        }
+        if (TOP_TYPES.contains(type)) {
+            // SQL Server rejects ORDER BY in derived tables, so add TOP to the outer SELECT instead
+            Matcher select = SELECT_PREFIX.matcher(query);
+            if (!select.find() || HAS_TOP.matcher(query).find()) {
+                return null;
+            }
+            return query.substring(0, select.end()) + "TOP " + maxRows + " " + query.substring(select.end());
+        }
+        return null;
+    }
+
+    private static String stripTrailingSemicolons(String sql) {
+        String query = sql.trim();
+        while (query.endsWith(";")) {
+            query = query.substring(0, query.length() - 1).trim();
+        }
+        return query;
+    }
+}
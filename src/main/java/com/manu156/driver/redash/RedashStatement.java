@@ -1,11 +1,18 @@
 package com.manu156.driver.redash;
 
 import java.sql.*;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
+import java.util.stream.Collectors;
 
 /**
  * Implementation of java.sql.Statement for Redash API.
@@ -20,9 +27,14 @@ public class RedashStatement implements Statement {
     private boolean closed = false;
     private int fetchSize = 0;
     private int fetchDirection = ResultSet.FETCH_FORWARD;
+    private Integer maxAge;
+    private volatile RedashQueryContext runningContext;
+    private final List<String> batch = new ArrayList<>();
+    private final ArrayDeque<RedashQueryResult> batchResults = new ArrayDeque<>();
+    private volatile List<CompletableFuture<RedashQueryResult>> runningBatch;
     
     // Pattern to match "FROM query_123" or "FROM query_123 WHERE ..."
-    private static final Pattern QUERY_ID_PATTERN = Pattern.compile(
+    static final Pattern QUERY_ID_PATTERN = Pattern.compile(
             "FROM\\s+query_(\\d+)(?:\\s+|$)", Pattern.CASE_INSENSITIVE);
     
     public RedashStatement(RedashConnection connection) {
@@ -48,9 +60,13 @@ public class RedashStatement implements Statement {
     @Override
     public ResultSet executeQuery(String sql) throws SQLException {
         checkClosed();
+        closeCurrentResultSet();
         
+        String trimmedSql = sql.trim().toUpperCase();
+        RedashLocalQuery local = trimmedSql.startsWith("EXPLAIN") ? null
+                : parseLocalQuery(sql, connection.getProperties());
+        RedashQueryContext context = newQueryContext(local);
         try {
-            String trimmedSql = sql.trim().toUpperCase();
             
             // Handle SHOW DATABASES command
             if (trimmedSql.equals("SHOW DATABASES")) {
@@ -67,7 +83,7 @@ public class RedashStatement implements Statement {
                         row.put("Database", ds.get("name"));
                         return row;
                     })
-                    .toList();
+                    .collect(Collectors.toList());
                 
                 currentResultSet = new RedashResultSet(this, new RedashQueryResult(columns, rows));
                 updateCount = -1;
@@ -89,7 +105,7 @@ public class RedashStatement implements Statement {
                         row.put("Tables_in_redash", q.get("name"));
                         return row;
                     })
-                    .toList();
+                    .collect(Collectors.toList());
                 
                 currentResultSet = new RedashResultSet(this, new RedashQueryResult(columns, rows));
                 updateCount = -1;
@@ -99,61 +115,279 @@ public class RedashStatement implements Statement {
             // Handle EXPLAIN command
             if (trimmedSql.startsWith("EXPLAIN")) {
                 String actualQuery = sql.substring(7).trim();
-                // Get the first data source
-                List<Map<String, String>> dataSources = connection.getApiClient().getDataSources();
-                if (dataSources.isEmpty()) {
-                    throw new SQLException("No data sources available in Redash");
-                }
-                String dataSourceId = dataSources.get(0).get("id");
-                
-                // Create a new query with EXPLAIN
-                String queryId = connection.getApiClient().createQuery(
-                    "EXPLAIN Query " + System.currentTimeMillis(),
-                    "Query created via JDBC driver EXPLAIN",
-                    dataSourceId,
-                    "EXPLAIN " + actualQuery
-                );
-                
-                // Execute the EXPLAIN query
-                RedashQueryResult result = connection.getApiClient().executeQueryById(queryId, new HashMap<>());
-                currentResultSet = new RedashResultSet(this, result);
-                updateCount = -1;
-                return currentResultSet;
+                RedashResultStream result = executeAdHoc("EXPLAIN " + actualQuery, new HashMap<>(),
+                        "EXPLAIN Query", "Query created via JDBC driver EXPLAIN", context);
+                return openResultSet(result);
             }
             
             // Extract query ID if present
             Matcher matcher = QUERY_ID_PATTERN.matcher(sql);
-            if (matcher.find()) {
-                String queryId = matcher.group(1);
-                RedashQueryResult result = connection.getApiClient().executeQueryById(queryId, new HashMap<>());
-                currentResultSet = new RedashResultSet(this, result);
-                updateCount = -1;
-                return currentResultSet;
+            if (local != null) {
+                return openResultSet(executeLocally(local, new HashMap<>(), Collections.emptyMap(), context));
+            } else if (matcher.find()) {
+                RedashResultStream result = connection.getApiClient().executeQueryById(matcher.group(1),
+                        new HashMap<>(), context);
+                return openResultSet(result);
             } else {
-                // Get the first data source
-                List<Map<String, String>> dataSources = connection.getApiClient().getDataSources();
-                if (dataSources.isEmpty()) {
-                    throw new SQLException("No data sources available in Redash");
-                }
-                String dataSourceId = dataSources.get(0).get("id");
-                
-                // Create a new query
-                String queryId = connection.getApiClient().createQuery(
-                    "JDBC Query " + System.currentTimeMillis(), // Unique name
-                    "Query created via JDBC driver",
-                    dataSourceId,
-                    sql
-                );
-                
-                // Execute the query
-                RedashQueryResult result = connection.getApiClient().executeQueryById(queryId, new HashMap<>());
-                currentResultSet = new RedashResultSet(this, result);
-                updateCount = -1;
-                return currentResultSet;
+                RedashResultStream result = executeAdHoc(sql, new HashMap<>(),
+                        "JDBC Query", "Query created via JDBC driver", context);
+                return openResultSet(result);
             }
         } catch (Exception e) {
-            throw new SQLException("Error executing query: " + e.getMessage(), e);
+            throw executionError("Error executing query", e);
+        } finally {
+            finishQueryContext(context);
+        }
+    }
+    
+    /**
+     * Set the maximum age of a cached Redash result this statement accepts, overriding the
+     * connection's {@code maxAge} option. 0 forces a fresh execution, -1 accepts any cached
+     * result and null restores the connection default.
+     * 
+     * @param seconds The maximum result age in seconds, or null
+     * @throws SQLException if the statement is closed or the value is invalid
+     */
+    public void setMaxAge(Integer seconds) throws SQLException {
+        checkClosed();
+        if (seconds != null && seconds < -1) {
+            throw new SQLException("Max age must be -1 or greater");
+        }
+        this.maxAge = seconds;
+    }
+    
+    /**
+     * Get the maximum age of a cached Redash result this statement accepts.
+     * 
+     * @return The maximum result age in seconds, or null if the server decides
+     * @throws SQLException if the statement is closed
+     */
+    public Integer getMaxAge() throws SQLException {
+        checkClosed();
+        return maxAge != null ? maxAge : connection.getProperties().getMaxAgeSeconds();
+    }
+    
+    // Create and start the execution context for a new query run by this statement
+    RedashQueryContext newQueryContext() throws SQLException {
+        return newQueryContext(null);
+    }
+    
+    // Statements evaluated by the driver read the saved query's whole result, or just the rows a LIMIT needs
+    // unless the result cache is on: only a complete result is cached, for every later statement to share
+    RedashQueryContext newQueryContext(RedashLocalQuery local) throws SQLException {
+        RedashConnectionProperties properties = connection.getProperties();
+        RedashQueryContext context = local == null
+                ? new RedashQueryContext(queryTimeout, getMaxAge(), properties.isStreamResults(), maxRows)
+                : new RedashQueryContext(queryTimeout, getMaxAge(), false,
+                        properties.getResultCacheTtlSeconds() > 0 ? 0 : local.getRowsNeeded());
+        runningContext = context;
+        context.start();
+        return context;
+    }
+    
+    /**
+     * Parse a statement over a saved query whose WHERE, GROUP BY, ORDER BY, LIMIT or select
+     * list the driver has to evaluate.
+     * 
+     * @param sql The statement
+     * @param properties The connection options
+     * @return The parsed statement, or null if the saved query's result is returned as it is
+     * @throws SQLException if the statement is malformed or uses SQL the driver cannot evaluate
+     */
+    static RedashLocalQuery parseLocalQuery(String sql, RedashConnectionProperties properties) throws SQLException {
+        if (!properties.isLocalEvaluation() || !QUERY_ID_PATTERN.matcher(sql).find()) {
+            return null;
+        }
+        RedashLocalQuery local = RedashLocalQuery.parse(sql);
+        local.setJoinMemoryBudgetBytes(properties.getJoinMemoryBudgetBytes());
+        return local.isPassThrough() ? null : local;
+    }
+    
+    // Run the saved queries of a statement evaluated by the driver, all at once for a join, then evaluate it
+    RedashResultStream executeLocally(RedashLocalQuery local, Map<String, Object> queryParams,
+                                      Map<Integer, Object> markers, RedashQueryContext context) throws SQLException {
+        RedashApiClient apiClient = connection.getApiClient();
+        if (local.isJoin()) {
+            return RedashResultStream.of(apiClient.executeQueriesById(local, queryParams, markers, context));
+        }
+        RedashQueryResult result = apiClient.executeQueryById(local.getQueryId(), queryParams, context).readAll();
+        return RedashResultStream.of(local.execute(Collections.singletonList(result), markers));
+    }
+    
+    // Stop the timeout clock once executeQuery returns; cancel() no longer affects this execution
+    void finishQueryContext(RedashQueryContext context) {
+        context.finish();
+        runningContext = null;
+    }
+    
+    // Wrap an execution failure, keeping timeouts and cancellations recognisable to the caller
+    static SQLException executionError(String message, Exception e) {
+        if (e instanceof SQLTimeoutException || e instanceof SQLSyntaxErrorException
+                || e instanceof SQLFeatureNotSupportedException) {
+            return (SQLException) e;
+        }
+        if (e instanceof SQLException
+                && RedashQueryContext.CANCELLED_SQL_STATE.equals(((SQLException) e).getSQLState())) {
+            return (SQLException) e;
+        }
+        return new SQLException(message + ": " + e.getMessage(), e);
+    }
+    
+    // Make a result stream the current result set of this statement
+    RedashResultSet openResultSet(RedashResultStream result) {
+        currentResultSet = new RedashResultSet(this, result, fetchSize, maxRows);
+        updateCount = -1;
+        return currentResultSet;
+    }
+    
+    // Close the previous result set before a new execution, releasing a streamed response
+    void closeCurrentResultSet() throws SQLException {
+        if (currentResultSet != null) {
+            currentResultSet.close();
+            currentResultSet = null;
+        }
+        closeBatchResults();
+    }
+    
+    // Free the results of an executed batch that were not opened as result sets
+    private void closeBatchResults() {
+        for (RedashQueryResult result : batchResults) {
+            result.close();
+        }
+        batchResults.clear();
+    }
+    
+    // Batches run concurrently as queries, so only statements returning a result set can be added
+    static void checkBatchable(String sql) throws SQLException {
+        if (!sql.trim().toUpperCase().startsWith("SELECT")) {
+            throw new SQLException("Only SELECT statements can be added to a batch");
+        }
+    }
+    
+    /**
+     * Run a batch of statements at once through {@link RedashConnection#submitBatch}, waiting
+     * for all of them. Their results become the result sets of this statement, the first one
+     * current and the others reached with {@link #getMoreResults()}, in the order of the batch.
+     * 
+     * @param statements The SQL statements
+     * @param markers Values of each statement's {@code ?} markers by 1-based index
+     * @return {@link #SUCCESS_NO_INFO} for every statement
+     * @throws BatchUpdateException if any statement fails, with {@link #EXECUTE_FAILED} for the failed ones
+     */
+    int[] executeBatch(List<String> statements, List<Map<Integer, Object>> markers) throws SQLException {
+        closeCurrentResultSet();
+        List<CompletableFuture<RedashQueryResult>> queries = connection.submitBatch(statements, markers,
+                queryTimeout, getMaxAge());
+        runningBatch = queries;
+        int[] counts = new int[queries.size()];
+        List<RedashQueryResult> results = new ArrayList<>(queries.size());
+        SQLException failure = null;
+        try {
+            for (int i = 0; i < queries.size(); i++) {
+                try {
+                    results.add(queries.get(i).get());
+                    counts[i] = SUCCESS_NO_INFO;
+                } catch (ExecutionException e) {
+                    counts[i] = EXECUTE_FAILED;
+                    if (failure == null) {
+                        Throwable cause = e.getCause();
+                        failure = cause instanceof SQLException ? (SQLException) cause
+                                : new SQLException("Error executing batch: " + cause.getMessage(), cause);
+                    }
+                } catch (CancellationException e) {
+                    counts[i] = EXECUTE_FAILED;
+                    if (failure == null) {
+                        failure = new SQLException("Query execution was cancelled",
+                                RedashQueryContext.CANCELLED_SQL_STATE, e);
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            for (CompletableFuture<RedashQueryResult> query : queries) {
+                query.cancel(false);
+                query.thenAccept(RedashQueryResult::close);
+            }
+            throw new SQLException("Interrupted while waiting for batch results", e);
+        } finally {
+            runningBatch = null;
+        }
+        if (failure != null) {
+            for (RedashQueryResult result : results) {
+                result.close();
+            }
+            throw new BatchUpdateException(failure.getMessage(), failure.getSQLState(), failure.getErrorCode(),
+                    counts, failure);
+        }
+        batchResults.addAll(results);
+        openNextBatchResult();
+        return counts;
+    }
+    
+    private boolean openNextBatchResult() {
+        RedashQueryResult next = batchResults.poll();
+        if (next == null) {
+            return false;
+        }
+        openResultSet(RedashResultStream.of(next));
+        return true;
+    }
+    
+    // Cancel the queries of a batch being executed
+    private void cancelBatch() {
+        List<CompletableFuture<RedashQueryResult>> queries = runningBatch;
+        if (queries != null) {
+            for (CompletableFuture<RedashQueryResult> query : queries) {
+                query.cancel(false);
+            }
+        }
+    }
+    
+    /**
+     * Run SQL that does not reference a saved query against the first data source.
+     * Depending on the connection's execution mode the SQL is either posted directly
+     * to {@code /query_results} or first saved as a new Redash query. With
+     * {@code rewriteMaxRows} the row limit is also added to the SQL itself.
+     * 
+     * @param sql The SQL to run
+     * @param parameters Query parameters
+     * @param name Name prefix for the saved query in saved-query mode
+     * @param description Description of the saved query in saved-query mode
+     * @param context The execution context
+     * @return Query results
+     * @throws SQLException if there's an error executing the query
+     */
+    RedashResultStream executeAdHoc(String sql, Map<String, Object> parameters, String name,
+                                   String description, RedashQueryContext context) throws SQLException {
+        RedashApiClient apiClient = connection.getApiClient();
+        
+        // Get the first data source
+        List<Map<String, String>> dataSources = apiClient.getDataSources();
+        if (dataSources.isEmpty()) {
+            throw new SQLException("No data sources available in Redash");
+        }
+        String dataSourceId = dataSources.get(0).get("id");
+        
+        if (context.getMaxRows() > 0 && connection.getProperties().isRewriteMaxRows()) {
+            String limited = RedashSqlDialect.limit(sql, dataSources.get(0).get("type"), context.getMaxRows());
+            if (limited != null) {
+                sql = limited;
+            }
+        }
+        
+        if (connection.getProperties().getExecutionMode() == RedashConnectionProperties.ExecutionMode.DIRECT) {
+            return apiClient.executeQuery(dataSourceId, sql, parameters, context);
         }
+        
+        // Save the SQL as a new query and execute it
+        return apiClient.executeAsSavedQuery(
+            name + " " + System.currentTimeMillis(), // Unique name
+            description,
+            dataSourceId,
+            sql,
+            parameters,
+            context
+        );
     }
     
     @Override
@@ -164,10 +398,16 @@ public class RedashStatement implements Statement {
     @Override
     public void close() throws SQLException {
         if (!closed) {
+            RedashQueryContext context = runningContext;
+            if (context != null) {
+                context.cancel();
+            }
+            cancelBatch();
             if (currentResultSet != null && !currentResultSet.isClosed()) {
                 currentResultSet.close();
             }
             currentResultSet = null;
+            closeBatchResults();
             closed = true;
         }
     }
@@ -223,7 +463,12 @@ public class RedashStatement implements Statement {
     @Override
     public void cancel() throws SQLException {
         checkClosed();
-        // Not supported
+        // Aborts the request in flight and cancels the Redash job from the executing thread
+        RedashQueryContext context = runningContext;
+        if (context != null) {
+            context.cancel();
+        }
+        cancelBatch();
     }
     
     @Override
@@ -263,7 +508,8 @@ public class RedashStatement implements Statement {
             currentResultSet = null;
         }
         updateCount = -1;
-        return false;
+        // The results of an executed batch follow each other
+        return openNextBatchResult();
     }
     
     @Override
@@ -310,17 +556,27 @@ public class RedashStatement implements Statement {
     
     @Override
     public void addBatch(String sql) throws SQLException {
-        throw new SQLFeatureNotSupportedException("Batch operations are not supported");
+        checkClosed();
+        checkBatchable(sql);
+        batch.add(sql);
     }
     
     @Override
     public void clearBatch() throws SQLException {
-        throw new SQLFeatureNotSupportedException("Batch operations are not supported");
+        checkClosed();
+        batch.clear();
     }
     
+    /**
+     * Execute the SELECT statements added with {@link #addBatch(String)} concurrently. Read their
+     * results with {@link #getResultSet()} and {@link #getMoreResults()}, in the order they were added.
+     */
     @Override
     public int[] executeBatch() throws SQLException {
-        throw new SQLFeatureNotSupportedException("Batch operations are not supported");
+        checkClosed();
+        List<String> statements = new ArrayList<>(batch);
+        batch.clear();
+        return executeBatch(statements, Collections.nCopies(statements.size(), Collections.emptyMap()));
     }
     
     @Override
@@ -419,6 +675,11 @@ public class RedashStatement implements Statement {
         return iface.isAssignableFrom(getClass());
     }
     
+    // Get the owning connection without checking whether the statement is closed
+    RedashConnection getRedashConnection() {
+        return connection;
+    }
+    
     // Helper method to check if statement is closed
     public void checkClosed() throws SQLException {
         if (closed) {
@@ -0,0 +1,66 @@
+package com.manu156.driver.redash;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Threads for the driver's blocking background work.
+ * This is the Java 11 implementation, which only has platform threads; the jar carries
+ * a Java 21 version in {@code META-INF/versions/21} that can use virtual threads.
+ */
+final class RedashThreads {
+    private static final Logger logger = LoggerFactory.getLogger(RedashThreads.class);
+
+    private static volatile boolean warned;
+
+    private RedashThreads() {
+    }
+
+    /**
+     * @return Whether this runtime can run tasks on virtual threads
+     */
+    static boolean isVirtualThreadSupported() {
+        return false;
+    }
+
+    /**
+     * Create an executor for tasks that block on HTTP calls.
+     *
+     * @param name Prefix of the thread names
+     * @param platformThreads Maximum number of platform threads
+     * @param virtual Whether to run each task on its own virtual thread instead, if supported
+     * @return The executor
+     */
+    static ExecutorService newBlockingExecutor(String name, int platformThreads, boolean virtual) {
+        if (virtual && !warned) {
+            warned = true;
+            logger.warn("virtualThreads requires Java 21 or later, using platform threads");
+        }
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(platformThreads, platformThreads,
+                60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), daemonThreadFactory(name));
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    /**
+     * Create a factory for daemon platform threads named {@code name-N}.
+     *
+     * @param name Prefix of the thread names
+     * @return The thread factory
+     */
+    static ThreadFactory daemonThreadFactory(String name) {
+        AtomicInteger count = new AtomicInteger();
+        return runnable -> {
+            Thread thread = new Thread(runnable, name + "-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+}
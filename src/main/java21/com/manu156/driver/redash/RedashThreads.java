@@ -0,0 +1,61 @@
+package com.manu156.driver.redash;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Threads for the driver's blocking background work.
+ * This is the Java 21 implementation, loaded from {@code META-INF/versions/21} of the
+ * multi-release jar: blocking tasks can run on virtual threads, so waiting on Redash
+ * does not tie up platform threads.
+ */
+final class RedashThreads {
+
+    private RedashThreads() {
+    }
+
+    /**
+     * @return Whether this runtime can run tasks on virtual threads
+     */
+    static boolean isVirtualThreadSupported() {
+        return true;
+    }
+
+    /**
+     * Create an executor for tasks that block on HTTP calls.
+     *
+     * @param name Prefix of the thread names
+     * @param platformThreads Maximum number of platform threads
+     * @param virtual Whether to run each task on its own virtual thread instead
+     * @return The executor
+     */
+    static ExecutorService newBlockingExecutor(String name, int platformThreads, boolean virtual) {
+        if (virtual) {
+            return Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name(name + "-", 1).factory());
+        }
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(platformThreads, platformThreads,
+                60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), daemonThreadFactory(name));
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    /**
+     * Create a factory for daemon platform threads named {@code name-N}.
+     *
+     * @param name Prefix of the thread names
+     * @return The thread factory
+     */
+    static ThreadFactory daemonThreadFactory(String name) {
+        AtomicInteger count = new AtomicInteger();
+        return runnable -> {
+            Thread thread = new Thread(runnable, name + "-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+}
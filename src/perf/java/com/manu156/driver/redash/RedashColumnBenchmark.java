@@ -0,0 +1,51 @@
+package com.manu156.driver.redash;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Type dispatch of {@link RedashColumn}, which metadata calls and getters hit per column.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class RedashColumnBenchmark {
+
+    private final RedashColumn[] columns = {
+            new RedashColumn("id", "integer"),
+            new RedashColumn("amount", "float"),
+            new RedashColumn("active", "boolean"),
+            new RedashColumn("created_at", "datetime"),
+            new RedashColumn("day", "date"),
+            new RedashColumn("country", "string"),
+            new RedashColumn("payload", "json"),
+            new RedashColumn("Name", "STRING"),
+    };
+
+    @Benchmark
+    public void getSqlType(Blackhole blackhole) {
+        for (RedashColumn column : columns) {
+            blackhole.consume(column.getSqlType());
+        }
+    }
+
+    @Benchmark
+    public void getJavaType(Blackhole blackhole) {
+        for (RedashColumn column : columns) {
+            blackhole.consume(column.getJavaType());
+        }
+    }
+}
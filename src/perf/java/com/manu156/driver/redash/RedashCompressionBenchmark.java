@@ -0,0 +1,103 @@
+package com.manu156.driver.redash;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * End-to-end latency of a large result with and without response compression, against a mock
+ * server that gzips like a compressing proxy and optionally throttles to a given link bandwidth.
+ * The response bytes on the wire per operation are printed after every iteration.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class RedashCompressionBenchmark {
+
+    @Param({"20000"})
+    public int rows;
+
+    @Param({"true", "false"})
+    public boolean compression;
+
+    /** Bytes per second, 0 for loopback speed; 12500000 is a 100 Mbit/s link. */
+    @Param({"0", "12500000"})
+    public long bandwidth;
+
+    private RedashMockServer server;
+    private Connection connection;
+    private RedashConnection redash;
+    private int columnCount;
+    private long operations;
+    private long bytesAtIterationStart;
+
+    @Setup
+    public void setUp() throws IOException, SQLException {
+        server = RedashMockServer.builder().rows(rows).gzip(true).bandwidthBytesPerSecond(bandwidth).start();
+        connection = DriverManager.getConnection(
+                server.getJdbcUrl("executionMode=direct&compression=" + compression));
+        redash = connection.unwrap(RedashConnection.class);
+        columnCount = RedashFixtures.columnNames(false).length;
+    }
+
+    @Setup(Level.Iteration)
+    public void startIteration() {
+        operations = 0;
+        bytesAtIterationStart = server.getBytesSent();
+    }
+
+    @TearDown(Level.Iteration)
+    public void reportWireBytes() {
+        if (operations > 0) {
+            System.out.printf("%n  wire bytes/op: %d%n",
+                    (server.getBytesSent() - bytesAtIterationStart) / operations);
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws SQLException {
+        connection.close();
+        server.close();
+    }
+
+    @Benchmark
+    public void executeQuery(Blackhole blackhole) throws SQLException {
+        operations++;
+        try (Statement statement = connection.createStatement();
+             ResultSet rs = statement.executeQuery("SELECT * FROM fixture")) {
+            while (rs.next()) {
+                for (int column = 1; column <= columnCount; column++) {
+                    blackhole.consume(rs.getObject(column));
+                }
+            }
+        }
+    }
+
+    @Benchmark
+    public RedashQueryResult executeAsync() throws SQLException {
+        operations++;
+        return redash.executeAsync("SELECT * FROM fixture", null).join();
+    }
+}
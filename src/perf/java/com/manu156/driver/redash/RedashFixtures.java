@@ -0,0 +1,131 @@
+package com.manu156.driver.redash;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.sql.SQLException;
+import java.util.Random;
+
+/**
+ * Generates {@code /query_results} bodies shaped like responses recorded from Redash.
+ * Output is deterministic for a given row count and schema, so runs are comparable.
+ */
+final class RedashFixtures {
+    // Column types of the narrow schema; the wide schema repeats them
+    private static final String[] NARROW_TYPES = {"integer", "string", "float", "boolean", "datetime"};
+    private static final String[] NARROW_NAMES = {"id", "country", "amount", "active", "created_at"};
+    private static final int WIDE_REPEAT = 6;
+
+    private static final String[] COUNTRIES = {"DE", "FR", "IN", "US", "BR", "JP", "GB", "ES", "IT", "CA"};
+
+    private RedashFixtures() {
+    }
+
+    /**
+     * @param wide Whether to use the 30-column schema instead of the 5-column one
+     * @return The column names of the schema
+     */
+    static String[] columnNames(boolean wide) {
+        int repeat = wide ? WIDE_REPEAT : 1;
+        String[] names = new String[NARROW_NAMES.length * repeat];
+        for (int i = 0; i < names.length; i++) {
+            String name = NARROW_NAMES[i % NARROW_NAMES.length];
+            names[i] = i < NARROW_NAMES.length ? name : name + "_" + (i / NARROW_NAMES.length);
+        }
+        return names;
+    }
+
+    /**
+     * @param wide Whether to use the wide schema
+     * @return The Redash type of each column
+     */
+    static String[] columnTypes(boolean wide) {
+        String[] types = new String[columnNames(wide).length];
+        for (int i = 0; i < types.length; i++) {
+            types[i] = NARROW_TYPES[i % NARROW_TYPES.length];
+        }
+        return types;
+    }
+
+    /**
+     * Build a finished {@code query_result} response body.
+     *
+     * @param rows Number of rows
+     * @param wide Whether to use the wide schema
+     * @return The UTF-8 encoded JSON body
+     */
+    static byte[] queryResultJson(int rows, boolean wide) {
+        String[] names = columnNames(wide);
+        String[] types = columnTypes(wide);
+        StringBuilder json = new StringBuilder(rows * names.length * 16 + 256);
+        json.append("{\"query_result\":{\"id\":1,\"query_hash\":\"0f3a\",\"query\":\"SELECT * FROM fixture\",")
+                .append("\"data\":{\"columns\":[");
+        for (int i = 0; i < names.length; i++) {
+            if (i > 0) {
+                json.append(',');
+            }
+            json.append("{\"name\":\"").append(names[i]).append("\",\"friendly_name\":\"").append(names[i])
+                    .append("\",\"type\":\"").append(types[i]).append("\"}");
+        }
+        json.append("],\"rows\":[");
+        Random random = new Random(42);
+        for (int row = 0; row < rows; row++) {
+            if (row > 0) {
+                json.append(',');
+            }
+            json.append('{');
+            for (int i = 0; i < names.length; i++) {
+                if (i > 0) {
+                    json.append(',');
+                }
+                json.append('"').append(names[i]).append("\":");
+                appendValue(json, types[i], row, random);
+            }
+            json.append('}');
+        }
+        json.append("]},\"data_source_id\":1,\"runtime\":0.042,\"retrieved_at\":\"2024-05-01T10:00:00.000Z\"}}");
+        return json.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Decode a generated body into a query result.
+     *
+     * @param rows Number of rows
+     * @param wide Whether to use the wide schema
+     * @return The decoded result
+     */
+    static RedashQueryResult queryResult(int rows, boolean wide) {
+        try {
+            return RedashResultDecoder.decode(new ByteArrayInputStream(queryResultJson(rows, wide)));
+        } catch (SQLException | IOException e) {
+            throw new IllegalStateException("Invalid fixture", e);
+        }
+    }
+
+    private static void appendValue(StringBuilder json, String type, int row, Random random) {
+        // A few nulls, as real results have
+        if (random.nextInt(50) == 0) {
+            json.append("null");
+            return;
+        }
+        switch (type) {
+            case "integer":
+                json.append(row);
+                break;
+            case "float":
+                json.append(random.nextInt(1_000_000) / 100.0);
+                break;
+            case "boolean":
+                json.append(random.nextBoolean());
+                break;
+            case "datetime":
+                json.append("\"2024-0").append(1 + random.nextInt(9)).append('-')
+                        .append(10 + random.nextInt(18)).append("T12:").append(10 + random.nextInt(50))
+                        .append(":00\"");
+                break;
+            default:
+                json.append('"').append(COUNTRIES[random.nextInt(COUNTRIES.length)]).append('"');
+                break;
+        }
+    }
+}
@@ -0,0 +1,207 @@
+package com.manu156.driver.redash;
+
+import java.lang.management.ManagementFactory;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Load-test harness: N threads, each with its own JDBC connection opened through {@link RedashDriver},
+ * run a statement in a loop and read every row. Reports throughput, latency percentiles and the
+ * allocation rate of the worker threads. Targets an in-process {@link RedashMockServer} unless a
+ * {@code url} is given.
+ *
+ * <p>Options ({@code --name=value}): {@code connections} (default 16), {@code duration} and
+ * {@code warmup} in seconds (30 and 5), {@code sql}, {@code properties} (extra URL parameters),
+ * {@code url}, plus the {@link RedashMockServer#main mock server} options.</p>
+ */
+public final class RedashLoadTest {
+
+    private RedashLoadTest() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = parseOptions(args);
+        int connections = Integer.parseInt(options.getOrDefault("connections", "16"));
+        long durationNanos = TimeUnit.SECONDS.toNanos(Long.parseLong(options.getOrDefault("duration", "30")));
+        long warmupNanos = TimeUnit.SECONDS.toNanos(Long.parseLong(options.getOrDefault("warmup", "5")));
+        String sql = options.getOrDefault("sql", "SELECT * FROM fixture");
+        String properties = options.get("properties");
+
+        RedashMockServer server = null;
+        String url = options.get("url");
+        if (url == null) {
+            server = RedashMockServer.builder()
+                    .rows(Integer.parseInt(options.getOrDefault("rows", "1000")))
+                    .wideSchema(Boolean.parseBoolean(options.getOrDefault("wide", "false")))
+                    .queueDelayMillis(Long.parseLong(options.getOrDefault("queueDelay", "0")))
+                    .jobFailureRate(Double.parseDouble(options.getOrDefault("jobFailureRate", "0")))
+                    .errorRate(Double.parseDouble(options.getOrDefault("errorRate", "0")))
+                    .errorStatus(Integer.parseInt(options.getOrDefault("errorStatus", "500")))
+                    .latency(RedashMockServer.Latency.parse(options.getOrDefault("latency", "none")))
+                    .threads(Integer.parseInt(options.getOrDefault("threads", "64")))
+                    .gzip(Boolean.parseBoolean(options.getOrDefault("gzip", "false")))
+                    .bandwidthBytesPerSecond(Long.parseLong(options.getOrDefault("bandwidth", "0")))
+                    .start();
+            url = server.getJdbcUrl(properties);
+        } else if (properties != null) {
+            url = url + (url.contains("?") ? "&" : "?") + properties;
+        }
+        Class.forName(RedashDriver.class.getName());
+
+        System.out.printf("Running %d connections for %ds (+%ds warmup) against %s%n", connections,
+                TimeUnit.NANOSECONDS.toSeconds(durationNanos), TimeUnit.NANOSECONDS.toSeconds(warmupNanos), url);
+        Worker[] workers = new Worker[connections];
+        CountDownLatch ready = new CountDownLatch(connections);
+        long warmupStart = System.nanoTime();
+        long measureStart = warmupStart + warmupNanos;
+        long measureEnd = measureStart + durationNanos;
+        for (int i = 0; i < connections; i++) {
+            workers[i] = new Worker(url, sql, measureStart, measureEnd, ready);
+            workers[i].setName("redash-load-" + i);
+            workers[i].start();
+        }
+        for (Worker worker : workers) {
+            worker.join();
+        }
+        if (server != null) {
+            server.close();
+        }
+        report(workers, durationNanos);
+    }
+
+    private static void report(Worker[] workers, long durationNanos) {
+        int total = 0;
+        long errors = 0;
+        long allocatedBytes = 0;
+        for (Worker worker : workers) {
+            total += worker.count;
+            errors += worker.errors;
+            allocatedBytes += worker.allocatedBytes;
+        }
+        long[] latencies = new long[total];
+        int offset = 0;
+        for (Worker worker : workers) {
+            System.arraycopy(worker.latencies, 0, latencies, offset, worker.count);
+            offset += worker.count;
+        }
+        Arrays.sort(latencies);
+
+        double seconds = durationNanos / 1e9;
+        System.out.printf("operations:   %d (%d errors)%n", total, errors);
+        System.out.printf("throughput:   %.1f ops/s%n", total / seconds);
+        System.out.printf("latency p50:  %.2f ms%n", percentile(latencies, 0.50) / 1e6);
+        System.out.printf("latency p99:  %.2f ms%n", percentile(latencies, 0.99) / 1e6);
+        System.out.printf("latency max:  %.2f ms%n", total == 0 ? 0 : latencies[total - 1] / 1e6);
+        if (((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean()).isThreadAllocatedMemorySupported()) {
+            System.out.printf("allocation:   %.1f MB/s (%.1f KB/op)%n", allocatedBytes / seconds / (1024 * 1024),
+                    total == 0 ? 0 : allocatedBytes / 1024.0 / (total + errors));
+        }
+    }
+
+    private static long percentile(long[] sorted, double percentile) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        return sorted[(int) Math.min(sorted.length - 1, Math.ceil(percentile * sorted.length) - 1)];
+    }
+
+    /**
+     * Parse {@code --name=value} arguments.
+     */
+    static Map<String, String> parseOptions(String[] args) {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            String option = arg.startsWith("--") ? arg.substring(2) : arg;
+            String[] keyValue = option.split("=", 2);
+            options.put(keyValue[0], keyValue.length == 2 ? keyValue[1] : "true");
+        }
+        return options;
+    }
+
+    private static final class Worker extends Thread {
+        private final String url;
+        private final String sql;
+        private final long measureStart;
+        private final long measureEnd;
+        private final CountDownLatch ready;
+
+        private long[] latencies = new long[1024];
+        private int count;
+        private long errors;
+        private long allocatedBytes;
+
+        private Worker(String url, String sql, long measureStart, long measureEnd, CountDownLatch ready) {
+            this.url = url;
+            this.sql = sql;
+            this.measureStart = measureStart;
+            this.measureEnd = measureEnd;
+            this.ready = ready;
+        }
+
+        @Override
+        public void run() {
+            com.sun.management.ThreadMXBean threads =
+                    (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+            boolean measuringAllocation = threads.isThreadAllocatedMemorySupported()
+                    && threads.isThreadAllocatedMemoryEnabled();
+            try (Connection connection = DriverManager.getConnection(url)) {
+                ready.countDown();
+                ready.await();
+                boolean measuring = false;
+                long allocatedAtStart = 0;
+                while (true) {
+                    long start = System.nanoTime();
+                    if (start >= measureEnd) {
+                        break;
+                    }
+                    if (!measuring && start >= measureStart) {
+                        measuring = true;
+                        allocatedAtStart = measuringAllocation ? threads.getThreadAllocatedBytes(getId()) : 0;
+                    }
+                    boolean failed = false;
+                    try (Statement statement = connection.createStatement();
+                         ResultSet rs = statement.executeQuery(sql)) {
+                        int columnCount = rs.getMetaData().getColumnCount();
+                        while (rs.next()) {
+                            for (int column = 1; column <= columnCount; column++) {
+                                rs.getObject(column);
+                            }
+                        }
+                    } catch (SQLException e) {
+                        failed = true;
+                    }
+                    if (measuring) {
+                        record(System.nanoTime() - start, failed);
+                    }
+                }
+                if (measuring && measuringAllocation) {
+                    allocatedBytes = threads.getThreadAllocatedBytes(getId()) - allocatedAtStart;
+                }
+            } catch (SQLException e) {
+                System.err.println(getName() + " could not connect: " + e.getMessage());
+                ready.countDown();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        private void record(long latencyNanos, boolean failed) {
+            if (failed) {
+                errors++;
+                return;
+            }
+            if (count == latencies.length) {
+                latencies = Arrays.copyOf(latencies, count * 2);
+            }
+            latencies[count++] = latencyNanos;
+        }
+    }
+}
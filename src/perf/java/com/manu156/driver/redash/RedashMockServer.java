@@ -0,0 +1,445 @@
+package com.manu156.driver.redash;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Stand-in for the Redash API for offline load and latency testing.
+ * Serves {@code /api/data_sources}, {@code /api/queries}, {@code /api/query_results} and
+ * {@code /api/jobs/{id}} with configurable result size, job queue delay, job failure rate,
+ * injected HTTP errors, response latency, gzip compression and link bandwidth. Runs
+ * in-process via {@link #builder()} or standalone via {@link #main(String[])}.
+ */
+final class RedashMockServer implements AutoCloseable {
+    private static final byte[] DATA_SOURCES =
+            "[{\"id\":1,\"name\":\"warehouse\",\"type\":\"pg\"}]".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] QUERIES =
+            "{\"count\":1,\"results\":[{\"id\":1,\"name\":\"fixture\",\"description\":\"\",\"data_source_id\":1}]}"
+                    .getBytes(StandardCharsets.UTF_8);
+    private static final byte[] SAVED_QUERY =
+            "{\"id\":1,\"query\":\"SELECT * FROM fixture\",\"data_source_id\":1}".getBytes(StandardCharsets.UTF_8);
+
+    static {
+        // Without this the JDK server's Nagle delay dominates every round trip
+        System.setProperty("sun.net.httpserver.nodelay", "true");
+    }
+
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final byte[] queryResult;
+    private final byte[] gzippedQueryResult;
+    private final long queueDelayMillis;
+    private final double jobFailureRate;
+    private final double errorRate;
+    private final int errorStatus;
+    private final Latency latency;
+    private final long bandwidthBytesPerSecond;
+
+    private final Map<String, Job> jobs = new ConcurrentHashMap<>();
+    private final AtomicLong jobIds = new AtomicLong();
+    private final AtomicLong queryIds = new AtomicLong(1);
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong injectedErrors = new AtomicLong();
+    private final AtomicLong bytesSent = new AtomicLong();
+
+    /**
+     * Response latency distribution, sampled once per request.
+     */
+    interface Latency {
+        long nextMillis();
+
+        static Latency none() {
+            return () -> 0;
+        }
+
+        static Latency fixed(long millis) {
+            return () -> millis;
+        }
+
+        static Latency uniform(long minMillis, long maxMillis) {
+            return () -> ThreadLocalRandom.current().nextLong(minMillis, maxMillis + 1);
+        }
+
+        /**
+         * Log-normal latency with the given median and 99th percentile, the usual shape of service latency.
+         */
+        static Latency logNormal(double medianMillis, double p99Millis) {
+            double mu = Math.log(medianMillis);
+            // 2.326 is the standard normal quantile at 0.99
+            double sigma = Math.log(p99Millis / medianMillis) / 2.326;
+            return () -> Math.round(Math.exp(mu + sigma * ThreadLocalRandom.current().nextGaussian()));
+        }
+
+        /**
+         * Parse {@code none}, {@code fixed:MS}, {@code uniform:MIN:MAX} or {@code lognormal:MEDIAN:P99}.
+         */
+        static Latency parse(String spec) {
+            String[] parts = spec.split(":");
+            switch (parts[0]) {
+                case "none":
+                    return none();
+                case "fixed":
+                    return fixed(Long.parseLong(parts[1]));
+                case "uniform":
+                    return uniform(Long.parseLong(parts[1]), Long.parseLong(parts[2]));
+                case "lognormal":
+                    return logNormal(Double.parseDouble(parts[1]), Double.parseDouble(parts[2]));
+                default:
+                    throw new IllegalArgumentException("Unknown latency distribution: " + spec);
+            }
+        }
+    }
+
+    private static final class Job {
+        private final String id;
+        private final long createdAtNanos = System.nanoTime();
+        private final boolean fails;
+        private volatile boolean cancelled;
+
+        private Job(String id, boolean fails) {
+            this.id = id;
+            this.fails = fails;
+        }
+    }
+
+    /**
+     * Configures and starts a {@link RedashMockServer}.
+     */
+    static final class Builder {
+        private int port;
+        private int rows = 1000;
+        private boolean wideSchema;
+        private long queueDelayMillis;
+        private double jobFailureRate;
+        private double errorRate;
+        private int errorStatus = 500;
+        private Latency latency = Latency.none();
+        private int threads = 64;
+        private boolean gzip;
+        private long bandwidthBytesPerSecond;
+
+        private Builder() {
+        }
+
+        /** Port to listen on, 0 for an ephemeral port. */
+        Builder port(int port) {
+            this.port = port;
+            return this;
+        }
+
+        /** Number of rows in every query result. */
+        Builder rows(int rows) {
+            this.rows = rows;
+            return this;
+        }
+
+        /** Whether results use the 30-column schema instead of the 5-column one. */
+        Builder wideSchema(boolean wideSchema) {
+            this.wideSchema = wideSchema;
+            return this;
+        }
+
+        /**
+         * Time a job stays queued and running before it finishes. 0 answers
+         * {@code POST /api/query_results} synchronously, as for a cached result.
+         */
+        Builder queueDelayMillis(long queueDelayMillis) {
+            this.queueDelayMillis = queueDelayMillis;
+            return this;
+        }
+
+        /** Fraction of jobs that end in status 4 (failed). */
+        Builder jobFailureRate(double jobFailureRate) {
+            this.jobFailureRate = jobFailureRate;
+            return this;
+        }
+
+        /** Fraction of requests answered with the error status. */
+        Builder errorRate(double errorRate) {
+            this.errorRate = errorRate;
+            return this;
+        }
+
+        /** Status of injected errors, 500 by default; 502, 503 or 504 stand for an unavailable web pod. */
+        Builder errorStatus(int errorStatus) {
+            this.errorStatus = errorStatus;
+            return this;
+        }
+
+        /** Latency added before every response. */
+        Builder latency(Latency latency) {
+            this.latency = latency;
+            return this;
+        }
+
+        /** Number of request handler threads. */
+        Builder threads(int threads) {
+            this.threads = threads;
+            return this;
+        }
+
+        /** Whether responses are gzip-compressed for clients that accept it, as behind a compressing proxy. */
+        Builder gzip(boolean gzip) {
+            this.gzip = gzip;
+            return this;
+        }
+
+        /** Rate at which response bodies are written, to stand in for a WAN link; 0 for unlimited. */
+        Builder bandwidthBytesPerSecond(long bandwidthBytesPerSecond) {
+            this.bandwidthBytesPerSecond = bandwidthBytesPerSecond;
+            return this;
+        }
+
+        RedashMockServer start() throws IOException {
+            return new RedashMockServer(this);
+        }
+    }
+
+    private RedashMockServer(Builder builder) throws IOException {
+        this.queryResult = RedashFixtures.queryResultJson(builder.rows, builder.wideSchema);
+        // Compressed once up front so server CPU does not distort client-side measurements
+        this.gzippedQueryResult = builder.gzip ? gzip(queryResult) : null;
+        this.bandwidthBytesPerSecond = builder.bandwidthBytesPerSecond;
+        this.queueDelayMillis = builder.queueDelayMillis;
+        this.jobFailureRate = builder.jobFailureRate;
+        this.errorRate = builder.errorRate;
+        this.errorStatus = builder.errorStatus;
+        this.latency = builder.latency;
+        this.server = HttpServer.create(new InetSocketAddress(builder.port), 0);
+        this.executor = Executors.newFixedThreadPool(builder.threads);
+        server.setExecutor(executor);
+        server.createContext("/api", this::handle);
+        server.start();
+    }
+
+    static Builder builder() {
+        return new Builder();
+    }
+
+    int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    /**
+     * @param properties Extra URL parameters, e.g. {@code executionMode=direct}, or null
+     * @return A JDBC URL pointing at this server
+     */
+    String getJdbcUrl(String properties) {
+        return "jdbc:redash://localhost:" + getPort() + "?apiKey=mock"
+                + (properties == null || properties.isEmpty() ? "" : "&" + properties);
+    }
+
+    long getRequestCount() {
+        return requests.get();
+    }
+
+    long getInjectedErrorCount() {
+        return injectedErrors.get();
+    }
+
+    /**
+     * @return Response body bytes written so far, after compression
+     */
+    long getBytesSent() {
+        return bytesSent.get();
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        requests.incrementAndGet();
+        try (InputStream in = exchange.getRequestBody()) {
+            in.readAllBytes();
+        }
+        long delay = latency.nextMillis();
+        if (delay > 0) {
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                exchange.close();
+                return;
+            }
+        }
+        if (errorRate > 0 && ThreadLocalRandom.current().nextDouble() < errorRate) {
+            injectedErrors.incrementAndGet();
+            send(exchange, errorStatus, "{\"message\":\"Injected error\"}");
+            return;
+        }
+
+        String method = exchange.getRequestMethod();
+        String path = exchange.getRequestURI().getPath();
+        boolean gzip = gzippedQueryResult != null && acceptsGzip(exchange);
+        if (path.equals("/api/data_sources")) {
+            send(exchange, 200, DATA_SOURCES);
+        } else if (path.equals("/api/queries") && "POST".equals(method)) {
+            send(exchange, 200, "{\"id\":" + queryIds.incrementAndGet() + "}");
+        } else if (path.equals("/api/queries")) {
+            send(exchange, 200, QUERIES);
+        } else if (path.startsWith("/api/queries/")) {
+            send(exchange, 200, SAVED_QUERY);
+        } else if (path.equals("/api/query_results") && "POST".equals(method)) {
+            if (queueDelayMillis <= 0) {
+                sendQueryResult(exchange, gzip);
+            } else {
+                send(exchange, 200, jobJson(newJob(), 1));
+            }
+        } else if (path.startsWith("/api/query_results/")) {
+            sendQueryResult(exchange, gzip);
+        } else if (path.startsWith("/api/jobs/")) {
+            Job job = jobs.get(path.substring("/api/jobs/".length()));
+            if (job == null) {
+                send(exchange, 404, "{\"message\":\"Job not found\"}");
+            } else if ("DELETE".equals(method)) {
+                job.cancelled = true;
+                send(exchange, 200, "{}");
+            } else {
+                send(exchange, 200, jobJson(job, jobStatus(job)));
+            }
+        } else {
+            send(exchange, 404, "{\"message\":\"Not found\"}");
+        }
+    }
+
+    private Job newJob() {
+        String id = "job-" + jobIds.incrementAndGet();
+        Job job = new Job(id, jobFailureRate > 0 && ThreadLocalRandom.current().nextDouble() < jobFailureRate);
+        jobs.put(id, job);
+        return job;
+    }
+
+    /**
+     * Jobs go pending (1) for the first half of the queue delay, started (2) for the
+     * second half, then finished (3) or failed (4); cancelled jobs report 5.
+     */
+    private int jobStatus(Job job) {
+        if (job.cancelled) {
+            jobs.remove(job.id);
+            return 5;
+        }
+        long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - job.createdAtNanos);
+        if (elapsed < queueDelayMillis / 2) {
+            return 1;
+        }
+        if (elapsed < queueDelayMillis) {
+            return 2;
+        }
+        jobs.remove(job.id);
+        return job.fails ? 4 : 3;
+    }
+
+    private static String jobJson(Job job, int status) {
+        StringBuilder json = new StringBuilder("{\"job\":{\"id\":\"").append(job.id).append("\",\"status\":")
+                .append(status);
+        if (status == 3) {
+            json.append(",\"query_result_id\":1");
+        } else if (status == 4) {
+            json.append(",\"error\":\"Injected job failure\"");
+        }
+        return json.append("}}").toString();
+    }
+
+    private static boolean acceptsGzip(HttpExchange exchange) {
+        String accept = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+        return accept != null && accept.toLowerCase().contains("gzip");
+    }
+
+    private void sendQueryResult(HttpExchange exchange, boolean gzip) throws IOException {
+        if (gzip) {
+            exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+            send(exchange, 200, gzippedQueryResult);
+        } else {
+            send(exchange, 200, queryResult);
+        }
+    }
+
+    private void send(HttpExchange exchange, int status, String body) throws IOException {
+        send(exchange, status, body.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private void send(HttpExchange exchange, int status, byte[] body) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(status, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            if (bandwidthBytesPerSecond <= 0) {
+                out.write(body);
+            } else {
+                writeThrottled(out, body);
+            }
+        }
+        bytesSent.addAndGet(body.length);
+    }
+
+    // Pace writes so the body takes as long as it would over a link of the configured bandwidth
+    private void writeThrottled(OutputStream out, byte[] body) throws IOException {
+        long start = System.nanoTime();
+        int chunk = 16 * 1024;
+        for (int offset = 0; offset < body.length; offset += chunk) {
+            int length = Math.min(chunk, body.length - offset);
+            out.write(body, offset, length);
+            long due = start + (offset + length) * 1_000_000_000L / bandwidthBytesPerSecond;
+            long wait = due - System.nanoTime();
+            if (wait > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(wait);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while sending response", e);
+                }
+            }
+        }
+    }
+
+    private static byte[] gzip(byte[] body) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(body.length / 4);
+        try (GZIPOutputStream out = new GZIPOutputStream(bytes)) {
+            out.write(body);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Run the mock server until the process is stopped. Options are given as {@code --name=value}:
+     * {@code port} (default 5000), {@code rows}, {@code wide}, {@code queueDelay} (ms), {@code jobFailureRate},
+     * {@code errorRate}, {@code errorStatus}, {@code latency} (e.g. {@code lognormal:20:200}), {@code threads}, {@code gzip}
+     * and {@code bandwidth} (bytes per second).
+     */
+    public static void main(String[] args) throws IOException, InterruptedException {
+        Map<String, String> options = RedashLoadTest.parseOptions(args);
+        RedashMockServer server = builder()
+                .port(Integer.parseInt(options.getOrDefault("port", "5000")))
+                .rows(Integer.parseInt(options.getOrDefault("rows", "1000")))
+                .wideSchema(Boolean.parseBoolean(options.getOrDefault("wide", "false")))
+                .queueDelayMillis(Long.parseLong(options.getOrDefault("queueDelay", "0")))
+                .jobFailureRate(Double.parseDouble(options.getOrDefault("jobFailureRate", "0")))
+                .errorRate(Double.parseDouble(options.getOrDefault("errorRate", "0")))
+                .errorStatus(Integer.parseInt(options.getOrDefault("errorStatus", "500")))
+                .latency(Latency.parse(options.getOrDefault("latency", "none")))
+                .threads(Integer.parseInt(options.getOrDefault("threads", "64")))
+                .gzip(Boolean.parseBoolean(options.getOrDefault("gzip", "false")))
+                .bandwidthBytesPerSecond(Long.parseLong(options.getOrDefault("bandwidth", "0")))
+                .start();
+        System.out.println("Mock Redash listening, connect with " + server.getJdbcUrl(null));
+        new CountDownLatch(1).await();
+    }
+}
@@ -0,0 +1,110 @@
+package com.manu156.driver.redash;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Full scans of a decoded result through the typed {@link ResultSet} getters.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+@State(Scope.Benchmark)
+public class RedashResultSetBenchmark {
+
+    @Param({"1000", "100000"})
+    public int rows;
+
+    @Param({"narrow", "wide"})
+    public String schema;
+
+    private RedashQueryResult result;
+    private String[] names;
+    private String[] types;
+
+    @Setup
+    public void setUp() {
+        boolean wide = "wide".equals(schema);
+        result = RedashFixtures.queryResult(rows, wide);
+        names = RedashFixtures.columnNames(wide);
+        types = RedashFixtures.columnTypes(wide);
+    }
+
+    @Benchmark
+    public void byIndex(Blackhole blackhole) throws SQLException {
+        try (ResultSet rs = new RedashResultSet(null, result)) {
+            while (rs.next()) {
+                for (int i = 0; i < types.length; i++) {
+                    int column = i + 1;
+                    switch (types[i]) {
+                        case "integer":
+                            blackhole.consume(rs.getLong(column));
+                            break;
+                        case "float":
+                            blackhole.consume(rs.getDouble(column));
+                            break;
+                        case "boolean":
+                            blackhole.consume(rs.getBoolean(column));
+                            break;
+                        default:
+                            blackhole.consume(rs.getString(column));
+                            break;
+                    }
+                }
+            }
+        }
+    }
+
+    @Benchmark
+    public void byName(Blackhole blackhole) throws SQLException {
+        try (ResultSet rs = new RedashResultSet(null, result)) {
+            while (rs.next()) {
+                for (int i = 0; i < types.length; i++) {
+                    String label = names[i];
+                    switch (types[i]) {
+                        case "integer":
+                            blackhole.consume(rs.getLong(label));
+                            break;
+                        case "float":
+                            blackhole.consume(rs.getDouble(label));
+                            break;
+                        case "boolean":
+                            blackhole.consume(rs.getBoolean(label));
+                            break;
+                        default:
+                            blackhole.consume(rs.getString(label));
+                            break;
+                    }
+                }
+            }
+        }
+    }
+
+    @Benchmark
+    public void getObject(Blackhole blackhole) throws SQLException {
+        try (ResultSet rs = new RedashResultSet(null, result)) {
+            int columnCount = types.length;
+            while (rs.next()) {
+                for (int column = 1; column <= columnCount; column++) {
+                    blackhole.consume(rs.getObject(column));
+                }
+            }
+        }
+    }
+}
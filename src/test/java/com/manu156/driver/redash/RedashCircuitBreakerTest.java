@@ -0,0 +1,130 @@
+package com.manu156.driver.redash;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class RedashCircuitBreakerTest {
+
+    private static final long OPEN_MILLIS = 100;
+
+    @Test
+    public void opensAtTheThresholdOfConsecutiveFailures() throws Exception {
+        RedashCircuitBreaker breaker = new RedashCircuitBreaker("redash", 3, OPEN_MILLIS);
+
+        failRequests(breaker, 2);
+        breaker.acquirePermission();
+        breaker.onFailure();
+
+        assertOpen(breaker);
+    }
+
+    @Test
+    public void successResetsTheFailureCount() throws Exception {
+        RedashCircuitBreaker breaker = new RedashCircuitBreaker("redash", 3, OPEN_MILLIS);
+
+        failRequests(breaker, 2);
+        breaker.acquirePermission();
+        breaker.onSuccess();
+        failRequests(breaker, 2);
+
+        breaker.acquirePermission();
+    }
+
+    @Test
+    public void abandonedRequestsDoNotCount() throws Exception {
+        RedashCircuitBreaker breaker = new RedashCircuitBreaker("redash", 2, OPEN_MILLIS);
+
+        for (int i = 0; i < 5; i++) {
+            breaker.acquirePermission();
+            breaker.onAbandoned();
+        }
+        failRequests(breaker, 1);
+
+        breaker.acquirePermission();
+    }
+
+    @Test
+    public void zeroThresholdNeverOpens() throws Exception {
+        RedashCircuitBreaker breaker = new RedashCircuitBreaker("redash", 0, OPEN_MILLIS);
+
+        failRequests(breaker, 100);
+
+        breaker.acquirePermission();
+    }
+
+    @Test
+    public void admitsOneTrialRequestAfterTheOpenTime() throws Exception {
+        RedashCircuitBreaker breaker = openBreaker();
+
+        Thread.sleep(OPEN_MILLIS + 50);
+        breaker.acquirePermission();
+
+        // Further requests are refused while the trial is in flight, however long it takes
+        assertOpen(breaker);
+        Thread.sleep(OPEN_MILLIS + 50);
+        assertOpen(breaker);
+    }
+
+    @Test
+    public void successfulTrialClosesTheBreaker() throws Exception {
+        RedashCircuitBreaker breaker = openBreaker();
+        Thread.sleep(OPEN_MILLIS + 50);
+        breaker.acquirePermission();
+
+        breaker.onSuccess();
+
+        breaker.acquirePermission();
+        breaker.onSuccess();
+        breaker.acquirePermission();
+    }
+
+    @Test
+    public void failedTrialKeepsTheBreakerOpenForAnotherPeriod() throws Exception {
+        RedashCircuitBreaker breaker = openBreaker();
+        Thread.sleep(OPEN_MILLIS + 50);
+        breaker.acquirePermission();
+
+        breaker.onFailure();
+
+        assertOpen(breaker);
+        Thread.sleep(OPEN_MILLIS + 50);
+        breaker.acquirePermission();
+    }
+
+    @Test
+    public void abandonedTrialLetsAnotherTrialThrough() throws Exception {
+        RedashCircuitBreaker breaker = openBreaker();
+        Thread.sleep(OPEN_MILLIS + 50);
+        breaker.acquirePermission();
+
+        breaker.onAbandoned();
+
+        breaker.acquirePermission();
+        assertOpen(breaker);
+    }
+
+    private static RedashCircuitBreaker openBreaker() throws Exception {
+        RedashCircuitBreaker breaker = new RedashCircuitBreaker("redash", 2, OPEN_MILLIS);
+        failRequests(breaker, 2);
+        assertOpen(breaker);
+        return breaker;
+    }
+
+    private static void failRequests(RedashCircuitBreaker breaker, int requests) throws Exception {
+        for (int i = 0; i < requests; i++) {
+            breaker.acquirePermission();
+            breaker.onFailure();
+        }
+    }
+
+    private static void assertOpen(RedashCircuitBreaker breaker) {
+        try {
+            breaker.acquirePermission();
+            fail("Expected the circuit breaker to be open");
+        } catch (RedashCircuitBreaker.OpenException e) {
+            assertTrue(e.getMessage(), e.getMessage().startsWith("Redash at redash is unavailable"));
+        }
+    }
+}
@@ -0,0 +1,51 @@
+package com.manu156.driver.redash;
+
+import org.junit.Test;
+
+import static com.manu156.driver.redash.RedashColumnVector.Builder.MAX_CAPACITY;
+import static com.manu156.driver.redash.RedashColumnVector.Builder.grow;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class RedashColumnVectorTest {
+
+    @Test
+    public void growsByHalf() {
+        assertEquals(16, grow(0));
+        assertEquals(24, grow(16));
+        assertEquals(1500, grow(1000));
+        assertEquals(2000, grow(1000, 2000));
+    }
+
+    @Test
+    public void growthOfLargeArraysIsCappedInsteadOfOverflowing() {
+        // capacity + capacity / 2 exceeds Integer.MAX_VALUE from about 1.43 billion elements
+        assertEquals(MAX_CAPACITY, grow(1_500_000_000));
+        assertEquals(MAX_CAPACITY, grow(MAX_CAPACITY - 1));
+        assertEquals(MAX_CAPACITY, grow(1_500_000_000, 1_500_000_001L));
+    }
+
+    @Test
+    public void refusesToGrowBeyondTheLargestArray() {
+        try {
+            grow(MAX_CAPACITY);
+            fail("Expected an OutOfMemoryError");
+        } catch (OutOfMemoryError e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("maximum array size"));
+        }
+    }
+
+    @Test
+    public void accessorErrorsNameTheColumnType() {
+        RedashColumnVector.Builder builder = RedashColumnVector.builder(RedashColumnVector.TYPE_STRING);
+        builder.appendObject("a");
+        RedashColumnVector vector = builder.build();
+        try {
+            vector.getLong(0);
+            fail("Expected an UnsupportedOperationException");
+        } catch (UnsupportedOperationException e) {
+            assertEquals("Cannot read a string column as long", e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,188 @@
+package com.manu156.driver.redash;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+import java.util.Random;
+
+import static com.manu156.driver.redash.RedashColumnVector.TYPE_BOOLEAN;
+import static com.manu156.driver.redash.RedashColumnVector.TYPE_FLOAT;
+import static com.manu156.driver.redash.RedashColumnVector.TYPE_INTEGER;
+import static com.manu156.driver.redash.RedashColumnVector.TYPE_STRING;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class RedashHashJoinTest {
+
+    // Small enough for every join with a build row to be partitioned
+    private static final long TINY_BUDGET = 1;
+
+    @Test
+    public void joinsIntegerKeysWithMatchesInBuildOrder() throws Exception {
+        RedashColumnVector probe = vector(TYPE_INTEGER, 1L, 2L, 3L, 2L);
+        RedashColumnVector build = vector(TYPE_INTEGER, 2L, 9L, 2L, 1L);
+
+        RedashHashJoin join = join(probe, build, false, Long.MAX_VALUE);
+
+        assertEquals(1, join.getPartitions());
+        assertEquals(Arrays.asList("0:3", "1:0", "1:2", "3:0", "3:2"), pairs(join));
+    }
+
+    @Test
+    public void matchesIntegerAndFloatKeysByValue() throws Exception {
+        RedashColumnVector probe = vector(TYPE_INTEGER, 1L, 2L, 0L);
+        RedashColumnVector build = vector(TYPE_FLOAT, 2.0d, 1.5d, -0.0d);
+
+        assertEquals(Arrays.asList("1:0", "2:2"), pairs(join(probe, build, false, Long.MAX_VALUE)));
+    }
+
+    @Test
+    public void joinsBooleanKeys() throws Exception {
+        RedashColumnVector probe = vector(TYPE_BOOLEAN, true, false);
+        RedashColumnVector build = vector(TYPE_BOOLEAN, false, false, true);
+
+        assertEquals(Arrays.asList("0:2", "1:0", "1:1"), pairs(join(probe, build, false, Long.MAX_VALUE)));
+    }
+
+    @Test
+    public void checksTextKeysWhoseHashesCollide() throws Exception {
+        // "Aa" and "BB" have the same String.hashCode
+        RedashColumnVector probe = vector(TYPE_STRING, "Aa", "BB", "Ab");
+        RedashColumnVector build = vector(TYPE_STRING, "BB", "Aa");
+
+        assertEquals(Arrays.asList("0:1", "1:0"), pairs(join(probe, build, false, Long.MAX_VALUE)));
+        assertEquals(Arrays.asList("0:1", "1:0"), pairs(join(probe, build, false, TINY_BUDGET)));
+    }
+
+    @Test
+    public void checksEveryColumnOfMultiColumnKeys() throws Exception {
+        RedashColumnVector[] probe = {
+                vector(TYPE_STRING, "Aa", "Aa", "BB", "x"),
+                vector(TYPE_INTEGER, 1L, 2L, 1L, 1L)
+        };
+        RedashColumnVector[] build = {
+                vector(TYPE_STRING, "BB", "Aa", "Aa", "x"),
+                vector(TYPE_INTEGER, 1L, 1L, 2L, 2L)
+        };
+
+        for (long budget : new long[] {Long.MAX_VALUE, TINY_BUDGET}) {
+            RedashHashJoin join = RedashHashJoin.join(probe, build, false, budget);
+            assertEquals(Arrays.asList("0:1", "1:2", "2:0"), pairs(join));
+        }
+    }
+
+    @Test
+    public void nullKeysNeverMatch() throws Exception {
+        RedashColumnVector[] probe = {
+                vector(TYPE_STRING, null, "a", "a"),
+                vector(TYPE_INTEGER, 1L, null, 1L)
+        };
+        RedashColumnVector[] build = {
+                vector(TYPE_STRING, null, "a", "a"),
+                vector(TYPE_INTEGER, 1L, null, 1L)
+        };
+
+        assertEquals(Arrays.asList("2:2"), pairs(RedashHashJoin.join(probe, build, false, Long.MAX_VALUE)));
+    }
+
+    @Test
+    public void outerJoinKeepsUnmatchedProbeRowsInPlace() throws Exception {
+        RedashColumnVector probe = vector(TYPE_INTEGER, null, 1L, 5L, 2L, null);
+        RedashColumnVector build = vector(TYPE_INTEGER, 2L, 1L, 2L, null);
+
+        List<String> expected = Arrays.asList("0:-1", "1:1", "2:-1", "3:0", "3:2", "4:-1");
+        assertEquals(expected, pairs(join(probe, build, true, Long.MAX_VALUE)));
+
+        RedashHashJoin spilled = join(probe, build, true, TINY_BUDGET);
+        assertTrue(spilled.getPartitions() > 1);
+        assertEquals(expected, pairs(spilled));
+    }
+
+    @Test
+    public void outerJoinWithEmptyBuildSide() throws Exception {
+        RedashColumnVector probe = vector(TYPE_STRING, "a", null);
+        RedashColumnVector build = vector(TYPE_STRING);
+
+        assertEquals(Arrays.asList("0:-1", "1:-1"), pairs(join(probe, build, true, Long.MAX_VALUE)));
+        assertEquals(Arrays.asList(), pairs(join(probe, build, false, Long.MAX_VALUE)));
+    }
+
+    @Test
+    public void partitionsWhenTheHashTableExceedsTheBudget() throws Exception {
+        RedashColumnVector probe = vector(TYPE_INTEGER, 1L, 2L);
+        RedashColumnVector build = vector(TYPE_INTEGER, 2L, 1L, 1L);
+
+        long tableBytes = RedashHashJoin.BYTES_PER_BUILD_ROW * 3;
+        assertEquals(1, join(probe, build, false, tableBytes).getPartitions());
+        RedashHashJoin spilled = join(probe, build, false, tableBytes - 1);
+        assertTrue(spilled.getPartitions() > 1);
+        assertEquals(Arrays.asList("0:1", "0:2", "1:0"), pairs(spilled));
+    }
+
+    @Test
+    public void spilledJoinEqualsNestedLoopJoin() throws Exception {
+        Random random = new Random(42);
+        int probeSize = 3000;
+        int buildSize = 2000;
+        Object[] probeText = new Object[probeSize];
+        Object[] probeNumbers = new Object[probeSize];
+        Object[] buildText = new Object[buildSize];
+        Object[] buildNumbers = new Object[buildSize];
+        for (int i = 0; i < probeSize; i++) {
+            probeText[i] = random.nextInt(50) == 0 ? null : "k" + random.nextInt(40);
+            probeNumbers[i] = (long) random.nextInt(3);
+        }
+        for (int i = 0; i < buildSize; i++) {
+            buildText[i] = random.nextInt(50) == 0 ? null : "k" + random.nextInt(60);
+            buildNumbers[i] = (long) random.nextInt(3);
+        }
+        RedashColumnVector[] probe = {vector(TYPE_STRING, probeText), vector(TYPE_INTEGER, probeNumbers)};
+        RedashColumnVector[] build = {vector(TYPE_STRING, buildText), vector(TYPE_INTEGER, buildNumbers)};
+
+        for (boolean outer : new boolean[] {false, true}) {
+            List<String> expected = new ArrayList<>();
+            for (int p = 0; p < probeSize; p++) {
+                boolean matched = false;
+                for (int b = 0; b < buildSize; b++) {
+                    if (probeText[p] != null && Objects.equals(probeText[p], buildText[b])
+                            && probeNumbers[p].equals(buildNumbers[b])) {
+                        expected.add(p + ":" + b);
+                        matched = true;
+                    }
+                }
+                if (!matched && outer) {
+                    expected.add(p + ":-1");
+                }
+            }
+            assertEquals(expected, pairs(RedashHashJoin.join(probe, build, outer, Long.MAX_VALUE)));
+            RedashHashJoin spilled = RedashHashJoin.join(probe, build, outer, 4096);
+            assertTrue(spilled.getPartitions() > 1);
+            assertEquals(expected, pairs(spilled));
+        }
+    }
+
+    private static RedashHashJoin join(RedashColumnVector probe, RedashColumnVector build, boolean outer,
+                                       long memoryBudgetBytes) throws Exception {
+        return RedashHashJoin.join(new RedashColumnVector[] {probe}, new RedashColumnVector[] {build}, outer,
+                memoryBudgetBytes);
+    }
+
+    private static RedashColumnVector vector(int type, Object... values) {
+        RedashColumnVector.Builder builder = RedashColumnVector.builder(type);
+        for (Object value : values) {
+            builder.appendObject(value);
+        }
+        return builder.build();
+    }
+
+    private static List<String> pairs(RedashHashJoin join) {
+        List<String> pairs = new ArrayList<>();
+        for (int i = 0; i < join.size(); i++) {
+            pairs.add(join.getProbeRows()[i] + ":" + join.getBuildRows()[i]);
+        }
+        return pairs;
+    }
+}
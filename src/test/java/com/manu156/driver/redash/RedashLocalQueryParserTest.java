@@ -0,0 +1,154 @@
+package com.manu156.driver.redash;
+
+import org.junit.Test;
+
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.sql.SQLSyntaxErrorException;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class RedashLocalQueryParserTest {
+
+    @Test
+    public void parsesTheClausesOfAStatement() throws Exception {
+        RedashLocalQuery query = RedashLocalQuery.parse("SELECT DISTINCT country, COUNT(*) AS n FROM query_42 q "
+                + "WHERE amount > 10 GROUP BY country HAVING COUNT(*) > 1 ORDER BY n DESC, country LIMIT 5 OFFSET 2");
+
+        assertTrue(query.distinct);
+        assertEquals(2, query.items.size());
+        assertEquals("n", query.items.get(1).alias);
+        assertEquals("42", query.getQueryId());
+        assertEquals("q", query.tables.get(0).qualifier());
+        assertNotNull(query.where);
+        assertEquals(1, query.groupBy.size());
+        assertNotNull(query.having);
+        assertEquals(2, query.orderBy.size());
+        assertTrue(query.orderBy.get(0).descending);
+        assertFalse(query.orderBy.get(1).descending);
+        assertEquals(5, query.limit);
+        assertEquals(2, query.offset);
+        assertFalse(query.isJoin());
+    }
+
+    @Test
+    public void parsesEveryFormOfRowLimit() throws Exception {
+        assertLimit("SELECT * FROM query_1 LIMIT 10", 10, 0);
+        assertLimit("SELECT * FROM query_1 LIMIT 10 OFFSET 3", 10, 3);
+        assertLimit("SELECT * FROM query_1 LIMIT 3, 10", 10, 3);
+        assertLimit("SELECT * FROM query_1 LIMIT ALL", -1, 0);
+        assertLimit("SELECT * FROM query_1 OFFSET 4 ROWS", -1, 4);
+        assertLimit("SELECT * FROM query_1 OFFSET 4 ROWS FETCH NEXT 2 ROWS ONLY", 2, 4);
+        assertLimit("SELECT * FROM query_1 FETCH FIRST ROW ONLY", 1, 0);
+        assertLimit("SELECT TOP 7 * FROM query_1", 7, 0);
+        assertLimit("SELECT * FROM query_1;", -1, 0);
+    }
+
+    @Test
+    public void nullsSortLastAscendingAndFirstDescendingUnlessStated() throws Exception {
+        RedashLocalQuery query = RedashLocalQuery.parse(
+                "SELECT * FROM query_1 ORDER BY a, b DESC, c NULLS FIRST, d DESC NULLS LAST");
+
+        assertFalse(query.orderBy.get(0).nullsFirst);
+        assertTrue(query.orderBy.get(1).nullsFirst);
+        assertTrue(query.orderBy.get(2).nullsFirst);
+        assertFalse(query.orderBy.get(3).nullsFirst);
+    }
+
+    @Test
+    public void parsesJoins() throws Exception {
+        RedashLocalQuery query = RedashLocalQuery.parse("SELECT a.id, c.name FROM query_1 a "
+                + "JOIN query_2 b ON a.id = b.id LEFT OUTER JOIN query_1 c ON c.id = b.parent_id");
+
+        assertTrue(query.isJoin());
+        assertEquals(3, query.tables.size());
+        assertFalse(query.tables.get(1).leftJoin);
+        assertTrue(query.tables.get(2).leftJoin);
+        assertEquals(Arrays.asList("1", "2"), query.getQueryIds());
+    }
+
+    @Test
+    public void acceptsQuotedIdentifiers() throws Exception {
+        RedashLocalQuery query = RedashLocalQuery.parse("SELECT \"id\", [country], `amount` FROM query_1");
+
+        assertEquals("id", query.items.get(0).name());
+        assertEquals("country", query.items.get(1).name());
+        assertEquals("amount", query.items.get(2).name());
+    }
+
+    @Test
+    public void onlySelectStarWithoutConditionsPassesThrough() throws Exception {
+        assertTrue(RedashLocalQuery.parse("SELECT * FROM query_1").isPassThrough());
+        assertTrue(RedashLocalQuery.parse("select * from query_1 as q").isPassThrough());
+        assertFalse(RedashLocalQuery.parse("SELECT * FROM query_1 LIMIT 1").isPassThrough());
+        assertFalse(RedashLocalQuery.parse("SELECT * FROM query_1 WHERE id = 1").isPassThrough());
+        assertFalse(RedashLocalQuery.parse("SELECT id FROM query_1").isPassThrough());
+        assertFalse(RedashLocalQuery.parse("SELECT * FROM query_1 ORDER BY id").isPassThrough());
+    }
+
+    @Test
+    public void pushesDownTheRowsALimitNeeds() throws Exception {
+        assertEquals(10, RedashLocalQuery.parse("SELECT * FROM query_1 LIMIT 10").getRowsNeeded());
+        assertEquals(15, RedashLocalQuery.parse("SELECT * FROM query_1 LIMIT 10 OFFSET 5").getRowsNeeded());
+        assertEquals(3, RedashLocalQuery.parse("SELECT TOP 3 * FROM query_1").getRowsNeeded());
+
+        // Anything that may need rows beyond the first ones reads the whole result
+        assertEquals(0, RedashLocalQuery.parse("SELECT * FROM query_1").getRowsNeeded());
+        assertEquals(0, RedashLocalQuery.parse("SELECT * FROM query_1 OFFSET 5").getRowsNeeded());
+        assertEquals(0, RedashLocalQuery.parse("SELECT * FROM query_1 LIMIT 0").getRowsNeeded());
+        assertEquals(0, RedashLocalQuery.parse("SELECT * FROM query_1 WHERE id > 1 LIMIT 10").getRowsNeeded());
+        assertEquals(0, RedashLocalQuery.parse("SELECT * FROM query_1 ORDER BY id LIMIT 10").getRowsNeeded());
+        assertEquals(0, RedashLocalQuery.parse("SELECT DISTINCT * FROM query_1 LIMIT 10").getRowsNeeded());
+        assertEquals(0, RedashLocalQuery.parse("SELECT id FROM query_1 LIMIT 10").getRowsNeeded());
+        assertEquals(0, RedashLocalQuery.parse("SELECT COUNT(*) FROM query_1 LIMIT 10").getRowsNeeded());
+        assertEquals(0, RedashLocalQuery.parse(
+                "SELECT * FROM query_1 a JOIN query_2 b ON a.id = b.id LIMIT 10").getRowsNeeded());
+        assertEquals(0, RedashLocalQuery.parse(
+                "SELECT * FROM query_1 LIMIT 9223372036854775807 OFFSET 1").getRowsNeeded());
+    }
+
+    @Test
+    public void rejectsMalformedStatements() {
+        assertError(SQLSyntaxErrorException.class, "SELECT id FROM query_1 WHERE");
+        assertError(SQLSyntaxErrorException.class, "SELECT id FROM orders");
+        assertError(SQLSyntaxErrorException.class, "SELECT id FROM query_1 LIMIT x");
+        assertError(SQLSyntaxErrorException.class, "SELECT id FROM query_1 WHERE name = 'open");
+        assertError(SQLSyntaxErrorException.class, "SELECT id FROM query_1 extra words");
+        assertError(SQLSyntaxErrorException.class, "SELECT * FROM query_1 a JOIN query_2 a ON a.id = a.id");
+    }
+
+    @Test
+    public void rejectsSqlItCannotEvaluate() {
+        assertError(SQLFeatureNotSupportedException.class, "SELECT UPPER(name) FROM query_1");
+        assertError(SQLFeatureNotSupportedException.class, "SELECT * FROM (SELECT * FROM query_1) t");
+        assertError(SQLFeatureNotSupportedException.class, "SELECT * FROM query_1 WHERE id IN (SELECT 1)");
+        assertError(SQLFeatureNotSupportedException.class, "SELECT COUNT(DISTINCT id) FROM query_1");
+        assertError(SQLFeatureNotSupportedException.class, "SELECT * FROM query_1, query_2");
+        assertError(SQLFeatureNotSupportedException.class,
+                "SELECT * FROM query_1 a RIGHT JOIN query_2 b ON a.id = b.id");
+        assertError(SQLFeatureNotSupportedException.class, "SELECT * FROM query_1 UNION SELECT * FROM query_2");
+        assertError(SQLFeatureNotSupportedException.class, "SELECT CASE WHEN id = 1 THEN 1 END FROM query_1");
+    }
+
+    private static void assertLimit(String sql, long limit, long offset) throws SQLException {
+        RedashLocalQuery query = RedashLocalQuery.parse(sql);
+        assertEquals(sql, limit, query.limit);
+        assertEquals(sql, offset, query.offset);
+        assertNull(sql, query.where);
+    }
+
+    private static void assertError(Class<? extends SQLException> expected, String sql) {
+        try {
+            RedashLocalQuery.parse(sql);
+            fail("Expected " + expected.getSimpleName() + " for " + sql);
+        } catch (SQLException e) {
+            assertEquals(sql + ": " + e.getMessage(), expected, e.getClass());
+        }
+    }
+}
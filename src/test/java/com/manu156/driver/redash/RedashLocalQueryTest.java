@@ -0,0 +1,244 @@
+package com.manu156.driver.redash;
+
+import org.junit.Test;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class RedashLocalQueryTest {
+
+    private static final List<RedashColumn> COLUMNS = Arrays.asList(
+            new RedashColumn("id", "integer"),
+            new RedashColumn("country", "string"),
+            new RedashColumn("amount", "float"),
+            new RedashColumn("active", "boolean"));
+
+    // id, country, amount, active
+    private static final RedashQueryResult ORDERS = result(
+            row(1, "DE", 10.0, true),
+            row(2, "FR", null, false),
+            row(3, null, 5.5, null),
+            row(4, "DE", 20.0, false),
+            row(5, "FR", 7.0, true),
+            row(6, "DE", null, true));
+
+    @Test
+    public void comparisonsWithNullAreNeitherTrueNorFalse() throws Exception {
+        assertEquals(ids(1, 4, 5), ids("SELECT id FROM query_1 WHERE amount > 6"));
+        assertEquals(ids(3), ids("SELECT id FROM query_1 WHERE NOT (amount > 6)"));
+        assertEquals(ids(3, 4, 5), ids("SELECT id FROM query_1 WHERE amount <> 10"));
+        assertEquals(ids(), ids("SELECT id FROM query_1 WHERE amount = NULL"));
+        assertEquals(ids(2, 5), ids("SELECT id FROM query_1 WHERE country NOT IN ('DE')"));
+        assertEquals(ids(2, 5), ids("SELECT id FROM query_1 WHERE country NOT LIKE 'D%'"));
+        assertEquals(ids(1, 4), ids("SELECT id FROM query_1 WHERE amount BETWEEN 10 AND 20"));
+    }
+
+    @Test
+    public void logicalOperatorsUseThreeValuedLogic() throws Exception {
+        // Row 3 has a null flag: null OR false is null, null AND false is false
+        assertEquals(ids(1, 4, 5, 6), ids("SELECT id FROM query_1 WHERE active OR amount > 15"));
+        assertEquals(ids(1, 5), ids("SELECT id FROM query_1 WHERE active AND amount > 6"));
+        assertEquals(ids(2, 4), ids("SELECT id FROM query_1 WHERE NOT active"));
+        assertEquals(ids(1, 2, 3, 4, 5),
+                ids("SELECT id FROM query_1 WHERE NOT (active AND amount IS NULL)"));
+    }
+
+    @Test
+    public void isNullTestsMissingValues() throws Exception {
+        assertEquals(ids(2, 6), ids("SELECT id FROM query_1 WHERE amount IS NULL"));
+        assertEquals(ids(1, 3, 4, 5), ids("SELECT id FROM query_1 WHERE amount IS NOT NULL"));
+        assertEquals(ids(3), ids("SELECT id FROM query_1 WHERE country IS NULL AND active IS NULL"));
+    }
+
+    @Test
+    public void bindsParameterMarkers() throws Exception {
+        Map<Integer, Object> markers = new HashMap<>();
+        markers.put(1, "FR");
+        markers.put(2, 3);
+        RedashQueryResult result = execute("SELECT id FROM query_1 WHERE country = ? OR id = ?", markers);
+
+        assertEquals(ids(2, 3, 5), column(result, 0));
+    }
+
+    @Test
+    public void groupsRowsAndAggregatesIgnoringNulls() throws Exception {
+        RedashQueryResult result = execute("SELECT country, COUNT(*) AS n, COUNT(amount), SUM(amount), "
+                + "AVG(amount), MIN(id), MAX(amount) FROM query_1 GROUP BY country ORDER BY country");
+
+        assertEquals(Arrays.asList("DE", "FR", null), column(result, 0));
+        assertEquals(Arrays.asList(3, 2, 1), column(result, 1));
+        assertEquals(Arrays.asList(2, 1, 1), column(result, 2));
+        assertEquals(Arrays.asList(30.0, 7.0, 5.5), column(result, 3));
+        assertEquals(Arrays.asList(15.0, 7.0, 5.5), column(result, 4));
+        assertEquals(Arrays.asList(1, 2, 3), column(result, 5));
+        assertEquals(Arrays.asList(20.0, 7.0, 5.5), column(result, 6));
+        assertEquals("n", result.getColumns().get(1).getName());
+    }
+
+    @Test
+    public void aggregatesOverNoRowsGiveOneRow() throws Exception {
+        RedashQueryResult result = execute("SELECT COUNT(*), COUNT(amount), SUM(amount), AVG(amount), MAX(id) "
+                + "FROM query_1 WHERE id < 0");
+
+        assertEquals(1, result.getRowCount());
+        List<Object> values = new ArrayList<>();
+        for (int column = 0; column < result.getColumnCount(); column++) {
+            values.add(result.getValue(0, column));
+        }
+        assertEquals(Arrays.asList(0, 0, null, null, null), values);
+    }
+
+    @Test
+    public void sumOfOnlyNullsIsNull() throws Exception {
+        RedashQueryResult result = execute("SELECT id, SUM(amount) FROM query_1 WHERE id IN (2, 6) "
+                + "GROUP BY id ORDER BY id");
+
+        assertEquals(Arrays.asList(null, null), column(result, 1));
+    }
+
+    @Test
+    public void havingFiltersGroups() throws Exception {
+        RedashQueryResult result = execute("SELECT country, SUM(id) FROM query_1 GROUP BY country "
+                + "HAVING COUNT(*) > 1 ORDER BY 2 DESC");
+
+        assertEquals(Arrays.asList("DE", "FR"), column(result, 0));
+        assertEquals(Arrays.asList(11, 7), column(result, 1));
+    }
+
+    @Test
+    public void distinctKeepsOneRowPerValue() throws Exception {
+        assertEquals(Arrays.asList("DE", "FR", null),
+                column(execute("SELECT DISTINCT country FROM query_1 ORDER BY country"), 0));
+    }
+
+    @Test
+    public void orderByKeepsTheInputOrderOfEqualRows() throws Exception {
+        // Nulls sort last ascending and first descending
+        assertEquals(ids(2, 4, 1, 5, 6, 3), ids("SELECT id FROM query_1 ORDER BY active"));
+        assertEquals(ids(3, 1, 5, 6, 2, 4), ids("SELECT id FROM query_1 ORDER BY active DESC"));
+        assertEquals(ids(1, 5, 6, 2, 4, 3), ids("SELECT id FROM query_1 ORDER BY active DESC NULLS LAST"));
+        assertEquals(ids(4, 1, 6, 5, 2, 3), ids("SELECT id FROM query_1 ORDER BY country, amount DESC NULLS LAST"));
+    }
+
+    @Test
+    public void orderByWithASmallLimitKeepsTheInputOrderOfEqualRows() throws Exception {
+        List<Map<String, Object>> rows = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            rows.add(row(i, "c" + i % 3, (double) (i % 3), true));
+        }
+        RedashQueryResult input = new RedashQueryResult(COLUMNS, rows);
+
+        // Few enough rows for the bounded heap rather than a full sort
+        RedashQueryResult top = RedashLocalQuery.parse("SELECT id FROM query_1 ORDER BY amount LIMIT 5 OFFSET 1")
+                .execute(Collections.singletonList(input), Collections.emptyMap());
+        assertEquals(ids(3, 6, 9, 12, 15), column(top, 0));
+
+        top = RedashLocalQuery.parse("SELECT id FROM query_1 ORDER BY country DESC, id DESC LIMIT 3")
+                .execute(Collections.singletonList(input), Collections.emptyMap());
+        assertEquals(ids(998, 995, 992), column(top, 0));
+    }
+
+    @Test
+    public void limitAndOffsetSelectAWindow() throws Exception {
+        assertEquals(ids(4, 5), ids("SELECT id FROM query_1 ORDER BY id LIMIT 2 OFFSET 3"));
+        assertEquals(ids(2, 3), ids("SELECT id FROM query_1 LIMIT 2 OFFSET 1"));
+        assertEquals(ids(5, 6), ids("SELECT id FROM query_1 ORDER BY id OFFSET 4 ROWS"));
+        assertEquals(ids(6), ids("SELECT id FROM query_1 ORDER BY id LIMIT 10 OFFSET 5"));
+        assertEquals(ids(), ids("SELECT id FROM query_1 ORDER BY id LIMIT 2 OFFSET 10"));
+        assertEquals(ids(), ids("SELECT id FROM query_1 LIMIT 0"));
+        assertEquals(ids(1), ids("SELECT TOP 1 id FROM query_1"));
+        assertEquals(ids(4),
+                ids("SELECT id FROM query_1 WHERE country = 'DE' ORDER BY id OFFSET 1 ROW FETCH NEXT 1 ROW ONLY"));
+    }
+
+    @Test
+    public void pushedDownRowLimitGivesTheSameResult() throws Exception {
+        for (String sql : new String[] {
+                "SELECT * FROM query_1 LIMIT 2",
+                "SELECT * FROM query_1 LIMIT 2 OFFSET 3",
+                "SELECT TOP 1 * FROM query_1",
+                "SELECT * FROM query_1 OFFSET 1 ROWS FETCH FIRST 4 ROWS ONLY"}) {
+            RedashLocalQuery query = RedashLocalQuery.parse(sql);
+            int needed = query.getRowsNeeded();
+            assertTrue(sql, needed > 0 && needed < ORDERS.getRowCount());
+
+            RedashQueryResult prefix = new RedashQueryResult(COLUMNS, ORDERS.getRows().subList(0, needed));
+            RedashQueryResult expected = query.execute(Collections.singletonList(ORDERS), Collections.emptyMap());
+            RedashQueryResult actual = query.execute(Collections.singletonList(prefix), Collections.emptyMap());
+            assertEquals(sql, expected.getRows(), actual.getRows());
+        }
+    }
+
+    @Test
+    public void projectsExpressionsWithTheirTypes() throws Exception {
+        RedashQueryResult result = execute("SELECT id * 2 + 1 AS x, country || '!' AS c, -amount "
+                + "FROM query_1 WHERE id BETWEEN 2 AND 3 ORDER BY x");
+
+        assertEquals(Arrays.asList(5, 7), column(result, 0));
+        assertEquals(Arrays.asList("FR!", null), column(result, 1));
+        assertEquals(Arrays.asList(null, -5.5), column(result, 2));
+        assertEquals("integer", result.getColumns().get(0).getType());
+        assertEquals("string", result.getColumns().get(1).getType());
+        assertEquals("float", result.getColumns().get(2).getType());
+    }
+
+    @Test(expected = SQLException.class)
+    public void rejectsUnknownColumns() throws Exception {
+        execute("SELECT nope FROM query_1");
+    }
+
+    @Test(expected = SQLException.class)
+    public void rejectsColumnsNeitherGroupedNorAggregated() throws Exception {
+        execute("SELECT id FROM query_1 GROUP BY country");
+    }
+
+    private static RedashQueryResult execute(String sql) throws SQLException {
+        return execute(sql, Collections.emptyMap());
+    }
+
+    private static RedashQueryResult execute(String sql, Map<Integer, Object> markers) throws SQLException {
+        return RedashLocalQuery.parse(sql).execute(Collections.singletonList(ORDERS), markers);
+    }
+
+    private static List<Object> ids(String sql) throws SQLException {
+        return column(execute(sql), 0);
+    }
+
+    private static List<Object> ids(int... ids) {
+        List<Object> list = new ArrayList<>();
+        for (int id : ids) {
+            list.add(id);
+        }
+        return list;
+    }
+
+    private static List<Object> column(RedashQueryResult result, int column) {
+        List<Object> values = new ArrayList<>();
+        for (int row = 0; row < result.getRowCount(); row++) {
+            values.add(result.getValue(row, column));
+        }
+        return values;
+    }
+
+    @SafeVarargs
+    private static RedashQueryResult result(Map<String, Object>... rows) {
+        return new RedashQueryResult(COLUMNS, Arrays.asList(rows));
+    }
+
+    private static Map<String, Object> row(long id, String country, Double amount, Boolean active) {
+        Map<String, Object> row = new HashMap<>();
+        row.put("id", id);
+        row.put("country", country);
+        row.put("amount", amount);
+        row.put("active", active);
+        return row;
+    }
+}
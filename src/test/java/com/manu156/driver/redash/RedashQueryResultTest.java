@@ -0,0 +1,117 @@
+package com.manu156.driver.redash;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class RedashQueryResultTest {
+
+    private static final int ROWS = 20000;
+
+    @Test
+    public void closedOffHeapResultRejectsReads() throws Exception {
+        RedashQueryResult result = decodeOffHeap(10);
+        assertTrue(result.isOffHeap());
+        assertEquals(3, result.getValue(3, 0));
+
+        result.close();
+
+        assertClosed(() -> result.getValue(0, 0));
+        assertClosed(() -> result.getVector(0));
+        assertClosed(result::getRows);
+    }
+
+    @Test
+    public void vectorsTakenBeforeCloseStayReadable() throws Exception {
+        RedashQueryResult result = decodeOffHeap(ROWS);
+        RedashColumnVector[] vectors = new RedashColumnVector[result.getColumnCount()];
+        for (int i = 0; i < vectors.length; i++) {
+            vectors[i] = result.getVector(i);
+        }
+
+        result.close();
+
+        // The budget is back at once, the memory itself is only freed once the vectors are unreachable
+        for (int row = 0; row < ROWS; row++) {
+            assertEquals(row, vectors[0].getLong(row));
+            assertEquals(row / 2.0, vectors[1].getDouble(row), 0.0);
+            assertEquals("name-" + row % 7, vectors[2].getString(row));
+            assertEquals(row % 2 == 0, vectors[3].getBoolean(row));
+        }
+    }
+
+    @Test
+    public void closingFromAnotherThreadWhileReadingNeitherCrashesNorLeaksTheBudget() throws Exception {
+        long reservedBefore = RedashOffHeapArena.getReservedBytes();
+        ExecutorService readers = Executors.newFixedThreadPool(4);
+        try {
+            for (int attempt = 0; attempt < 20; attempt++) {
+                RedashQueryResult result = decodeOffHeap(ROWS);
+                assertTrue(RedashOffHeapArena.getReservedBytes() > reservedBefore);
+                CountDownLatch reading = new CountDownLatch(4);
+                Future<?>[] futures = new Future<?>[4];
+                for (int i = 0; i < futures.length; i++) {
+                    futures[i] = readers.submit(() -> {
+                        reading.countDown();
+                        try {
+                            while (true) {
+                                for (int row = 0; row < ROWS; row++) {
+                                    assertEquals(row, result.getVector(0).getLong(row));
+                                    assertEquals("name-" + row % 7, result.getValue(row, 2));
+                                }
+                            }
+                        } catch (IllegalStateException e) {
+                            assertEquals("Query result is closed", e.getMessage());
+                        }
+                        return null;
+                    });
+                }
+                reading.await();
+                result.close();
+                for (Future<?> future : futures) {
+                    future.get(10, TimeUnit.SECONDS);
+                }
+                assertEquals(reservedBefore, RedashOffHeapArena.getReservedBytes());
+            }
+        } finally {
+            readers.shutdownNow();
+        }
+    }
+
+    private static RedashQueryResult decodeOffHeap(int rows) throws Exception {
+        StringBuilder json = new StringBuilder("{\"query_result\": {\"data\": {\"columns\": ["
+                + "{\"name\": \"id\", \"type\": \"integer\"}, {\"name\": \"score\", \"type\": \"float\"}, "
+                + "{\"name\": \"name\", \"type\": \"string\"}, {\"name\": \"even\", \"type\": \"boolean\"}], "
+                + "\"rows\": [");
+        for (int row = 0; row < rows; row++) {
+            if (row > 0) {
+                json.append(", ");
+            }
+            json.append("{\"id\": ").append(row).append(", \"score\": ").append(row / 2.0)
+                    .append(", \"name\": \"name-").append(row % 7).append("\", \"even\": ").append(row % 2 == 0)
+                    .append('}');
+        }
+        json.append("]}}}");
+        ByteArrayInputStream in = new ByteArrayInputStream(json.toString().getBytes(StandardCharsets.UTF_8));
+        return RedashResultDecoder.decodeResponse(in, null, 0, true).getResult();
+    }
+
+    private static void assertClosed(Runnable read) {
+        try {
+            read.run();
+            fail("Expected the closed result to reject the read");
+        } catch (IllegalStateException e) {
+            assertEquals("Query result is closed", e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,153 @@
+package com.manu156.driver.redash;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class RedashResultDecoderTest {
+
+    private static final String COLUMNS = "\"columns\": [{\"name\": \"id\", \"type\": \"integer\"}, "
+            + "{\"name\": \"name\", \"type\": \"string\"}]";
+
+    @Test
+    public void decodesRowsAfterTheColumns() throws Exception {
+        RedashQueryResult result = decode(body(COLUMNS + ", \"rows\": [{\"id\": 1, \"name\": \"a\"}, "
+                + "{\"id\": 2, \"name\": \"b\"}]"));
+
+        assertEquals(Arrays.asList(1, 2), column(result, 0));
+        assertEquals(Arrays.asList("a", "b"), column(result, 1));
+        assertEquals("name", result.getColumns().get(1).getName());
+    }
+
+    @Test
+    public void decodesRowsBeforeTheColumns() throws Exception {
+        RedashQueryResult result = decode(body("\"rows\": [{\"name\": \"a\", \"id\": 1}, {\"id\": 2}], " + COLUMNS));
+
+        assertEquals(Arrays.asList(1, 2), column(result, 0));
+        assertEquals(Arrays.asList("a", null), column(result, 1));
+    }
+
+    @Test
+    public void missingFieldsAreNullAndUnknownFieldsIgnored() throws Exception {
+        RedashQueryResult result = decode(body(COLUMNS + ", \"rows\": [{\"name\": \"a\"}, {}, "
+                + "{\"extra\": {\"nested\": [1, 2]}, \"id\": 3}, {\"id\": 4, \"id\": 5, \"name\": null}]"));
+
+        assertEquals(Arrays.asList(null, null, 3, 4), column(result, 0));
+        assertEquals(Arrays.asList("a", null, null, null), column(result, 1));
+    }
+
+    @Test
+    public void coercesMixedCellsToTheColumnType() throws Exception {
+        RedashQueryResult result = decode(body("\"columns\": [{\"name\": \"i\", \"type\": \"integer\"}, "
+                + "{\"name\": \"f\", \"type\": \"float\"}, {\"name\": \"b\", \"type\": \"boolean\"}, "
+                + "{\"name\": \"s\", \"type\": \"string\"}], \"rows\": ["
+                + "{\"i\": 1, \"f\": 1, \"b\": true, \"s\": 1},"
+                + "{\"i\": 9007199254740993, \"f\": 2.5, \"b\": 0, \"s\": 2.5},"
+                + "{\"i\": 2.9, \"f\": \"3.5\", \"b\": 7, \"s\": true},"
+                + "{\"i\": true, \"f\": false, \"b\": \"true\", \"s\": \"text\"},"
+                + "{\"i\": \"42\", \"f\": \"x\", \"b\": 1.5, \"s\": [1]},"
+                + "{\"i\": \"x\", \"f\": {}, \"b\": \"yes\", \"s\": null}]"));
+
+        assertEquals(Arrays.asList(1, 9007199254740993L, 2, 1, 42, 0), column(result, 0));
+        assertEquals(Arrays.asList(1.0, 2.5, 3.5, 0.0, 0.0, 0.0), column(result, 1));
+        assertEquals(Arrays.asList(true, false, true, true, false, false), column(result, 2));
+        assertEquals(Arrays.asList("1", "2.5", "true", "text", "", null), column(result, 3));
+    }
+
+    @Test
+    public void decodesAPendingJob() throws Exception {
+        RedashResultDecoder.Response response = RedashResultDecoder.decodeResponse(
+                in("{\"job\": {\"id\": \"abc\", \"status\": 1}}"));
+
+        assertEquals("abc", response.getJob().path("id").asText());
+        assertNull(response.getResult());
+    }
+
+    @Test
+    public void stopsAfterTheMaximumNumberOfRows() throws Exception {
+        RedashResultDecoder.Response response = RedashResultDecoder.decodeResponse(
+                in(body(COLUMNS + ", \"rows\": [{\"id\": 1}, {\"id\": 2}, {\"id\": 3}]")), null, 2, false);
+
+        assertEquals(Arrays.asList(1, 2), column(response.getResult(), 0));
+    }
+
+    @Test
+    public void readsRowsInChunks() throws Exception {
+        RedashResultDecoder.Response response = RedashResultDecoder.open(
+                in(body(COLUMNS + ", \"rows\": [{\"id\": 1}, {\"id\": 2}, {\"id\": 3}]")), null, false);
+        RedashResultStream stream = response.getStream();
+        assertTrue(stream.isStreaming());
+
+        assertEquals(Arrays.asList(1, 2), column(stream.next(2), 0));
+        assertEquals(Arrays.asList(3), column(stream.next(2), 0));
+        assertNull(stream.next(2));
+    }
+
+    @Test
+    public void rejectsTruncatedJson() throws Exception {
+        String complete = body(COLUMNS + ", \"rows\": [{\"id\": 1, \"name\": \"a\"}, {\"id\": 2, \"name\": \"b\"}]");
+        int rowsStart = complete.indexOf("\"rows\": [") + "\"rows\": [".length();
+
+        // The tail after the rows array is never parsed, so cuts there go unnoticed once every row is read
+        for (int length = 0; length <= complete.lastIndexOf(']'); length++) {
+            try {
+                decode(complete.substring(0, length));
+                fail("Expected truncation at " + length + " to fail: " + complete.substring(0, length));
+            } catch (SQLException e) {
+                // Cut inside the rows, or before anything was found
+                assertNotNull(e.getMessage());
+            } catch (IOException e) {
+                // Cut before the rows, while the response itself was parsed
+                assertTrue("Cut at " + length + " failed with " + e, length < rowsStart);
+            }
+        }
+    }
+
+    @Test
+    public void rejectsResponsesWithoutAResult() {
+        for (String json : new String[] {"[]", "{}", "{\"query_result\": {}}", "{\"query_result\": {\"data\": {}}}",
+                "{\"query_result\": {\"data\": {" + COLUMNS + "}}}"}) {
+            try {
+                decode(json);
+                fail("Expected " + json + " to be rejected");
+            } catch (SQLException e) {
+                // Expected
+            } catch (IOException e) {
+                throw new AssertionError(json, e);
+            }
+        }
+    }
+
+    private static RedashQueryResult decode(String json) throws SQLException, IOException {
+        return RedashResultDecoder.decode(in(json));
+    }
+
+    private static InputStream in(String json) {
+        return new ByteArrayInputStream(json.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String body(String data) {
+        return "{\"query_result\": {\"id\": 7, \"data\": {" + data + "}}}";
+    }
+
+    private static List<Object> column(RedashQueryResult result, int column) {
+        List<Object> values = new ArrayList<>();
+        for (int row = 0; row < result.getRowCount(); row++) {
+            values.add(result.getValue(row, column));
+        }
+        return values;
+    }
+}
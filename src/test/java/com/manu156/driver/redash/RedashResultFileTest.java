@@ -0,0 +1,221 @@
+package com.manu156.driver.redash;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class RedashResultFileTest {
+
+    private static final long STORED_AT = 1_700_000_000_000L;
+    private static final long EXPIRES_AT = STORED_AT + 60_000;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void roundTripsEveryColumnTypeWithNulls() throws Exception {
+        List<RedashColumn> columns = Arrays.asList(
+                new RedashColumn("id", "integer"),
+                new RedashColumn("amount", "float"),
+                new RedashColumn("active", "boolean"),
+                new RedashColumn("country", "string"));
+        // More than 64 rows, so the bitmaps span several words
+        List<Map<String, Object>> rows = new ArrayList<>();
+        for (int i = 0; i < 150; i++) {
+            Map<String, Object> row = new HashMap<>();
+            row.put("id", i % 5 == 0 ? null : (i % 2 == 0 ? (long) i : Long.MIN_VALUE + i));
+            row.put("amount", i % 7 == 0 ? null : i * -1.25);
+            row.put("active", i % 3 == 0 ? null : i % 2 == 0);
+            row.put("country", i % 11 == 0 ? null : new String[] {"DE", "FR", "Ελλάδα"}[i % 3]);
+            rows.add(row);
+        }
+        RedashQueryResult expected = new RedashQueryResult(columns, rows);
+        assertTrue(expected.getVector(3) instanceof RedashColumnVector.DictionaryVector);
+
+        RedashResultFile file = roundTrip(expected);
+
+        assertEquals(STORED_AT, file.getStoredAtMillis());
+        assertEquals(EXPIRES_AT, file.getExpiresAtMillis());
+        RedashQueryResult actual = file.getResult();
+        assertTrue(actual.getVector(0) instanceof RedashBufferVectors.BufferLongVector);
+        assertTrue(actual.getVector(1) instanceof RedashBufferVectors.BufferDoubleVector);
+        assertTrue(actual.getVector(2) instanceof RedashBufferVectors.BufferBooleanVector);
+        assertTrue(actual.getVector(3) instanceof RedashBufferVectors.BufferDictionaryVector);
+        assertSameResult(expected, actual);
+    }
+
+    @Test
+    public void roundTripsPackedStrings() throws Exception {
+        List<RedashColumn> columns = Collections.singletonList(new RedashColumn("name", "string"));
+        // Mostly distinct values, so the builder gives up on the dictionary
+        List<Map<String, Object>> rows = new ArrayList<>();
+        for (int i = 0; i < 3 * RedashColumnVector.StringValueBuilder.MIN_DICTIONARY_CHECK; i++) {
+            rows.add(Collections.singletonMap("name", i % 13 == 0 ? null : i % 17 == 0 ? "" : "näme-" + i));
+        }
+        RedashQueryResult expected = new RedashQueryResult(columns, rows);
+        assertTrue(expected.getVector(0) instanceof RedashColumnVector.PackedStringVector);
+
+        RedashQueryResult actual = roundTrip(expected).getResult();
+
+        assertTrue(actual.getVector(0) instanceof RedashBufferVectors.BufferPackedVector);
+        assertSameResult(expected, actual);
+    }
+
+    @Test
+    public void roundTripsAnEmptyResult() throws Exception {
+        List<RedashColumn> columns = Arrays.asList(
+                new RedashColumn("id", "integer"),
+                new RedashColumn("amount", "float"),
+                new RedashColumn("active", "boolean"),
+                new RedashColumn("country", "string"));
+        RedashQueryResult expected = new RedashQueryResult(columns, Collections.emptyList());
+
+        RedashQueryResult actual = roundTrip(expected).getResult();
+
+        assertEquals(0, actual.getRowCount());
+        assertSameResult(expected, actual);
+    }
+
+    @Test
+    public void readsTheExpiryWithoutMappingTheFile() throws Exception {
+        Path path = write(sample());
+
+        assertEquals(EXPIRES_AT, RedashResultFile.readExpiresAtMillis(path));
+    }
+
+    @Test
+    public void rejectsATruncatedFile() throws Exception {
+        byte[] bytes = Files.readAllBytes(write(sample()));
+
+        for (int length = 0; length < bytes.length; length++) {
+            assertRejected("truncated to " + length + " bytes", Arrays.copyOf(bytes, length));
+        }
+    }
+
+    @Test
+    public void rejectsABadMagicNumberOrVersion() throws Exception {
+        byte[] bytes = Files.readAllBytes(write(sample()));
+
+        byte[] magic = bytes.clone();
+        magic[0] ^= 1;
+        assertRejected("bad magic", magic);
+        assertRejectedHeader(magic);
+
+        byte[] version = bytes.clone();
+        ByteBuffer.wrap(version).order(ByteOrder.LITTLE_ENDIAN).putInt(4, 2);
+        assertRejected("bad version", version);
+        assertRejectedHeader(version);
+    }
+
+    @Test
+    public void rejectsSectionOffsetsOutsideTheFile() throws Exception {
+        byte[] bytes = Files.readAllBytes(write(sample()));
+        long table = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN).getLong(32);
+        // The single column "id" of type "integer": name, type, encoding and count, then three offsets
+        int offsets = (int) ((table + 4 + 2 + 4 + 7 + 8 + 7) & ~7);
+
+        for (long offset : new long[] {0, 8, bytes.length, bytes.length + 8L, Long.MAX_VALUE, -1}) {
+            assertRejected("table at " + offset, withLong(bytes, 32, offset));
+            assertRejected("nulls at " + offset, withLong(bytes, offsets, offset));
+            assertRejected("values at " + offset, withLong(bytes, offsets + 8, offset));
+        }
+        // Values that would end past the file
+        assertRejected("values at the end", withLong(bytes, offsets + 8, bytes.length - 8));
+    }
+
+    @Test
+    public void rejectsCorruptColumnTables() throws Exception {
+        byte[] bytes = Files.readAllBytes(write(sample()));
+        ByteBuffer header = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+        int table = (int) header.getLong(32);
+
+        for (int length : new int[] {-1, Integer.MIN_VALUE, Integer.MAX_VALUE, bytes.length}) {
+            byte[] corrupt = bytes.clone();
+            ByteBuffer.wrap(corrupt).order(ByteOrder.LITTLE_ENDIAN).putInt(table, length);
+            assertRejected("name length " + length, corrupt);
+        }
+        byte[] columns = bytes.clone();
+        ByteBuffer.wrap(columns).order(ByteOrder.LITTLE_ENDIAN).putInt(28, 2);
+        assertRejected("column count beyond the table", columns);
+
+        byte[] encoding = bytes.clone();
+        ByteBuffer.wrap(encoding).order(ByteOrder.LITTLE_ENDIAN).putInt(table + 4 + 2 + 4 + 7, 99);
+        assertRejected("unknown encoding", encoding);
+    }
+
+    private RedashResultFile roundTrip(RedashQueryResult result) throws IOException {
+        return RedashResultFile.read(write(result));
+    }
+
+    private Path write(RedashQueryResult result) throws IOException {
+        Path path = folder.newFile().toPath();
+        RedashResultFile.write(path, result, STORED_AT, EXPIRES_AT);
+        return path;
+    }
+
+    private void assertRejected(String description, byte[] bytes) throws IOException {
+        Path path = folder.newFile().toPath();
+        Files.write(path, bytes);
+        try {
+            RedashResultFile.read(path);
+            fail("Expected an IOException for a file " + description);
+        } catch (IOException e) {
+            // Expected
+        }
+    }
+
+    private void assertRejectedHeader(byte[] bytes) throws IOException {
+        Path path = folder.newFile().toPath();
+        Files.write(path, bytes);
+        try {
+            RedashResultFile.readExpiresAtMillis(path);
+            fail("Expected an IOException for the header");
+        } catch (IOException e) {
+            assertEquals("Not a result file of this driver version", e.getMessage());
+        }
+    }
+
+    private static RedashQueryResult sample() {
+        List<Map<String, Object>> rows = new ArrayList<>();
+        for (long i = 0; i < 10; i++) {
+            rows.add(Collections.singletonMap("id", i));
+        }
+        return new RedashQueryResult(Collections.singletonList(new RedashColumn("id", "integer")), rows);
+    }
+
+    private static byte[] withLong(byte[] bytes, int offset, long value) {
+        byte[] copy = bytes.clone();
+        ByteBuffer.wrap(copy).order(ByteOrder.LITTLE_ENDIAN).putLong(offset, value);
+        return copy;
+    }
+
+    private static void assertSameResult(RedashQueryResult expected, RedashQueryResult actual) {
+        assertEquals(expected.getRowCount(), actual.getRowCount());
+        assertEquals(expected.getColumnCount(), actual.getColumnCount());
+        for (int column = 0; column < expected.getColumnCount(); column++) {
+            assertEquals(expected.getColumns().get(column).getName(), actual.getColumns().get(column).getName());
+            assertEquals(expected.getColumns().get(column).getType(), actual.getColumns().get(column).getType());
+            for (int row = 0; row < expected.getRowCount(); row++) {
+                String cell = "row " + row + " column " + column;
+                assertEquals(cell, expected.getValue(row, column), actual.getValue(row, column));
+                assertEquals(cell, expected.getVector(column).isNull(row), actual.getVector(column).isNull(row));
+            }
+        }
+    }
+}
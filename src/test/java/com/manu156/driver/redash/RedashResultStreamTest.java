@@ -0,0 +1,176 @@
+package com.manu156.driver.redash;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.nio.charset.StandardCharsets;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class RedashResultStreamTest {
+
+    @Test
+    public void endsAfterTheLastChunkWhenTheFetchSizeDividesTheRowCount() throws Exception {
+        Response response = open(6);
+
+        assertEquals(ids(0, 1, 2), ids(response.stream.next(3)));
+        assertEquals(ids(3, 4, 5), ids(response.stream.next(3)));
+        assertEquals(0, response.resource.closes);
+
+        assertNull(response.stream.next(3));
+        assertNull(response.stream.next(3));
+        assertDrained(response);
+    }
+
+    @Test
+    public void endsWithTheShortLastChunk() throws Exception {
+        Response response = open(5);
+
+        assertEquals(ids(0, 1, 2), ids(response.stream.next(3)));
+        assertEquals(ids(3, 4), ids(response.stream.next(3)));
+        assertDrained(response);
+        assertNull(response.stream.next(3));
+    }
+
+    @Test
+    public void emptyRowsArrayEndsAtOnce() throws Exception {
+        Response response = open(0);
+
+        assertNull(response.stream.next(10));
+        assertDrained(response);
+    }
+
+    @Test
+    public void readAllReturnsTheRemainingRows() throws Exception {
+        Response response = open(10);
+
+        assertEquals(ids(0, 1, 2, 3), ids(response.stream.next(4)));
+        assertEquals(ids(4, 5, 6, 7, 8, 9), ids(response.stream.readAll()));
+        assertDrained(response);
+    }
+
+    @Test
+    public void closingMidStreamAbortsTheResponseInsteadOfDrainingIt() throws Exception {
+        // Much more than the parser buffers, so most of the body is still unread
+        Response response = open(100_000);
+        assertEquals(10, response.stream.next(10).getRowCount());
+
+        response.stream.close();
+        response.stream.close();
+
+        assertEquals(1, response.resource.closes);
+        assertTrue(response.in.available() > response.in.length / 2);
+        try {
+            response.stream.next(10);
+            fail("Expected the closed stream to fail");
+        } catch (SQLException e) {
+            assertEquals("Result stream is closed", e.getMessage());
+        }
+    }
+
+    @Test
+    public void failedReadClosesTheStream() throws Exception {
+        String json = body(3);
+        Response response = open(json.substring(0, json.indexOf("{\"id\": 2")));
+
+        assertEquals(ids(0), ids(response.stream.next(1)));
+        try {
+            response.stream.next(5);
+            fail("Expected the truncated response to fail");
+        } catch (SQLException e) {
+            assertEquals("Error reading query results", e.getMessage());
+        }
+        assertEquals(1, response.resource.closes);
+    }
+
+    @Test
+    public void materializedStreamReturnsItsResultOnce() throws Exception {
+        RedashQueryResult result = RedashResultDecoder.decode(
+                new ByteArrayInputStream(body(3).getBytes(StandardCharsets.UTF_8)));
+        RedashResultStream stream = RedashResultStream.of(result);
+
+        assertSame(result, stream.next(1));
+        assertNull(stream.next(1));
+        stream.close();
+    }
+
+    private static Response open(int rows) throws Exception {
+        return open(body(rows));
+    }
+
+    private static Response open(String json) throws Exception {
+        CountingResource resource = new CountingResource();
+        Body in = new Body(json.getBytes(StandardCharsets.UTF_8));
+        RedashResultStream stream = RedashResultDecoder.open(in, resource, false).getStream();
+        assertTrue(stream.isStreaming());
+        return new Response(stream, in, resource);
+    }
+
+    private static String body(int rows) {
+        StringBuilder json = new StringBuilder("{\"query_result\": {\"data\": {\"columns\": "
+                + "[{\"name\": \"id\", \"type\": \"integer\"}], \"rows\": [");
+        for (int row = 0; row < rows; row++) {
+            json.append(row > 0 ? ", " : "").append("{\"id\": ").append(row).append('}');
+        }
+        return json.append("]}, \"retrieved_at\": \"2024-01-01T00:00:00\"}}").toString();
+    }
+
+    private static void assertDrained(Response response) {
+        assertEquals(1, response.resource.closes);
+        assertEquals(0, response.in.available());
+    }
+
+    private static List<Object> ids(int... ids) {
+        List<Object> list = new ArrayList<>();
+        for (int id : ids) {
+            list.add(id);
+        }
+        return list;
+    }
+
+    private static List<Object> ids(RedashQueryResult result) {
+        List<Object> ids = new ArrayList<>();
+        for (int row = 0; row < result.getRowCount(); row++) {
+            ids.add(result.getValue(row, 0));
+        }
+        return ids;
+    }
+
+    private static final class Response {
+        private final RedashResultStream stream;
+        private final Body in;
+        private final CountingResource resource;
+
+        Response(RedashResultStream stream, Body in, CountingResource resource) {
+            this.stream = stream;
+            this.in = in;
+            this.resource = resource;
+        }
+    }
+
+    private static final class Body extends ByteArrayInputStream {
+        private final int length;
+
+        Body(byte[] bytes) {
+            super(bytes);
+            this.length = bytes.length;
+        }
+    }
+
+    private static final class CountingResource implements Closeable {
+        private int closes;
+
+        @Override
+        public void close() {
+            closes++;
+        }
+    }
+}
@@ -0,0 +1,217 @@
+package com.manu156.driver.redash;
+
+import org.apache.http.HttpHost;
+import org.apache.http.HttpVersion;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpExecutionAware;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.client.methods.HttpRequestWrapper;
+import org.apache.http.client.protocol.HttpClientContext;
+import org.apache.http.conn.ConnectTimeoutException;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.impl.execchain.ClientExecChain;
+import org.apache.http.message.BasicHttpResponse;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.ConnectException;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.net.http.HttpConnectTimeoutException;
+import java.net.http.HttpTimeoutException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.Properties;
+import javax.net.ssl.SSLHandshakeException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class RedashRetryExecTest {
+
+    private static final HttpRoute ROUTE = new HttpRoute(new HttpHost("redash", 80));
+
+    @Test
+    public void retriesOnlyGets() throws Exception {
+        RedashRetryPolicy policy = policy(3);
+
+        assertTrue(policy.canRetry("GET", 1));
+        assertTrue(policy.canRetry("GET", 2));
+        assertFalse(policy.canRetry("GET", 3));
+        for (String method : new String[] {"POST", "PUT", "DELETE", "get"}) {
+            assertFalse(method, policy.canRetry(method, 1));
+        }
+    }
+
+    @Test
+    public void retriesRateLimitingAndGatewayStatuses() {
+        for (int status : new int[] {429, 502, 503, 504}) {
+            assertTrue(String.valueOf(status), RedashRetryPolicy.isRetryable(status));
+        }
+        for (int status : new int[] {200, 400, 401, 403, 404, 408, 500, 501, 505}) {
+            assertFalse(String.valueOf(status), RedashRetryPolicy.isRetryable(status));
+        }
+        assertFalse(RedashRetryPolicy.isUnavailable(429));
+        assertTrue(RedashRetryPolicy.isUnavailable(503));
+    }
+
+    @Test
+    public void retriesOnlyIoErrorsASecondAttemptMayNotRepeat() {
+        assertTrue(RedashRetryPolicy.isRetryable(new ConnectException("refused")));
+        assertTrue(RedashRetryPolicy.isRetryable(new SocketException("reset")));
+        assertTrue(RedashRetryPolicy.isRetryable(new ConnectTimeoutException("connect timed out")));
+        assertTrue(RedashRetryPolicy.isRetryable(new HttpConnectTimeoutException("connect timed out")));
+
+        assertFalse(RedashRetryPolicy.isRetryable(new SocketTimeoutException("read timed out")));
+        assertFalse(RedashRetryPolicy.isRetryable(new HttpTimeoutException("request timed out")));
+        assertFalse(RedashRetryPolicy.isRetryable(new InterruptedIOException()));
+        assertFalse(RedashRetryPolicy.isRetryable(new UnknownHostException("redash")));
+        assertFalse(RedashRetryPolicy.isRetryable(new SSLHandshakeException("bad certificate")));
+        assertFalse(RedashRetryPolicy.isRetryable(new RedashCircuitBreaker.OpenException("open")));
+    }
+
+    @Test
+    public void retriesAGetUntilItSucceeds() throws Exception {
+        ScriptedChain chain = new ScriptedChain(new ConnectException("refused"), 503, 200);
+
+        CloseableHttpResponse response = execute(chain, new HttpGet("http://redash/api/jobs/1"), policy(3));
+
+        assertEquals(200, response.getStatusLine().getStatusCode());
+        assertEquals(3, chain.attempts);
+    }
+
+    @Test
+    public void returnsTheLastResponseOnceTheAttemptsAreUsedUp() throws Exception {
+        ScriptedChain chain = new ScriptedChain(502, 429, 504);
+
+        CloseableHttpResponse response = execute(chain, new HttpGet("http://redash/api/jobs/1"), policy(3));
+
+        assertEquals(504, response.getStatusLine().getStatusCode());
+        assertEquals(3, chain.attempts);
+    }
+
+    @Test
+    public void neverRetriesAPost() throws Exception {
+        ScriptedChain chain = new ScriptedChain(503, 200);
+
+        CloseableHttpResponse response = execute(chain, new HttpPost("http://redash/api/query_results"), policy(3));
+
+        assertEquals(503, response.getStatusLine().getStatusCode());
+        assertEquals(1, chain.attempts);
+
+        IOException refused = new ConnectException("refused");
+        chain = new ScriptedChain(refused, 200);
+        try {
+            execute(chain, new HttpPost("http://redash/api/query_results"), policy(3));
+            fail("Expected the POST to fail");
+        } catch (IOException e) {
+            assertSame(refused, e);
+        }
+        assertEquals(1, chain.attempts);
+    }
+
+    @Test
+    public void neverRetriesOtherStatusesOrErrors() throws Exception {
+        for (int status : new int[] {400, 404, 500}) {
+            ScriptedChain chain = new ScriptedChain(status, 200);
+            CloseableHttpResponse response = execute(chain, new HttpGet("http://redash/api/jobs/1"), policy(3));
+            assertEquals(status, response.getStatusLine().getStatusCode());
+            assertEquals(1, chain.attempts);
+        }
+
+        ScriptedChain chain = new ScriptedChain(new SocketTimeoutException("read timed out"), 200);
+        try {
+            execute(chain, new HttpGet("http://redash/api/jobs/1"), policy(3));
+            fail("Expected the read timeout to fail the request");
+        } catch (SocketTimeoutException e) {
+            assertEquals(1, chain.attempts);
+        }
+    }
+
+    @Test
+    public void failuresOpenTheCircuitBreakerAndStopTheRetries() throws Exception {
+        RedashCircuitBreaker breaker = new RedashCircuitBreaker("redash", 2, 60_000);
+        ScriptedChain chain = new ScriptedChain(503, 503, 200);
+
+        try {
+            execute(chain, new HttpGet("http://redash/api/jobs/1"), policy(3), breaker);
+            fail("Expected the open circuit breaker to fail the request");
+        } catch (RedashCircuitBreaker.OpenException e) {
+            assertEquals(2, chain.attempts);
+        }
+    }
+
+    @Test
+    public void rateLimitingDoesNotCountAgainstTheHost() throws Exception {
+        RedashCircuitBreaker breaker = new RedashCircuitBreaker("redash", 2, 60_000);
+        ScriptedChain chain = new ScriptedChain(429, 429, 200);
+
+        CloseableHttpResponse response = execute(chain, new HttpGet("http://redash/api/jobs/1"), policy(3), breaker);
+
+        assertEquals(200, response.getStatusLine().getStatusCode());
+        breaker.acquirePermission();
+    }
+
+    private static CloseableHttpResponse execute(ScriptedChain chain, HttpRequestBase request,
+                                                 RedashRetryPolicy policy) throws Exception {
+        return execute(chain, request, policy, new RedashCircuitBreaker("redash", 0, 0));
+    }
+
+    private static CloseableHttpResponse execute(ScriptedChain chain, HttpRequestBase request,
+                                                 RedashRetryPolicy policy, RedashCircuitBreaker breaker)
+            throws Exception {
+        return new RedashRetryExec(chain, policy, breaker)
+                .execute(ROUTE, HttpRequestWrapper.wrap(request), HttpClientContext.create(), request);
+    }
+
+    private static RedashRetryPolicy policy(int attempts) throws Exception {
+        Properties properties = new Properties();
+        properties.setProperty(RedashConnectionProperties.RETRY_ATTEMPTS, String.valueOf(attempts));
+        properties.setProperty(RedashConnectionProperties.RETRY_INITIAL_BACKOFF, "1");
+        properties.setProperty(RedashConnectionProperties.RETRY_MAX_BACKOFF, "1");
+        properties.setProperty(RedashConnectionProperties.RETRY_JITTER, "0");
+        return new RedashRetryPolicy(new RedashConnectionProperties(properties));
+    }
+
+    /**
+     * Execution chain answering each attempt with the next status code or exception.
+     */
+    private static final class ScriptedChain implements ClientExecChain {
+        private final Deque<Object> outcomes;
+        private int attempts;
+
+        ScriptedChain(Object... outcomes) {
+            this.outcomes = new ArrayDeque<>(Arrays.asList(outcomes));
+        }
+
+        @Override
+        public CloseableHttpResponse execute(HttpRoute route, HttpRequestWrapper request, HttpClientContext context,
+                                             HttpExecutionAware execAware)
+                throws IOException {
+            attempts++;
+            Object outcome = outcomes.removeFirst();
+            if (outcome instanceof IOException) {
+                throw (IOException) outcome;
+            }
+            return new Response((Integer) outcome);
+        }
+    }
+
+    private static final class Response extends BasicHttpResponse implements CloseableHttpResponse {
+        Response(int statusCode) {
+            super(HttpVersion.HTTP_1_1, statusCode, null);
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}